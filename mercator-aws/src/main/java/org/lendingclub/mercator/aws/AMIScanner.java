@@ -61,11 +61,10 @@ public class AMIScanner extends AbstractEC2Scanner {
 		rateLimit();
 		result.getImages().forEach(i -> { 
 			try { 
-				ObjectNode n = convertAwsObject(i, getRegion());
+				ObjectNode n = getShadowAttributeRemover().foldTagRemovals("AwsAmi", convertAwsObject(i, getRegion()));
 			
 				
-				String cypher = "merge (x:AwsAmi {aws_arn:{aws_arn}}) set x+={props} set x.updateTs=timestamp() return x";
-				neoRx.execCypher(cypher, "aws_arn", n.path("aws_arn").asText(), "props",n).forEach( r->{
+				getGraphWriter().merge("AwsAmi", AWS_ARN_ATTRIBUTE, n, r -> {
 					gc.MERGE_ACTION.accept(r);
 					getShadowAttributeRemover().removeTagAttributes("AwsAmi", n, r);
 				});
@@ -59,18 +59,7 @@ public class ASGScanner extends AWSScanner<AmazonAutoScalingClient> {
 
 		forEachAsg(asg -> {
 			try {
-				ObjectNode n = convertAwsObject(asg, getRegion());
-				String asgArn = n.path("aws_arn").asText();
-
-				String cypher = "merge (x:AwsAsg {aws_arn:{aws_arn}}) set x+={props}, x.updateTs=timestamp() return x";
-
-				Preconditions.checkNotNull(getNeoRxClient());
-				getNeoRxClient().execCypher(cypher, "aws_arn", asgArn, "props", n).forEach(r -> {
-					gc.MERGE_ACTION.accept(r);
-					getShadowAttributeRemover().removeTagAttributes("AwsAsg", n, r);
-				});
-				incrementEntityCount();
-				mapAsgRelationships(asg, asgArn, getRegion().getName());
+				projectAsg(asg, gc);
 			} catch (RuntimeException e) {
 		
 				maybeThrow(e, "problem scanning asg");
@@ -80,6 +69,23 @@ public class ASGScanner extends AWSScanner<AmazonAutoScalingClient> {
 		
 	}
 
+	void projectAsg(AutoScalingGroup asg, GraphNodeGarbageCollector gc) {
+		ObjectNode n = convertAwsObject(asg, getRegion());
+		String asgArn = n.path("aws_arn").asText();
+		getShadowAttributeRemover().foldTagRemovals("AwsAsg", n);
+
+		String cypher = "merge (x:AwsAsg {aws_arn:{aws_arn}}) set x+={props}, x.updateTs=timestamp() "
+				+ getShadowAttributeRemover().getReturnClause("x");
+
+		Preconditions.checkNotNull(getNeoRxClient());
+		getNeoRxClient().execCypher(cypher, "aws_arn", asgArn, "props", n).forEach(r -> {
+			gc.MERGE_ACTION.accept(r);
+			getShadowAttributeRemover().removeTagAttributes("AwsAsg", n, r);
+		});
+		incrementEntityCount();
+		mapAsgRelationships(asg, asgArn, getRegion().getName());
+	}
+
 	private void forEachAsg(Consumer<AutoScalingGroup> consumer, String... asgNames) {
 
 		DescribeAutoScalingGroupsRequest request = new DescribeAutoScalingGroupsRequest();
@@ -0,0 +1,229 @@
+/**
+ * Copyright 2017 Lending Club, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lendingclub.mercator.aws;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.AmazonWebServiceClient;
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.regions.Region;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+
+/**
+ * Shared SDK clients for all AWS scanners in the process. A client, and with
+ * it its HTTP connection pool, is reused by every scanner that asks for the
+ * same client type in the same account and region with the same credentials
+ * provider and ClientConfiguration, so that scanners built afresh on each
+ * iteration do not pay for connection setup again.
+ *
+ * Credentials providers and client configurations are compared by identity.
+ * Clients that have not been asked for within the idle timeout are shut down.
+ * Since scanners get their client from the registry on every call, the idle
+ * timeout only needs to be longer than the longest single paginated call.
+ */
+public class AWSClientRegistry {
+
+	public static final long DEFAULT_IDLE_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(30);
+
+	static final long EVICTION_CHECK_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+	static ObjectMapper mapper = new ObjectMapper();
+
+	static AWSClientRegistry instance = new AWSClientRegistry();
+
+	Logger logger = LoggerFactory.getLogger(AWSClientRegistry.class);
+
+	ConcurrentMap<ClientKey, Entry> clients = Maps.newConcurrentMap();
+
+	volatile long idleTimeoutMillis = DEFAULT_IDLE_TIMEOUT_MILLIS;
+	volatile long lastEvictionCheck = System.currentTimeMillis();
+
+	AtomicLong hitCount = new AtomicLong();
+	AtomicLong missCount = new AtomicLong();
+	AtomicLong evictionCount = new AtomicLong();
+
+	static final class ClientKey {
+		final String clientType;
+		final String account;
+		final String region;
+		final AWSCredentialsProvider credentialsProvider;
+		final ClientConfiguration clientConfiguration;
+
+		ClientKey(Class<?> clientType, String account, Region region, AWSCredentialsProvider credentialsProvider,
+				ClientConfiguration clientConfiguration) {
+			this.clientType = clientType.getName();
+			this.account = account;
+			this.region = region.getName();
+			this.credentialsProvider = credentialsProvider;
+			this.clientConfiguration = clientConfiguration;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof ClientKey)) {
+				return false;
+			}
+			ClientKey other = (ClientKey) obj;
+			return clientType.equals(other.clientType) && Objects.equals(account, other.account)
+					&& region.equals(other.region) && credentialsProvider == other.credentialsProvider
+					&& clientConfiguration == other.clientConfiguration;
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(clientType, account, region, System.identityHashCode(credentialsProvider),
+					System.identityHashCode(clientConfiguration));
+		}
+
+		@Override
+		public String toString() {
+			return MoreObjects.toStringHelper("ClientKey").add("type", clientType).add("account", account)
+					.add("region", region).toString();
+		}
+	}
+
+	static final class Entry {
+		final AmazonWebServiceClient client;
+		volatile long lastAccess = System.currentTimeMillis();
+
+		Entry(AmazonWebServiceClient client) {
+			this.client = client;
+		}
+	}
+
+	public static AWSClientRegistry getInstance() {
+		return instance;
+	}
+
+	public AWSClientRegistry withIdleTimeout(long duration, TimeUnit unit) {
+		Preconditions.checkArgument(duration > 0, "idle timeout must be > 0");
+		this.idleTimeoutMillis = unit.toMillis(duration);
+		return this;
+	}
+
+	/**
+	 * Returns the shared client for the given key, creating it with the factory
+	 * if there is none.
+	 */
+	public <T extends AmazonWebServiceClient> T getClient(Class<T> clientType, String account, Region region,
+			AWSCredentialsProvider credentialsProvider, ClientConfiguration clientConfiguration,
+			Supplier<? extends T> factory) {
+		Preconditions.checkNotNull(clientType, "clientType cannot be null");
+		Preconditions.checkNotNull(region, "region cannot be null");
+		Preconditions.checkNotNull(factory, "factory cannot be null");
+		maybeEvictIdleClients();
+
+		ClientKey key = new ClientKey(clientType, account, region, credentialsProvider, clientConfiguration);
+		Entry entry = clients.get(key);
+		if (entry != null) {
+			hitCount.incrementAndGet();
+		} else {
+			entry = clients.computeIfAbsent(key, k -> {
+				missCount.incrementAndGet();
+				logger.info("creating shared client {}", k);
+				return new Entry(factory.get());
+			});
+		}
+		entry.lastAccess = System.currentTimeMillis();
+		return clientType.cast(entry.client);
+	}
+
+	void maybeEvictIdleClients() {
+		long now = System.currentTimeMillis();
+		if (now - lastEvictionCheck > EVICTION_CHECK_INTERVAL_MILLIS) {
+			lastEvictionCheck = now;
+			evictIdleClients(now);
+		}
+	}
+
+	/**
+	 * Shut down the clients that have been idle for longer than the idle
+	 * timeout and return the number evicted.
+	 */
+	public int evictIdleClients() {
+		return evictIdleClients(System.currentTimeMillis());
+	}
+
+	int evictIdleClients(long now) {
+		int count = 0;
+		Iterator<Map.Entry<ClientKey, Entry>> it = clients.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<ClientKey, Entry> e = it.next();
+			if (now - e.getValue().lastAccess > idleTimeoutMillis && clients.remove(e.getKey(), e.getValue())) {
+				logger.info("shutting down idle client {}", e.getKey());
+				shutdown(e.getValue());
+				evictionCount.incrementAndGet();
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Shut down and discard all clients.
+	 */
+	public void clear() {
+		for (ClientKey key : clients.keySet()) {
+			Entry entry = clients.remove(key);
+			if (entry != null) {
+				shutdown(entry);
+			}
+		}
+	}
+
+	void shutdown(Entry entry) {
+		try {
+			entry.client.shutdown();
+		} catch (RuntimeException e) {
+			logger.warn("problem shutting down client", e);
+		}
+	}
+
+	public int size() {
+		return clients.size();
+	}
+
+	public long getHitCount() {
+		return hitCount.get();
+	}
+
+	public long getMissCount() {
+		return missCount.get();
+	}
+
+	public long getEvictionCount() {
+		return evictionCount.get();
+	}
+
+	public ObjectNode toJson() {
+		return mapper.createObjectNode().put("clients", size()).put("hits", getHitCount())
+				.put("misses", getMissCount()).put("evictions", getEvictionCount());
+	}
+}
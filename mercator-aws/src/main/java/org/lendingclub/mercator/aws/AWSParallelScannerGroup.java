@@ -19,20 +19,29 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Future;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadFactory;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.RejectedExecutionException;
 
 import org.lendingclub.mercator.core.MercatorException;
 import org.lendingclub.mercator.core.Scanner;
+import org.lendingclub.mercator.core.ScannerContext;
 
-import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ListMultimap;
 
+/**
+ * A group of scanners that are run concurrently. Each scanner is submitted as
+ * soon as all the scanners it depends on have finished, whether or not they
+ * succeeded, so independent branches of the dependency graph run in parallel.
+ * 
+ * Scanners are run by the builder's ScanScheduler, on behalf of the account and
+ * region they scan.
+ */
 public class AWSParallelScannerGroup extends AWSScannerGroup {
 	private static class ScannerRunnable implements Runnable {
 		private Scanner scanner;
@@ -48,20 +57,8 @@ public class AWSParallelScannerGroup extends AWSScannerGroup {
 
 	}
 
-	private static final ExecutorService pool;
-	static {
-		int nThreads = Math.max(3, Runtime.getRuntime().availableProcessors() / 2);
-		ThreadFactory threadFactory = new ThreadFactoryBuilder().setDaemon(true).setNameFormat("aws-scanner-%d")
-				.build();
-		pool = new ThreadPoolExecutor(nThreads, nThreads, 0L, TimeUnit.MILLISECONDS,
-				new LinkedBlockingQueue<Runnable>(), threadFactory);
-	}
 	private List<Future<?>> tasks = Collections.synchronizedList(new ArrayList<>());
 
-	public static ExecutorService getExecutorService() {
-		return pool;
-	}
-
 	public AWSParallelScannerGroup(AWSScannerBuilder builder) {
 		super(builder);
 	}
@@ -71,19 +68,66 @@ public class AWSParallelScannerGroup extends AWSScannerGroup {
 		if (!builder.getInitialScannerGroup().compareAndSet(null, this)) {
 			tasks = builder.getInitialScannerGroup().get().tasks;
 		}
-		for (Scanner scanner : getScanners()) {
-			Future<?> task = pool.submit(new ScannerRunnable(scanner));
-			tasks.add(task);
-		}
+		submit(getScanners());
 		if (builder.getInitialScannerGroup().get() == this) {
 			try {
 				waitForCompletion();
 			} finally {
 				tasks.clear();
+				logger.info("AWS request metrics: {}", getRequestMetricsSnapshot().getTotal());
+				ScannerContext.getScannerContext().ifPresent(ctx -> {
+					ctx.getChildren().forEach(child -> logger.info("{} {}", child, child.getMetrics()));
+				});
+				if (logger.isDebugEnabled()) {
+					logger.debug("scan scheduler: {}", builder.getScanScheduler());
+				}
 			}
 		}
 	}
 
+	@SuppressWarnings("rawtypes")
+	void submit(List<Scanner> scanners) {
+		List<Class<? extends AWSScanner>> types = new ArrayList<>();
+		scanners.forEach(it -> types.add(((AWSScanner<?>) it).getClass()));
+		Map<Class<? extends AWSScanner>, Set<Class<? extends AWSScanner>>> prerequisites = getScanDependencies()
+				.resolve(types);
+
+		// scanners are in dependency order, so prerequisites are always
+		// submitted first
+		ListMultimap<Class<?>, CompletableFuture<Void>> submitted = ArrayListMultimap.create();
+		for (Scanner scanner : scanners) {
+			List<CompletableFuture<Void>> waitFor = new ArrayList<>();
+			prerequisites.get(scanner.getClass()).forEach(it -> waitFor.addAll(submitted.get(it)));
+
+			Executor executor = builder.getScanScheduler().getExecutor(getTenant(scanner));
+			CompletableFuture<Void> task;
+			if (waitFor.isEmpty()) {
+				try {
+					task = CompletableFuture.runAsync(ScannerContext.propagate(new ScannerRunnable(scanner)), executor);
+				} catch (RejectedExecutionException e) {
+					task = new CompletableFuture<>();
+					task.completeExceptionally(e);
+				}
+			} else {
+				task = CompletableFuture.allOf(waitFor.toArray(new CompletableFuture[0])).handle((v, e) -> v)
+						.thenRunAsync(ScannerContext.propagate(new ScannerRunnable(scanner)), executor);
+			}
+			submitted.put(scanner.getClass(), task);
+			tasks.add(task);
+		}
+	}
+
+	/**
+	 * Scanners are queued fairly by account and region. The account is
+	 * resolved (and cached per credentials provider) here if it was not
+	 * configured, so that accounts without an explicit id do not all share one
+	 * queue.
+	 */
+	String getTenant(Scanner scanner) {
+		AWSScanner<?> awsScanner = (AWSScanner<?>) scanner;
+		return awsScanner.getAccountId() + "/" + awsScanner.getRegion().getName();
+	}
+
 	private void waitForCompletion() {
 		List<Throwable> failures = new ArrayList<>();
 		Set<Future<?>> completed = new HashSet<>();
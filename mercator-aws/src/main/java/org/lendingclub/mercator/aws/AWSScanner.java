@@ -20,16 +20,22 @@ import java.lang.reflect.Method;
 import java.util.Optional;
 
 import org.lendingclub.mercator.core.AbstractScanner;
+import org.lendingclub.mercator.core.AdaptiveRateLimiter;
+import org.lendingclub.mercator.core.GraphWriter;
 import org.lendingclub.mercator.core.MercatorException;
+import org.lendingclub.mercator.core.OwnerLink;
 import org.lendingclub.mercator.core.Projector;
+import org.lendingclub.mercator.core.ScanGeneration;
 import org.lendingclub.mercator.core.ScannerContext;
 import org.lendingclub.mercator.core.SchemaManager;
+import org.lendingclub.mercator.core.TokenBucket;
 import org.lendingclub.neorx.NeoRxClient;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.amazonaws.AmazonWebServiceClient;
 import com.amazonaws.SdkClientException;
+import com.amazonaws.client.builder.AwsClientBuilder;
 import com.amazonaws.client.builder.AwsSyncClientBuilder;
 import com.amazonaws.metrics.RequestMetricCollector;
 import com.amazonaws.regions.Region;
@@ -48,12 +54,15 @@ public abstract class AWSScanner<T extends AmazonWebServiceClient> extends Abstr
 
 	protected final Logger logger = LoggerFactory.getLogger(getClass());
 	private Projector projector;
-	private AmazonWebServiceClient client;
 	private Region region;
 
 	String neo4jLabel = null;
-	private ScannerMetricCollector metricCollector = new ScannerMetricCollector();
+	private ScannerMetricCollector metricCollector = new ScannerMetricCollector(this);
+	private TokenBucket tokenBucket;
 	protected AWSScannerBuilder builder;
+
+	private volatile ScannerContext lastScannerContext;
+	private volatile long scanGeneration;
 	protected JsonConverter jsonConverter = new JsonConverter();
 
 	Class<T> clientType;
@@ -80,7 +89,7 @@ public abstract class AWSScanner<T extends AmazonWebServiceClient> extends Abstr
 		this.region = builder.getRegion();
 		this.projector = builder.getProjector();
 
-		this.shadowRemover = new ShadowAttributeRemover(getNeoRxClient());
+		this.shadowRemover = new ShadowAttributeRemover(getNeoRxClient()).withTagKeyCache(builder.getTagKeyCache());
 
 	}
 
@@ -92,12 +101,17 @@ public abstract class AWSScanner<T extends AmazonWebServiceClient> extends Abstr
 		return shadowRemover;
 	}
 
+	@Override
+	protected GraphWriter createGraphWriter() {
+		return super.createGraphWriter().withCompactResults(shadowRemover.isTagKeyCacheEnabled());
+	}
+
 	protected T createClient(Class<T> clazz) {
 		try {
 			String builderClass = clazz.getName() + "Builder";
 			Class<?> builderClazz = Class.forName(builderClass);
 			Method m = builderClazz.getMethod("standard");
-			return clazz.cast(builder.configure((AwsSyncClientBuilder<?, ?>) m.invoke(null)).build());
+			return clazz.cast(configure((AwsSyncClientBuilder<?, ?>) m.invoke(null)).build());
 		} catch (ClassNotFoundException | IllegalAccessException | InvocationTargetException
 				| NoSuchMethodException e) {
 			throw new MercatorException(e);
@@ -109,16 +123,28 @@ public abstract class AWSScanner<T extends AmazonWebServiceClient> extends Abstr
 		return (T) createClient(clientType);
 	}
 
+	/**
+	 * Applies the builder's region, credentials and client configuration.
+	 * Clients are shared through AWSClientRegistry, so their request metrics
+	 * are routed to whichever scanner is scanning on the calling thread.
+	 */
+	@SuppressWarnings("rawtypes")
+	protected AwsClientBuilder configure(AwsClientBuilder b) {
+		return (AwsClientBuilder) builder.configure(b).withMetricsCollector(ScannerMetricCollector.ROUTER);
+	}
+
 	public Projector getProjector() {
 		return projector;
 	}
 
-	@SuppressWarnings("unchecked")
+	/**
+	 * Returns the shared client for this scanner's account, region,
+	 * credentials and client configuration, creating it with createClient() if
+	 * necessary.
+	 */
 	public T getClient() {
-		if (this.client == null) {
-			this.client = createClient();
-		}
-		return (T) this.client;
+		return AWSClientRegistry.getInstance().getClient(clientType, getAccountId(), getRegion(),
+				builder.getCredentialsProvider(), builder.getClientConfiguration(), this::createClient);
 	}
 
 	public Region getRegion() {
@@ -136,15 +162,15 @@ public abstract class AWSScanner<T extends AmazonWebServiceClient> extends Abstr
 
 	class AWSScannerContext extends ScannerContext {
 
+		AWSScanner<?> getScanner() {
+			return AWSScanner.this;
+		}
+
 		@Override
 		protected ToStringHelper toStringHelper() {
 			ToStringHelper tsh = super.toStringHelper();
 			tsh.add("region", getRegion().getName());
-			try {
-				tsh.add("account", getAccountId());
-			} catch (RuntimeException e) {
-				tsh.add("account", "unknown");
-			}
+			tsh.add("account", getAccountIdIfAvailable());
 			return tsh;
 		}
 
@@ -152,13 +178,25 @@ public abstract class AWSScanner<T extends AmazonWebServiceClient> extends Abstr
 
 	public final void scan() {
 
-		new AWSScannerContext().withName(getClass().getSimpleName()).exec(ctx -> {
+		ensureSchema();
+		AWSScannerContext context = new AWSScannerContext();
+		lastScannerContext = context;
+		context.withName(getClass().getSimpleName()).exec(ctx -> {
 
 			try {
 
 				logger.info("{} started scan", toString());
 
-				doScan();
+				try {
+					if (builder.isScanGenerationEnabled()) {
+						scanGeneration = ScanGeneration.next(getNeoRxClient(), getScanGenerationName());
+					}
+					doScan();
+				} finally {
+					// write whatever was merged before a failure, while the
+					// scanner context is still bound
+					getGraphWriter().flush();
+				}
 			} catch (RuntimeException e) {
 				maybeThrow(e);
 			}
@@ -167,6 +205,33 @@ public abstract class AWSScanner<T extends AmazonWebServiceClient> extends Abstr
 
 	}
 
+	/**
+	 * Returns the context of the most recent scan. Its metrics include those of
+	 * every nested scanner that has completed, and getChildren() breaks them
+	 * down by scanner (or, for MultiAccountRegionEntityScanner, by account and
+	 * region).
+	 */
+	public Optional<ScannerContext> getLastScannerContext() {
+		return Optional.ofNullable(lastScannerContext);
+	}
+
+	/**
+	 * Each scanner type, account and region has its own generation, so that a
+	 * concurrent scan of another type cannot move the generation past nodes
+	 * that this scan has yet to write.
+	 */
+	String getScanGenerationName() {
+		return getClass().getSimpleName() + "/" + getAccountId() + "/" + getRegion().getName();
+	}
+
+	/**
+	 * Returns the generation stamped on nodes written by the current scan, or 0
+	 * if scan generations are not enabled.
+	 */
+	public long getScanGeneration() {
+		return scanGeneration;
+	}
+
 	protected abstract void doScan();
 
 	public ObjectNode convertAwsObject(Object x, Region region) {
@@ -179,19 +244,40 @@ public abstract class AWSScanner<T extends AmazonWebServiceClient> extends Abstr
 		if (arn.isPresent()) {
 			n.put(AWS_ARN_ATTRIBUTE, arn.get());
 		}
+		if (scanGeneration > 0) {
+			// x+={props} removes properties set to null, which clears the tombstone
+			n.put(ScanGeneration.SCAN_GENERATION_ATTRIBUTE, scanGeneration);
+			n.putNull(ScanGeneration.TOMBSTONE_ATTRIBUTE);
+		}
 		return n;
 
 	}
 
 	public GraphNodeGarbageCollector newGarbageCollector() {
-		return new GraphNodeGarbageCollector().neo4j(getNeoRxClient()).account(getAccountId()).region(getRegion())
-				.label(getNeo4jLabel());
+		GraphNodeGarbageCollector gc = new GraphNodeGarbageCollector().neo4j(getNeoRxClient()).account(getAccountId())
+				.region(getRegion()).label(getNeo4jLabel());
+		if (scanGeneration > 0) {
+			gc.generation(scanGeneration).tombstoneGenerations(builder.getTombstoneGenerations())
+					.batchSize(builder.getGarbageCollectionBatchSize());
+		}
+		return gc;
 	}
 
 	public Optional<String> computeArn(JsonNode n) {
 		return Optional.empty();
 	}
 
+	/**
+	 * Returns an OwnerLink from this scanner's account to the nodes it writes,
+	 * bound to the current scan. Add the ARN of each node as it is written, or
+	 * chain ADD_ACTION to its GraphWriter merge, and the OWNS relationships are
+	 * merged a batch at a time, with the remainder when the scan completes.
+	 */
+	protected OwnerLink newAccountOwnerLink() {
+		return new OwnerLink(getNeoRxClient()).withOwner("AwsAccount", AWS_ACCOUNT_ATTRIBUTE, getAccountId())
+				.withOwned(getNeo4jLabel(), AWS_ARN_ATTRIBUTE).withRelationship("OWNS").bindScannerContext();
+	}
+
 	@Override
 	public SchemaManager getSchemaManager() {
 		return new AWSSchemaManager(getNeoRxClient());
@@ -201,16 +287,58 @@ public abstract class AWSScanner<T extends AmazonWebServiceClient> extends Abstr
 		return metricCollector;
 	}
 
-	public String toString() {
-		String safeAccount = "unknown";
-		try {
-			safeAccount = getAccountId();
-		} catch (Exception e) {
-			// getAccountId() could trigger a callout...bad thing to happen from
-			// toString()
+	/**
+	 * Returns the bucket of the shared per-account API budget that this
+	 * scanner draws from.
+	 */
+	public synchronized TokenBucket getTokenBucket() {
+		if (tokenBucket == null) {
+			tokenBucket = TokenBucketRegistry.getInstance().getBucket(getAccountId(), getRegion().getName(),
+					getClient().getEndpointPrefix());
+		}
+		return tokenBucket;
+	}
+
+	@Override
+	public void rateLimit() {
+		if (builder.isSharedApiBudgetEnabled()) {
+			long ms = getTokenBucket().acquire(builder.getApiPriority());
+			if (ms > 50) {
+				logger.info("shared API budget {} paused execution for {} ms", getTokenBucket().getName(), ms);
+			}
 		}
+		super.rateLimit();
+	}
+
+	/**
+	 * Adaptive rate limiters are shared by all scanners that call the same
+	 * service in the same account and region.
+	 */
+	@Override
+	protected AdaptiveRateLimiter createAdaptiveRateLimiter(double initialRate) {
+		return AdaptiveRateLimiterRegistry.getRateLimiter(getAccountId(), getRegion().getName(),
+				getClient().getEndpointPrefix(), initialRate);
+	}
+
+	/**
+	 * Returns a copy of the SDK request metrics collected from this scanner's
+	 * client, per API operation.
+	 */
+	public RequestMetricsSnapshot getRequestMetricsSnapshot() {
+		return metricCollector.getSnapshot();
+	}
+
+	/**
+	 * Returns the account id if it is already known, or "unknown". Never calls
+	 * STS, so that it is safe to use from toString().
+	 */
+	String getAccountIdIfAvailable() {
+		return builder.getAccountIdIfAvailable().orElse("unknown");
+	}
+
+	public String toString() {
 		return MoreObjects.toStringHelper(this).add(AWS_REGION_ATTRIBUTE, getRegion().getName())
-				.add(AWS_ACCOUNT_ATTRIBUTE, safeAccount).toString();
+				.add(AWS_ACCOUNT_ATTRIBUTE, getAccountIdIfAvailable()).toString();
 	}
 
 	protected boolean tokenHasNext(String token) {
@@ -16,16 +16,18 @@
 package org.lendingclub.mercator.aws;
 
 import java.lang.reflect.InvocationTargetException;
+import java.util.Optional;
 import java.util.concurrent.atomic.AtomicReference;
 
+import org.lendingclub.mercator.core.ExecutionMode;
 import org.lendingclub.mercator.core.Projector;
 import org.lendingclub.mercator.core.ScannerBuilder;
+import org.lendingclub.mercator.core.TokenBucket;
 
 import com.amazonaws.AmazonWebServiceClient;
 import com.amazonaws.ClientConfiguration;
 import com.amazonaws.auth.AWSCredentialsProvider;
 import com.amazonaws.auth.DefaultAWSCredentialsProviderChain;
-import com.amazonaws.auth.STSAssumeRoleSessionCredentialsProvider;
 import com.amazonaws.client.builder.AwsClientBuilder;
 import com.amazonaws.regions.Region;
 import com.amazonaws.regions.Regions;
@@ -41,11 +43,25 @@ import com.google.common.base.Suppliers;
 public class AWSScannerBuilder extends ScannerBuilder<AWSScanner> {
 
 	private Supplier<String> acccountIdSupplier = Suppliers.memoize(new AccountIdSupplier());
+	private String accountId;
 	private Region region;
 	private AWSCredentialsProvider credentialsProvider;
 	private ClientConfiguration clientConfiguration;
 	private Class<? extends AWSScanner> targetType;
 	private boolean includeGlobalResources;
+	private boolean sharedApiBudgetEnabled;
+	private TokenBucket.Priority apiPriority = TokenBucket.Priority.BACKGROUND;
+	private ScanScheduler scanScheduler;
+	private TagKeyCache tagKeyCache;
+	private boolean scanGenerationEnabled;
+	private boolean iamAuthorizationDetailsEnabled;
+	private boolean pageProjectionEnabled;
+	private int ec2InstancePageSize = EC2InstanceScanner.DEFAULT_PAGE_SIZE;
+	private boolean ec2InstancePrefetchEnabled;
+	private EC2InstanceScanner.ShardFilter ec2InstanceShardFilter = EC2InstanceScanner.ShardFilter.NONE;
+	private int ec2InstanceShardConcurrency = EC2InstanceScanner.DEFAULT_SHARD_CONCURRENCY;
+	private int tombstoneGenerations;
+	private int garbageCollectionBatchSize = GraphNodeGarbageCollector.DEFAULT_BATCH_SIZE;
 	private AtomicReference<AWSParallelScannerGroup> initialScannerGroup = new AtomicReference<>();
 
 	public AWSScannerBuilder() {
@@ -56,6 +72,21 @@ public class AWSScannerBuilder extends ScannerBuilder<AWSScanner> {
 		initialScannerGroup = builder.initialScannerGroup;
 		setProjector(builder.getProjector());
 		withFailOnError(builder.isFailOnError());
+		withAdaptiveRateLimit(builder.isAdaptiveRateLimitEnabled());
+		withExecutionMode(builder.getExecutionMode());
+		sharedApiBudgetEnabled = builder.sharedApiBudgetEnabled;
+		apiPriority = builder.apiPriority;
+		scanScheduler = builder.scanScheduler;
+		tagKeyCache = builder.tagKeyCache;
+		scanGenerationEnabled = builder.scanGenerationEnabled;
+		iamAuthorizationDetailsEnabled = builder.iamAuthorizationDetailsEnabled;
+		pageProjectionEnabled = builder.pageProjectionEnabled;
+		ec2InstancePageSize = builder.ec2InstancePageSize;
+		ec2InstancePrefetchEnabled = builder.ec2InstancePrefetchEnabled;
+		ec2InstanceShardFilter = builder.ec2InstanceShardFilter;
+		ec2InstanceShardConcurrency = builder.ec2InstanceShardConcurrency;
+		tombstoneGenerations = builder.tombstoneGenerations;
+		garbageCollectionBatchSize = builder.garbageCollectionBatchSize;
 		if (builder.getRateLimitPerSecond().isPresent()) {
 			withRateLimitPerSecond(builder.getRateLimitPerSecond().get());
 		}
@@ -69,21 +100,43 @@ public class AWSScannerBuilder extends ScannerBuilder<AWSScanner> {
 
 	AWSCredentialsProvider getCredentialsProvider() {
 		if (credentialsProvider == null) {
-			return new DefaultAWSCredentialsProviderChain();
+			// shared, so that clients using the default chain can be shared too
+			return DefaultAWSCredentialsProviderChain.getInstance();
 		}
 		return credentialsProvider;
 	}
 
+	ClientConfiguration getClientConfiguration() {
+		return clientConfiguration;
+	}
+
 	public Supplier<String> getAccountIdSupplier() {
 		return acccountIdSupplier;
 	}
 
+	/**
+	 * Returns the account id if it has been set or is already known, without
+	 * calling STS.
+	 */
+	Optional<String> getAccountIdIfAvailable() {
+		if (accountId != null) {
+			return Optional.of(accountId);
+		}
+		return CallerIdentityCache.getInstance().getAccountIdIfPresent(getCredentialsProvider());
+	}
+
 	class AccountIdSupplier implements Supplier<String> {
 
 		@Override
 		public String get() {
-			AWSSecurityTokenServiceClientBuilder b = AWSSecurityTokenServiceClientBuilder.standard()
-					.withCredentials(getCredentialsProvider());
+			if (accountId != null) {
+				return accountId;
+			}
+			return CallerIdentityCache.getInstance().getAccountId(getCredentialsProvider(), this::getCallerAccount);
+		}
+
+		String getCallerAccount(AWSCredentialsProvider p) {
+			AWSSecurityTokenServiceClientBuilder b = AWSSecurityTokenServiceClientBuilder.standard().withCredentials(p);
 
 			// this will fail if the region is not set
 			if (region != null) {
@@ -95,10 +148,12 @@ public class AWSScannerBuilder extends ScannerBuilder<AWSScanner> {
 				b = b.withClientConfiguration(clientConfiguration);
 			}
 			AWSSecurityTokenService svc = b.build();
-
-			GetCallerIdentityResult result = svc.getCallerIdentity(new GetCallerIdentityRequest());
-
-			return result.getAccount();
+			try {
+				GetCallerIdentityResult result = svc.getCallerIdentity(new GetCallerIdentityRequest());
+				return result.getAccount();
+			} finally {
+				svc.shutdown();
+			}
 		}
 
 	}
@@ -120,20 +175,194 @@ public class AWSScannerBuilder extends ScannerBuilder<AWSScanner> {
 		return this;
 	}
 
+	/**
+	 * Draw a token from the TokenBucketRegistry before each API call, so that
+	 * all scanners calling the same service in an account share one budget.
+	 * Disabled by default. When enabled, each service is limited to
+	 * TokenBucketRegistry.DEFAULT_SERVICE_RATE (20 calls/second) and Route53 to
+	 * DEFAULT_ROUTE53_RATE (5 calls/second) unless raised with
+	 * TokenBucketRegistry.getInstance().withDefaultServiceRate() or
+	 * withServiceRate().
+	 */
+	public AWSScannerBuilder withSharedApiBudget(boolean b) {
+		this.sharedApiBudgetEnabled = b;
+		return this;
+	}
+
+	public boolean isSharedApiBudgetEnabled() {
+		return sharedApiBudgetEnabled;
+	}
+
+	/**
+	 * Scanners run by interactive tools can use INTERACTIVE priority to draw on
+	 * the reserved part of the shared API budget.
+	 */
+	public AWSScannerBuilder withApiPriority(TokenBucket.Priority priority) {
+		Preconditions.checkNotNull(priority);
+		this.apiPriority = priority;
+		return this;
+	}
+
+	public TokenBucket.Priority getApiPriority() {
+		return apiPriority;
+	}
+
+	/**
+	 * Set the scheduler that runs the scanners of parallel scanner groups. By
+	 * default all groups share FairScanScheduler.getDefault(), or
+	 * VirtualThreadScanScheduler.getDefault() in ExecutionMode.VIRTUAL.
+	 */
+	public AWSScannerBuilder withScanScheduler(ScanScheduler scheduler) {
+		Preconditions.checkNotNull(scheduler);
+		this.scanScheduler = scheduler;
+		return this;
+	}
+
+	public ScanScheduler getScanScheduler() {
+		if (scanScheduler != null) {
+			return scanScheduler;
+		}
+		if (getExecutionMode() == ExecutionMode.VIRTUAL) {
+			return VirtualThreadScanScheduler.getDefault();
+		}
+		return FairScanScheduler.getDefault();
+	}
+
+	/**
+	 * Stamp every node written by a scan with a new scan generation and
+	 * garbage collect by generation rather than by updateTs. The sweep runs in
+	 * batches, off the scan thread.
+	 */
+	public AWSScannerBuilder withScanGenerations(boolean b) {
+		this.scanGenerationEnabled = b;
+		return this;
+	}
+
+	public boolean isScanGenerationEnabled() {
+		return scanGenerationEnabled;
+	}
+
+	/**
+	 * With scan generations enabled, keep nodes that were not seen for this
+	 * many sweeps before deleting them. They are marked with a
+	 * mercatorTombstones count in the meantime. The default of 0 deletes them
+	 * on the first sweep that misses them.
+	 */
+	public AWSScannerBuilder withTombstoneGenerations(int n) {
+		Preconditions.checkArgument(n >= 0, "tombstone generations must be >= 0");
+		this.tombstoneGenerations = n;
+		return this;
+	}
+
+	public int getTombstoneGenerations() {
+		return tombstoneGenerations;
+	}
+
+	public AWSScannerBuilder withGarbageCollectionBatchSize(int n) {
+		Preconditions.checkArgument(n > 0, "batch size must be > 0");
+		this.garbageCollectionBatchSize = n;
+		return this;
+	}
+
+	public int getGarbageCollectionBatchSize() {
+		return garbageCollectionBatchSize;
+	}
+
+	/**
+	 * Scan IAM entities with a single AccountAuthorizationDetailsScanner rather
+	 * than the per-entity IAM scanners.
+	 */
+	public AWSScannerBuilder withIamAuthorizationDetails(boolean b) {
+		this.iamAuthorizationDetailsEnabled = b;
+		return this;
+	}
+
+	public boolean isIamAuthorizationDetailsEnabled() {
+		return iamAuthorizationDetailsEnabled;
+	}
+
+	/**
+	 * Write each page of EC2 instances and of ELBs, with their relationships,
+	 * in a few UNWIND statements rather than several statements per entity.
+	 */
+	public AWSScannerBuilder withPageProjection(boolean b) {
+		this.pageProjectionEnabled = b;
+		return this;
+	}
+
+	public boolean isPageProjectionEnabled() {
+		return pageProjectionEnabled;
+	}
+
+	/**
+	 * Set the number of instances requested per DescribeInstances call, between
+	 * 5 and 1000.
+	 */
+	public AWSScannerBuilder withEc2InstancePageSize(int pageSize) {
+		Preconditions.checkArgument(pageSize >= 5 && pageSize <= 1000, "pageSize must be between 5 and 1000");
+		this.ec2InstancePageSize = pageSize;
+		return this;
+	}
+
+	public int getEc2InstancePageSize() {
+		return ec2InstancePageSize;
+	}
+
+	/**
+	 * Fetch the next page of EC2 instances while the current one is being
+	 * written.
+	 */
+	public AWSScannerBuilder withEc2InstancePrefetch(boolean b) {
+		this.ec2InstancePrefetchEnabled = b;
+		return this;
+	}
+
+	public boolean isEc2InstancePrefetchEnabled() {
+		return ec2InstancePrefetchEnabled;
+	}
+
+	/**
+	 * Split the EC2 instance listing into shards that are fetched in parallel.
+	 * See EC2InstanceScanner.withSharding().
+	 */
+	public AWSScannerBuilder withEc2InstanceSharding(EC2InstanceScanner.ShardFilter filter, int concurrency) {
+		Preconditions.checkNotNull(filter, "filter cannot be null");
+		Preconditions.checkArgument(concurrency > 0, "concurrency must be > 0");
+		this.ec2InstanceShardFilter = filter;
+		this.ec2InstanceShardConcurrency = concurrency;
+		return this;
+	}
+
+	public EC2InstanceScanner.ShardFilter getEc2InstanceShardFilter() {
+		return ec2InstanceShardFilter;
+	}
+
+	public int getEc2InstanceShardConcurrency() {
+		return ec2InstanceShardConcurrency;
+	}
+
+	/**
+	 * Keep the tag keys written to each node in the given cache, so that tag
+	 * removals are folded into the merge instead of being computed from the
+	 * node returned by it. The same cache should be used for every scan.
+	 */
+	public AWSScannerBuilder withTagKeyCache(TagKeyCache cache) {
+		this.tagKeyCache = cache;
+		return this;
+	}
+
+	public TagKeyCache getTagKeyCache() {
+		return tagKeyCache;
+	}
+
 	public AWSScannerBuilder withIncludeGlobalResources(boolean value) {
 		this.includeGlobalResources = value;
 		return this;
 	}
 
 	public AWSScannerBuilder withAccountId(final String id) {
-		this.acccountIdSupplier = new Supplier<String>() {
-
-			@Override
-			public String get() {
-				return id;
-			}
-
-		};
+		this.accountId = id;
+		this.acccountIdSupplier = Suppliers.memoize(new AccountIdSupplier());
 		return this;
 	}
 
@@ -161,9 +390,9 @@ public class AWSScannerBuilder extends ScannerBuilder<AWSScanner> {
 		// AWSSecurityTokenServiceClientBuilder.standard().withCredentials(new
 		// DefaultAWSCredentialsProviderChain()).build();
 
-		AWSCredentialsProvider p = new STSAssumeRoleSessionCredentialsProvider.Builder(roleArn, sessionName).build();
-
-		return withCredentials(p);
+		// shared, so that every builder uses the same session
+		return withCredentials(
+				CallerIdentityCache.getInstance().getAssumeRoleCredentialsProvider(roleArn, sessionName));
 
 	}
 
@@ -266,6 +495,18 @@ public class AWSScannerBuilder extends ScannerBuilder<AWSScanner> {
 		return super.withFailOnError(b);
 	}
 
+	@SuppressWarnings("unchecked")
+	@Override
+	public AWSScannerBuilder withExecutionMode(ExecutionMode mode) {
+		return super.withExecutionMode(mode);
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public AWSScannerBuilder withAdaptiveRateLimit(boolean b) {
+		return super.withAdaptiveRateLimit(b);
+	}
+
 	public AWSScannerBuilder withClientConfiguration(ClientConfiguration clientConfiguration) {
 		this.clientConfiguration = clientConfiguration;
 		return this;
@@ -16,18 +16,32 @@
 package org.lendingclub.mercator.aws;
 
 import java.util.ArrayList;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 
 import org.lendingclub.mercator.core.Scanner;
 
 import com.amazonaws.AmazonWebServiceClient;
 import com.google.common.collect.Lists;
 
+/**
+ * A group of scanners that are run one after another. Scanners run in the order
+ * they were added, except that a scanner always runs after the scanners it
+ * depends on (see ScannerDependencies). Nested groups are flattened, so that
+ * dependencies are honored across groups.
+ */
 //@SuppressWarnings("rawtypes")
 public class AWSScannerGroup extends AWSScanner<AmazonWebServiceClient> {
 
 	List<Class<? extends AWSScanner<?>>> scannerList = Lists.newCopyOnWriteArrayList();
 
+	volatile List<Scanner> lastScanners = new ArrayList<>();
+
+	ScannerDependencies dependencies = ScannerDependencies.createDefault();
+
+	volatile ScannerDependencies scanDependencies = dependencies;
+
 	public AWSScannerGroup(AWSScannerBuilder builder) {
 		super(builder, null, null);
 	}
@@ -48,6 +62,20 @@ public class AWSScannerGroup extends AWSScanner<AmazonWebServiceClient> {
 		return this;
 	}
 
+	public ScannerDependencies getDependencies() {
+		return dependencies;
+	}
+
+	/**
+	 * Declare that scanners of the given type must not start until all scanners
+	 * of the prerequisite type have finished.
+	 */
+	@SuppressWarnings("rawtypes")
+	public AWSScannerGroup addDependency(Class<? extends AWSScanner> type, Class<? extends AWSScanner> prerequisite) {
+		dependencies.addDependency(type, prerequisite);
+		return this;
+	}
+
 	@Override
 	protected void doScan() {
 		for (Scanner scanner : getScanners()) {
@@ -60,14 +88,78 @@ public class AWSScannerGroup extends AWSScanner<AmazonWebServiceClient> {
 
 	}
 
+	/**
+	 * Builds the scanners for a scan, with nested groups flattened and every
+	 * scanner following its prerequisites.
+	 */
+	@SuppressWarnings("rawtypes")
 	protected List<Scanner> getScanners() {
+		ScannerDependencies d = dependencies.copy();
+		List<AWSScanner<?>> scanners = new ArrayList<>();
+		collectScanners(scanners, new LinkedHashSet<>(), d);
+
+		List<Class<? extends AWSScanner>> types = new ArrayList<>();
+		scanners.forEach(it -> types.add(it.getClass()));
 		List<Scanner> result = new ArrayList<>();
+		for (Class<? extends AWSScanner> type : d.sort(types)) {
+			for (AWSScanner<?> scanner : scanners) {
+				if (scanner.getClass() == type) {
+					result.add(scanner);
+				}
+			}
+		}
+		scanDependencies = d;
+		lastScanners = result;
+		return result;
+	}
+
+	void collectScanners(List<AWSScanner<?>> scanners, Set<Class<?>> types, ScannerDependencies d) {
 		for (Class<? extends AWSScanner<?>> scannerClass : scannerList) {
+			if (!types.add(scannerClass)) {
+				continue;
+			}
 			AWSScanner<?> scanner = builder.build(scannerClass);
-			if (scanner != null) {
-				result.add(scanner);
+			if (scanner == null) {
+				continue;
+			}
+			if (isFlattened(scanner)) {
+				AWSScannerGroup group = (AWSScannerGroup) scanner;
+				d.addAll(group.dependencies);
+				group.collectScanners(scanners, types, d);
+			} else {
+				scanners.add(scanner);
 			}
 		}
-		return result;
+	}
+
+	/**
+	 * Nested sequential groups are replaced by their scanners. Parallel groups
+	 * (one per account and region) are scheduled on their own.
+	 */
+	boolean isFlattened(AWSScanner<?> scanner) {
+		return scanner instanceof AWSScannerGroup && !(scanner instanceof AWSParallelScannerGroup);
+	}
+
+	/**
+	 * Returns the dependencies that applied to the most recent getScanners()
+	 * call, including those declared by nested groups.
+	 */
+	protected ScannerDependencies getScanDependencies() {
+		return scanDependencies;
+	}
+
+	/**
+	 * Returns the request metrics of the scanners run by the most recent scan,
+	 * including those of nested groups, combined.
+	 */
+	@Override
+	public RequestMetricsSnapshot getRequestMetricsSnapshot() {
+		RequestMetricsSnapshot snapshot = super.getRequestMetricsSnapshot();
+		for (Scanner scanner : lastScanners) {
+			if (scanner instanceof AWSScanner) {
+				snapshot.merge(((AWSScanner<?>) scanner).getRequestMetricsSnapshot());
+			}
+		}
+		return snapshot;
 	}
 }
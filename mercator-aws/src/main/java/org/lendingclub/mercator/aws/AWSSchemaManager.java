@@ -24,49 +24,47 @@ public class AWSSchemaManager extends SchemaManager {
 
 	Logger logger = LoggerFactory.getLogger(AWSSchemaManager.class);
 
-
-
+	static final String[] ARN_LABELS = { "AwsAmi", "AwsAsg", "AwsDeploymentGroup", "AwsEc2Instance",
+			"AwsEc2NetworkInterface", "AwsElb", "AwsIamGroup", "AwsIamManagedPolicy", "AwsIamRole", "AwsIamUser",
+			"AwsInstanceProfile", "AwsInternetGateway", "AwsKinesisStream", "AwsLaunchConfig", "AwsRdsInstance",
+			"AwsRoute53HostedZone", "AwsRouteTable", "AwsS3Bucket", "AwsSecurityGroup", "AwsSnsSubscription",
+			"AwsSnsTopic", "AwsSqsQueue", "AwsSubnet", "AwsVpc", "AwsVpcEndpoint", "AwsVpcPeeringConnection",
+			"AwsVpnGateway" };
+
+	// labels swept by GraphNodeGarbageCollector on aws_account+aws_region;
+	// global entities such as IAM roles and S3 buckets have no aws_region
+	static final String[] REGIONAL_LABELS = { "AwsAmi", "AwsAsg", "AwsAvailabilityZone", "AwsEc2Instance",
+			"AwsEc2NetworkInterface", "AwsElb", "AwsIamManagedPolicy", "AwsInternetGateway", "AwsKinesisStream",
+			"AwsLaunchConfig", "AwsRdsInstance", "AwsRouteTable", "AwsSecurityGroup", "AwsSnsTopic", "AwsSqsQueue",
+			"AwsSubnet", "AwsVpc", "AwsVpcEndpoint", "AwsVpcPeeringConnection", "AwsVpnGateway" };
 
 	public AWSSchemaManager(NeoRxClient client) {
 		super(client);
-		
-	}
-
-
-
-
-	public void applyConstraints() {
-		applyConstraint("CREATE  CONSTRAINT ON (a:AwsVpc) ASSERT a.aws_arn IS UNIQUE ");
-
-		applyConstraint("CREATE  CONSTRAINT ON (a:AwsEc2Instance) assert a.aws_arn IS UNIQUE ");
-
-		applyConstraint("CREATE  CONSTRAINT ON (a:AwsAsg) assert a.aws_arn IS UNIQUE ");
-
-		applyConstraint("CREATE  CONSTRAINT ON (a:AwsElb) assert a.aws_arn IS UNIQUE ");
-
-		applyConstraint("CREATE  CONSTRAINT ON (a:AwsRdsInstance) assert a.aws_arn IS UNIQUE ");
-
-		applyConstraint("CREATE  CONSTRAINT ON (a:AwsDeploymentGroup) assert a.aws_arn IS UNIQUE ");
-
-		applyConstraint("CREATE  CONSTRAINT ON (a:AwsKinesisStream) assert a.aws_arn IS UNIQUE ");
-
-		applyConstraint("CREATE  CONSTRAINT ON (a:AwsLaunchConfig) assert a.aws_arn IS UNIQUE ");
-
-		applyConstraint("CREATE  CONSTRAINT ON (a:AwsSnsTopic) assert a.aws_arn IS UNIQUE ");
-
-		applyConstraint("CREATE  CONSTRAINT ON (a:AwsSqsQueue) assert a.aws_arn IS UNIQUE ");
-
-		applyConstraint("CREATE  CONSTRAINT ON (a:AwsSubnet) assert a.aws_arn IS UNIQUE ");
-
-		applyConstraint("CREATE  CONSTRAINT ON (a:AwsAccount) assert a.aws_account IS UNIQUE ");
-
-		applyConstraint("CREATE  CONSTRAINT ON (a:AwsSnsSubscription) assert a.aws_arn IS UNIQUE ");
-
-		applyConstraint("CREATE  CONSTRAINT ON (a:AwsS3Bucket) assert a.aws_arn IS UNIQUE ");
 
-		applyConstraint("CREATE  CONSTRAINT ON (a:AwsRoute53HostedZone) assert a.aws_arn IS UNIQUE ");
-		
-		applyConstraint("CREATE  CONSTRAINT ON (a:AwsRoute53RecordSet) assert a.id IS UNIQUE ");
+		for (String label : ARN_LABELS) {
+			declareMergeKey(label, "aws_arn");
+		}
+		for (String label : REGIONAL_LABELS) {
+			declareLookupKey(label, "aws_account", "aws_region");
+		}
+
+		declareMergeKey("AwsAccount", "aws_account");
+		declareMergeKey("AwsRegion", "aws_regionName");
+		declareMergeKey("AwsAvailabilityZone", "aws_zoneName", "aws_region", "aws_account");
+		declareLookupKey("AwsAvailabilityZone", "aws_zoneName");
+		declareMergeKey("AwsRoute53HostedZone", "aws_id");
+		declareMergeKey("AwsRoute53RecordSet", "id");
+		declareMergeKey("AwsRoute53RecordSet", "aws_name");
+
+		declareLookupKey("AwsSubnet", "aws_vpcId");
+		declareLookupKey("AwsSubnet", "aws_availabilityZone");
+		declareLookupKey("AwsVpc", "aws_vpcId");
+		declareLookupKey("AwsLaunchConfig", "aws_launchConfigurationName");
+		declareLookupKey("AwsInlinePolicy", "aws_owner_arn");
+		for (String label : new String[] { "AwsKinesisStream", "AwsRoute53RecordSet", "AwsS3Bucket", "AwsSnsTopic",
+				"AwsSqsQueue", "AwsVpc" }) {
+			declareLookupKey(label, "aws_account");
+		}
 	}
 
 }
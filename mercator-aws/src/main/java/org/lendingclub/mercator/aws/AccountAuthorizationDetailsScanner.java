@@ -0,0 +1,334 @@
+/**
+ * Copyright 2017 Lending Club, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lendingclub.mercator.aws;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Function;
+
+import org.lendingclub.mercator.core.ScannerContext;
+import org.lendingclub.neorx.NeoRxClient;
+
+import com.amazonaws.services.identitymanagement.AmazonIdentityManagementClient;
+import com.amazonaws.services.identitymanagement.model.AttachedPolicy;
+import com.amazonaws.services.identitymanagement.model.GetAccountAuthorizationDetailsRequest;
+import com.amazonaws.services.identitymanagement.model.GetAccountAuthorizationDetailsResult;
+import com.amazonaws.services.identitymanagement.model.Group;
+import com.amazonaws.services.identitymanagement.model.GroupDetail;
+import com.amazonaws.services.identitymanagement.model.InstanceProfile;
+import com.amazonaws.services.identitymanagement.model.ListInstanceProfilesRequest;
+import com.amazonaws.services.identitymanagement.model.ListInstanceProfilesResult;
+import com.amazonaws.services.identitymanagement.model.ManagedPolicyDetail;
+import com.amazonaws.services.identitymanagement.model.Policy;
+import com.amazonaws.services.identitymanagement.model.PolicyDetail;
+import com.amazonaws.services.identitymanagement.model.Role;
+import com.amazonaws.services.identitymanagement.model.RoleDetail;
+import com.amazonaws.services.identitymanagement.model.User;
+import com.amazonaws.services.identitymanagement.model.UserDetail;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+
+/**
+ * Scans roles, users, groups, instance profiles, inline and managed policies
+ * and their attachments with GetAccountAuthorizationDetails, which returns all
+ * of them in a handful of pages, instead of the per-entity calls made by
+ * RoleScanner, UserScanner, InstanceProfileScanner and ManagedPolicyScanner.
+ * The same labels and relationships are written, in batches.
+ *
+ * GetAccountAuthorizationDetails only returns instance profiles as part of the
+ * role they contain, so instance profiles are also listed with
+ * ListInstanceProfiles. Otherwise profiles without a role would be removed as
+ * garbage.
+ */
+public class AccountAuthorizationDetailsScanner extends IAMScanner {
+
+	public static final int DEFAULT_PAGE_SIZE = 1000;
+	public static final int DEFAULT_BATCH_SIZE = 250;
+
+	int batchSize = DEFAULT_BATCH_SIZE;
+
+	public AccountAuthorizationDetailsScanner(AWSScannerBuilder builder) {
+		super(builder, "AwsIamRole");
+	}
+
+	public AccountAuthorizationDetailsScanner withBatchSize(int batchSize) {
+		Preconditions.checkArgument(batchSize > 0, "batchSize must be > 0");
+		this.batchSize = batchSize;
+		return this;
+	}
+
+	/**
+	 * This scanner makes a handful of calls, so it can run on every scan.
+	 */
+	@Override
+	public int[] getSlowScanRatio() {
+		return new int[] { 1, 1 };
+	}
+
+	static class Details {
+		List<RoleDetail> roles = new ArrayList<>();
+		List<UserDetail> users = new ArrayList<>();
+		List<GroupDetail> groups = new ArrayList<>();
+		List<ManagedPolicyDetail> policies = new ArrayList<>();
+		List<InstanceProfile> instanceProfiles = new ArrayList<>();
+
+		void add(GetAccountAuthorizationDetailsResult result) {
+			roles.addAll(result.getRoleDetailList());
+			users.addAll(result.getUserDetailList());
+			groups.addAll(result.getGroupDetailList());
+			policies.addAll(result.getPolicies());
+		}
+	}
+
+	@Override
+	protected void doGlobalScan() {
+		project(fetchDetails());
+	}
+
+	Details fetchDetails() {
+		AmazonIdentityManagementClient iam = getClient();
+		GetAccountAuthorizationDetailsRequest request = new GetAccountAuthorizationDetailsRequest()
+				.withMaxItems(DEFAULT_PAGE_SIZE);
+		Details details = new Details();
+		while (true) {
+			rateLimit();
+			GetAccountAuthorizationDetailsResult result = iam.getAccountAuthorizationDetails(request);
+			details.add(result);
+			if (result.isTruncated() == null || !result.isTruncated()) {
+				break;
+			}
+			request.setMarker(result.getMarker());
+		}
+		ListInstanceProfilesRequest profileRequest = new ListInstanceProfilesRequest().withMaxItems(DEFAULT_PAGE_SIZE);
+		while (true) {
+			rateLimit();
+			ListInstanceProfilesResult result = iam.listInstanceProfiles(profileRequest);
+			details.instanceProfiles.addAll(result.getInstanceProfiles());
+			if (result.isTruncated() == null || !result.isTruncated()) {
+				break;
+			}
+			profileRequest.setMarker(result.getMarker());
+		}
+		logger.info("fetched {} roles, {} users, {} groups, {} instance profiles and {} managed policies",
+				details.roles.size(), details.users.size(), details.groups.size(), details.instanceProfiles.size(),
+				details.policies.size());
+		return details;
+	}
+
+	void project(Details details) {
+		Map<String, InstanceProfile> instanceProfiles = new TreeMap<>();
+		Map<String, ObjectNode> roles = new LinkedHashMap<>();
+		Map<String, List<PolicyDetail>> roleInlinePolicies = new LinkedHashMap<>();
+		for (RoleDetail rd : details.roles) {
+			Role role = new Role().withPath(rd.getPath()).withRoleName(rd.getRoleName()).withRoleId(rd.getRoleId())
+					.withArn(rd.getArn()).withCreateDate(rd.getCreateDate())
+					.withAssumeRolePolicyDocument(rd.getAssumeRolePolicyDocument());
+			ObjectNode n = convertAwsObject(role, null);
+			n.put("aws_assumeRolePolicyDocument", urlDecode(role.getAssumeRolePolicyDocument()));
+			roles.put(rd.getArn(), n);
+			roleInlinePolicies.put(rd.getArn(), rd.getRolePolicyList());
+			rd.getInstanceProfileList().forEach(it -> instanceProfiles.put(it.getArn(), it));
+		}
+		details.instanceProfiles.forEach(it -> instanceProfiles.put(it.getArn(), it));
+		mergeNodes("AwsIamRole", roles.values());
+		projectInlinePolicies("AwsIamRole", roleInlinePolicies);
+
+		Map<String, ObjectNode> groups = new LinkedHashMap<>();
+		Map<String, String> groupArnsByName = new TreeMap<>();
+		Map<String, List<PolicyDetail>> groupInlinePolicies = new LinkedHashMap<>();
+		for (GroupDetail gd : details.groups) {
+			Group group = new Group().withPath(gd.getPath()).withGroupName(gd.getGroupName())
+					.withGroupId(gd.getGroupId()).withArn(gd.getArn()).withCreateDate(gd.getCreateDate());
+			groups.put(gd.getArn(), convertAwsObject(group, null));
+			groupArnsByName.put(gd.getGroupName(), gd.getArn());
+			groupInlinePolicies.put(gd.getArn(), gd.getGroupPolicyList());
+		}
+		mergeNodes("AwsIamGroup", groups.values());
+		projectInlinePolicies("AwsIamGroup", groupInlinePolicies);
+
+		Map<String, ObjectNode> users = new LinkedHashMap<>();
+		Map<String, List<PolicyDetail>> userInlinePolicies = new LinkedHashMap<>();
+		LinkageHelper groupLinkage = newLinkage("AwsIamUser", "AwsIamGroup", "MEMBER_OF");
+		for (UserDetail ud : details.users) {
+			User user = new User().withPath(ud.getPath()).withUserName(ud.getUserName()).withUserId(ud.getUserId())
+					.withArn(ud.getArn()).withCreateDate(ud.getCreateDate());
+			users.put(ud.getArn(), convertAwsObject(user, null));
+			userInlinePolicies.put(ud.getArn(), ud.getUserPolicyList());
+		}
+		mergeNodes("AwsIamUser", users.values());
+		projectInlinePolicies("AwsIamUser", userInlinePolicies);
+		try {
+			for (UserDetail ud : details.users) {
+				List<String> groupArns = new ArrayList<>();
+				ud.getGroupList().forEach(name -> {
+					String arn = groupArnsByName.get(name);
+					if (arn != null) {
+						groupArns.add(arn);
+					}
+				});
+				groupLinkage.addLinks(ud.getArn(), groupArns);
+			}
+		} finally {
+			groupLinkage.flush();
+		}
+
+		List<ObjectNode> profiles = new ArrayList<>();
+		LinkageHelper roleLinkage = newLinkage("AwsInstanceProfile", "AwsIamRole", "HAS_ROLE");
+		for (InstanceProfile instanceProfile : instanceProfiles.values()) {
+			profiles.add(convertAwsObject(instanceProfile, null));
+		}
+		mergeNodes("AwsInstanceProfile", profiles);
+		try {
+			for (InstanceProfile instanceProfile : instanceProfiles.values()) {
+				roleLinkage.addLinks(instanceProfile.getArn(),
+						Lists.transform(instanceProfile.getRoles(), Role::getArn));
+			}
+		} finally {
+			roleLinkage.flush();
+		}
+
+		projectManagedPolicies(details);
+	}
+
+	void projectManagedPolicies(Details details) {
+		Map<String, ObjectNode> policies = new LinkedHashMap<>();
+		for (ManagedPolicyDetail pd : details.policies) {
+			boolean awsManagedPolicy = pd.getArn().startsWith("arn:aws:iam::aws:policy");
+			if (awsManagedPolicy && pd.getAttachmentCount() != null && pd.getAttachmentCount() == 0) {
+				// don't record AWS managed policies unless they're attached to something
+				continue;
+			}
+			Policy policy = new Policy().withPolicyName(pd.getPolicyName()).withPolicyId(pd.getPolicyId())
+					.withArn(pd.getArn()).withPath(pd.getPath()).withDefaultVersionId(pd.getDefaultVersionId())
+					.withAttachmentCount(pd.getAttachmentCount()).withIsAttachable(pd.getIsAttachable())
+					.withDescription(pd.getDescription()).withCreateDate(pd.getCreateDate())
+					.withUpdateDate(pd.getUpdateDate());
+			ObjectNode n = convertAwsObject(policy, getRegion());
+			if (awsManagedPolicy) {
+				n.remove("aws_account");
+			}
+			policies.put(pd.getArn(), n);
+		}
+		mergeNodes("AwsIamManagedPolicy", policies.values());
+		setLabel("AwsIamManagedPolicy", "AwsIamPolicy", policies.keySet());
+
+		Map<String, List<String>> attachedRoles = attachments(policies.keySet(), details.roles,
+				RoleDetail::getArn, RoleDetail::getAttachedManagedPolicies);
+		Map<String, List<String>> attachedUsers = attachments(policies.keySet(), details.users,
+				UserDetail::getArn, UserDetail::getAttachedManagedPolicies);
+		Map<String, List<String>> attachedGroups = attachments(policies.keySet(), details.groups,
+				GroupDetail::getArn, GroupDetail::getAttachedManagedPolicies);
+		link(newLinkage("AwsIamManagedPolicy", "AwsIamRole", "ATTACHED_TO"), attachedRoles);
+		link(newLinkage("AwsIamManagedPolicy", "AwsIamUser", "ATTACHED_TO"), attachedUsers);
+		link(newLinkage("AwsIamManagedPolicy", "AwsIamGroup", "ATTACHED_TO"), attachedGroups);
+	}
+
+	/**
+	 * Inverts the managed policies attached to each entity into the entities
+	 * attached to each policy. Every policy gets an entry, so that links to
+	 * entities it is no longer attached to are removed.
+	 */
+	static <T> Map<String, List<String>> attachments(Collection<String> policyArns, List<T> entities,
+			Function<T, String> arn, Function<T, List<AttachedPolicy>> attached) {
+		Map<String, List<String>> result = new LinkedHashMap<>();
+		policyArns.forEach(it -> result.put(it, new ArrayList<>()));
+		for (T entity : entities) {
+			for (AttachedPolicy policy : attached.apply(entity)) {
+				List<String> list = result.get(policy.getPolicyArn());
+				if (list != null) {
+					list.add(arn.apply(entity));
+				}
+			}
+		}
+		return result;
+	}
+
+	LinkageHelper newLinkage(String fromLabel, String targetLabel, String linkLabel) {
+		return newLinkageHelper().withFromLabel(fromLabel).withTargetLabel(targetLabel).withLinkLabel(linkLabel)
+				.withBatchSize(batchSize);
+	}
+
+	void link(LinkageHelper linkage, Map<String, List<String>> links) {
+		try {
+			links.forEach(linkage::addLinks);
+		} finally {
+			linkage.flush();
+		}
+	}
+
+	void mergeNodes(String label, Collection<ObjectNode> nodes) {
+		NeoRxClient neo4j = getNeoRxClient();
+		GraphNodeGarbageCollector gc = newGarbageCollector().label(label).bindScannerContext();
+		String cypher = "unwind {rows} as row merge (n:" + label + " { aws_arn: row.aws_arn })"
+				+ " set n += row, n.updateTs = timestamp() return n.aws_arn as aws_arn, n.updateTs as updateTs";
+		String linkCypher = "unwind {rows} as row match (n:" + label + " { aws_arn: row.aws_arn }),"
+				+ " (a:AwsAccount { aws_account: {a} }) merge (n)-[r:OWNED_BY]->(a) set r.updateTs = timestamp()";
+		for (List<ObjectNode> batch : Lists.partition(new ArrayList<>(nodes), batchSize)) {
+			ArrayNode rows = mapper.createArrayNode().addAll(batch);
+			try {
+				neo4j.execCypher(cypher, "rows", rows).forEach(gc.MERGE_ACTION::accept);
+				neo4j.execCypher(linkCypher, "rows", rows, "a", getAccountId());
+				ScannerContext.getScannerContext().ifPresent(sc -> {
+					sc.increment(ScannerContext.Metric.ENTITIES, batch.size());
+				});
+			} catch (RuntimeException e) {
+				gc.markException(e);
+				maybeThrow(e);
+			}
+		}
+	}
+
+	void setLabel(String label, String additionalLabel, Collection<String> arns) {
+		for (List<String> batch : Lists.partition(new ArrayList<>(arns), batchSize)) {
+			getNeoRxClient().execCypher("unwind {arns} as arn match (n:" + label + " { aws_arn: arn }) set n :"
+					+ additionalLabel, "arns", mapper.valueToTree(batch));
+		}
+	}
+
+	/**
+	 * Merges the inline policies of each owner and deletes those that are no
+	 * longer present.
+	 */
+	void projectInlinePolicies(String ownerLabel, Map<String, List<PolicyDetail>> inlinePolicies) {
+		long timestamp = System.currentTimeMillis();
+		String cypher = "unwind {rows} as row match (n:" + ownerLabel + " { aws_arn: row.arn })"
+				+ " unwind row.policies as policy"
+				+ " merge (n)-[r:CONTAINS]->(p:AwsInlinePolicy { aws_owner_arn: row.arn, aws_policyName: policy.name })"
+				+ " set p :AwsIamPolicy, p.aws_policyDocument = policy.document, r.updateTs = {t}";
+		String removeCypher = "unwind {rows} as row match (n:" + ownerLabel + " { aws_arn: row.arn })"
+				+ "-[r:CONTAINS]->(p:AwsInlinePolicy) where r.updateTs < {t} detach delete p";
+		List<String> owners = new ArrayList<>(inlinePolicies.keySet());
+		for (List<String> batch : Lists.partition(owners, batchSize)) {
+			ArrayNode rows = mapper.createArrayNode();
+			for (String arn : batch) {
+				ArrayNode policies = rows.addObject().put("arn", arn).putArray("policies");
+				for (PolicyDetail policy : inlinePolicies.get(arn)) {
+					policies.addObject().put("name", policy.getPolicyName()).put("document",
+							urlDecode(policy.getPolicyDocument()));
+				}
+			}
+			getNeoRxClient().execCypher(cypher, "rows", rows, "t", timestamp);
+			getNeoRxClient().execCypher(removeCypher, "rows", rows, "t", timestamp);
+		}
+	}
+
+}
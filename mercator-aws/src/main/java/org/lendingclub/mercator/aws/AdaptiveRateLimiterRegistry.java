@@ -0,0 +1,60 @@
+/**
+ * Copyright 2017 Lending Club, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lendingclub.mercator.aws;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.lendingclub.mercator.core.AdaptiveRateLimiter;
+
+import com.google.common.collect.Maps;
+
+/**
+ * Holds one AdaptiveRateLimiter per account, region and service, so that all
+ * scanners calling the same AWS API endpoint share the throttling feedback.
+ */
+public class AdaptiveRateLimiterRegistry {
+
+	static ConcurrentMap<String, AdaptiveRateLimiter> limiters = Maps.newConcurrentMap();
+
+	static String createKey(String account, String region, String service) {
+		return account + "/" + region + "/" + service;
+	}
+
+	/**
+	 * Returns the limiter for the given account, region and service, creating
+	 * it at the given rate if it does not exist yet.
+	 */
+	public static AdaptiveRateLimiter getRateLimiter(String account, String region, String service,
+			double initialRate) {
+		String key = createKey(account, region, service);
+		return limiters.computeIfAbsent(key, k -> new AdaptiveRateLimiter(k, initialRate));
+	}
+
+	/**
+	 * Returns the current rate of each limiter, keyed by account/region/service.
+	 */
+	public static Map<String, Double> getRates() {
+		Map<String, Double> rates = new TreeMap<>();
+		limiters.forEach((k, v) -> rates.put(k, v.getRate()));
+		return rates;
+	}
+
+	static void clear() {
+		limiters.clear();
+	}
+}
@@ -0,0 +1,240 @@
+/**
+ * Copyright 2017 Lending Club, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lendingclub.mercator.aws;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map.Entry;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.auth.AWSCredentials;
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.auth.AWSSessionCredentials;
+import com.amazonaws.auth.STSAssumeRoleSessionCredentialsProvider;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Strings;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Maps;
+import com.google.common.hash.Hashing;
+
+/**
+ * Process-wide cache of the account that each credentials provider belongs to,
+ * and of assumed-role credentials providers, so that builders created afresh
+ * on each scan iteration neither call STS GetCallerIdentity again nor start a
+ * new role session.
+ *
+ * Accounts are cached by credentials provider identity. The account of a role
+ * assumed through getAssumeRoleCredentialsProvider() is taken from the role
+ * ARN without calling STS at all. The accounts of long-lived access keys and
+ * of assumed roles can also be persisted to a local file, keyed by role ARN
+ * or by a hash of the access key id, so that restarts are warm. Credentials
+ * themselves are never written to the file.
+ *
+ * Role sessions are refreshed by STSAssumeRoleSessionCredentialsProvider
+ * before they expire; sharing the provider means that every scanner uses the
+ * same session.
+ */
+public class CallerIdentityCache {
+
+	static ObjectMapper mapper = new ObjectMapper();
+
+	static CallerIdentityCache instance = new CallerIdentityCache();
+
+	Logger logger = LoggerFactory.getLogger(CallerIdentityCache.class);
+
+	// weak keys are compared by identity
+	Cache<AWSCredentialsProvider, String> accounts = CacheBuilder.newBuilder().weakKeys().build();
+	Cache<AWSCredentialsProvider, String> roleArns = CacheBuilder.newBuilder().weakKeys().build();
+
+	ConcurrentMap<String, AWSCredentialsProvider> sessions = Maps.newConcurrentMap();
+	ConcurrentMap<String, String> persistentAccounts = Maps.newConcurrentMap();
+
+	File file;
+
+	AtomicLong hitCount = new AtomicLong();
+	AtomicLong lookupCount = new AtomicLong();
+
+	public static CallerIdentityCache getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Load account ids from the given file, if it exists, and write newly
+	 * discovered ones to it.
+	 */
+	public synchronized CallerIdentityCache withFile(File file) {
+		this.file = file;
+		if (file != null && file.exists()) {
+			try {
+				JsonNode n = mapper.readTree(file);
+				n.path("accounts").fields().forEachRemaining(it -> {
+					persistentAccounts.put(it.getKey(), it.getValue().asText());
+				});
+				logger.info("loaded {} account ids from {}", persistentAccounts.size(), file);
+			} catch (IOException | RuntimeException e) {
+				logger.warn("could not load account ids from " + file, e);
+			}
+		}
+		return this;
+	}
+
+	/**
+	 * Returns a credentials provider that assumes the given role. Providers are
+	 * shared by role ARN and session name.
+	 */
+	public AWSCredentialsProvider getAssumeRoleCredentialsProvider(String roleArn, String sessionName) {
+		Preconditions.checkArgument(!Strings.isNullOrEmpty(roleArn), "roleArn not set");
+		Preconditions.checkArgument(!Strings.isNullOrEmpty(sessionName), "sessionName not set");
+		return sessions.computeIfAbsent(roleArn + "/" + sessionName, k -> {
+			AWSCredentialsProvider p = new STSAssumeRoleSessionCredentialsProvider.Builder(roleArn, sessionName)
+					.build();
+			roleArns.put(p, roleArn);
+			String account = getAccountIdFromArn(roleArn);
+			if (account != null) {
+				accounts.put(p, account);
+				persist("role:" + roleArn, account);
+			}
+			return p;
+		});
+	}
+
+	/**
+	 * Returns the account id of the given credentials provider if it is known,
+	 * without making any calls.
+	 */
+	public Optional<String> getAccountIdIfPresent(AWSCredentialsProvider p) {
+		if (p == null) {
+			return Optional.empty();
+		}
+		return Optional.ofNullable(accounts.getIfPresent(p));
+	}
+
+	/**
+	 * Returns the account id of the given credentials provider, calling lookup
+	 * (typically STS GetCallerIdentity) only if it is neither cached nor
+	 * persisted.
+	 */
+	public String getAccountId(AWSCredentialsProvider p, Function<AWSCredentialsProvider, String> lookup) {
+		Preconditions.checkNotNull(p, "credentials provider cannot be null");
+		String account = accounts.getIfPresent(p);
+		if (account != null) {
+			hitCount.incrementAndGet();
+			return account;
+		}
+		String key = getPersistentKey(p);
+		account = key != null ? persistentAccounts.get(key) : null;
+		if (account != null) {
+			hitCount.incrementAndGet();
+		} else {
+			lookupCount.incrementAndGet();
+			account = lookup.apply(p);
+			Preconditions.checkState(!Strings.isNullOrEmpty(account), "could not determine account id");
+			if (key != null) {
+				persist(key, account);
+			}
+		}
+		accounts.put(p, account);
+		return account;
+	}
+
+	/**
+	 * Returns the key under which the account of the given provider is
+	 * persisted, or null if its credentials are temporary.
+	 */
+	String getPersistentKey(AWSCredentialsProvider p) {
+		String roleArn = roleArns.getIfPresent(p);
+		if (roleArn != null) {
+			return "role:" + roleArn;
+		}
+		try {
+			AWSCredentials credentials = p.getCredentials();
+			if (credentials == null || credentials instanceof AWSSessionCredentials
+					|| Strings.isNullOrEmpty(credentials.getAWSAccessKeyId())) {
+				return null;
+			}
+			return "key:" + Hashing.sha256().hashString(credentials.getAWSAccessKeyId(), StandardCharsets.UTF_8);
+		} catch (RuntimeException e) {
+			logger.debug("could not load credentials", e);
+			return null;
+		}
+	}
+
+	static String getAccountIdFromArn(String arn) {
+		String[] parts = Strings.nullToEmpty(arn).split(":");
+		if (parts.length > 4 && parts[0].equals("arn") && !parts[4].isEmpty()) {
+			return parts[4];
+		}
+		return null;
+	}
+
+	void persist(String key, String account) {
+		if (account.equals(persistentAccounts.put(key, account))) {
+			return;
+		}
+		save();
+	}
+
+	synchronized void save() {
+		if (file == null) {
+			return;
+		}
+		ObjectNode n = mapper.createObjectNode();
+		ObjectNode accountsNode = n.putObject("accounts");
+		for (Entry<String, String> entry : new TreeMap<>(persistentAccounts).entrySet()) {
+			accountsNode.put(entry.getKey(), entry.getValue());
+		}
+		try {
+			File tmp = new File(file.getPath() + ".tmp");
+			mapper.writerWithDefaultPrettyPrinter().writeValue(tmp, n);
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException | RuntimeException e) {
+			logger.warn("could not save account ids to " + file, e);
+		}
+	}
+
+	public long getHitCount() {
+		return hitCount.get();
+	}
+
+	/**
+	 * Returns the number of times that the account id had to be looked up.
+	 */
+	public long getLookupCount() {
+		return lookupCount.get();
+	}
+
+	public synchronized void clear() {
+		accounts.invalidateAll();
+		roleArns.invalidateAll();
+		sessions.clear();
+		persistentAccounts.clear();
+	}
+}
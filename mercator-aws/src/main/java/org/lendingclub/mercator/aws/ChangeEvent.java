@@ -0,0 +1,56 @@
+/**
+ * Copyright 2017 Lending Club, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lendingclub.mercator.aws;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.google.common.base.MoreObjects;
+
+/**
+ * A resource-change event as received from a ChangeEventSource, either an
+ * EventBridge event, a CloudTrail record or a CloudTrail log file with a
+ * Records array.
+ */
+public class ChangeEvent {
+
+	JsonNode body;
+	String receipt;
+
+	public ChangeEvent(JsonNode body) {
+		this(body, null);
+	}
+
+	/**
+	 * The receipt identifies the event to the source when it is acknowledged,
+	 * e.g. the SQS receipt handle.
+	 */
+	public ChangeEvent(JsonNode body, String receipt) {
+		this.body = body;
+		this.receipt = receipt;
+	}
+
+	public JsonNode getBody() {
+		return body;
+	}
+
+	public String getReceipt() {
+		return receipt;
+	}
+
+	@Override
+	public String toString() {
+		return MoreObjects.toStringHelper(this).add("receipt", receipt).add("body", body).toString();
+	}
+}
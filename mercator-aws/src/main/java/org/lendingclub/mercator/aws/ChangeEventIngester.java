@@ -0,0 +1,299 @@
+/**
+ * Copyright 2017 Lending Club, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lendingclub.mercator.aws;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.lendingclub.mercator.core.MercatorException;
+import org.lendingclub.mercator.core.ScannerContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Strings;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Maps;
+
+/**
+ * Applies resource-change events to the graph by rescanning just the resources
+ * that changed, through the single-entity entry points of EC2InstanceScanner,
+ * ELBScanner and ASGScanner. With an ingester running, full scans by
+ * MultiAccountRegionEntityScanner are only needed to reconcile missed events
+ * and deletions, and can run at a much slower cadence.
+ *
+ * Events are read for up to the coalescing window. Changes to the same
+ * resource within the window are rescanned once, and changes to several
+ * resources of the same type in the same account and region are rescanned in
+ * a single call. Events are acknowledged once every rescan has succeeded;
+ * otherwise they are left for the source to redeliver.
+ *
+ * <pre>
+ * new ChangeEventIngester(projector.createBuilder(AWSScannerBuilder.class),
+ * 		new SQSChangeEventSource(sqs, queueUrl)).run();
+ * </pre>
+ */
+public class ChangeEventIngester implements Runnable {
+
+	public static final int DEFAULT_MAX_EVENTS = 100;
+	public static final long DEFAULT_COALESCE_MILLIS = TimeUnit.SECONDS.toMillis(5);
+
+	Logger logger = LoggerFactory.getLogger(ChangeEventIngester.class);
+
+	AWSScannerBuilder builder;
+	ChangeEventSource source;
+	Map<String, AWSCredentialsProvider> accounts = Maps.newConcurrentMap();
+	ConcurrentMap<String, AWSScanner<?>> scanners = Maps.newConcurrentMap();
+
+	int maxEvents = DEFAULT_MAX_EVENTS;
+	long coalesceMillis = DEFAULT_COALESCE_MILLIS;
+	volatile boolean running = false;
+
+	AtomicLong eventCount = new AtomicLong();
+	AtomicLong changeCount = new AtomicLong();
+	AtomicLong rescanCount = new AtomicLong();
+	AtomicLong failureCount = new AtomicLong();
+
+	/**
+	 * Scanners are built from copies of the given builder, with the account
+	 * and region of each event.
+	 */
+	public ChangeEventIngester(AWSScannerBuilder builder, ChangeEventSource source) {
+		this.builder = Preconditions.checkNotNull(builder);
+		this.source = Preconditions.checkNotNull(source);
+	}
+
+	/**
+	 * Only apply events for the accounts registered here, with the given
+	 * credentials. If no account is registered, only events for the builder's
+	 * own account (as set, or resolved from its credentials) are applied, with
+	 * the builder's credentials; events for other accounts are ignored.
+	 */
+	public ChangeEventIngester withAccount(String account, AWSCredentialsProvider credentialsProvider) {
+		accounts.put(account, Preconditions.checkNotNull(credentialsProvider));
+		return this;
+	}
+
+	public ChangeEventIngester withMaxEvents(int maxEvents) {
+		Preconditions.checkArgument(maxEvents > 0, "maxEvents must be > 0");
+		this.maxEvents = maxEvents;
+		return this;
+	}
+
+	public ChangeEventIngester withCoalesceWindow(long duration, TimeUnit unit) {
+		this.coalesceMillis = unit.toMillis(duration);
+		return this;
+	}
+
+	public long getEventCount() {
+		return eventCount.get();
+	}
+
+	public long getChangeCount() {
+		return changeCount.get();
+	}
+
+	public long getRescanCount() {
+		return rescanCount.get();
+	}
+
+	public long getFailureCount() {
+		return failureCount.get();
+	}
+
+	/**
+	 * Process events until stop() is called or the source is exhausted.
+	 */
+	@Override
+	public void run() {
+		running = true;
+		while (running && !source.isExhausted()) {
+			try {
+				processOnce();
+			} catch (RuntimeException e) {
+				logger.warn("problem processing change events", e);
+			}
+		}
+	}
+
+	public void stop() {
+		running = false;
+	}
+
+	/**
+	 * Read events for up to the coalescing window and apply them. Returns the
+	 * number of events read.
+	 */
+	public int processOnce() {
+		long deadline = System.currentTimeMillis() + coalesceMillis;
+		List<ChangeEvent> events = new ArrayList<>();
+		Map<String, ResourceChange> changes = new LinkedHashMap<>();
+		while (events.size() < maxEvents && !source.isExhausted()) {
+			long wait = Math.max(0, deadline - System.currentTimeMillis());
+			List<ChangeEvent> batch = source.poll(maxEvents - events.size(), wait, TimeUnit.MILLISECONDS);
+			for (ChangeEvent event : batch) {
+				ResourceChange.fromEvent(event.getBody()).forEach(it -> changes.putIfAbsent(it.getKey(), it));
+			}
+			events.addAll(batch);
+			if (batch.isEmpty() || System.currentTimeMillis() >= deadline) {
+				break;
+			}
+		}
+		if (events.isEmpty()) {
+			return 0;
+		}
+		eventCount.addAndGet(events.size());
+		changeCount.addAndGet(changes.size());
+		logger.info("coalesced {} change events into {} resource changes", events.size(), changes.size());
+
+		if (apply(changes.values())) {
+			source.acknowledge(events);
+		}
+		return events.size();
+	}
+
+	/**
+	 * Rescan the changed resources, one call per type, account and region.
+	 * Returns false if any rescan failed.
+	 */
+	boolean apply(Collection<ResourceChange> changes) {
+		String builderAccount = null;
+		if (accounts.isEmpty()) {
+			try {
+				builderAccount = builder.getAccountIdSupplier().get();
+			} catch (RuntimeException e) {
+				failureCount.incrementAndGet();
+				logger.warn("could not resolve the account of the scanner builder", e);
+				return false;
+			}
+		}
+		ListMultimap<String, ResourceChange> groups = ArrayListMultimap.create();
+		for (ResourceChange change : changes) {
+			if (!accounts.isEmpty() && !accounts.containsKey(change.getAccount())) {
+				logger.debug("ignoring change in unregistered account: {}", change);
+				continue;
+			}
+			if (builderAccount != null && !builderAccount.equals(change.getAccount())) {
+				// never pair one account's id with another account's credentials
+				logger.debug("ignoring change in account other than {}: {}", builderAccount, change);
+				continue;
+			}
+			groups.put(change.getType() + "/" + change.getAccount() + "/" + change.getRegion(), change);
+		}
+		boolean success = true;
+		for (String key : groups.keySet()) {
+			List<ResourceChange> group = groups.get(key);
+			try {
+				rescan(group);
+			} catch (RuntimeException e) {
+				failureCount.incrementAndGet();
+				success = false;
+				logger.warn("problem rescanning {}", key, e);
+			}
+		}
+		return success;
+	}
+
+	/**
+	 * Rescan a group of changes that share a type, account and region. Since a
+	 * single missing resource fails the whole call, a group that fails with a
+	 * not-found error is retried one resource at a time.
+	 */
+	void rescan(List<ResourceChange> group) {
+		ResourceChange first = group.get(0);
+		String[] ids = group.stream().map(ResourceChange::getId).distinct().toArray(String[]::new);
+		try {
+			rescan(first, ids);
+		} catch (RuntimeException e) {
+			if (!isNotFound(e)) {
+				throw e;
+			}
+			if (ids.length > 1) {
+				for (String id : ids) {
+					try {
+						rescan(first, id);
+					} catch (RuntimeException e2) {
+						if (!isNotFound(e2)) {
+							throw e2;
+						}
+					}
+				}
+			}
+		}
+	}
+
+	void rescan(ResourceChange change, String... ids) {
+		rescanCount.incrementAndGet();
+		ScannerContext context = new ScannerContext().withName("ChangeEventIngester");
+		context.exec(ctx -> {
+			switch (change.getType()) {
+			case EC2_INSTANCE:
+				getScanner(EC2InstanceScanner.class, change).scanInstanceId(ids);
+				break;
+			case ELB:
+				getScanner(ELBScanner.class, change).scanLoadBalancerNames(ids);
+				break;
+			case ASG:
+				getScanner(ASGScanner.class, change).scanASGNames(ids);
+				break;
+			}
+		});
+		for (Exception e : context.getExceptions()) {
+			if (isNotFound(e)) {
+				throw (RuntimeException) e;
+			}
+			throw new MercatorException("problem rescanning " + change.getType() + " " + Arrays.toString(ids), e);
+		}
+	}
+
+	/**
+	 * A resource that has since been deleted cannot be rescanned. Retrying the
+	 * event would not help, so it is left to the next full scan.
+	 */
+	static boolean isNotFound(Throwable t) {
+		return t instanceof AmazonServiceException
+				&& Strings.nullToEmpty(((AmazonServiceException) t).getErrorCode()).contains("NotFound");
+	}
+
+	@SuppressWarnings("unchecked")
+	<T extends AWSScanner<?>> T getScanner(Class<T> type, ResourceChange change) {
+		String key = type.getName() + "/" + change.getAccount() + "/" + change.getRegion();
+		return (T) scanners.computeIfAbsent(key, k -> createScannerBuilder(change).build(type));
+	}
+
+	AWSScannerBuilder createScannerBuilder(ResourceChange change) {
+		AWSCredentialsProvider credentials = accounts.get(change.getAccount());
+		if (credentials == null) {
+			// apply() only lets through changes in the builder's own account
+			Preconditions.checkState(accounts.isEmpty(), "unregistered account: %s", change.getAccount());
+			Preconditions.checkState(change.getAccount().equals(builder.getAccountIdSupplier().get()),
+					"change is not in the builder's account: %s", change.getAccount());
+			credentials = builder.getCredentialsProvider();
+		}
+		return new AWSScannerBuilder(builder).withAccountId(change.getAccount()).withRegion(change.getRegion())
+				.withCredentials(credentials);
+	}
+}
@@ -0,0 +1,47 @@
+/**
+ * Copyright 2017 Lending Club, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lendingclub.mercator.aws;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A source of resource-change events for ChangeEventIngester.
+ */
+public interface ChangeEventSource {
+
+	/**
+	 * Returns up to max events, waiting at most the given time for the first
+	 * one to arrive. Returns an empty list if none arrived in time.
+	 */
+	public List<ChangeEvent> poll(int max, long wait, TimeUnit unit);
+
+	/**
+	 * Called once the given events have been applied. Events that are never
+	 * acknowledged may be delivered again.
+	 */
+	public default void acknowledge(List<ChangeEvent> events) {
+
+	}
+
+	/**
+	 * Returns true if the source will never return another event, e.g. at the
+	 * end of a stream.
+	 */
+	public default boolean isExhausted() {
+		return false;
+	}
+}
@@ -0,0 +1,106 @@
+/**
+ * Copyright 2017 Lending Club, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lendingclub.mercator.aws;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+/**
+ * Reads change events from the *.json files in a directory, one event (or one
+ * CloudTrail log file) per file, oldest first. Files are deleted when their
+ * events are acknowledged. As with an SQS queue, a file that is not
+ * acknowledged is returned again once the visibility timeout has passed.
+ */
+public class DirectoryChangeEventSource implements ChangeEventSource {
+
+	static final long POLL_INTERVAL_MILLIS = 500;
+	static final long VISIBILITY_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+	static ObjectMapper mapper = new ObjectMapper();
+
+	Logger logger = LoggerFactory.getLogger(DirectoryChangeEventSource.class);
+
+	File dir;
+
+	// files returned by poll() and not yet acknowledged, with the time they
+	// were returned
+	Map<String, Long> pending = Maps.newConcurrentMap();
+
+	boolean isVisible(File file) {
+		Long returned = pending.get(file.getPath());
+		return returned == null || System.currentTimeMillis() - returned > VISIBILITY_TIMEOUT_MILLIS;
+	}
+
+	public DirectoryChangeEventSource(File dir) {
+		this.dir = dir;
+	}
+
+	File[] listFiles() {
+		File[] files = dir.listFiles(file -> file.getName().endsWith(".json") && isVisible(file));
+		if (files == null) {
+			return new File[0];
+		}
+		Arrays.sort(files, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+		return files;
+	}
+
+	@Override
+	public List<ChangeEvent> poll(int max, long wait, TimeUnit unit) {
+		long deadline = System.currentTimeMillis() + unit.toMillis(wait);
+		File[] files = listFiles();
+		while (files.length == 0 && System.currentTimeMillis() < deadline) {
+			Uninterruptibles.sleepUninterruptibly(POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+			files = listFiles();
+		}
+		List<ChangeEvent> events = new ArrayList<>();
+		for (File file : files) {
+			if (events.size() >= max) {
+				break;
+			}
+			pending.put(file.getPath(), System.currentTimeMillis());
+			try {
+				events.add(new ChangeEvent(mapper.readTree(file), file.getPath()));
+			} catch (IOException e) {
+				logger.warn("could not parse event file: {}", file);
+				events.add(new ChangeEvent(mapper.createObjectNode(), file.getPath()));
+			}
+		}
+		return events;
+	}
+
+	@Override
+	public void acknowledge(List<ChangeEvent> events) {
+		for (ChangeEvent event : events) {
+			File file = new File(event.getReceipt());
+			pending.remove(file.getPath());
+			if (!file.delete()) {
+				logger.warn("could not delete {}", file);
+			}
+		}
+	}
+}
@@ -28,29 +28,122 @@
  */
 package org.lendingclub.mercator.aws;
 
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
+import org.lendingclub.mercator.core.MercatorException;
 import org.lendingclub.mercator.core.ScannerContext;
+import org.lendingclub.mercator.core.ScannerExecutors;
+import org.lendingclub.mercator.core.TaskScope;
 import org.lendingclub.neorx.NeoRxClient;
 
-import com.amazonaws.regions.Region;
+import com.amazonaws.services.ec2.model.AvailabilityZone;
 import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
 import com.amazonaws.services.ec2.model.DescribeInstancesResult;
+import com.amazonaws.services.ec2.model.Filter;
 import com.amazonaws.services.ec2.model.Instance;
 import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Stopwatch;
 import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
 
 public class EC2InstanceScanner extends AbstractEC2Scanner {
 
+	// DescribeInstances accepts MaxResults between 5 and 1000
+	public static final int DEFAULT_PAGE_SIZE = 1000;
+	public static final int DEFAULT_SHARD_CONCURRENCY = 4;
+
+	/**
+	 * The filter by which the instance listing is split into shards that are
+	 * fetched in parallel.
+	 */
+	public enum ShardFilter {
+		NONE(null), AVAILABILITY_ZONE("availability-zone");
+
+		final String filterName;
+
+		ShardFilter(String filterName) {
+			this.filterName = filterName;
+		}
+	}
+
+	static class Page {
+		static final Page END = new Page(null, null);
+
+		final List<Instance> instances;
+		final RuntimeException error;
+
+		Page(List<Instance> instances, RuntimeException error) {
+			this.instances = instances;
+			this.error = error;
+		}
+	}
+
+	int pageSize = DEFAULT_PAGE_SIZE;
+	boolean prefetchEnabled;
+	ShardFilter shardFilter = ShardFilter.NONE;
+	int shardConcurrency = DEFAULT_SHARD_CONCURRENCY;
+	boolean pageProjectionEnabled;
+
 	public EC2InstanceScanner(AWSScannerBuilder builder) {
 		super(builder, "AwsEc2Instance");
 		jsonConverter.flattenNestedObjects = true;
+		withPageSize(builder.getEc2InstancePageSize());
+		withPrefetch(builder.isEc2InstancePrefetchEnabled());
+		withSharding(builder.getEc2InstanceShardFilter(), builder.getEc2InstanceShardConcurrency());
+		withPageProjection(builder.isPageProjectionEnabled());
+	}
+
+	public EC2InstanceScanner withPageSize(int pageSize) {
+		Preconditions.checkArgument(pageSize >= 5 && pageSize <= 1000, "pageSize must be between 5 and 1000");
+		this.pageSize = pageSize;
+		return this;
+	}
+
+	/**
+	 * If enabled, the next page of instances is fetched while the current one
+	 * is being written.
+	 */
+	public EC2InstanceScanner withPrefetch(boolean b) {
+		this.prefetchEnabled = b;
+		return this;
+	}
+
+	/**
+	 * Split the listing of very large regions by availability zone, which does
+	 * not change for an instance, and fetch up to concurrency shards at once.
+	 * All shards draw from the account's shared API budget, and pages are
+	 * still written one at a time.
+	 */
+	public EC2InstanceScanner withSharding(ShardFilter filter, int concurrency) {
+		Preconditions.checkNotNull(filter, "filter cannot be null");
+		Preconditions.checkArgument(concurrency > 0, "concurrency must be > 0");
+		this.shardFilter = filter;
+		this.shardConcurrency = concurrency;
+		return this;
+	}
+
+	/**
+	 * If enabled, each page of instances is written, together with its AMI,
+	 * subnet and security group relationships, by a single statement rather
+	 * than by several statements per instance.
+	 */
+	public EC2InstanceScanner withPageProjection(boolean b) {
+		this.pageProjectionEnabled = b;
+		return this;
 	}
 
 	@Override
@@ -72,143 +165,326 @@ public class EC2InstanceScanner extends AbstractEC2Scanner {
 		writeInstance(instance, null);
 	}
 
-	private void writeInstance(Instance instance, GraphNodeGarbageCollector gc) {
-		Stopwatch sw = Stopwatch.createStarted();
-		Stopwatch instanceMergeStopwatch = Stopwatch.createUnstarted();
-		Stopwatch amiMergeStopwatch = Stopwatch.createUnstarted();
-		Stopwatch subnetMergeStopwatch = Stopwatch.createUnstarted();
-		try {
-			if (instance.getState().getName().equals("terminated")) {
-				// instance is terminated
-				// we may want to take the opportunity to delete it right here
-			} else {
-				JsonNode n = convertAwsObject(instance, getRegion());
-				NeoRxClient neoRx = getNeoRxClient();
-
-				String subnetId = n.path("aws_subnetId").asText(null);
-				String instanceArn = n.path("aws_arn").asText(null);
-				String account = n.path(AccountScanner.ACCOUNT_ATTRIBUTE).asText(null);
-				String imageId = n.path("aws_imageId").asText(null);
-
-				Preconditions.checkNotNull(neoRx);
-
-				Preconditions.checkState(!Strings.isNullOrEmpty(instanceArn), "aws_arn must not be null");
-				Preconditions.checkState(!Strings.isNullOrEmpty(account), "aws_account must not be null");
+	void writeInstance(Instance instance, GraphNodeGarbageCollector gc) {
+		writeInstance(instance, gc, null);
+	}
 
-				instanceMergeStopwatch.start();
-				String createInstanceCypher = "merge (x:AwsEc2Instance {aws_arn:{instanceArn}}) set x+={props}, x.updateTs=timestamp() return x";
+	/**
+	 * If securityGroupLinkage is not null, the instance's security groups are
+	 * queued on it rather than linked immediately.
+	 */
+	void writeInstance(Instance instance, GraphNodeGarbageCollector gc, LinkageHelper securityGroupLinkage) {
+		if (instance.getState().getName().equals("terminated")) {
+			// instance is terminated
+			// we may want to take the opportunity to delete it right here
+		} else {
+			JsonNode n = shadowRemover.foldTagRemovals("AwsEc2Instance", convertAwsObject(instance, getRegion()));
+			NeoRxClient neoRx = getNeoRxClient();
+
+			String subnetId = n.path("aws_subnetId").asText(null);
+			String instanceArn = n.path("aws_arn").asText(null);
+			String account = n.path(AccountScanner.ACCOUNT_ATTRIBUTE).asText(null);
+			String imageId = n.path("aws_imageId").asText(null);
+
+			Preconditions.checkNotNull(neoRx);
+
+			Preconditions.checkState(!Strings.isNullOrEmpty(instanceArn), "aws_arn must not be null");
+			Preconditions.checkState(!Strings.isNullOrEmpty(account), "aws_account must not be null");
+
+			String createInstanceCypher = "merge (x:AwsEc2Instance {aws_arn:{instanceArn}}) set x+={props}, x.updateTs=timestamp() "
+					+ shadowRemover.getReturnClause("x");
+			neoRx.execCypher(createInstanceCypher, "instanceArn", instanceArn, "props", n).forEach(it -> {
 				if (gc != null) {
-					neoRx.execCypher(createInstanceCypher, "instanceArn", instanceArn, "props", n).forEach(it -> {
-						gc.MERGE_ACTION.accept(it);
-						shadowRemover.removeTagAttributes("AwsEc2Instance", n, it);
-					});
-				} else {
-					neoRx.execCypher(createInstanceCypher, "instanceArn", instanceArn, "props", n);
+					gc.MERGE_ACTION.accept(it);
 				}
-				instanceMergeStopwatch.stop();
+				shadowRemover.removeTagAttributes("AwsEc2Instance", n, it);
+			});
 
-				amiMergeStopwatch.start();
-				if (!Strings.isNullOrEmpty(imageId)) {
-					String amiArn = String.format("arn:aws:ec2:%s::image/%s", getRegion().getName(), imageId);
+			if (!Strings.isNullOrEmpty(imageId)) {
+				String amiArn = createAmiArn(imageId);
 
-					String mapToImageCypher = "match (x:AwsAmi {aws_arn:{amiArn}}), "
-							+ "(y:AwsEc2Instance {aws_arn:{instanceArn}}) "
-							+ "merge (y)-[r:USES]-(x) set r.updateTs=timestamp()";
-					neoRx.execCypher(mapToImageCypher, "amiArn", amiArn, "instanceArn", instanceArn);
-				}
-				amiMergeStopwatch.stop();
+				String mapToImageCypher = "match (x:AwsAmi {aws_arn:{amiArn}}), "
+						+ "(y:AwsEc2Instance {aws_arn:{instanceArn}}) "
+						+ "merge (y)-[r:USES]-(x) set r.updateTs=timestamp()";
+				neoRx.execCypher(mapToImageCypher, "amiArn", amiArn, "instanceArn", instanceArn);
+			}
 
-				subnetMergeStopwatch.start();
-				if (!Strings.isNullOrEmpty(subnetId)) {
-					String subnetArn = String.format("arn:aws:ec2:%s:%s:subnet/%s", getRegion().getName(), account,
-							subnetId);
-					String mapToSubnetCypher = "match (x:AwsSubnet {aws_arn:{subnetArn}}), "
-							+ "(y:AwsEc2Instance {aws_arn:{instanceArn}}) "
-							+ "merge (y)-[r:RESIDES_IN]->(x) set r.updateTs=timestamp()";
-					neoRx.execCypher(mapToSubnetCypher, "subnetArn", subnetArn, "instanceArn", instanceArn);
+			if (!Strings.isNullOrEmpty(subnetId)) {
+				String subnetArn = createSubnetArn(account, subnetId);
+				String mapToSubnetCypher = "match (x:AwsSubnet {aws_arn:{subnetArn}}), "
+						+ "(y:AwsEc2Instance {aws_arn:{instanceArn}}) "
+						+ "merge (y)-[r:RESIDES_IN]->(x) set r.updateTs=timestamp()";
+				neoRx.execCypher(mapToSubnetCypher, "subnetArn", subnetArn, "instanceArn", instanceArn);
 
-				}
-				subnetMergeStopwatch.stop();
-
-				LinkageHelper securityGroupLinkage = newLinkageHelper().withFromArn(instanceArn)
-						.withLinkLabel("ATTACHED_TO").withTargetLabel("AwsSecurityGroup")
-						.withTargetValues(instance.getSecurityGroups().stream()
-								.map(sg -> createEc2Arn("security-group", sg.getGroupId()))
-								.collect(Collectors.toList()));
-				securityGroupLinkage.execute();
 			}
-		} finally {
-			if (sw.elapsed(TimeUnit.MILLISECONDS) > 50) {
-				logger.info("writeInstance took {} ms (instance={}ms amiRelationship={}ms subnetRelationship={}ms)",
-						sw.elapsed(TimeUnit.MILLISECONDS), instanceMergeStopwatch.elapsed(TimeUnit.MILLISECONDS),
-						amiMergeStopwatch.elapsed(TimeUnit.MILLISECONDS),
-						subnetMergeStopwatch.elapsed(TimeUnit.MILLISECONDS));
+
+			List<String> securityGroups = instance.getSecurityGroups().stream()
+					.map(sg -> createEc2Arn("security-group", sg.getGroupId())).collect(Collectors.toList());
+			if (securityGroupLinkage != null) {
+				securityGroupLinkage.addLinks(instanceArn, securityGroups);
+			} else {
+				newSecurityGroupLinkage().withFromArn(instanceArn).withTargetValues(securityGroups).execute();
 			}
 		}
 	}
 
+	String createAmiArn(String imageId) {
+		return String.format("arn:aws:ec2:%s::image/%s", getRegion().getName(), imageId);
+	}
+
+	String createSubnetArn(String account, String subnetId) {
+		return String.format("arn:aws:ec2:%s:%s:subnet/%s", getRegion().getName(), account, subnetId);
+	}
+
+	//@formatter:off
+	String createPageProjectionCypher() {
+		return "unwind {rows} as row"
+				+ " merge (x:AwsEc2Instance {aws_arn: row.arn}) set x+=row.props, x.updateTs=timestamp()"
+				+ " with x, row"
+				+ " optional match (x)-[stale:ATTACHED_TO]-(old:AwsSecurityGroup)"
+				+ " where not old.aws_arn in row.securityGroups"
+				+ " delete stale"
+				+ " with distinct x, row"
+				+ " optional match (ami:AwsAmi {aws_arn: row.amiArn})"
+				+ " foreach (a in case when ami is null then [] else [ami] end |"
+				+ " merge (x)-[r:USES]-(a) set r.updateTs=timestamp())"
+				+ " with x, row"
+				+ " optional match (subnet:AwsSubnet {aws_arn: row.subnetArn})"
+				+ " foreach (s in case when subnet is null then [] else [subnet] end |"
+				+ " merge (x)-[r:RESIDES_IN]->(s) set r.updateTs=timestamp())"
+				+ " with x, row"
+				+ " optional match (sg:AwsSecurityGroup) where sg.aws_arn in row.securityGroups"
+				+ " foreach (g in case when sg is null then [] else [sg] end |"
+				+ " merge (x)-[r:ATTACHED_TO]->(g) set r.updateTs=timestamp())"
+				+ " with distinct x "
+				+ shadowRemover.getReturnClause("x");
+	}
+	//@formatter:on
+
+	/**
+	 * Write a page of instances and their AMI, subnet and security group
+	 * relationships with a single statement, with the same result as
+	 * writeInstance() for each. Returns the number of instances written.
+	 */
+	int writeInstances(List<Instance> instances, GraphNodeGarbageCollector gc) {
+		Stopwatch sw = Stopwatch.createStarted();
+		ArrayNode rows = mapper.createArrayNode();
+		Map<String, JsonNode> desired = new HashMap<>();
+		for (Instance instance : instances) {
+			if (instance.getState() != null && instance.getState().getName().equals("terminated")) {
+				continue;
+			}
+			ObjectNode n = shadowRemover.foldTagRemovals("AwsEc2Instance", convertAwsObject(instance, getRegion()));
+			String instanceArn = n.path("aws_arn").asText(null);
+			String account = n.path(AccountScanner.ACCOUNT_ATTRIBUTE).asText(null);
+			String subnetId = n.path("aws_subnetId").asText(null);
+			String imageId = n.path("aws_imageId").asText(null);
+
+			Preconditions.checkState(!Strings.isNullOrEmpty(instanceArn), "aws_arn must not be null");
+			Preconditions.checkState(!Strings.isNullOrEmpty(account), "aws_account must not be null");
+
+			ObjectNode row = rows.addObject();
+			row.put("arn", instanceArn);
+			row.set("props", n);
+			row.put("amiArn", Strings.isNullOrEmpty(imageId) ? null : createAmiArn(imageId));
+			row.put("subnetArn", Strings.isNullOrEmpty(subnetId) ? null : createSubnetArn(account, subnetId));
+			ArrayNode securityGroups = row.putArray("securityGroups");
+			instance.getSecurityGroups()
+					.forEach(sg -> securityGroups.add(createEc2Arn("security-group", sg.getGroupId())));
+			desired.put(instanceArn, n);
+		}
+		if (rows.size() == 0) {
+			return 0;
+		}
+		getNeoRxClient().execCypher(createPageProjectionCypher(), "rows", rows).blockingForEach(it -> {
+			if (gc != null) {
+				gc.MERGE_ACTION.accept(it);
+			}
+			JsonNode n = desired.get(it.path("aws_arn").asText());
+			if (n != null) {
+				shadowRemover.removeTagAttributes("AwsEc2Instance", n, it);
+			}
+		});
+		logger.debug("wrote {} instances in {} ms", rows.size(), sw.elapsed(TimeUnit.MILLISECONDS));
+		return rows.size();
+	}
+
+	LinkageHelper newSecurityGroupLinkage() {
+		return newLinkageHelper().withLinkLabel("ATTACHED_TO").withTargetLabel("AwsSecurityGroup");
+	}
+
+	/**
+	 * Describe the given instances in a single call and write them. The call
+	 * fails if any of the instances does not exist.
+	 */
 	public void scanInstanceId(String... instanceIdList) {
+		if (instanceIdList == null || instanceIdList.length == 0) {
+			return;
+		}
+		String token = null;
+		DescribeInstancesRequest request = new DescribeInstancesRequest().withInstanceIds(instanceIdList);
 
-		Arrays.asList(instanceIdList).forEach(instanceId -> {
-
-			String token = null;
-			DescribeInstancesRequest request = new DescribeInstancesRequest().withInstanceIds(instanceId);
-
-			do {
-				rateLimit();
-				DescribeInstancesResult results = getClient().describeInstances();
-				results.getReservations().forEach(reservation -> {
-					reservation.getInstances().forEach(instance -> {
-						try {
-							writeInstance(instance);
-						} catch (RuntimeException e) {
-							maybeThrow(e);
-						}
-					});
+		do {
+			rateLimit();
+			DescribeInstancesResult results = getClient().describeInstances(request);
+			results.getReservations().forEach(reservation -> {
+				reservation.getInstances().forEach(instance -> {
+					try {
+						writeInstance(instance);
+					} catch (RuntimeException e) {
+						maybeThrow(e);
+					}
 				});
-				request.setNextToken(results.getNextToken());
-			} while (tokenHasNext(token));
-		});
+			});
+			token = results.getNextToken();
+			request.setNextToken(token);
+		} while (tokenHasNext(token));
 	}
 
 	@Override
 	protected void doScan() {
-		GraphNodeGarbageCollector gc = new GraphNodeGarbageCollector().neo4j(getNeoRxClient()).account(getAccountId())
-				.label("AwsEc2Instance").region(getRegion().getName()).bindScannerContext();
+		GraphNodeGarbageCollector gc = newGarbageCollector().label("AwsEc2Instance").bindScannerContext();
+		if (pageProjectionEnabled) {
+			forEachPage(page -> {
+				try {
+					int count = writeInstances(page, gc);
+					ScannerContext.getScannerContext().get().increment(ScannerContext.Metric.ENTITIES, count);
+				} catch (RuntimeException e) {
+					gc.markException(e);
+					maybeThrow(e);
+				}
+			});
+			return;
+		}
+		LinkageHelper securityGroupLinkage = newSecurityGroupLinkage();
+		try {
+			forEachInstance(instance -> {
 
-		forEachInstance(getRegion(), instance -> {
+				try {
 
-			try {
+					writeInstance(instance, gc, securityGroupLinkage);
+					ScannerContext.getScannerContext().get().incrementEntityCount();
+				} catch (RuntimeException e) {
+					gc.markException(e);
+					maybeThrow(e);
+				}
 
-				writeInstance(instance, gc);
-				ScannerContext.getScannerContext().get().incrementEntityCount();
-			} catch (RuntimeException e) {
-				gc.markException(e);
-				maybeThrow(e);
-			}
+			});
+		} finally {
+			securityGroupLinkage.flush();
+		}
 
-		});
+	}
 
+	void forEachInstance(Consumer<Instance> consumer) {
+		forEachPage(page -> page.forEach(consumer));
 	}
 
-	private void forEachInstance(Region region, Consumer<Instance> consumer) {
+	void forEachPage(Consumer<List<Instance>> consumer) {
+		List<DescribeInstancesRequest> requests = createShardRequests();
+		if (requests.size() == 1 && !prefetchEnabled) {
+			fetchPages(requests.get(0), consumer);
+			return;
+		}
 
-		rateLimit();
-		DescribeInstancesResult results = getClient().describeInstances(new DescribeInstancesRequest());
+		// each fetcher can be at most one page ahead of the writer
+		int concurrency = Math.min(shardConcurrency, requests.size());
+		BlockingQueue<Page> queue = new ArrayBlockingQueue<>(concurrency);
+		Semaphore permits = new Semaphore(concurrency);
+		ExecutorService executor = ScannerExecutors.newVirtualThreadPerTaskExecutor("EC2InstanceScanner-");
+		try (TaskScope scope = new TaskScope(executor)) {
+			for (DescribeInstancesRequest request : requests) {
+				scope.fork(() -> fetchShard(request, queue, permits));
+			}
+			RuntimeException failure = null;
+			int remaining = requests.size();
+			while (remaining > 0) {
+				Page page = take(queue);
+				if (page.instances != null) {
+					consumer.accept(page.instances);
+				} else {
+					remaining--;
+					if (failure == null) {
+						failure = page.error;
+					}
+				}
+			}
+			scope.join();
+			if (failure != null) {
+				throw failure;
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
 
-		String token = results.getNextToken();
-		results.getReservations().forEach(reservation -> {
+	List<DescribeInstancesRequest> createShardRequests() {
+		List<String> values = ImmutableList.of();
+		if (shardFilter == ShardFilter.AVAILABILITY_ZONE) {
 			rateLimit();
-			reservation.getInstances().forEach(consumer);
-		});
+			values = getClient().describeAvailabilityZones().getAvailabilityZones().stream()
+					.map(AvailabilityZone::getZoneName).collect(Collectors.toList());
+		}
+		List<DescribeInstancesRequest> requests = new ArrayList<>();
+		for (String value : values) {
+			requests.add(new DescribeInstancesRequest().withMaxResults(pageSize)
+					.withFilters(new Filter(shardFilter.filterName).withValues(value)));
+		}
+		if (requests.isEmpty()) {
+			requests.add(new DescribeInstancesRequest().withMaxResults(pageSize));
+		}
+		return requests;
+	}
+
+	void fetchShard(DescribeInstancesRequest request, BlockingQueue<Page> queue, Semaphore permits) {
+		Page end = Page.END;
+		try {
+			permits.acquire();
+			try {
+				fetchPages(request, instances -> put(queue, new Page(instances, null)));
+			} finally {
+				permits.release();
+			}
+		} catch (InterruptedException e) {
+			// the writer has given up
+			Thread.currentThread().interrupt();
+			return;
+		} catch (RuntimeException e) {
+			if (Thread.currentThread().isInterrupted()) {
+				return;
+			}
+			end = new Page(null, e);
+		}
+		put(queue, end);
+	}
 
-		while (!Strings.isNullOrEmpty(token) && !token.equals("null")) {
+	void fetchPages(DescribeInstancesRequest request, Consumer<List<Instance>> consumer) {
+		String token = null;
+		do {
 			rateLimit();
-			results = getClient().describeInstances(new DescribeInstancesRequest().withNextToken(token));
+			DescribeInstancesResult results = getClient().describeInstances(request.clone().withNextToken(token));
+			List<Instance> instances = new ArrayList<>();
+			results.getReservations().forEach(reservation -> instances.addAll(reservation.getInstances()));
+			consumer.accept(instances);
 			token = results.getNextToken();
-			results.getReservations().forEach(reservation -> {
-				reservation.getInstances().forEach(consumer);
-			});
+		} while (tokenHasNext(token));
+	}
+
+	static void put(BlockingQueue<Page> queue, Page page) {
+		try {
+			queue.put(page);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new MercatorException("interrupted", e);
+		}
+	}
+
+	static Page take(BlockingQueue<Page> queue) {
+		try {
+			return queue.take();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new MercatorException("interrupted", e);
 		}
 	}
 
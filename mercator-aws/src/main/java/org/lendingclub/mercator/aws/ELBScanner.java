@@ -30,12 +30,16 @@ package org.lendingclub.mercator.aws;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
+import org.lendingclub.mercator.core.ScannerContext;
+
 import com.amazonaws.regions.Region;
 import com.amazonaws.services.elasticloadbalancing.AmazonElasticLoadBalancingClient;
 import com.amazonaws.services.elasticloadbalancing.AmazonElasticLoadBalancingClientBuilder;
@@ -43,22 +47,38 @@ import com.amazonaws.services.elasticloadbalancing.model.DescribeLoadBalancersRe
 import com.amazonaws.services.elasticloadbalancing.model.DescribeLoadBalancersResult;
 import com.amazonaws.services.elasticloadbalancing.model.DescribeTagsRequest;
 import com.amazonaws.services.elasticloadbalancing.model.DescribeTagsResult;
+import com.amazonaws.services.elasticloadbalancing.model.Instance;
 import com.amazonaws.services.elasticloadbalancing.model.LoadBalancerDescription;
+import com.amazonaws.services.elasticloadbalancing.model.TagDescription;
 import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.google.common.base.Preconditions;
 
 public class ELBScanner extends AWSScanner<AmazonElasticLoadBalancingClient> {
 	private static final int DESCRIBE_TAGS_MAX = 20;
 
+	boolean pageProjectionEnabled;
+
 	public ELBScanner(AWSScannerBuilder builder) {
 		super(builder, AmazonElasticLoadBalancingClient.class, "AwsElb");
+		withPageProjection(builder.isPageProjectionEnabled());
+	}
 
+	/**
+	 * If enabled, each page of load balancers is written, together with its
+	 * tags and its subnet, instance and security group relationships, by a
+	 * few UNWIND statements rather than by several statements per load
+	 * balancer. Stale relationships are removed for the whole page.
+	 */
+	public ELBScanner withPageProjection(boolean b) {
+		this.pageProjectionEnabled = b;
+		return this;
 	}
 
 	@Override
 	protected AmazonElasticLoadBalancingClient createClient() {
-		return (AmazonElasticLoadBalancingClient) builder.configure(AmazonElasticLoadBalancingClientBuilder.standard())
+		return (AmazonElasticLoadBalancingClient) configure(AmazonElasticLoadBalancingClientBuilder.standard())
 				.build();
 	}
 
@@ -76,11 +96,15 @@ public class ELBScanner extends AWSScanner<AmazonElasticLoadBalancingClient> {
 			DescribeLoadBalancersResult results = getClient().describeLoadBalancers(request);
 
 			marker = results.getNextMarker();
-			results.getLoadBalancerDescriptions().forEach(it -> {
-				projectElb(it, null);
-
-			});
-			writeTagsToNeo4j(results, getRegion(), getClient());
+			if (pageProjectionEnabled) {
+				projectElbPage(results.getLoadBalancerDescriptions(), null);
+			} else {
+				results.getLoadBalancerDescriptions().forEach(it -> {
+					projectElb(it, null);
+
+				});
+				writeTagsToNeo4j(results, getRegion(), getClient());
+			}
 			request.setMarker(marker);
 		} while (tokenHasNext(marker));
 	}
@@ -94,7 +118,7 @@ public class ELBScanner extends AWSScanner<AmazonElasticLoadBalancingClient> {
 
 	}
 
-	private void projectElb(LoadBalancerDescription elb, GraphNodeGarbageCollector gc) {
+	void projectElb(LoadBalancerDescription elb, GraphNodeGarbageCollector gc) {
 		ObjectNode n = convertAwsObject(elb, getRegion());
 		incrementEntityCount();
 		String elbArn = n.path("aws_arn").asText();
@@ -119,6 +143,20 @@ public class ELBScanner extends AWSScanner<AmazonElasticLoadBalancingClient> {
 
 		GraphNodeGarbageCollector gc = newGarbageCollector().bindScannerContext();
 
+		if (pageProjectionEnabled) {
+			forEachPage(results -> {
+				try {
+					int count = projectElbPage(results.getLoadBalancerDescriptions(), gc);
+					ScannerContext.getScannerContext()
+							.ifPresent(ctx -> ctx.increment(ScannerContext.Metric.ENTITIES, count));
+				} catch (RuntimeException e) {
+					gc.markException(e);
+					maybeThrow(e, "problem scanning ELB");
+				}
+			});
+			return;
+		}
+
 		forEachElb(getRegion(), elb -> {
 			try {
 				incrementEntityCount();
@@ -148,6 +186,111 @@ public class ELBScanner extends AWSScanner<AmazonElasticLoadBalancingClient> {
 		} while (tokenHasNext(marker));
 	}
 
+	private void forEachPage(Consumer<DescribeLoadBalancersResult> consumer) {
+
+		DescribeLoadBalancersRequest request = new DescribeLoadBalancersRequest();
+
+		String marker = null;
+		do {
+			rateLimit();
+			DescribeLoadBalancersResult results = getClient().describeLoadBalancers(request.withMarker(marker));
+			marker = results.getNextMarker();
+			consumer.accept(results);
+		} while (tokenHasNext(marker));
+	}
+
+	List<TagDescription> describeTags(List<String> loadBalancerNames) {
+		List<TagDescription> tags = new ArrayList<>();
+		// DescribeTags takes at most 20 names at a time
+		for (int i = 0; i < loadBalancerNames.size(); i += DESCRIBE_TAGS_MAX) {
+			List<String> subsetNames = loadBalancerNames.subList(i,
+					Math.min(i + DESCRIBE_TAGS_MAX, loadBalancerNames.size()));
+			rateLimit();
+			tags.addAll(getClient().describeTags(new DescribeTagsRequest().withLoadBalancerNames(subsetNames))
+					.getTagDescriptions());
+		}
+		return tags;
+	}
+
+	/**
+	 * Write a page of load balancers with their tags in one statement, then
+	 * reconcile their subnet, instance and security group relationships with
+	 * one pair of statements each. Returns the number of load balancers
+	 * written.
+	 */
+	int projectElbPage(List<LoadBalancerDescription> elbs, GraphNodeGarbageCollector gc) {
+		if (elbs.isEmpty()) {
+			return 0;
+		}
+		String region = getRegion().getName();
+		Map<String, ObjectNode> desired = new LinkedHashMap<>();
+		Map<String, List<String>> subnets = new LinkedHashMap<>();
+		Map<String, List<String>> instances = new LinkedHashMap<>();
+		Map<String, List<String>> securityGroups = new LinkedHashMap<>();
+		for (LoadBalancerDescription elb : elbs) {
+			ObjectNode n = convertAwsObject(elb, getRegion());
+			String elbArn = n.path("aws_arn").asText();
+			ArrayNode sg = n.putArray("aws_securityGroups");
+			elb.getSecurityGroups().forEach(sg::add);
+			desired.put(elb.getLoadBalancerName(), n);
+
+			subnets.put(elbArn, elb.getSubnets().stream()
+					.map(it -> String.format("arn:aws:ec2:%s:%s:subnet/%s", region, getAccountId(), it))
+					.collect(Collectors.toList()));
+			instances.put(elbArn, elb.getInstances().stream().map(Instance::getInstanceId)
+					.map(it -> String.format("arn:aws:ec2:%s:%s:instance/%s", region, getAccountId(), it))
+					.collect(Collectors.toList()));
+			securityGroups.put(elbArn, elb.getSecurityGroups().stream()
+					.map(it -> createArn("ec2", "security-group", it)).collect(Collectors.toList()));
+		}
+
+		// without tags, tag attributes must be left as they are
+		boolean tagsLoaded = false;
+		try {
+			for (TagDescription tag : describeTags(new ArrayList<>(desired.keySet()))) {
+				ObjectNode n = desired.get(tag.getLoadBalancerName());
+				if (n != null) {
+					convertAwsObject(tag, getRegion()).fields().forEachRemaining(it -> {
+						if (it.getKey().startsWith("aws_tag_")) {
+							n.set(it.getKey(), it.getValue());
+						}
+					});
+				}
+			}
+			tagsLoaded = true;
+		} catch (RuntimeException e) {
+			maybeThrow(e, "problem scanning ELB tags");
+		}
+
+		ArrayNode rows = mapper.createArrayNode();
+		Map<String, ObjectNode> desiredByArn = new LinkedHashMap<>();
+		for (ObjectNode n : desired.values()) {
+			if (tagsLoaded) {
+				getShadowAttributeRemover().foldTagRemovals("AwsElb", n);
+			}
+			rows.addObject().put("arn", n.path("aws_arn").asText()).set("props", n);
+			desiredByArn.put(n.path("aws_arn").asText(), n);
+		}
+		String cypher = "unwind {rows} as row merge (x:AwsElb {aws_arn: row.arn})"
+				+ " set x+=row.props, x.updateTs=timestamp() " + getShadowAttributeRemover().getReturnClause("x");
+		boolean removeTags = tagsLoaded;
+		getNeoRxClient().execCypher(cypher, "rows", rows).blockingForEach(it -> {
+			if (gc != null) {
+				gc.MERGE_ACTION.accept(it);
+			}
+			ObjectNode n = desiredByArn.get(it.path("aws_arn").asText());
+			if (removeTags && n != null) {
+				getShadowAttributeRemover().removeTagAttributes("AwsElb", n, it);
+			}
+		});
+
+		newLinkageHelper().withTargetLabel("AwsSubnet").withLinkLabel("AVAILABLE_IN").execute(subnets);
+		newLinkageHelper().withTargetLabel("AwsEc2Instance").withLinkLabel("DISTRIBUTES_TRAFFIC_TO")
+				.execute(instances);
+		newLinkageHelper().withTargetLabel("AwsSecurityGroup").withLinkLabel("ATTACHED_TO").execute(securityGroups);
+		return rows.size();
+	}
+
 	protected void writeTagsToNeo4j(DescribeLoadBalancersResult results, Region region,
 			AmazonElasticLoadBalancingClient client) {
 		if (!results.getLoadBalancerDescriptions().isEmpty()) {
@@ -169,8 +312,10 @@ public class ELBScanner extends AWSScanner<AmazonElasticLoadBalancingClient> {
 							ObjectNode n = convertAwsObject(tag, region);
 
 							String elbArn = n.path("aws_arn").asText();
+							getShadowAttributeRemover().foldTagRemovals("AwsElb", n);
 
-							String cypher = "merge (x:AwsElb {aws_arn:{aws_arn}}) set x+={props} return x";
+							String cypher = "merge (x:AwsElb {aws_arn:{aws_arn}}) set x+={props} "
+									+ getShadowAttributeRemover().getReturnClause("x");
 
 							Preconditions.checkNotNull(getNeoRxClient());
 
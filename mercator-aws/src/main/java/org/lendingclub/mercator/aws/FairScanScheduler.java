@@ -0,0 +1,306 @@
+/**
+ * Copyright 2017 Lending Club, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lendingclub.mercator.aws;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.lendingclub.mercator.core.LatencyHistogram;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * FairScanScheduler runs tasks on a fixed set of threads, taking tasks from
+ * per-tenant queues in round-robin order. A tenant with hundreds of queued
+ * scanners therefore cannot delay a tenant with a few scanners by more than
+ * one task per thread.
+ *
+ * Each tenant may also be limited to a number of concurrently running tasks,
+ * and to a number of queued tasks beyond which submissions are rejected. The
+ * time each task spends queued is recorded per tenant.
+ */
+public class FairScanScheduler implements ScanScheduler {
+
+	public static final int DEFAULT_MAX_QUEUED_PER_TENANT = 10000;
+
+	static ObjectMapper mapper = new ObjectMapper();
+
+	private static volatile FairScanScheduler defaultInstance;
+
+	Logger logger = LoggerFactory.getLogger(FairScanScheduler.class);
+
+	ReentrantLock lock = new ReentrantLock();
+	Condition workAvailable = lock.newCondition();
+
+	Map<String, Tenant> tenants = new LinkedHashMap<>();
+	List<Tenant> rotation = new ArrayList<>();
+	int cursor = 0;
+
+	Map<String, Integer> maxConcurrencyOverrides = new ConcurrentHashMap<>();
+	volatile int maxConcurrencyPerTenant;
+	volatile int maxQueuedPerTenant = DEFAULT_MAX_QUEUED_PER_TENANT;
+
+	List<Thread> threads = new ArrayList<>();
+	volatile boolean shutdown = false;
+
+	static class Task {
+		Runnable runnable;
+		long enqueuedNanos = System.nanoTime();
+
+		Task(Runnable runnable) {
+			this.runnable = runnable;
+		}
+	}
+
+	static class Tenant {
+		String name;
+		Deque<Task> queue = new ArrayDeque<>();
+		int running = 0;
+		LatencyHistogram queueWait = new LatencyHistogram();
+		AtomicLong submitted = new AtomicLong();
+		AtomicLong completed = new AtomicLong();
+		AtomicLong rejected = new AtomicLong();
+
+		Tenant(String name) {
+			this.name = name;
+		}
+	}
+
+	/**
+	 * Returns the scheduler shared by scanner groups that have not been given
+	 * one, sized to max(3, cores/2) threads.
+	 */
+	public static FairScanScheduler getDefault() {
+		if (defaultInstance == null) {
+			synchronized (FairScanScheduler.class) {
+				if (defaultInstance == null) {
+					defaultInstance = new FairScanScheduler(
+							Math.max(3, Runtime.getRuntime().availableProcessors() / 2));
+				}
+			}
+		}
+		return defaultInstance;
+	}
+
+	public FairScanScheduler(int threadCount) {
+		Preconditions.checkArgument(threadCount > 0, "threadCount must be > 0");
+		this.maxConcurrencyPerTenant = threadCount;
+		ThreadFactory threadFactory = new ThreadFactoryBuilder().setDaemon(true).setNameFormat("aws-scanner-%d")
+				.build();
+		for (int i = 0; i < threadCount; i++) {
+			Thread t = threadFactory.newThread(this::runWorker);
+			threads.add(t);
+			t.start();
+		}
+	}
+
+	/**
+	 * Limit the number of tasks each tenant may run at once. By default a
+	 * single tenant may use every thread when no other tenant has work queued.
+	 */
+	public FairScanScheduler withMaxConcurrencyPerTenant(int max) {
+		Preconditions.checkArgument(max > 0, "max must be > 0");
+		this.maxConcurrencyPerTenant = max;
+		signalAll();
+		return this;
+	}
+
+	public FairScanScheduler withMaxConcurrency(String tenant, int max) {
+		Preconditions.checkArgument(max > 0, "max must be > 0");
+		maxConcurrencyOverrides.put(tenant, max);
+		signalAll();
+		return this;
+	}
+
+	public FairScanScheduler withMaxQueuedPerTenant(int max) {
+		Preconditions.checkArgument(max > 0, "max must be > 0");
+		this.maxQueuedPerTenant = max;
+		return this;
+	}
+
+	public int getThreadCount() {
+		return threads.size();
+	}
+
+	int getMaxConcurrency(String tenant) {
+		return maxConcurrencyOverrides.getOrDefault(tenant, maxConcurrencyPerTenant);
+	}
+
+	@Override
+	public Executor getExecutor(String tenant) {
+		Preconditions.checkNotNull(tenant, "tenant cannot be null");
+		return runnable -> submit(tenant, runnable);
+	}
+
+	public void submit(String tenant, Runnable runnable) {
+		Preconditions.checkNotNull(runnable);
+		lock.lock();
+		try {
+			if (shutdown) {
+				throw new RejectedExecutionException("scheduler has been shut down");
+			}
+			Tenant t = tenants.get(tenant);
+			if (t == null) {
+				t = new Tenant(tenant);
+				tenants.put(tenant, t);
+				rotation.add(t);
+			}
+			if (t.queue.size() >= maxQueuedPerTenant) {
+				t.rejected.incrementAndGet();
+				throw new RejectedExecutionException(
+						"more than " + maxQueuedPerTenant + " tasks queued for tenant: " + tenant);
+			}
+			t.queue.addLast(new Task(runnable));
+			t.submitted.incrementAndGet();
+			workAvailable.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	void signalAll() {
+		lock.lock();
+		try {
+			workAvailable.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the next tenant after the cursor with queued work and spare
+	 * concurrency. Must be called with the lock held.
+	 */
+	Tenant nextTenant() {
+		int size = rotation.size();
+		for (int i = 0; i < size; i++) {
+			int index = (cursor + i) % size;
+			Tenant t = rotation.get(index);
+			if (!t.queue.isEmpty() && t.running < getMaxConcurrency(t.name)) {
+				cursor = (index + 1) % size;
+				return t;
+			}
+		}
+		return null;
+	}
+
+	void runWorker() {
+		while (true) {
+			Tenant tenant;
+			Task task;
+			lock.lock();
+			try {
+				while ((tenant = nextTenant()) == null) {
+					if (shutdown) {
+						return;
+					}
+					workAvailable.await();
+				}
+				task = tenant.queue.removeFirst();
+				tenant.running++;
+			} catch (InterruptedException e) {
+				return;
+			} finally {
+				lock.unlock();
+			}
+			tenant.queueWait.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - task.enqueuedNanos));
+			try {
+				task.runnable.run();
+			} catch (Throwable e) {
+				// an Error must not take the worker, and a share of the pool, with it
+				logger.warn("uncaught exception in scanner task", e);
+			} finally {
+				tenant.completed.incrementAndGet();
+				lock.lock();
+				try {
+					tenant.running--;
+					workAvailable.signal();
+				} finally {
+					lock.unlock();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reject new tasks, and stop the worker threads once the queued tasks have
+	 * run.
+	 */
+	public void shutdown() {
+		lock.lock();
+		try {
+			shutdown = true;
+			workAvailable.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public Optional<LatencyHistogram> getQueueWait(String tenant) {
+		lock.lock();
+		try {
+			Tenant t = tenants.get(tenant);
+			return t == null ? Optional.empty() : Optional.of(t.queueWait.copy());
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public ObjectNode toJson() {
+		ObjectNode n = mapper.createObjectNode();
+		n.put("threads", threads.size());
+		ObjectNode tenantsNode = n.putObject("tenants");
+		lock.lock();
+		try {
+			tenants.values().forEach(t -> {
+				ObjectNode tn = tenantsNode.putObject(t.name);
+				tn.put("queued", t.queue.size());
+				tn.put("running", t.running);
+				tn.put("maxConcurrency", getMaxConcurrency(t.name));
+				tn.put("submitted", t.submitted.get());
+				tn.put("completed", t.completed.get());
+				tn.put("rejected", t.rejected.get());
+				tn.set("queueWait", t.queueWait.toJson());
+			});
+		} finally {
+			lock.unlock();
+		}
+		return n;
+	}
+
+	@Override
+	public String toString() {
+		return toJson().toString();
+	}
+}
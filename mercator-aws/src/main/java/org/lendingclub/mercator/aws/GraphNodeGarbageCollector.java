@@ -28,8 +28,14 @@
  */
 package org.lendingclub.mercator.aws;
 
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
+import org.lendingclub.mercator.core.ScanGeneration;
 import org.lendingclub.mercator.core.ScannerContext;
 import org.lendingclub.mercator.core.ScannerContext.CleanupTask;
 import org.lendingclub.neorx.NeoRxClient;
@@ -41,11 +47,17 @@ import com.fasterxml.jackson.databind.JsonNode;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Stopwatch;
 import com.google.common.base.Strings;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 import io.reactivex.functions.Consumer;
 
 public class GraphNodeGarbageCollector implements CleanupTask {
 
+	public static final int DEFAULT_BATCH_SIZE = 1000;
+
+	private static final ExecutorService sweepExecutor = Executors.newFixedThreadPool(2,
+			new ThreadFactoryBuilder().setDaemon(true).setNameFormat("mercator-gc-%d").build());
+
 	NeoRxClient neo4j;
 
 	Logger logger = LoggerFactory.getLogger(GraphNodeGarbageCollector.class);
@@ -57,6 +69,12 @@ public class GraphNodeGarbageCollector implements CleanupTask {
 	String region;
 	Exception exception;
 
+	long generation;
+	int tombstoneGenerations;
+	int batchSize = DEFAULT_BATCH_SIZE;
+	Executor executor = sweepExecutor;
+	volatile CompletableFuture<Long> sweepResult;
+
 	public NeoRxClient getNeoRxClient() {
 		return neo4j;
 	}
@@ -114,8 +132,100 @@ public class GraphNodeGarbageCollector implements CleanupTask {
 
 	}
 
+	/**
+	 * Submit a sweep of the nodes matching the label+account+region tuple that
+	 * were not stamped with the current scan generation. The sweep deletes in
+	 * batches of at most batchSize nodes, so that no single transaction locks
+	 * the whole label.
+	 * 
+	 * If tombstoneGenerations is greater than zero, a node that is missed is
+	 * first marked with a count of the sweeps that have missed it, and is only
+	 * deleted once that count reaches tombstoneGenerations. Writing the node
+	 * again removes the mark.
+	 */
+	private void invokeGenerationSweep() {
+		if (timestamp == Long.MAX_VALUE) {
+			// nothing was merged, so an empty or failed listing can't purge
+			// everything
+			return;
+		}
+
+		if (exception != null) {
+			return;
+		}
+
+		if (ScannerContext.getScannerContext().isPresent()) {
+			if (ScannerContext.getScannerContext().get().hasExceptions()) {
+				logger.info("refusing to garbage collect because of prior exceptions");
+				return;
+			}
+		}
+
+		Preconditions.checkArgument(!Strings.isNullOrEmpty(neo4jLabel), "label not set");
+		Preconditions.checkArgument(!Strings.isNullOrEmpty(account), "account not set");
+		Preconditions.checkArgument(!Strings.isNullOrEmpty(region), "region not set");
+
+		sweepResult = CompletableFuture.supplyAsync(this::sweep, executor).whenComplete((n, e) -> {
+			if (e != null) {
+				logger.warn("problem sweeping {} nodes in aws_account={} in region={}", neo4jLabel, account, region, e);
+			}
+		});
+	}
+
+	/**
+	 * Returns the number of nodes deleted. Nodes without a scanGen, such as
+	 * those written before scan generations were enabled, are left alone.
+	 */
+	long sweep() {
+		Stopwatch stopwatch = Stopwatch.createStarted();
+		String match = "match (x:" + neo4jLabel + " {aws_account: {account}, aws_region: {region}}) where x."
+				+ ScanGeneration.SCAN_GENERATION_ATTRIBUTE + "<{gen}";
+		String purge = match;
+		if (tombstoneGenerations > 0) {
+			purge += " and x." + ScanGeneration.TOMBSTONE_ATTRIBUTE + ">={tombstones}";
+		}
+		purge += " with x limit {limit} detach delete x return count(x)";
+		long purged = execBatches(purge);
+
+		long marked = 0;
+		if (tombstoneGenerations > 0) {
+			// stamping the generation keeps the batches from matching the same
+			// nodes twice
+			String mark = match + " with x limit {limit} set x." + ScanGeneration.TOMBSTONE_ATTRIBUTE + "=coalesce(x."
+					+ ScanGeneration.TOMBSTONE_ATTRIBUTE + ",0)+1, x." + ScanGeneration.SCAN_GENERATION_ATTRIBUTE
+					+ "={gen} return count(x)";
+			marked = execBatches(mark);
+		}
+		logger.info("purged {} and tombstoned {} {} nodes in aws_account={} in region={} before scanGen={} - elapsed={} ms",
+				purged, marked, neo4jLabel, account, region, generation, stopwatch.stop().elapsed(TimeUnit.MILLISECONDS));
+		return purged;
+	}
+
+	private long execBatches(String cypher) {
+		long total = 0;
+		int n;
+		do {
+			n = getNeoRxClient().execCypher(cypher, "account", account, "region", region, "gen", generation,
+					"tombstones", tombstoneGenerations, "limit", batchSize).blockingFirst().asInt();
+			total += n;
+		} while (n >= batchSize);
+		return total;
+	}
+
 	protected void invoke() {
-		invokeNodeGarbageCollector(neo4jLabel, account, region, timestamp);
+		if (generation > 0) {
+			invokeGenerationSweep();
+		} else {
+			invokeNodeGarbageCollector(neo4jLabel, account, region, timestamp);
+		}
+	}
+
+	/**
+	 * Returns the pending or completed result of the most recent generation
+	 * sweep, if one was submitted.
+	 */
+	public Optional<CompletableFuture<Long>> getSweepResult() {
+		return Optional.ofNullable(sweepResult);
 	}
 
 	public GraphNodeGarbageCollector neo4j(NeoRxClient neo4j) {
@@ -133,6 +243,33 @@ public class GraphNodeGarbageCollector implements CleanupTask {
 		return this;
 	}
 
+	/**
+	 * Sweep by scan generation instead of updateTs. Nodes in scope whose
+	 * scanGen is less than the given generation were not seen by the scan.
+	 */
+	public GraphNodeGarbageCollector generation(long generation) {
+		this.generation = generation;
+		return this;
+	}
+
+	public GraphNodeGarbageCollector tombstoneGenerations(int n) {
+		Preconditions.checkArgument(n >= 0, "tombstone generations must be >= 0");
+		this.tombstoneGenerations = n;
+		return this;
+	}
+
+	public GraphNodeGarbageCollector batchSize(int n) {
+		Preconditions.checkArgument(n > 0, "batch size must be > 0");
+		this.batchSize = n;
+		return this;
+	}
+
+	public GraphNodeGarbageCollector executor(Executor executor) {
+		Preconditions.checkNotNull(executor);
+		this.executor = executor;
+		return this;
+	}
+
 	public GraphNodeGarbageCollector region(Region region) {
 		return region(region.getName());
 	}
@@ -15,6 +15,9 @@
  */
 package org.lendingclub.mercator.aws;
 
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+
 import com.amazonaws.regions.Region;
 import com.amazonaws.services.identitymanagement.AmazonIdentityManagementClient;
 import com.fasterxml.jackson.databind.node.ObjectNode;
@@ -41,4 +44,12 @@ public abstract class IAMScanner extends GlobalAWSScanner<AmazonIdentityManageme
 		getNeoRxClient().execCypher(cypher, "arn", arn, "a", getAccountId());
 	}
 
+	protected String urlDecode(String s) {
+		try {
+			return URLDecoder.decode(s, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			return s;
+		}
+	}
+
 }
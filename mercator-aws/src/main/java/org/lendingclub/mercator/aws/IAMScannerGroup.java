@@ -19,7 +19,11 @@ public class IAMScannerGroup extends AWSScannerGroup {
 
 	public IAMScannerGroup(AWSScannerBuilder builder) {
 		super(builder);
-		
+
+		if (builder.isIamAuthorizationDetailsEnabled()) {
+			addScannerType(AccountAuthorizationDetailsScanner.class);
+			return;
+		}
 		addScannerType(UserScanner.class);
 		addScannerType(RoleScanner.class);
 		addScannerType(InstanceProfileScanner.class);
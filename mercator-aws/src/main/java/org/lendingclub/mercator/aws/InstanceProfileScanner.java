@@ -37,18 +37,24 @@ public class InstanceProfileScanner extends IAMScanner {
 		AmazonIdentityManagementClient iam = getClient();
 		ListInstanceProfilesRequest request = new ListInstanceProfilesRequest();
 		GraphNodeGarbageCollector gc = newGarbageCollector().bindScannerContext();
-		while (true) {
-			ListInstanceProfilesResult instanceProfiles = iam.listInstanceProfiles(request);
-			instanceProfiles.getInstanceProfiles().forEach(n -> scanInstanceProfile(gc, n));
+		LinkageHelper roleLinkage = newLinkageHelper().withTargetLabel("AwsIamRole").withLinkLabel("HAS_ROLE");
+		try {
+			while (true) {
+				ListInstanceProfilesResult instanceProfiles = iam.listInstanceProfiles(request);
+				instanceProfiles.getInstanceProfiles().forEach(n -> scanInstanceProfile(gc, roleLinkage, n));
 
-			if (!instanceProfiles.isTruncated()) {
-				break;
+				if (!instanceProfiles.isTruncated()) {
+					break;
+				}
+				request.setMarker(instanceProfiles.getMarker());
 			}
-			request.setMarker(instanceProfiles.getMarker());
+		} finally {
+			roleLinkage.flush();
 		}
 	}
 
-	private void scanInstanceProfile(GraphNodeGarbageCollector gc, InstanceProfile instanceProfile) {
+	private void scanInstanceProfile(GraphNodeGarbageCollector gc, LinkageHelper roleLinkage,
+			InstanceProfile instanceProfile) {
 		ObjectNode n = convertAwsObject(instanceProfile, null);
 		NeoRxClient neo4j = getNeoRxClient();
 		String cypher = "merge (n:AwsInstanceProfile { aws_arn: {a} }) set n += {p}, n.updateTs = timestamp() return n";
@@ -56,10 +62,8 @@ public class InstanceProfileScanner extends IAMScanner {
 			gc.MERGE_ACTION.accept(it);
 		});
 		incrementEntityCount();
-		LinkageHelper linkage = newLinkageHelper();
-		linkage.withTargetLabel("AwsIamRole").withFromArn(instanceProfile.getArn()).withLinkLabel("HAS_ROLE")
-				.withTargetValues(instanceProfile.getRoles().stream().map(Role::getArn).collect(Collectors.toList()))
-				.execute();
+		roleLinkage.addLinks(instanceProfile.getArn(),
+				instanceProfile.getRoles().stream().map(Role::getArn).collect(Collectors.toList()));
 	}
 
 }
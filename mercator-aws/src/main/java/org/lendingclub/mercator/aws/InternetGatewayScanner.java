@@ -17,8 +17,6 @@ package org.lendingclub.mercator.aws;
 
 import java.util.Optional;
 
-import org.lendingclub.neorx.NeoRxClient;
-
 import com.amazonaws.services.ec2.AmazonEC2Client;
 import com.amazonaws.services.ec2.model.InternetGateway;
 import com.fasterxml.jackson.databind.JsonNode;
@@ -43,10 +41,8 @@ public class InternetGatewayScanner extends AbstractEC2NetworkInfrastructureScan
 	}
 
 	private void scanInternetGateway(GraphNodeGarbageCollector gc, InternetGateway c) {
-		NeoRxClient neo4j = getNeoRxClient();
 		ObjectNode n = convertAwsObject(c, getRegion());
-		neo4j.execCypher("merge (n:AwsInternetGateway { aws_arn: {a} }) set n += {p} return n", "a", n.path("aws_arn"), "p",
-				n).forEach(gc.MERGE_ACTION);
+		getGraphWriter().merge("AwsInternetGateway", AWS_ARN_ATTRIBUTE, n, gc.MERGE_ACTION);
 		incrementEntityCount();
 	}
 
@@ -17,6 +17,8 @@ package org.lendingclub.mercator.aws;
 
 import java.util.Optional;
 
+import org.lendingclub.mercator.core.OwnerLink;
+
 import com.amazonaws.services.kinesis.AmazonKinesisClient;
 import com.amazonaws.services.kinesis.AmazonKinesisClientBuilder;
 import com.amazonaws.services.kinesis.model.ListStreamsResult;
@@ -31,7 +33,7 @@ public class KinesisScanner extends AWSScanner<AmazonKinesisClient> {
 
 	@Override
 	protected AmazonKinesisClient createClient() {
-		return (AmazonKinesisClient) builder.configure(AmazonKinesisClientBuilder
+		return (AmazonKinesisClient) configure(AmazonKinesisClientBuilder
 				.standard()).build();
 	}
 
@@ -39,10 +41,11 @@ public class KinesisScanner extends AWSScanner<AmazonKinesisClient> {
 	protected void doScan() {
 
 		ListStreamsResult result = getClient().listStreams();
+		OwnerLink accountLink = newAccountOwnerLink();
 		
 		for(String name: result.getStreamNames()) {
 			try {
-				scanStream(name);
+				scanStream(name, accountLink);
 			}
 			catch (RuntimeException e) {
 				maybeThrow(e,"problem scanning kinesis");
@@ -52,15 +55,15 @@ public class KinesisScanner extends AWSScanner<AmazonKinesisClient> {
 		
 	}
 
-	private void scanStream(String name) {
+	private void scanStream(String name, OwnerLink accountLink) {
 		rateLimit();
 		com.amazonaws.services.kinesis.model.DescribeStreamResult result = getClient().describeStream(name);
 		StreamDescription description = result.getStreamDescription();
 		
-		project(description);
+		project(description, accountLink);
 		
 	}
-	private void project(StreamDescription description) {
+	private void project(StreamDescription description, OwnerLink accountLink) {
 
 		
 		ObjectNode n = mapper.createObjectNode();
@@ -75,13 +78,7 @@ public class KinesisScanner extends AWSScanner<AmazonKinesisClient> {
 		n.put("aws_shardCount", description.getShards().size());
 		
 		incrementEntityCount();
-		String cypher = "merge (k:AwsKinesisStream {aws_arn:{aws_arn}}) set k+={props}, k.updateTs=timestamp() return k";
-
-		getNeoRxClient().execCypher(cypher, "aws_arn", n.path("aws_arn").asText(), "props", n);
-
-		cypher = "match (a:AwsAccount {aws_account:{account}}), (k:AwsKinesisStream {aws_account:{account}}) MERGE (a)-[r:OWNS]->(k) set r.updateTs=timestamp()";
-
-		getNeoRxClient().execCypher(cypher, "account", getAccountId());
+		getGraphWriter().merge("AwsKinesisStream", AWS_ARN_ATTRIBUTE, n, accountLink.ADD_ACTION);
 
 	}
 
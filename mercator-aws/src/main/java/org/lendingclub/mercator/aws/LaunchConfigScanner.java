@@ -41,7 +41,7 @@ public class LaunchConfigScanner extends AWSScanner<AmazonAutoScalingClient> {
 
 	@Override
 	protected AmazonAutoScalingClient createClient() {
-		return (AmazonAutoScalingClient) builder.configure(AmazonAutoScalingClientBuilder.standard()).build();
+		return (AmazonAutoScalingClient) configure(AmazonAutoScalingClientBuilder.standard()).build();
 
 	}
 
@@ -53,34 +53,39 @@ public class LaunchConfigScanner extends AWSScanner<AmazonAutoScalingClient> {
 	@Override
 	protected void doScan() {
 		GraphNodeGarbageCollector gc = newGarbageCollector().bindScannerContext();
-
-		forEachLaunchConfig(getRegion(), config -> {
-			try {
-				ObjectNode n = convertAwsObject(config, getRegion());
-				List<String> securityGroups = getSecurityGroups(config);
-
-				String cypher = "merge (x:AwsLaunchConfig {aws_arn:{aws_arn}}) set x+={props}, x.aws_securityGroups={sg}, x.updateTs=timestamp() return x";
-
-				Preconditions.checkNotNull(getNeoRxClient());
-
-				getNeoRxClient()
-						.execCypher(cypher, "aws_arn", n.path("aws_arn").asText(), "props", n, "sg", securityGroups)
-						.forEach(r -> {
-							gc.MERGE_ACTION.accept(r);
-							getShadowAttributeRemover().removeTagAttributes("AwsLaunchConfig", n, r);
-						});
-
-				LinkageHelper securityGroupLinkage = newLinkageHelper().withFromArn(computeArn(n).get())
-						.withLinkLabel("LAUNCHES_WITH").withTargetLabel("AwsSecurityGroup")
-						.withTargetValues(securityGroups.stream().map(sg -> createArn("ec2", "security-group", sg))
-								.collect(Collectors.toList()));
-				securityGroupLinkage.execute();
-
-				incrementEntityCount();
-			} catch (RuntimeException e) {
-				maybeThrow(e);
-			}
-		});
+		LinkageHelper securityGroupLinkage = newLinkageHelper().withLinkLabel("LAUNCHES_WITH")
+				.withTargetLabel("AwsSecurityGroup");
+
+		try {
+			forEachLaunchConfig(getRegion(), config -> {
+				try {
+					ObjectNode n = getShadowAttributeRemover().foldTagRemovals("AwsLaunchConfig",
+							convertAwsObject(config, getRegion()));
+					List<String> securityGroups = getSecurityGroups(config);
+
+					String cypher = "merge (x:AwsLaunchConfig {aws_arn:{aws_arn}}) set x+={props}, x.aws_securityGroups={sg}, x.updateTs=timestamp() "
+							+ getShadowAttributeRemover().getReturnClause("x");
+
+					Preconditions.checkNotNull(getNeoRxClient());
+
+					getNeoRxClient()
+							.execCypher(cypher, "aws_arn", n.path("aws_arn").asText(), "props", n, "sg", securityGroups)
+							.forEach(r -> {
+								gc.MERGE_ACTION.accept(r);
+								getShadowAttributeRemover().removeTagAttributes("AwsLaunchConfig", n, r);
+							});
+
+					securityGroupLinkage.addLinks(computeArn(n).get(), securityGroups.stream()
+							.map(sg -> createArn("ec2", "security-group", sg)).collect(Collectors.toList()));
+
+					incrementEntityCount();
+				} catch (RuntimeException e) {
+					maybeThrow(e);
+				}
+			});
+		} finally {
+			securityGroupLinkage.flush();
+		}
 
 	}
 
@@ -18,13 +18,31 @@ package org.lendingclub.mercator.aws;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import org.lendingclub.neorx.NeoRxClient;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.google.common.base.Preconditions;
 
+/**
+ * LinkageHelper reconciles the relationships from a node to a set of target
+ * nodes: links to the target values are merged and any other links of the same
+ * type to the target label are removed.
+ * 
+ * execute() does this for a single node. addLinks() queues the target values
+ * of a node so that a page of nodes can be reconciled with one pair of UNWIND
+ * statements when flush() is called or the page reaches the batch size.
+ */
 public class LinkageHelper implements Cloneable {
 
+	public static final int DEFAULT_BATCH_SIZE = 250;
+
+	static ObjectMapper mapper = new ObjectMapper();
+
 	private String fromLabel;
 	private String targetLabel;
 	private String linkLabel;
@@ -34,6 +52,8 @@ public class LinkageHelper implements Cloneable {
 	private NeoRxClient neo4j;
 	private String fromArn;
 	private Object[] moreParameters;
+	private int batchSize = DEFAULT_BATCH_SIZE;
+	private Map<String, Collection<String>> pendingLinks = new LinkedHashMap<>();
 
 	public void execute() {
 
@@ -71,6 +91,89 @@ public class LinkageHelper implements Cloneable {
 		neo4j.execCypher(removeCypher, "fromArn", fromArn, "targetValues", targetValues);
 	}
 
+	/**
+	 * Queue the target values for the given node. The queue is reconciled when
+	 * it reaches the batch size; callers must call flush() after the last
+	 * node, in a finally block so that nodes queued before a failure are still
+	 * reconciled.
+	 */
+	public synchronized LinkageHelper addLinks(String fromArn, Collection<String> targetValues) {
+		Preconditions.checkNotNull(fromArn);
+		Preconditions.checkNotNull(targetValues);
+		pendingLinks.put(fromArn, targetValues);
+		if (pendingLinks.size() >= batchSize) {
+			flush();
+		}
+		return this;
+	}
+
+	public synchronized int getPendingCount() {
+		return pendingLinks.size();
+	}
+
+	public synchronized void flush() {
+		if (pendingLinks.isEmpty()) {
+			return;
+		}
+		Map<String, Collection<String>> links = pendingLinks;
+		pendingLinks = new LinkedHashMap<>();
+		execute(links);
+	}
+
+	/**
+	 * Reconcile the links of every node in the given map of fromArn to target
+	 * values, with the same semantics as calling execute() for each.
+	 */
+	public void execute(Map<String, ? extends Collection<String>> links) {
+
+		Preconditions.checkNotNull(fromLabel);
+		Preconditions.checkNotNull(targetLabel);
+		Preconditions.checkNotNull(linkLabel);
+		Preconditions.checkNotNull(targetLinkAttribute);
+		Preconditions.checkNotNull(neo4j);
+		if (links.isEmpty()) {
+			return;
+		}
+
+		ArrayNode rows = mapper.createArrayNode();
+		links.forEach((fromArn, targetValues) -> {
+			ObjectNode row = rows.addObject().put("fromArn", fromArn);
+			ArrayNode values = row.putArray("targetValues");
+			targetValues.forEach(values::add);
+		});
+
+		// create links
+		//@formatter:off
+		String createCypher = "unwind {rows} as row"
+						+ " match (a:" + fromLabel + " { aws_arn: row.fromArn })"
+						+ " unwind row.targetValues as targetValue"
+						+ " match (b:" + targetLabel + " { " + targetLinkAttribute + ": targetValue })"
+						+ (moreWhere != null ? (" where " + moreWhere) : " ")
+						+ " merge (a)-[r:" + linkLabel + "]->(b) set r.updateTs=timestamp()";
+		//@formatter:on
+		Object[] parameters = new Object[2 + (moreParameters != null ? moreParameters.length : 0)];
+		parameters[0] = "rows";
+		parameters[1] = rows;
+		if (moreParameters != null) {
+			System.arraycopy(moreParameters, 0, parameters, 2, moreParameters.length);
+		}
+		neo4j.execCypher(createCypher, parameters);
+		// remove other links
+		//@formatter:off
+		String removeCypher = "unwind {rows} as row"
+						+ " match (a:" + fromLabel + " { aws_arn: row.fromArn })-[r:" + linkLabel + "]-(b:" + targetLabel + ")"
+						+ " where not b." + targetLinkAttribute + " in row.targetValues"
+						+ " delete r";
+		//@formatter:on
+		neo4j.execCypher(removeCypher, "rows", rows);
+	}
+
+	public LinkageHelper withBatchSize(int batchSize) {
+		Preconditions.checkArgument(batchSize > 0, "batchSize must be > 0");
+		this.batchSize = batchSize;
+		return this;
+	}
+
 	public LinkageHelper withMoreWhere(String where, Object... parameters) {
 		this.moreWhere = where;
 		this.moreParameters = parameters;
@@ -124,7 +227,8 @@ public class LinkageHelper implements Cloneable {
 	protected Object clone() throws CloneNotSupportedException {
 		LinkageHelper h = (LinkageHelper) super.clone();
 		h.targetValues = new ArrayList<>(targetValues);
-		h.moreParameters = moreParameters.clone();
+		h.moreParameters = moreParameters != null ? moreParameters.clone() : null;
+		h.pendingLinks = new LinkedHashMap<>();
 		return h;
 	}
 
@@ -41,42 +41,50 @@ public class ManagedPolicyScanner extends IAMScanner {
 		NeoRxClient neo4j = getNeoRxClient();
 		GraphNodeGarbageCollector gc = newGarbageCollector().bindScannerContext();
 		ListPoliciesRequest request = new ListPoliciesRequest();
-		do {
-			ListPoliciesResult policies = iam.listPolicies(request);
-			for (Policy policy : policies.getPolicies()) {
+		LinkageHelper roleLinkage = newLinkageHelper().withLinkLabel("ATTACHED_TO").withTargetLabel("AwsIamRole");
+		LinkageHelper userLinkage = newLinkageHelper().withLinkLabel("ATTACHED_TO").withTargetLabel("AwsIamUser");
+		try {
+			do {
+				ListPoliciesResult policies = iam.listPolicies(request);
+				for (Policy policy : policies.getPolicies()) {
+
+					boolean awsManagedPolicy;
+
+					if ((awsManagedPolicy = policy.getArn().startsWith("arn:aws:iam::aws:policy"))
+							&& policy.getAttachmentCount() != null && policy.getAttachmentCount() == 0) {
+						// don't record AWS managed policies unless they're attached to something
+						continue;
+					}
+
+					ObjectNode n = convertAwsObject(policy, getRegion());
+					if (awsManagedPolicy) {
+						n.remove("aws_account");
+					}
+
+					String cypher = "merge (n:AwsIamManagedPolicy { aws_arn: {a} }) set n += {p}, n.updateTs = timestamp(),"
+							+ " n :AwsIamPolicy return n";
+					neo4j.execCypher(cypher, "a", policy.getArn(), "p", n).forEach(gc.MERGE_ACTION::accept);
+					incrementEntityCount();
+					linkToAccount(policy.getArn());
+
+					updateAttachedEntities(iam, policy, roleLinkage, userLinkage);
 
-				boolean awsManagedPolicy;
-
-				if ((awsManagedPolicy = policy.getArn().startsWith("arn:aws:iam::aws:policy"))
-						&& policy.getAttachmentCount() != null && policy.getAttachmentCount() == 0) {
-					// don't record AWS managed policies unless they're attached to something
-					continue;
 				}
-
-				ObjectNode n = convertAwsObject(policy, getRegion());
-				if (awsManagedPolicy) {
-					n.remove("aws_account");
+				if (policies.isTruncated()) {
+					request.setMarker(policies.getMarker());
+				} else {
+					break;
 				}
-
-				String cypher = "merge (n:AwsIamManagedPolicy { aws_arn: {a} }) set n += {p}, n.updateTs = timestamp(),"
-						+ " n :AwsIamPolicy return n";
-				neo4j.execCypher(cypher, "a", policy.getArn(), "p", n).forEach(gc.MERGE_ACTION::accept);
-				incrementEntityCount();
-				linkToAccount(policy.getArn());
-
-				updateAttachedEntities(iam, policy);
-
-			}
-			if (policies.isTruncated()) {
-				request.setMarker(policies.getMarker());
-			} else {
-				break;
-			}
-		} while (true);
+			} while (true);
+		} finally {
+			roleLinkage.flush();
+			userLinkage.flush();
+		}
 
 	}
 
-	private void updateAttachedEntities(AmazonIdentityManagementClient iam, Policy policy) {
+	private void updateAttachedEntities(AmazonIdentityManagementClient iam, Policy policy, LinkageHelper roleLinkage,
+			LinkageHelper userLinkage) {
 		ListEntitiesForPolicyRequest request = new ListEntitiesForPolicyRequest()
 				.withPolicyArn(policy.getArn());
 		List<String> attachedRoles = new ArrayList<>();
@@ -95,12 +103,10 @@ public class ManagedPolicyScanner extends IAMScanner {
 			request.setMarker(attachedEntities.getMarker());
 		}
 		if (!attachedRoles.isEmpty()) {
-			newLinkageHelper().withLinkLabel("ATTACHED_TO").withFromArn(policy.getArn())
-					.withTargetLabel("AwsIamRole").withTargetValues(attachedRoles).execute();
+			roleLinkage.addLinks(policy.getArn(), attachedRoles);
 		}
 		if (!attachedUsers.isEmpty()) {
-			newLinkageHelper().withLinkLabel("ATTACHED_TO").withFromArn(policy.getArn())
-					.withTargetLabel("AwsIamUser").withTargetValues(attachedUsers).execute();
+			userLinkage.addLinks(policy.getArn(), attachedUsers);
 		}
 	}
 
@@ -210,6 +210,8 @@ public class MultiAccountRegionEntityScanner extends AWSParallelScannerGroup {
 			result.add(regionScanner);
 		}
 		scanNumber += 1;
+		scanDependencies = dependencies.copy();
+		lastScanners = result;
 		return result;
 	}
 
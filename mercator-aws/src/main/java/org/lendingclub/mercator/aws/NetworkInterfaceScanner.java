@@ -34,38 +34,41 @@ public class NetworkInterfaceScanner extends AbstractEC2Scanner {
 	@Override
 	protected void doScan() {
 		GraphNodeGarbageCollector gc = newGarbageCollector().bindScannerContext();
-		getClient().describeNetworkInterfaces().getNetworkInterfaces().forEach(intf -> {
-			ObjectNode n = convertAwsObject(intf, getRegion());
+		LinkageHelper instanceLinkage = newLinkageHelper().withTargetLabel("AwsEc2Instance").withLinkLabel("ATTACHED_TO");
+		LinkageHelper subnetLinkage = newLinkageHelper().withTargetLabel("AwsSubnet").withLinkLabel("EXISTS_IN");
+		try {
+			getClient().describeNetworkInterfaces().getNetworkInterfaces().forEach(intf -> {
+				ObjectNode n = convertAwsObject(intf, getRegion());
 
-			NeoRxClient neo4j = getNeoRxClient();
-			try {
-				String cypher = "merge (x:AwsEc2NetworkInterface {aws_arn:{arn}}) set x+={props}, x.updateTs=timestamp() return x";
-				String arn = n.path("aws_arn").asText();
-				neo4j.execCypher(cypher, "arn", arn, "props", n).forEach(it -> {
-					gc.MERGE_ACTION.accept(it);
-				});
+				NeoRxClient neo4j = getNeoRxClient();
+				try {
+					String cypher = "merge (x:AwsEc2NetworkInterface {aws_arn:{arn}}) set x+={props}, x.updateTs=timestamp() return x";
+					String arn = n.path("aws_arn").asText();
+					neo4j.execCypher(cypher, "arn", arn, "props", n).forEach(it -> {
+						gc.MERGE_ACTION.accept(it);
+					});
 
-				LinkageHelper instanceLinkageHelper = newLinkageHelper().withFromArn(arn).withTargetLabel("AwsEc2Instance")
-						.withLinkLabel("ATTACHED_TO");
-				if (intf.getAttachment() != null && "attached".equals(intf.getAttachment().getStatus())
-						&& !Strings.isNullOrEmpty(intf.getAttachment().getInstanceId())) {
-					instanceLinkageHelper.withTargetValues(
-							Collections.singletonList(createEc2Arn("instance", intf.getAttachment().getInstanceId())));
-				}
-				instanceLinkageHelper.execute();
+					if (intf.getAttachment() != null && "attached".equals(intf.getAttachment().getStatus())
+							&& !Strings.isNullOrEmpty(intf.getAttachment().getInstanceId())) {
+						instanceLinkage.addLinks(arn,
+								Collections.singletonList(createEc2Arn("instance", intf.getAttachment().getInstanceId())));
+					} else {
+						instanceLinkage.addLinks(arn, Collections.emptyList());
+					}
 
-				LinkageHelper subnetLinkageHelper = newLinkageHelper().withFromArn(arn).withTargetLabel("AwsSubnet")
-						.withLinkLabel("EXISTS_IN")
-						.withTargetValues(Strings.isNullOrEmpty(intf.getSubnetId()) ? Collections.emptyList()
-								: Collections.singletonList(createEc2Arn("subnet", intf.getSubnetId())));
-				subnetLinkageHelper.execute();
+					subnetLinkage.addLinks(arn, Strings.isNullOrEmpty(intf.getSubnetId()) ? Collections.emptyList()
+							: Collections.singletonList(createEc2Arn("subnet", intf.getSubnetId())));
 
-				incrementEntityCount();
-			} catch (RuntimeException e) {
-				gc.markException(e);
-				maybeThrow(e);
-			}
-		});
+					incrementEntityCount();
+				} catch (RuntimeException e) {
+					gc.markException(e);
+					maybeThrow(e);
+				}
+			});
+		} finally {
+			instanceLinkage.flush();
+			subnetLinkage.flush();
+		}
 	}
 
 	@Override
@@ -0,0 +1,154 @@
+/**
+ * Copyright 2017 Lending Club, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lendingclub.mercator.aws;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.lendingclub.mercator.core.LatencyHistogram;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * SDK request metrics for one API operation, e.g. DescribeInstances, called by
+ * one scanner.
+ */
+public class OperationMetrics {
+
+	static ObjectMapper mapper = new ObjectMapper();
+
+	String account;
+	String region;
+	String scanner;
+	String operation;
+
+	LatencyHistogram latency = new LatencyHistogram();
+	long requestCount;
+	long errorCount;
+	long retryCount;
+	long throttleCount;
+	long bytesReceived;
+	Map<Integer, Long> statusCodes = new TreeMap<>();
+
+	OperationMetrics(String account, String region, String scanner, String operation) {
+		this.account = account;
+		this.region = region;
+		this.scanner = scanner;
+		this.operation = operation;
+	}
+
+	public String getAccount() {
+		return account;
+	}
+
+	public String getRegion() {
+		return region;
+	}
+
+	public String getScanner() {
+		return scanner;
+	}
+
+	public String getOperation() {
+		return operation;
+	}
+
+	public LatencyHistogram getLatency() {
+		return latency;
+	}
+
+	public synchronized long getRequestCount() {
+		return requestCount;
+	}
+
+	public synchronized long getErrorCount() {
+		return errorCount;
+	}
+
+	public synchronized long getRetryCount() {
+		return retryCount;
+	}
+
+	public synchronized long getThrottleCount() {
+		return throttleCount;
+	}
+
+	public synchronized long getBytesReceived() {
+		return bytesReceived;
+	}
+
+	public synchronized Map<Integer, Long> getStatusCodes() {
+		return new TreeMap<>(statusCodes);
+	}
+
+	synchronized void record(long latencyMillis, boolean error, long retries, long throttles, long bytes,
+			Iterable<Integer> statuses) {
+		latency.record(latencyMillis);
+		requestCount++;
+		if (error) {
+			errorCount++;
+		}
+		retryCount += retries;
+		throttleCount += throttles;
+		bytesReceived += bytes;
+		for (Integer status : statuses) {
+			statusCodes.merge(status, 1L, Long::sum);
+		}
+	}
+
+	OperationMetrics merge(OperationMetrics other) {
+		OperationMetrics copy = other.copy();
+		synchronized (this) {
+			latency.merge(copy.latency);
+			requestCount += copy.requestCount;
+			errorCount += copy.errorCount;
+			retryCount += copy.retryCount;
+			throttleCount += copy.throttleCount;
+			bytesReceived += copy.bytesReceived;
+			copy.statusCodes.forEach((k, v) -> statusCodes.merge(k, v, Long::sum));
+		}
+		return this;
+	}
+
+	synchronized OperationMetrics copy() {
+		OperationMetrics copy = new OperationMetrics(account, region, scanner, operation);
+		copy.latency = latency.copy();
+		copy.requestCount = requestCount;
+		copy.errorCount = errorCount;
+		copy.retryCount = retryCount;
+		copy.throttleCount = throttleCount;
+		copy.bytesReceived = bytesReceived;
+		copy.statusCodes.putAll(statusCodes);
+		return copy;
+	}
+
+	public synchronized ObjectNode toJson() {
+		ObjectNode n = mapper.createObjectNode();
+		n.put("account", account).put("region", region).put("scanner", scanner).put("operation", operation);
+		n.put("requestCount", requestCount).put("errorCount", errorCount).put("retryCount", retryCount)
+				.put("throttleCount", throttleCount).put("bytesReceived", bytesReceived);
+		n.set("latency", latency.toJson());
+		ObjectNode codes = n.putObject("statusCodes");
+		statusCodes.forEach((k, v) -> codes.put(k.toString(), v));
+		return n;
+	}
+
+	@Override
+	public String toString() {
+		return toJson().toString();
+	}
+}
@@ -45,7 +45,7 @@ public class RDSInstanceScanner extends AWSScanner<AmazonRDSClient> {
 
 	@Override
 	protected AmazonRDSClient createClient() {
-		return (AmazonRDSClient) builder.configure(AmazonRDSClientBuilder
+		return (AmazonRDSClient) configure(AmazonRDSClientBuilder
 				.standard()).build();
 	}
 
@@ -75,6 +75,7 @@ public class RDSInstanceScanner extends AWSScanner<AmazonRDSClient> {
 				Preconditions.checkNotNull(neoRx);
 				
 				String rdsArn = n.path("aws_arn").asText();
+				getShadowAttributeRemover().foldTagRemovals("AwsRdsInstance", n);
 				
 				String cypher = "merge (x:AwsRdsInstance {aws_arn:{aws_arn}}) set x+={props} set x.updateTs=timestamp()";
 				neoRx.execCypher(cypher, "aws_arn", rdsArn, "props",n).forEach(r->{
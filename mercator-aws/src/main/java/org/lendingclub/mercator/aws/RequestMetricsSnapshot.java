@@ -0,0 +1,80 @@
+/**
+ * Copyright 2017 Lending Club, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lendingclub.mercator.aws;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.base.Joiner;
+
+/**
+ * A point-in-time copy of the SDK request metrics of one or more scanners,
+ * keyed by account/region/scanner/operation.
+ */
+public class RequestMetricsSnapshot {
+
+	static ObjectMapper mapper = new ObjectMapper();
+
+	Map<String, OperationMetrics> metrics = new TreeMap<>();
+
+	static String createKey(OperationMetrics m) {
+		return Joiner.on("/").useForNull("").join(m.account, m.region, m.scanner, m.operation);
+	}
+
+	void add(OperationMetrics m) {
+		OperationMetrics existing = metrics.get(createKey(m));
+		if (existing == null) {
+			metrics.put(createKey(m), m.copy());
+		} else {
+			existing.merge(m);
+		}
+	}
+
+	public RequestMetricsSnapshot merge(RequestMetricsSnapshot other) {
+		other.metrics.values().forEach(this::add);
+		return this;
+	}
+
+	public Map<String, OperationMetrics> getMetrics() {
+		return Collections.unmodifiableMap(metrics);
+	}
+
+	/**
+	 * Returns the metrics of all operations combined.
+	 */
+	public OperationMetrics getTotal() {
+		OperationMetrics total = new OperationMetrics(null, null, null, null);
+		metrics.values().forEach(total::merge);
+		return total;
+	}
+
+	public ObjectNode toJson() {
+		ObjectNode n = mapper.createObjectNode();
+		n.set("total", getTotal().toJson());
+		ArrayNode arr = n.putArray("operations");
+		metrics.values().forEach(m -> arr.add(m.toJson()));
+		return n;
+	}
+
+	@Override
+	public String toString() {
+		return toJson().toString();
+	}
+}
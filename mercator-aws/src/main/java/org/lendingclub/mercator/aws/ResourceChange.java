@@ -0,0 +1,196 @@
+/**
+ * Copyright 2017 Lending Club, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lendingclub.mercator.aws;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.function.Consumer;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Splitter;
+import com.google.common.base.Strings;
+
+/**
+ * A resource that a change event says has changed, identified by type,
+ * account, region and id (instance id, load balancer name or ASG name).
+ *
+ * fromEvent() understands EventBridge events, both native (e.g. EC2 Instance
+ * State-change Notification) and "AWS API Call via CloudTrail", as well as raw
+ * CloudTrail records and CloudTrail log files with a Records array.
+ */
+public class ResourceChange {
+
+	public enum Type {
+		EC2_INSTANCE, ELB, ASG
+	}
+
+	Type type;
+	String account;
+	String region;
+	String id;
+
+	public ResourceChange(Type type, String account, String region, String id) {
+		this.type = type;
+		this.account = account;
+		this.region = region;
+		this.id = id;
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	public String getAccount() {
+		return account;
+	}
+
+	public String getRegion() {
+		return region;
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	/**
+	 * Changes with the same key refer to the same resource. The key is used
+	 * rather than the ARN, since an ASG ARN embeds a UUID that events do not
+	 * always carry.
+	 */
+	public String getKey() {
+		return type + "/" + account + "/" + region + "/" + id;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		return o instanceof ResourceChange && getKey().equals(((ResourceChange) o).getKey());
+	}
+
+	@Override
+	public int hashCode() {
+		return Objects.hashCode(getKey());
+	}
+
+	@Override
+	public String toString() {
+		return MoreObjects.toStringHelper(this).add("type", type).add("account", account).add("region", region)
+				.add("id", id).toString();
+	}
+
+	public static List<ResourceChange> fromEvent(JsonNode event) {
+		List<ResourceChange> changes = new ArrayList<>();
+		fromEvent(event, changes::add);
+		return changes;
+	}
+
+	static void fromEvent(JsonNode event, Consumer<ResourceChange> consumer) {
+		if (event.path("Records").isArray()) {
+			event.path("Records").forEach(it -> fromEvent(it, consumer));
+			return;
+		}
+		JsonNode record = event.has("detail-type") ? event.path("detail") : event;
+		String account = Strings.emptyToNull(event.path("account").asText(record.path("recipientAccountId").asText()));
+		String region = Strings.emptyToNull(event.path("region").asText(record.path("awsRegion").asText()));
+
+		event.path("resources").forEach(it -> fromArn(it.asText(), consumer));
+		if (account == null || region == null) {
+			return;
+		}
+
+		// native EventBridge events
+		JsonNode detail = event.path("detail");
+		add(consumer, Type.EC2_INSTANCE, account, region, detail.path("instance-id").asText(null));
+		add(consumer, Type.EC2_INSTANCE, account, region, detail.path("EC2InstanceId").asText(null));
+		add(consumer, Type.ASG, account, region, detail.path("AutoScalingGroupName").asText(null));
+
+		// CloudTrail records
+		String eventSource = record.path("eventSource").asText("");
+		for (JsonNode n : new JsonNode[] { record.path("requestParameters"), record.path("responseElements") }) {
+			if (eventSource.equals("ec2.amazonaws.com")) {
+				collect(n, "instanceId", it -> add(consumer, Type.EC2_INSTANCE, account, region, it));
+				collect(n, "resourceId", it -> {
+					if (it.startsWith("i-")) {
+						add(consumer, Type.EC2_INSTANCE, account, region, it);
+					}
+				});
+			} else if (eventSource.equals("elasticloadbalancing.amazonaws.com")) {
+				collect(n, "loadBalancerName", it -> add(consumer, Type.ELB, account, region, it));
+				collect(n, "loadBalancerNames", it -> add(consumer, Type.ELB, account, region, it));
+			} else if (eventSource.equals("autoscaling.amazonaws.com")) {
+				collect(n, "autoScalingGroupName", it -> add(consumer, Type.ASG, account, region, it));
+			}
+		}
+	}
+
+	/**
+	 * Recognizes arn:aws:ec2:region:account:instance/id,
+	 * arn:aws:elasticloadbalancing:region:account:loadbalancer/name and
+	 * arn:aws:autoscaling:region:account:autoScalingGroup:uuid:autoScalingGroupName/name.
+	 */
+	static void fromArn(String arn, Consumer<ResourceChange> consumer) {
+		List<String> parts = Splitter.on(':').limit(6).splitToList(Strings.nullToEmpty(arn));
+		if (parts.size() < 6 || !parts.get(0).equals("arn")) {
+			return;
+		}
+		String service = parts.get(2);
+		String region = parts.get(3);
+		String account = parts.get(4);
+		String resource = parts.get(5);
+		if (service.equals("ec2") && resource.startsWith("instance/")) {
+			add(consumer, Type.EC2_INSTANCE, account, region, resource.substring("instance/".length()));
+		} else if (service.equals("elasticloadbalancing") && resource.startsWith("loadbalancer/")
+				&& resource.indexOf('/', "loadbalancer/".length()) < 0) {
+			// application and network load balancers are loadbalancer/app/... and loadbalancer/net/...
+			add(consumer, Type.ELB, account, region, resource.substring("loadbalancer/".length()));
+		} else if (service.equals("autoscaling") && resource.contains(":autoScalingGroupName/")) {
+			add(consumer, Type.ASG, account, region,
+					resource.substring(resource.indexOf(":autoScalingGroupName/") + ":autoScalingGroupName/".length()));
+		}
+	}
+
+	static void add(Consumer<ResourceChange> consumer, Type type, String account, String region, String id) {
+		if (!Strings.isNullOrEmpty(id) && !Strings.isNullOrEmpty(account) && !Strings.isNullOrEmpty(region)) {
+			consumer.accept(new ResourceChange(type, account, region, id));
+		}
+	}
+
+	/**
+	 * Find every text value of the given field, or element of an array-valued
+	 * field, anywhere in the tree.
+	 */
+	static void collect(JsonNode n, String field, Consumer<String> consumer) {
+		if (n.isObject()) {
+			n.fields().forEachRemaining(it -> {
+				if (it.getKey().equals(field)) {
+					if (it.getValue().isTextual()) {
+						consumer.accept(it.getValue().asText());
+					} else if (it.getValue().isArray()) {
+						it.getValue().forEach(v -> {
+							if (v.isTextual()) {
+								consumer.accept(v.asText());
+							}
+						});
+					}
+				}
+				collect(it.getValue(), field, consumer);
+			});
+		} else if (n.isArray()) {
+			n.forEach(it -> collect(it, field, consumer));
+		}
+	}
+}
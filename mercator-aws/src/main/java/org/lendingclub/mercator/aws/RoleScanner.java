@@ -15,9 +15,6 @@
  */
 package org.lendingclub.mercator.aws;
 
-import java.io.UnsupportedEncodingException;
-import java.net.URLDecoder;
-
 import org.lendingclub.neorx.NeoRxClient;
 
 import com.amazonaws.services.identitymanagement.AmazonIdentityManagementClient;
@@ -87,12 +84,4 @@ public class RoleScanner extends IAMScanner {
 		}
 	}
 
-	protected String urlDecode(String s) {
-		try {
-			return URLDecoder.decode(s, "UTF-8");
-		} catch (UnsupportedEncodingException e) {
-			return s;
-		}
-	}
-
 }
@@ -15,7 +15,21 @@
  */
 package org.lendingclub.mercator.aws;
 
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.lendingclub.mercator.core.LatencyHistogram;
 import org.lendingclub.mercator.core.ScannerContext;
+import org.lendingclub.mercator.core.ScannerExecutors;
+import org.lendingclub.mercator.core.TaskScope;
+import org.lendingclub.mercator.core.TokenBucket;
 
 import com.amazonaws.services.route53.AmazonRoute53Client;
 import com.amazonaws.services.route53.model.GetHostedZoneRequest;
@@ -27,16 +41,104 @@ import com.amazonaws.services.route53.model.ListResourceRecordSetsRequest;
 import com.amazonaws.services.route53.model.ListResourceRecordSetsResult;
 import com.amazonaws.services.route53.model.ResourceRecord;
 import com.amazonaws.services.route53.model.ResourceRecordSet;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.MissingNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 
+/**
+ * Route53Scanner only re-lists the record sets of a hosted zone when the zone
+ * appears to have changed. A zone is considered unchanged if its
+ * resourceRecordSetCount matches the count seen when its record sets were last
+ * listed and that listing is younger than the zone refresh interval. Since a
+ * record can be edited in place without changing the count, every zone is
+ * re-listed at least once per refresh interval.
+ *
+ * A digest of each listing is stored on the hosted zone, so that a re-listed
+ * zone whose record sets are identical is not rewritten.
+ *
+ * Zones are scanned concurrently, largest first, and all Route53 calls of an
+ * account draw from a single token bucket regardless of the scanner's region.
+ */
 public class Route53Scanner extends GlobalAWSScanner<AmazonRoute53Client> implements AWSSlowScan {
 
+	public static final String RECORD_SET_DIGEST_ATTRIBUTE = "mercatorRecordSetDigest";
+	public static final String RECORD_SET_LIST_TS_ATTRIBUTE = "mercatorRecordSetListTs";
+
+	public static final int DEFAULT_RECORD_SET_BATCH_SIZE = 500;
+	public static final long DEFAULT_ZONE_REFRESH_INTERVAL_MILLIS = TimeUnit.HOURS.toMillis(6);
+	public static final int DEFAULT_ZONE_CONCURRENCY = 4;
+
+	static final String GLOBAL_REGION = "global";
+
+	static HashFunction hashFunction = Hashing.farmHashFingerprint64();
+
+	int recordSetBatchSize = DEFAULT_RECORD_SET_BATCH_SIZE;
+	long zoneRefreshIntervalMillis = DEFAULT_ZONE_REFRESH_INTERVAL_MILLIS;
+	int zoneConcurrency = DEFAULT_ZONE_CONCURRENCY;
+
+	LatencyHistogram zoneScanLatency = new LatencyHistogram();
+	ConcurrentMap<String, Long> zoneScanMillis = Maps.newConcurrentMap();
+
 	public Route53Scanner(AWSScannerBuilder builder) {
 		super(builder, AmazonRoute53Client.class,"AwsRoute53HostedZone");
 
 	}
 
+	public Route53Scanner withRecordSetBatchSize(int batchSize) {
+		Preconditions.checkArgument(batchSize > 0, "batchSize must be > 0");
+		this.recordSetBatchSize = batchSize;
+		return this;
+	}
+
+	/**
+	 * Zones whose record sets were last listed longer ago than the given
+	 * duration are re-listed even if their record set count has not changed.
+	 */
+	public Route53Scanner withZoneRefreshInterval(long duration, TimeUnit unit) {
+		this.zoneRefreshIntervalMillis = unit.toMillis(duration);
+		return this;
+	}
+
+	/**
+	 * The number of hosted zones scanned at once. The request rate is bounded
+	 * by the shared Route53 token bucket whatever the concurrency.
+	 */
+	public Route53Scanner withZoneConcurrency(int concurrency) {
+		Preconditions.checkArgument(concurrency > 0, "concurrency must be > 0");
+		this.zoneConcurrency = concurrency;
+		return this;
+	}
+
+	/**
+	 * Returns the distribution of the time taken to scan each hosted zone.
+	 */
+	public LatencyHistogram getZoneScanLatency() {
+		return zoneScanLatency;
+	}
+
+	/**
+	 * Returns the time taken by the most recent scan of each hosted zone, by
+	 * zone id.
+	 */
+	public Map<String, Long> getZoneScanMillis() {
+		return Collections.unmodifiableMap(zoneScanMillis);
+	}
+
+	@Override
+	public synchronized TokenBucket getTokenBucket() {
+		return TokenBucketRegistry.getInstance().getBucket(getAccountId(), GLOBAL_REGION,
+				getClient().getEndpointPrefix());
+	}
+
 	/**
 	 * This scanner is particularly slow for largish hosted zones.
 	 */
@@ -48,22 +150,50 @@ public class Route53Scanner extends GlobalAWSScanner<AmazonRoute53Client> implem
 	@Override
 	protected void doGlobalScan() {
 
+		List<HostedZone> zones = listHostedZones();
+
+		// start the largest zones first so that the longest tail starts earliest
+		zones.sort(Comparator.comparingLong(
+				(HostedZone it) -> MoreObjects.firstNonNull(it.getResourceRecordSetCount(), 0L)).reversed());
+
+		ExecutorService executor = ScannerExecutors.newVirtualThreadPerTaskExecutor("Route53Scanner-");
+		try (TaskScope scope = new TaskScope(executor).withMaxConcurrency(zoneConcurrency)) {
+			for (HostedZone zone : zones) {
+				scope.fork(() -> {
+					try {
+						scanHostedZoneById(zone.getId());
+					} catch (RuntimeException e) {
+						maybeThrow(e, "problem scanning hosted zone " + zone.getId());
+					}
+				});
+			}
+			scope.join();
+		} finally {
+			executor.shutdown();
+		}
+
+		logger.info("scanned {} hosted zones: {}", zones.size(), zoneScanLatency);
+		deleteOrphanedRecordSets();
+	}
+
+	List<HostedZone> listHostedZones() {
 		ListHostedZonesRequest request = new ListHostedZonesRequest();
 		ListHostedZonesResult result = new ListHostedZonesResult();
 
+		List<HostedZone> zones = new ArrayList<>();
 		do {
 			rateLimit();
 			result = getClient().listHostedZones(request);
-			for (HostedZone zone : result.getHostedZones()) {
-				scanHostedZoneById(zone.getId());
-			}
-			request.setMarker(result.getMarker());
+			zones.addAll(result.getHostedZones());
+			request.setMarker(result.getNextMarker());
 		} while (result.isTruncated());
-
+		return zones;
 	}
 
 	public void scanHostedZoneById(String id) {
 
+		Stopwatch sw = Stopwatch.createStarted();
+
 		GetHostedZoneRequest request = new GetHostedZoneRequest();
 		request.setId(id);
 
@@ -71,6 +201,11 @@ public class Route53Scanner extends GlobalAWSScanner<AmazonRoute53Client> implem
 		GetHostedZoneResult result = getClient().getHostedZone(request);
 
 		projectHostedZoneResult(result);
+
+		long millis = sw.elapsed(TimeUnit.MILLISECONDS);
+		zoneScanLatency.record(millis);
+		zoneScanMillis.put(id, millis);
+		logger.debug("scanned hosted zone {} in {} ms", id, millis);
 	}
 
 	ObjectNode toJson(GetHostedZoneResult hzResult) {
@@ -99,6 +234,7 @@ public class Route53Scanner extends GlobalAWSScanner<AmazonRoute53Client> implem
 
 	ObjectNode toJson(ResourceRecordSet rs) {
 		ObjectNode n = mapper.createObjectNode();
+		n.put("aws_account", getAccountId());
 		n.put("aws_ttl", rs.getTTL());
 		n.put("aws_type", rs.getType());
 		n.put("aws_name", rs.getName());
@@ -112,22 +248,64 @@ public class Route53Scanner extends GlobalAWSScanner<AmazonRoute53Client> implem
 		return n;
 	}
 
-	protected void projectResourceRecordSet(String hostedZoneId, ResourceRecordSet rs, long timestamp) {
+	static long digest(List<ObjectNode> recordSets) {
+		Hasher hasher = hashFunction.newHasher();
+		for (ObjectNode n : recordSets) {
+			hasher.putString(n.toString(), StandardCharsets.UTF_8);
+			hasher.putByte((byte) 0);
+		}
+		return hasher.hash().asLong();
+	}
 
-		ObjectNode n = toJson(rs);
+	/**
+	 * Decide from the hosted zone node as it was before this scan whether its
+	 * record sets need to be listed again.
+	 */
+	boolean isRecordSetListingRequired(JsonNode previous, ObjectNode current, long now) {
+		if (!previous.path(RECORD_SET_DIGEST_ATTRIBUTE).isNumber()) {
+			return true;
+		}
+		if (previous.path("aws_resourceRecordSetCount").asLong(-1) != current.path("aws_resourceRecordSetCount")
+				.asLong()) {
+			return true;
+		}
+		return now - previous.path(RECORD_SET_LIST_TS_ATTRIBUTE).asLong(0) > zoneRefreshIntervalMillis;
+	}
 
-		getNeoRxClient().execCypher(
-				"merge (a:AwsRoute53RecordSet {aws_name:{aws_name}}) set a+={props}, a.updateTs={updateTs} return a",
-				"aws_name", n.get("aws_name").asText(), "props", n, "updateTs", timestamp);
+	List<ObjectNode> listResourceRecordSets(String hostedZoneId) {
+		ListResourceRecordSetsRequest request = new ListResourceRecordSetsRequest();
+		request.setHostedZoneId(hostedZoneId);
+		ListResourceRecordSetsResult result;
 
-		getNeoRxClient().execCypher(
-				"match (r:AwsRoute53RecordSet {aws_name:{aws_name}}), (z:AwsRoute53HostedZone {aws_id : {aws_id}}) merge (z)-[x:CONTAINS]->(r) set x.updateTs={updateTs}",
-				"aws_name", rs.getName(), "aws_id", hostedZoneId, "updateTs", timestamp);
-		
-		ScannerContext.getScannerContext().ifPresent(sc -> {
-			sc.incrementEntityCount();
-		});
+		List<ObjectNode> recordSets = new ArrayList<>();
+		do {
+			rateLimit();
+			result = getClient().listResourceRecordSets(request);
+			request.setStartRecordName(result.getNextRecordName());
+			request.setStartRecordType(result.getNextRecordType());
+			request.setStartRecordIdentifier(result.getNextRecordIdentifier());
+
+			for (ResourceRecordSet rs : result.getResourceRecordSets()) {
+				recordSets.add(toJson(rs));
+			}
 
+		} while (result.isTruncated());
+		return recordSets;
+	}
+
+	protected void projectResourceRecordSets(String hostedZoneId, List<ObjectNode> recordSets, long timestamp) {
+
+		for (List<ObjectNode> batch : Lists.partition(recordSets, recordSetBatchSize)) {
+			ArrayNode rows = mapper.createArrayNode();
+			rows.addAll(batch);
+			getNeoRxClient().execCypher(
+					"match (z:AwsRoute53HostedZone {aws_id:{aws_id}}) unwind {rows} as row merge (a:AwsRoute53RecordSet {aws_name:row.aws_name}) set a+=row, a.updateTs={updateTs} merge (z)-[x:CONTAINS]->(a) set x.updateTs={updateTs}",
+					"aws_id", hostedZoneId, "rows", rows, "updateTs", timestamp);
+
+			ScannerContext.getScannerContext().ifPresent(sc -> {
+				sc.increment(ScannerContext.Metric.ENTITIES, batch.size());
+			});
+		}
 	}
 
 	protected void projectHostedZoneResult(GetHostedZoneResult hostedZoneResult) {
@@ -135,34 +313,50 @@ public class Route53Scanner extends GlobalAWSScanner<AmazonRoute53Client> implem
 		HostedZone hz = hostedZoneResult.getHostedZone();
 		ObjectNode n = toJson(hostedZoneResult);
 
+		JsonNode previous = getNeoRxClient()
+				.execCypher("match (a:AwsRoute53HostedZone {aws_id:{aws_id}}) return a", "aws_id", hz.getId())
+				.blockingFirst(MissingNode.getInstance());
+
 		getNeoRxClient().execCypher(
 				"merge (a:AwsRoute53HostedZone {aws_id:{aws_id}}) set a+={props}, a.updateTs=timestamp() return a",
 				"aws_id", n.get("aws_id").asText(), "props", n);
 
-		ListResourceRecordSetsRequest request = new ListResourceRecordSetsRequest();
-		request.setHostedZoneId(hz.getId());
-		ListResourceRecordSetsResult result;
-
 		long timestamp = System.currentTimeMillis();
+		if (!isRecordSetListingRequired(previous, n, timestamp)) {
+			logger.debug("record sets of hosted zone {} are unchanged", hz.getId());
+			return;
+		}
 
-		do {
-			rateLimit();
-			result = getClient().listResourceRecordSets(request);
-			request.setStartRecordName(result.getNextRecordName());
-
-			for (ResourceRecordSet rs : result.getResourceRecordSets()) {
-
-				projectResourceRecordSet(hz.getId(), rs, timestamp);
-
-			}
-
-		} while (result.isTruncated());
+		List<ObjectNode> recordSets = listResourceRecordSets(hz.getId());
+		long digest = digest(recordSets);
+
+		if (previous.path(RECORD_SET_DIGEST_ATTRIBUTE).isNumber()
+				&& previous.path(RECORD_SET_DIGEST_ATTRIBUTE).asLong() == digest) {
+			logger.debug("listing of hosted zone {} is unchanged", hz.getId());
+		} else {
+			projectResourceRecordSets(hz.getId(), recordSets, timestamp);
+			// Record sets are shared by split-horizon zones that are scanned in
+			// parallel, so only this zone's links are compared. Record sets
+			// left without a zone are removed by deleteOrphanedRecordSets().
+			getNeoRxClient().execCypher(
+					"match (z:AwsRoute53HostedZone {aws_id:{aws_id}})-[x:CONTAINS]->(r:AwsRoute53RecordSet) where coalesce(x.updateTs, 0)<{ts} delete x",
+					"ts", timestamp, "aws_id", hz.getId());
+		}
 
 		getNeoRxClient().execCypher(
-				"match (z:AwsRoute53HostedZone {aws_id:{aws_id}})--(r:AwsRoute53RecordSet) where r.updateTs<{ts} detach delete r",
-				"ts", timestamp, "aws_id", hz.getId());
+				"match (z:AwsRoute53HostedZone {aws_id:{aws_id}}) set z." + RECORD_SET_DIGEST_ATTRIBUTE + "={digest}, z."
+						+ RECORD_SET_LIST_TS_ATTRIBUTE + "={ts}",
+				"aws_id", hz.getId(), "digest", digest, "ts", timestamp);
+	}
+
+	/**
+	 * Record sets that no longer belong to any hosted zone are deleted once per
+	 * scan rather than once per zone.
+	 */
+	protected void deleteOrphanedRecordSets() {
 		getNeoRxClient().execCypher(
-				"match (a:AwsRoute53RecordSet) where not (a)-[:CONTAINS]-(:AwsRoute53HostedZone) detach delete a");
+				"match (a:AwsRoute53RecordSet {aws_account:{aws_account}}) where not (a)-[:CONTAINS]-(:AwsRoute53HostedZone) detach delete a",
+				"aws_account", getAccountId());
 	}
 
 }
@@ -18,6 +18,8 @@ package org.lendingclub.mercator.aws;
 import java.util.List;
 import java.util.Optional;
 
+import org.lendingclub.mercator.core.OwnerLink;
+
 import com.amazonaws.services.s3.AmazonS3Client;
 import com.amazonaws.services.s3.AmazonS3ClientBuilder;
 import com.amazonaws.services.s3.model.Bucket;
@@ -32,7 +34,7 @@ public class S3BucketScanner extends AWSScanner<AmazonS3Client> {
 
 	@Override
 	protected AmazonS3Client createClient() {
-		return (AmazonS3Client) builder.configure(AmazonS3ClientBuilder
+		return (AmazonS3Client) configure(AmazonS3ClientBuilder
 				.standard()).build();
 	}
 
@@ -42,9 +44,10 @@ public class S3BucketScanner extends AWSScanner<AmazonS3Client> {
 		
 		rateLimit();
 		List<Bucket> bucketList = client.listBuckets();
+		OwnerLink accountLink = newAccountOwnerLink();
 		
 		for (Bucket bucket: bucketList) {
-			scanBucket(bucket);
+			scanBucket(bucket, accountLink);
 		}
 		
 	}
@@ -58,7 +61,7 @@ public class S3BucketScanner extends AWSScanner<AmazonS3Client> {
 		return Optional.of("arn:aws:s3:::"+name);
 	}
 
-	private void scanBucket(Bucket b) {
+	private void scanBucket(Bucket b, OwnerLink accountLink) {
 	
 	
 		ObjectNode props = mapper.createObjectNode();
@@ -66,18 +69,13 @@ public class S3BucketScanner extends AWSScanner<AmazonS3Client> {
 		
 		props.put("aws_arn", computeArn(props).orElse(null));
 		props.put("aws_account", getAccountId());
-		
+		getShadowAttributeRemover().foldTagRemovals("AwsS3Bucket", props);
 
-		String cypher = "merge (b:AwsS3Bucket { aws_arn:{aws_arn} }) set b+={props}, b.updateTs=timestamp()";
-		
-		getNeoRxClient().execCypher(cypher, "aws_arn",props.get("aws_arn"), "props",props).forEach(r->{
+		getGraphWriter().merge("AwsS3Bucket", AWS_ARN_ATTRIBUTE, props, r -> {
 			getShadowAttributeRemover().removeTagAttributes("AwsS3Bucket", props, r);
+			accountLink.ADD_ACTION.accept(r);
 		});
 		incrementEntityCount();
-	
-		cypher = "match (a:AwsAccount {aws_account:{account}}), (b:AwsS3Bucket {aws_account:{account}}) MERGE (a)-[r:OWNS]->(b) set r.updateTs=timestamp()";
-		
-		getNeoRxClient().execCypher(cypher, "account",getAccountId());
 		
 	
 	}
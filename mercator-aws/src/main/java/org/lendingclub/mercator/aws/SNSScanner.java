@@ -17,6 +17,8 @@ package org.lendingclub.mercator.aws;
 
 import java.util.List;
 
+import org.lendingclub.mercator.core.OwnerLink;
+
 import com.amazonaws.services.sns.AmazonSNSClient;
 import com.amazonaws.services.sns.AmazonSNSClientBuilder;
 import com.amazonaws.services.sns.model.ListSubscriptionsByTopicResult;
@@ -36,7 +38,7 @@ public class SNSScanner extends AWSScanner<AmazonSNSClient> {
 
 	@Override
 	protected AmazonSNSClient createClient() {
-		return (AmazonSNSClient) builder.configure(AmazonSNSClientBuilder.standard()).build();
+		return (AmazonSNSClient) configure(AmazonSNSClientBuilder.standard()).build();
 	}
 
 	@Override
@@ -44,23 +46,32 @@ public class SNSScanner extends AWSScanner<AmazonSNSClient> {
 
 		rateLimit();
 		ListTopicsResult result = getClient().listTopics();
+		OwnerLink accountLink = newAccountOwnerLink();
 		String token = null;
 		do {
 			token = result.getNextToken();
-			for (Topic topic : result.getTopics()) {
+			forEachEntity(result.getTopics(), topic -> {
+				try {
+					projectTopic(topic, accountLink);
+				} catch (RuntimeException e) {
+					maybeThrow(e);
+				}
+			});
+			// subscriptions are linked to topics that must already be written
+			getGraphWriter().flush();
+			forEachEntity(result.getTopics(), topic -> {
 				try {
-					projectTopic(topic);
 					scanSubscriptions(topic);
 				} catch (RuntimeException e) {
 					maybeThrow(e);
 				}
-			}
+			});
 			result = getClient().listTopics(token);
 		} while (tokenHasNext(token));
 
 	}
 
-	private void projectTopic(Topic topic) {
+	private void projectTopic(Topic topic, OwnerLink accountLink) {
 
 		String arn = topic.getTopicArn();
 
@@ -70,14 +81,12 @@ public class SNSScanner extends AWSScanner<AmazonSNSClient> {
 		n.put("aws_account", getAccountId());
 		n.put("aws_region", getRegion().getName());
 		n.put("name", parts.get(parts.size() - 1));
-		String cypher = "merge (t:AwsSnsTopic {aws_arn:{arn}}) set t+={props}, t.updateTs=timestamp() return t";
-
-		getNeoRxClient().execCypher(cypher, "arn", arn, "props", n).forEach(r -> {
+		n.put("aws_arn", arn);
+		getShadowAttributeRemover().foldTagRemovals("AwsSnsTopic", n);
+		getGraphWriter().merge("AwsSnsTopic", AWS_ARN_ATTRIBUTE, n, r -> {
 			getShadowAttributeRemover().removeTagAttributes("AwsSnsTopic", n, r);
+			accountLink.ADD_ACTION.accept(r);
 		});
-		cypher = "match (a:AwsAccount {aws_account:{account}}), (t:AwsSnsTopic {aws_account:{account}}) MERGE (a)-[r:OWNS]->(t) set r.updateTs=timestamp()";
-
-		getNeoRxClient().execCypher(cypher, "account", getAccountId());
 
 	}
 
@@ -0,0 +1,100 @@
+/**
+ * Copyright 2017 Lending Club, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lendingclub.mercator.aws;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.Lists;
+
+/**
+ * Receives change events from an SQS queue, typically the target of an
+ * EventBridge rule or of an SNS topic that CloudTrail publishes to. SNS
+ * envelopes are unwrapped. Messages are deleted when they are acknowledged,
+ * so events whose rescan failed are redelivered after the visibility timeout.
+ */
+public class SQSChangeEventSource implements ChangeEventSource {
+
+	static final int MAX_MESSAGES_PER_RECEIVE = 10;
+	static final int MAX_WAIT_SECONDS = 20;
+
+	static ObjectMapper mapper = new ObjectMapper();
+
+	Logger logger = LoggerFactory.getLogger(SQSChangeEventSource.class);
+
+	AmazonSQS sqs;
+	String queueUrl;
+
+	public SQSChangeEventSource(AmazonSQS sqs, String queueUrl) {
+		this.sqs = sqs;
+		this.queueUrl = queueUrl;
+	}
+
+	@Override
+	public List<ChangeEvent> poll(int max, long wait, TimeUnit unit) {
+		int waitSeconds = (int) Math.min(MAX_WAIT_SECONDS, unit.toSeconds(wait));
+		ReceiveMessageRequest request = new ReceiveMessageRequest(queueUrl)
+				.withMaxNumberOfMessages(Math.max(1, Math.min(max, MAX_MESSAGES_PER_RECEIVE)))
+				.withWaitTimeSeconds(waitSeconds);
+		List<ChangeEvent> events = new ArrayList<>();
+		for (Message message : sqs.receiveMessage(request).getMessages()) {
+			events.add(new ChangeEvent(parse(message.getBody()), message.getReceiptHandle()));
+		}
+		return events;
+	}
+
+	/**
+	 * Unparseable messages yield an empty object, so that they are
+	 * acknowledged and deleted rather than redelivered forever.
+	 */
+	JsonNode parse(String body) {
+		try {
+			JsonNode n = mapper.readTree(body);
+			if (n.path("Type").asText().equals("Notification") && n.path("Message").isTextual()) {
+				n = mapper.readTree(n.path("Message").asText());
+			}
+			return n;
+		} catch (IOException | RuntimeException e) {
+			logger.warn("could not parse message: {}", body);
+			return mapper.createObjectNode();
+		}
+	}
+
+	@Override
+	public void acknowledge(List<ChangeEvent> events) {
+		List<DeleteMessageBatchRequestEntry> entries = new ArrayList<>();
+		for (ChangeEvent event : events) {
+			if (event.getReceipt() != null) {
+				entries.add(new DeleteMessageBatchRequestEntry(Integer.toString(entries.size()), event.getReceipt()));
+			}
+		}
+		for (List<DeleteMessageBatchRequestEntry> batch : Lists.partition(entries, MAX_MESSAGES_PER_RECEIVE)) {
+			sqs.deleteMessageBatch(new DeleteMessageBatchRequest(queueUrl, batch));
+		}
+	}
+}
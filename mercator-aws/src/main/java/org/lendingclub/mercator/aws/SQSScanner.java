@@ -17,6 +17,8 @@ package org.lendingclub.mercator.aws;
 
 import java.util.Optional;
 
+import org.lendingclub.mercator.core.OwnerLink;
+
 import com.amazonaws.services.sqs.AmazonSQSClient;
 import com.amazonaws.services.sqs.model.GetQueueAttributesResult;
 import com.amazonaws.services.sqs.model.ListQueuesResult;
@@ -40,24 +42,25 @@ public class SQSScanner extends AWSScanner<AmazonSQSClient> {
 	protected void doScan() {
 
 		ListQueuesResult result = getClient().listQueues();
+		OwnerLink accountLink = newAccountOwnerLink();
 
-		for (String url : result.getQueueUrls()) {
+		forEachEntity(result.getQueueUrls(), url -> {
 			try {
-				scanQueue(url);
+				scanQueue(url, accountLink);
 			} catch (RuntimeException e) {
 				maybeThrow(e);
 			}
-		}
+		});
 	}
 
-	private void scanQueue(String url) {
+	private void scanQueue(String url, OwnerLink accountLink) {
 		rateLimit();
 		GetQueueAttributesResult result = getClient().getQueueAttributes(url, Lists.newArrayList("All"));
 		
 		ObjectNode n = convertAwsObject(result.getAttributes(), getRegion());
 		n.put("url", url);
 		
-		mergeQueue(n);
+		mergeQueue(n, accountLink);
 	}
 
 	@Override
@@ -65,20 +68,16 @@ public class SQSScanner extends AWSScanner<AmazonSQSClient> {
 		return Optional.ofNullable(n.path("aws_queueArn").asText(null));
 	}
 
-	private void mergeQueue(ObjectNode n) {
+	private void mergeQueue(ObjectNode n, OwnerLink accountLink) {
 
 		incrementEntityCount();
 
-		String cypher = "merge (t:AwsSqsQueue {aws_arn:{aws_arn}}) set t+={props}, t.updateTs=timestamp() return t";
-
-		getNeoRxClient().execCypher(cypher, "aws_arn", n.path("aws_arn").asText(), "props", n).forEach(r -> {
+		getShadowAttributeRemover().foldTagRemovals("AwsSqsQueue", n);
+		getGraphWriter().merge("AwsSqsQueue", AWS_ARN_ATTRIBUTE, n, r -> {
 			getShadowAttributeRemover().removeTagAttributes("AwsSqsQueue", n, r);
+			accountLink.ADD_ACTION.accept(r);
 		});
 
-		cypher = "match (a:AwsAccount {aws_account:{account}}), (q:AwsSqsQueue {aws_account:{account}}) MERGE (a)-[r:OWNS]->(q) set r.updateTs=timestamp()";
-
-		getNeoRxClient().execCypher(cypher, "account", getAccountId());
-
 	}
 
 }
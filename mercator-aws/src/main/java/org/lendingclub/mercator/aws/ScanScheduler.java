@@ -0,0 +1,34 @@
+/**
+ * Copyright 2017 Lending Club, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lendingclub.mercator.aws;
+
+import java.util.concurrent.Executor;
+
+/**
+ * A ScanScheduler runs the scanners submitted by AWSParallelScannerGroup. Work
+ * is submitted on behalf of a tenant (an account and region) so that
+ * implementations can share threads fairly between targets.
+ */
+public interface ScanScheduler {
+
+	/**
+	 * Returns an executor that runs tasks on behalf of the given tenant. The
+	 * executor may throw RejectedExecutionException if the tenant has too much
+	 * work queued.
+	 */
+	Executor getExecutor(String tenant);
+
+}
@@ -0,0 +1,168 @@
+/**
+ * Copyright 2017 Lending Club, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lendingclub.mercator.aws;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.lendingclub.mercator.core.MercatorException;
+
+import com.google.common.collect.LinkedHashMultimap;
+import com.google.common.collect.SetMultimap;
+
+/**
+ * ScannerDependencies declares which scanner types must finish before another
+ * scanner type starts, so that the relationships a scanner creates by matching
+ * nodes of another label find those nodes on the first scan.
+ *
+ * When a prerequisite is not part of a scan (because it was removed from the
+ * group, or is a slow scan that is skipped on this iteration) its own
+ * prerequisites are inherited instead.
+ */
+@SuppressWarnings("rawtypes")
+public class ScannerDependencies {
+
+	SetMultimap<Class<? extends AWSScanner>, Class<? extends AWSScanner>> prerequisites = LinkedHashMultimap.create();
+
+	/**
+	 * Returns the dependencies implied by the relationships the built-in
+	 * scanners create.
+	 */
+	public static ScannerDependencies createDefault() {
+		ScannerDependencies d = new ScannerDependencies();
+
+		d.addDependency(AvailabilityZoneScanner.class, RegionScanner.class, SubnetScanner.class);
+		d.addDependency(VPCScanner.class, AccountScanner.class, RegionScanner.class, SubnetScanner.class);
+		d.addDependency(SecurityGroupScanner.class, VPCScanner.class);
+		d.addDependency(EC2InstanceScanner.class, AMIScanner.class, SubnetScanner.class, SecurityGroupScanner.class);
+		d.addDependency(NetworkInterfaceScanner.class, EC2InstanceScanner.class, SubnetScanner.class);
+		// VPCEndpointScanner also links to route tables, so ROUTES_TO endpoint
+		// links are created on the following scan
+		d.addDependency(RouteTableScanner.class, SubnetScanner.class, InternetGatewayScanner.class,
+				VpnGatewayScanner.class, VPCPeeringConnectionScanner.class);
+		d.addDependency(VPCEndpointScanner.class, VPCScanner.class, RouteTableScanner.class);
+
+		d.addDependency(ELBScanner.class, SubnetScanner.class, SecurityGroupScanner.class, EC2InstanceScanner.class);
+		d.addDependency(LaunchConfigScanner.class, SecurityGroupScanner.class);
+		d.addDependency(ASGScanner.class, LaunchConfigScanner.class, SubnetScanner.class, EC2InstanceScanner.class,
+				ELBScanner.class);
+		d.addDependency(RDSInstanceScanner.class, SubnetScanner.class);
+
+		d.addDependency(UserScanner.class, AccountScanner.class);
+		d.addDependency(RoleScanner.class, AccountScanner.class);
+		d.addDependency(InstanceProfileScanner.class, AccountScanner.class, RoleScanner.class);
+		d.addDependency(ManagedPolicyScanner.class, AccountScanner.class, RoleScanner.class, UserScanner.class);
+		d.addDependency(AccountAuthorizationDetailsScanner.class, AccountScanner.class);
+
+		d.addDependency(S3BucketScanner.class, AccountScanner.class);
+		d.addDependency(SQSScanner.class, AccountScanner.class);
+		d.addDependency(SNSScanner.class, AccountScanner.class, SQSScanner.class);
+		d.addDependency(KinesisScanner.class, AccountScanner.class);
+		return d;
+	}
+
+	@SafeVarargs
+	public final ScannerDependencies addDependency(Class<? extends AWSScanner> type,
+			Class<? extends AWSScanner>... prerequisiteTypes) {
+		for (Class<? extends AWSScanner> prerequisite : prerequisiteTypes) {
+			prerequisites.put(type, prerequisite);
+		}
+		return this;
+	}
+
+	public ScannerDependencies removeDependency(Class<? extends AWSScanner> type,
+			Class<? extends AWSScanner> prerequisite) {
+		prerequisites.remove(type, prerequisite);
+		return this;
+	}
+
+	public ScannerDependencies addAll(ScannerDependencies other) {
+		prerequisites.putAll(other.prerequisites);
+		return this;
+	}
+
+	public ScannerDependencies copy() {
+		return new ScannerDependencies().addAll(this);
+	}
+
+	/**
+	 * Returns the declared prerequisites of the given type.
+	 */
+	public Set<Class<? extends AWSScanner>> getPrerequisites(Class<? extends AWSScanner> type) {
+		return prerequisites.get(type);
+	}
+
+	/**
+	 * Returns the prerequisites of each of the given types, restricted to the
+	 * given types.
+	 */
+	public Map<Class<? extends AWSScanner>, Set<Class<? extends AWSScanner>>> resolve(
+			Collection<? extends Class<? extends AWSScanner>> types) {
+		Set<Class<? extends AWSScanner>> present = new LinkedHashSet<>(types);
+		Map<Class<? extends AWSScanner>, Set<Class<? extends AWSScanner>>> result = new LinkedHashMap<>();
+		for (Class<? extends AWSScanner> type : present) {
+			Set<Class<? extends AWSScanner>> resolved = new LinkedHashSet<>();
+			Set<Class<? extends AWSScanner>> visited = new HashSet<>();
+			Deque<Class<? extends AWSScanner>> queue = new ArrayDeque<>(prerequisites.get(type));
+			while (!queue.isEmpty()) {
+				Class<? extends AWSScanner> prerequisite = queue.removeFirst();
+				if (!visited.add(prerequisite) || prerequisite.equals(type)) {
+					continue;
+				}
+				if (present.contains(prerequisite)) {
+					resolved.add(prerequisite);
+				} else {
+					queue.addAll(prerequisites.get(prerequisite));
+				}
+			}
+			result.put(type, resolved);
+		}
+		return result;
+	}
+
+	/**
+	 * Orders the given types so that every type follows its prerequisites.
+	 * Types that do not depend on each other keep their relative order.
+	 */
+	public List<Class<? extends AWSScanner>> sort(Collection<? extends Class<? extends AWSScanner>> types) {
+		Map<Class<? extends AWSScanner>, Set<Class<? extends AWSScanner>>> resolved = resolve(types);
+		List<Class<? extends AWSScanner>> remaining = new ArrayList<>(resolved.keySet());
+		Set<Class<? extends AWSScanner>> emitted = new LinkedHashSet<>();
+		while (!remaining.isEmpty()) {
+			Class<? extends AWSScanner> next = null;
+			for (Class<? extends AWSScanner> type : remaining) {
+				if (emitted.containsAll(resolved.get(type))) {
+					next = type;
+					break;
+				}
+			}
+			if (next == null) {
+				throw new MercatorException("scanner dependency cycle among: " + remaining);
+			}
+			remaining.remove(next);
+			emitted.add(next);
+		}
+		return new ArrayList<>(emitted);
+	}
+}
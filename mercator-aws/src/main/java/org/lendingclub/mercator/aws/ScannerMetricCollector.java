@@ -15,21 +15,195 @@
  */
 package org.lendingclub.mercator.aws;
 
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+
+import org.lendingclub.mercator.core.ScannerContext;
+
 import com.amazonaws.Request;
 import com.amazonaws.Response;
 import com.amazonaws.metrics.RequestMetricCollector;
+import com.amazonaws.util.AWSRequestMetrics;
+import com.amazonaws.util.AWSRequestMetrics.Field;
+import com.amazonaws.util.TimingInfo;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 
+/**
+ * Collects the SDK request metrics of a scanner's client per API operation,
+ * and feeds throttling and server errors back to the scanner's adaptive rate
+ * limiter.
+ */
 public class ScannerMetricCollector extends RequestMetricCollector {
 
+	static final Set<String> THROTTLING_ERROR_CODES = ImmutableSet.of("Throttling", "ThrottlingException",
+			"ThrottledException", "RequestThrottledException", "TooManyRequestsException",
+			"ProvisionedThroughputExceededException", "RequestLimitExceeded",
+			"BandwidthLimitExceeded", "LimitExceededException", "RequestThrottled", "SlowDown",
+			"PriorRequestNotComplete");
+
+	/**
+	 * The collector registered on shared clients. It passes each request to
+	 * the collector of the scanner whose scan is running on the calling
+	 * thread, or to a collector without a scanner if there is none.
+	 */
+	static final RequestMetricCollector ROUTER = new RequestMetricCollector() {
+
+		@Override
+		public void collectMetrics(Request<?> request, Response<?> response) {
+			getCurrentCollector().collectMetrics(request, response);
+		}
+	};
+
+	static final ScannerMetricCollector UNBOUND = new ScannerMetricCollector();
+
+	AWSScanner<?> scanner;
+
+	ConcurrentMap<String, OperationMetrics> operations = Maps.newConcurrentMap();
+
 	public ScannerMetricCollector() {
-		// TODO Auto-generated constructor stub
+		this(null);
+	}
+
+	public ScannerMetricCollector(AWSScanner<?> scanner) {
+		this.scanner = scanner;
 	}
 
-	
 	@Override
 	public void collectMetrics(Request<?> request, Response<?> response) {
-	
+		if (request == null) {
+			return;
+		}
+		AWSRequestMetrics metrics = request.getAWSRequestMetrics();
+		if (metrics == null) {
+			return;
+		}
+		long bytes = getBytesReceived(request, response);
+		operations.computeIfAbsent(getOperationName(request), this::newOperationMetrics).record(
+				getLatencyMillis(metrics), response == null, getCounter(metrics, Field.HttpClientRetryCount),
+				getThrottleCount(metrics), bytes, getStatusCodes(metrics));
+		ScannerContext.getScannerContext().ifPresent(ctx -> {
+			ctx.increment(ScannerContext.Metric.API_CALLS, 1);
+			ctx.increment(ScannerContext.Metric.BYTES, bytes);
+		});
+		if (scanner == null) {
+			return;
+		}
+		scanner.getAdaptiveRateLimiter().ifPresent(limiter -> {
+			if (isThrottled(metrics) || isServerError(metrics)) {
+				limiter.onThrottle();
+			} else if (response != null) {
+				limiter.onSuccess();
+			}
+		});
+	}
+
+	static RequestMetricCollector getCurrentCollector() {
+		Optional<ScannerContext> ctx = ScannerContext.getScannerContext();
+		while (ctx.isPresent()) {
+			if (ctx.get() instanceof AWSScanner.AWSScannerContext) {
+				return ((AWSScanner<?>.AWSScannerContext) ctx.get()).getScanner().getMetricCollector();
+			}
+			ctx = ctx.get().getParent();
+		}
+		return UNBOUND;
+	}
+
+	public RequestMetricsSnapshot getSnapshot() {
+		RequestMetricsSnapshot snapshot = new RequestMetricsSnapshot();
+		operations.values().forEach(snapshot::add);
+		return snapshot;
+	}
+
+	OperationMetrics newOperationMetrics(String operation) {
+		if (scanner == null) {
+			return new OperationMetrics(null, null, null, operation);
+		}
+		return new OperationMetrics(scanner.getAccountIdIfAvailable(), scanner.getRegion().getName(),
+				scanner.getClass().getSimpleName(), operation);
+	}
+
+	static String getOperationName(Request<?> request) {
+		if (request.getOriginalRequest() == null) {
+			return request.getServiceName();
+		}
+		String name = request.getOriginalRequest().getClass().getSimpleName();
+		return name.endsWith("Request") ? name.substring(0, name.length() - "Request".length()) : name;
+	}
+
+	static long getLatencyMillis(AWSRequestMetrics metrics) {
+		TimingInfo timing = metrics.getTimingInfo().getSubMeasurement(Field.ClientExecuteTime.name());
+		if (timing == null) {
+			timing = metrics.getTimingInfo();
+		}
+		Double millis = timing.getTimeTakenMillisIfKnown();
+		return millis != null ? Math.round(millis) : 0;
+	}
+
+	static long getCounter(AWSRequestMetrics metrics, Field field) {
+		Number n = metrics.getTimingInfo().getCounter(field.name());
+		return n != null ? n.longValue() : 0;
+	}
+
+	static long getThrottleCount(AWSRequestMetrics metrics) {
+		long count = getCounter(metrics, Field.ThrottleException);
+		if (count > 0) {
+			return count;
+		}
+		List<Object> errorCodes = metrics.getProperty(Field.AWSErrorCode);
+		if (errorCodes != null) {
+			for (Object code : errorCodes) {
+				if (code != null && THROTTLING_ERROR_CODES.contains(code.toString())) {
+					count++;
+				}
+			}
+		}
+		return count;
+	}
+
+	static long getBytesReceived(Request<?> request, Response<?> response) {
+		if (response != null && response.getHttpResponse() != null) {
+			for (Map.Entry<String, String> header : response.getHttpResponse().getHeaders().entrySet()) {
+				if ("Content-Length".equalsIgnoreCase(header.getKey())) {
+					try {
+						return Long.parseLong(header.getValue().trim());
+					} catch (RuntimeException e) {
+						break;
+					}
+				}
+			}
+		}
+		return getCounter(request.getAWSRequestMetrics(), Field.BytesProcessed);
+	}
+
+	static List<Integer> getStatusCodes(AWSRequestMetrics metrics) {
+		List<Integer> codes = Lists.newArrayList();
+		List<Object> statusCodes = metrics.getProperty(Field.StatusCode);
+		if (statusCodes != null) {
+			for (Object code : statusCodes) {
+				if (code instanceof Number) {
+					codes.add(((Number) code).intValue());
+				}
+			}
+		}
+		return codes;
+	}
+
+	static boolean isThrottled(AWSRequestMetrics metrics) {
+		return getThrottleCount(metrics) > 0;
+	}
 
+	static boolean isServerError(AWSRequestMetrics metrics) {
+		for (Integer code : getStatusCodes(metrics)) {
+			if (code >= 500) {
+				return true;
+			}
+		}
+		return false;
 	}
 
 }
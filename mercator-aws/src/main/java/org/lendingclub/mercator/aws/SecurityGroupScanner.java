@@ -50,11 +50,13 @@ public class SecurityGroupScanner extends AbstractEC2Scanner {
 
 			try {
 				
-				ObjectNode g = convertAwsObject(sg, getRegion());
+				ObjectNode g = getShadowAttributeRemover().foldTagRemovals("AwsSecurityGroup",
+						convertAwsObject(sg, getRegion()));
 
 				// non-VPC security groups don't have a VPC
 				String vpcId = Strings.nullToEmpty(sg.getVpcId());
-				String cypher = "merge (sg:AwsSecurityGroup {aws_arn:{arn}}) set sg+={props}, sg.updateTs={now} return sg";
+				String cypher = "merge (sg:AwsSecurityGroup {aws_arn:{arn}}) set sg+={props}, sg.updateTs={now} "
+						+ getShadowAttributeRemover().getReturnClause("sg");
 
 				JsonNode xx = getNeoRxClient()
 						.execCypher(cypher, "arn", g.path(AWS_ARN_ATTRIBUTE).asText(), "props", g, "now", now).blockingFirst();
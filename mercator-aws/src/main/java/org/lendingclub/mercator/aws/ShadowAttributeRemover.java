@@ -16,6 +16,7 @@
 package org.lendingclub.mercator.aws;
 
 import java.util.List;
+import java.util.Set;
 import java.util.function.Predicate;
 
 import org.lendingclub.neorx.NeoRxClient;
@@ -23,8 +24,10 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.google.common.base.Joiner;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
 
 public class ShadowAttributeRemover {
 
@@ -32,10 +35,82 @@ public class ShadowAttributeRemover {
 
 	NeoRxClient neo4j;
 
+	TagKeyCache tagKeyCache;
+
+	static final String TAG_KEYS = "tagKeys";
+
 	public ShadowAttributeRemover(NeoRxClient client) {
 		this.neo4j = client;
 	}
 
+	/**
+	 * With a TagKeyCache, tag removals are computed locally by
+	 * foldTagRemovals() and written along with the rest of the properties.
+	 * removeTagAttributes() records the tag keys that were written and removes
+	 * any stale tag that the cache did not know about, using the tag keys
+	 * returned by the write.
+	 */
+	public ShadowAttributeRemover withTagKeyCache(TagKeyCache cache) {
+		this.tagKeyCache = cache;
+		return this;
+	}
+
+	public boolean isTagKeyCacheEnabled() {
+		return tagKeyCache != null;
+	}
+
+	/**
+	 * Returns the return clause for a statement that merges the node bound to
+	 * the given variable. With a TagKeyCache only the node's tag keys are
+	 * returned rather than the whole node.
+	 */
+	public String getReturnClause(String variable) {
+		if (isTagKeyCacheEnabled()) {
+			return "return " + variable + ".aws_arn as aws_arn, " + variable + ".updateTs as updateTs, [k in keys("
+					+ variable + ") where k starts with 'aws_tag_'] as " + TAG_KEYS;
+		}
+		return "return " + variable;
+	}
+
+	/**
+	 * Set each aws_tag_* property that was last written to the node but is
+	 * absent from the desired properties to null, so that set x+={props}
+	 * removes it. Does nothing without a TagKeyCache.
+	 *
+	 * The cache is not updated until removeTagAttributes() is called with the
+	 * result of the write, so a write that fails is folded again next time. A
+	 * node that is not in the cache has nothing folded; its stale tags are
+	 * removed by removeTagAttributes() instead.
+	 */
+	public ObjectNode foldTagRemovals(String label, ObjectNode desired) {
+		if (tagKeyCache == null) {
+			return desired;
+		}
+		String arn = desired.path("aws_arn").asText(null);
+		if (arn == null) {
+			return desired;
+		}
+		tagKeyCache.load(neo4j, label);
+
+		Set<String> current = getTagKeys(desired);
+		Set<String> previous = tagKeyCache.getTagKeys(label, arn);
+		if (previous != null) {
+			previous.stream().filter(n -> !current.contains(n)).filter(new SanitizationFilter())
+					.forEach(desired::putNull);
+		}
+		return desired;
+	}
+
+	Set<String> getTagKeys(JsonNode n) {
+		Set<String> keys = Sets.newHashSet();
+		n.fieldNames().forEachRemaining(name -> {
+			if (name.startsWith("aws_tag_") && !n.get(name).isNull()) {
+				keys.add(name);
+			}
+		});
+		return keys;
+	}
+
 	class SanitizationFilter implements Predicate<String> {
 
 		boolean isValidChar(char c) {
@@ -56,7 +131,35 @@ public class ShadowAttributeRemover {
 
 	}
 
+	/**
+	 * Returns the tag keys that a write left on the node: the tagKeys returned
+	 * by getReturnClause(), or else the aws_tag_* properties of the returned
+	 * node.
+	 */
+	Set<String> getWrittenTagKeys(JsonNode result) {
+		if (!result.has(TAG_KEYS)) {
+			return getTagKeys(result);
+		}
+		Set<String> keys = Sets.newHashSet();
+		result.path(TAG_KEYS).forEach(it -> keys.add(it.asText()));
+		return keys;
+	}
+
 	public void removeTagAttributes(String label, JsonNode desired, JsonNode cache) {
+		if (isTagKeyCacheEnabled()) {
+			String arn = desired.path("aws_arn").asText(null);
+			if (arn == null || cache == null) {
+				return;
+			}
+			// removals known to the cache were folded into the write; anything
+			// else still on the node was missed, e.g. after an eviction
+			Set<String> current = getTagKeys(desired);
+			List<String> stale = Lists.newArrayList();
+			getWrittenTagKeys(cache).stream().filter(n -> !current.contains(n)).forEach(stale::add);
+			removeAttributes(label, arn, stale);
+			tagKeyCache.put(label, arn, current);
+			return;
+		}
 		removeAttributes(label, desired, cache, new Predicate<String>() {
 
 			@Override
@@ -68,8 +171,10 @@ public class ShadowAttributeRemover {
 	}
 
 	public void removeAttributes(String label, JsonNode desired, JsonNode cache, Predicate<String> predicate) {
-		List<String> attrs = getAttributesToRemove(desired, cache, predicate);
+		removeAttributes(label, desired.get("aws_arn").asText(), getAttributesToRemove(desired, cache, predicate));
+	}
 
+	void removeAttributes(String label, String arn, List<String> attrs) {
 		if (!attrs.isEmpty()) {
 			List<String> fragments = Lists.newArrayList();
 			attrs.stream().filter(new SanitizationFilter()).forEach(n -> {
@@ -78,7 +183,7 @@ public class ShadowAttributeRemover {
 			if (!fragments.isEmpty()) {
 				String clause = Joiner.on(", ").join(fragments);
 				String cypher = "match (x:" + label + " {aws_arn:{aws_arn}}) remove " + clause + " return x";
-				neo4j.execCypher(cypher, "aws_arn", desired.get("aws_arn").asText());
+				neo4j.execCypher(cypher, "aws_arn", arn);
 			}
 		}
 
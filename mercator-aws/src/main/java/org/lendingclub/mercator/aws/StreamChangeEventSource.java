@@ -0,0 +1,84 @@
+/**
+ * Copyright 2017 Lending Club, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lendingclub.mercator.aws;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.lendingclub.mercator.core.MercatorException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Reads change events from a stream with one JSON document per line, e.g.
+ * stdin. Blank lines are skipped. The wait time is ignored, since a read
+ * blocks until a line is available.
+ */
+public class StreamChangeEventSource implements ChangeEventSource {
+
+	static ObjectMapper mapper = new ObjectMapper();
+
+	Logger logger = LoggerFactory.getLogger(StreamChangeEventSource.class);
+
+	BufferedReader reader;
+	volatile boolean exhausted = false;
+
+	public StreamChangeEventSource(Reader reader) {
+		this.reader = new BufferedReader(reader);
+	}
+
+	public static StreamChangeEventSource stdin() {
+		return new StreamChangeEventSource(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+	}
+
+	@Override
+	public synchronized List<ChangeEvent> poll(int max, long wait, TimeUnit unit) {
+		List<ChangeEvent> events = new ArrayList<>();
+		try {
+			while (events.size() < max && !exhausted) {
+				String line = reader.readLine();
+				if (line == null) {
+					exhausted = true;
+				} else if (!line.trim().isEmpty()) {
+					try {
+						events.add(new ChangeEvent(mapper.readTree(line)));
+					} catch (IOException e) {
+						logger.warn("could not parse event: {}", line);
+					}
+				}
+				if (!events.isEmpty() && !reader.ready()) {
+					break;
+				}
+			}
+		} catch (IOException e) {
+			throw new MercatorException(e);
+		}
+		return events;
+	}
+
+	@Override
+	public boolean isExhausted() {
+		return exhausted;
+	}
+}
@@ -17,12 +17,9 @@ package org.lendingclub.mercator.aws;
 
 import java.util.Optional;
 
-import org.lendingclub.neorx.NeoRxClient;
-
 import com.amazonaws.services.ec2.model.DescribeSubnetsResult;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
-import com.google.common.base.Preconditions;
 
 public class SubnetScanner extends AbstractEC2NetworkInfrastructureScanner {
 
@@ -49,14 +46,10 @@ public class SubnetScanner extends AbstractEC2NetworkInfrastructureScanner {
 		
 		result.getSubnets().forEach(it -> {
 			try {
-				ObjectNode n = convertAwsObject(it, getRegion());
-				
+				ObjectNode n = getShadowAttributeRemover().foldTagRemovals("AwsSubnet", convertAwsObject(it, getRegion()));
 				
-				String cypher = "MERGE (v:AwsSubnet {aws_arn:{aws_arn}}) set v+={props}, v.updateTs=timestamp() return v";
 				
-				NeoRxClient client = getNeoRxClient();
-				Preconditions.checkNotNull(client);
-				client.execCypher(cypher, "aws_arn",n.get("aws_arn").asText(),"props",n).forEach(r->{
+				getGraphWriter().merge("AwsSubnet", AWS_ARN_ATTRIBUTE, n, r -> {
 					gc.MERGE_ACTION.accept(r);
 					getShadowAttributeRemover().removeTagAttributes("AwsSubnet", n, r);
 				});
@@ -67,7 +60,9 @@ public class SubnetScanner extends AbstractEC2NetworkInfrastructureScanner {
 				maybeThrow(e,"problem scanning subnets");
 			}
 		});
-		
+
+		// pending merges must be written before the garbage collector runs
+		getGraphWriter().flush();
 		gc.invoke();
 	}
 
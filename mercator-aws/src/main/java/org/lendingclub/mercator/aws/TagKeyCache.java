@@ -0,0 +1,140 @@
+/**
+ * Copyright 2017 Lending Club, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lendingclub.mercator.aws;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.lendingclub.neorx.NeoRxClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+
+/**
+ * TagKeyCache remembers the aws_tag_* property names last written to each
+ * node, keyed by label and ARN, so that ShadowAttributeRemover can work out
+ * which tags were removed without reading the node back.
+ * 
+ * Each label is loaded from Neo4j the first time it is used; callers that
+ * need the label while it is loading wait for the load to finish. Nothing is
+ * folded for an ARN that is not in the cache, e.g. after it has been evicted;
+ * ShadowAttributeRemover removes its stale tags using the tag keys returned
+ * by the write instead.
+ */
+public class TagKeyCache {
+
+	public static final long DEFAULT_MAXIMUM_SIZE = 200000;
+
+	Logger logger = LoggerFactory.getLogger(TagKeyCache.class);
+
+	Cache<String, Set<String>> cache;
+
+	Set<String> loadedLabels = ConcurrentHashMap.newKeySet();
+
+	ConcurrentMap<String, Object> loadLocks = Maps.newConcurrentMap();
+
+	AtomicLong hitCount = new AtomicLong();
+	AtomicLong missCount = new AtomicLong();
+
+	public TagKeyCache() {
+		this(DEFAULT_MAXIMUM_SIZE);
+	}
+
+	public TagKeyCache(long maximumSize) {
+		Preconditions.checkArgument(maximumSize > 0, "maximumSize must be > 0");
+		cache = CacheBuilder.newBuilder().maximumSize(maximumSize).build();
+	}
+
+	String createKey(String label, String arn) {
+		return label + ":" + arn;
+	}
+
+	/**
+	 * Returns the tag keys last written to the node, or null if they are not
+	 * known.
+	 */
+	public Set<String> getTagKeys(String label, String arn) {
+		Set<String> keys = cache.getIfPresent(createKey(label, arn));
+		if (keys != null) {
+			hitCount.incrementAndGet();
+		} else {
+			missCount.incrementAndGet();
+		}
+		return keys;
+	}
+
+	public void put(String label, String arn, Set<String> keys) {
+		cache.put(createKey(label, arn), ImmutableSet.copyOf(keys));
+	}
+
+	public void invalidate(String label, String arn) {
+		cache.invalidate(createKey(label, arn));
+	}
+
+	public void invalidateAll() {
+		cache.invalidateAll();
+		loadedLabels.clear();
+	}
+
+	public long size() {
+		return cache.size();
+	}
+
+	public long getHitCount() {
+		return hitCount.get();
+	}
+
+	public long getMissCount() {
+		return missCount.get();
+	}
+
+	/**
+	 * Load the tag keys of every node with the given label, unless the label
+	 * has already been loaded. If another thread is loading the label, wait
+	 * for it to finish. A label is only marked loaded once its load succeeds.
+	 */
+	public void load(NeoRxClient neo4j, String label) {
+		if (loadedLabels.contains(label)) {
+			return;
+		}
+		synchronized (loadLocks.computeIfAbsent(label, k -> new Object())) {
+			if (loadedLabels.contains(label)) {
+				return;
+			}
+			AtomicLong count = new AtomicLong();
+			String cypher = "match (x:" + label
+					+ ") where exists(x.aws_arn) return x.aws_arn as arn, [k in keys(x) where k starts with 'aws_tag_'] as tags";
+			neo4j.execCypher(cypher).blockingForEach(it -> {
+				ImmutableSet.Builder<String> keys = ImmutableSet.builder();
+				for (JsonNode tag : it.path("tags")) {
+					keys.add(tag.asText());
+				}
+				put(label, it.path("arn").asText(), keys.build());
+				count.incrementAndGet();
+			});
+			loadedLabels.add(label);
+			logger.info("loaded tag keys of {} {} nodes", count.get(), label);
+		}
+	}
+}
@@ -0,0 +1,137 @@
+/**
+ * Copyright 2017 Lending Club, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lendingclub.mercator.aws;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.lendingclub.mercator.core.TokenBucket;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+
+/**
+ * Shared API budget for all AWS scanners in the process. Buckets are arranged
+ * as account, then region, then service (the client endpoint prefix, e.g.
+ * "ec2"), and every call has to draw a token from each level. Scanners only
+ * draw from the registry when built with
+ * AWSScannerBuilder.withSharedApiBudget(true).
+ *
+ * By default only the service level is limited, to 20 calls per second. Route53 defaults to its
+ * documented rate of 5 requests per second; since it is a global service,
+ * Route53Scanner draws from the same bucket whatever its region. Rates and
+ * reservations must be configured before the buckets are first used; clear()
+ * discards the existing buckets so that new settings take effect.
+ */
+public class TokenBucketRegistry {
+
+	public static final double DEFAULT_SERVICE_RATE = 20;
+	public static final double DEFAULT_BURST_SECONDS = 5;
+
+	// Route53 allows 5 requests per second per account
+	public static final double DEFAULT_ROUTE53_RATE = 5;
+
+	static TokenBucketRegistry instance = new TokenBucketRegistry();
+
+	ConcurrentMap<String, TokenBucket> buckets = Maps.newConcurrentMap();
+
+	double accountRate = -1;
+	double accountReservation = 0;
+	double regionRate = -1;
+	double defaultServiceRate = DEFAULT_SERVICE_RATE;
+	double burstSeconds = DEFAULT_BURST_SECONDS;
+	Map<String, Double> serviceRates = new ConcurrentHashMap<>(ImmutableMap.of("route53", DEFAULT_ROUTE53_RATE));
+	Map<String, Double> serviceReservations = Maps.newConcurrentMap();
+
+	public static TokenBucketRegistry getInstance() {
+		return instance;
+	}
+
+	public TokenBucketRegistry withAccountRate(double ratePerSecond) {
+		this.accountRate = ratePerSecond;
+		return this;
+	}
+
+	/**
+	 * Reserve part of each account's rate for interactive callers.
+	 */
+	public TokenBucketRegistry withAccountReservation(double ratePerSecond) {
+		this.accountReservation = ratePerSecond;
+		return this;
+	}
+
+	public TokenBucketRegistry withRegionRate(double ratePerSecond) {
+		this.regionRate = ratePerSecond;
+		return this;
+	}
+
+	public TokenBucketRegistry withDefaultServiceRate(double ratePerSecond) {
+		this.defaultServiceRate = ratePerSecond;
+		return this;
+	}
+
+	public TokenBucketRegistry withServiceRate(String service, double ratePerSecond) {
+		serviceRates.put(service, ratePerSecond);
+		return this;
+	}
+
+	/**
+	 * Reserve part of the given service's rate for interactive callers.
+	 */
+	public TokenBucketRegistry withServiceReservation(String service, double ratePerSecond) {
+		serviceReservations.put(service, ratePerSecond);
+		return this;
+	}
+
+	/**
+	 * The capacity of each bucket, expressed as seconds' worth of its rate.
+	 */
+	public TokenBucketRegistry withBurstSeconds(double seconds) {
+		this.burstSeconds = seconds;
+		return this;
+	}
+
+	double getCapacity(double rate) {
+		return Math.max(1, rate * burstSeconds);
+	}
+
+	public TokenBucket getBucket(String account, String region, String service) {
+		TokenBucket accountBucket = buckets.computeIfAbsent(account,
+				k -> new TokenBucket(k, accountRate, getCapacity(accountRate)).withReservedRate(accountReservation));
+		TokenBucket regionBucket = buckets.computeIfAbsent(account + "/" + region,
+				k -> new TokenBucket(k, regionRate, getCapacity(regionRate), accountBucket));
+		return buckets.computeIfAbsent(account + "/" + region + "/" + service, k -> {
+			double rate = serviceRates.getOrDefault(service, defaultServiceRate);
+			return new TokenBucket(k, rate, getCapacity(rate), regionBucket)
+					.withReservedRate(serviceReservations.getOrDefault(service, 0d));
+		});
+	}
+
+	/**
+	 * Returns the tokens currently available in each bucket.
+	 */
+	public Map<String, Double> getAvailableTokens() {
+		Map<String, Double> available = new TreeMap<>();
+		buckets.forEach((k, v) -> available.put(k, v.getAvailableTokens()));
+		return available;
+	}
+
+	public void clear() {
+		buckets.clear();
+	}
+}
@@ -17,8 +17,6 @@ package org.lendingclub.mercator.aws;
 
 import java.util.Optional;
 
-import org.lendingclub.neorx.NeoRxClient;
-
 import com.amazonaws.services.ec2.AmazonEC2Client;
 import com.amazonaws.services.ec2.model.VpcPeeringConnection;
 import com.fasterxml.jackson.databind.JsonNode;
@@ -49,10 +47,8 @@ public class VPCPeeringConnectionScanner extends AbstractEC2NetworkInfrastructur
 	}
 
 	private void scanConnection(GraphNodeGarbageCollector gc, VpcPeeringConnection peeringConnection) {
-		NeoRxClient neo4j = getNeoRxClient();
 		ObjectNode n = convertAwsObject(peeringConnection, getRegion());
-		neo4j.execCypher("merge (n:AwsVpcPeeringConnection { aws_arn: {a} }) set n += {p} return n", "a",
-				n.path("aws_arn"), "p", n).forEach(gc.MERGE_ACTION);
+		getGraphWriter().merge("AwsVpcPeeringConnection", AWS_ARN_ATTRIBUTE, n, gc.MERGE_ACTION);
 		incrementEntityCount();
 	}
 
@@ -42,9 +42,10 @@ public class VPCScanner extends AbstractEC2NetworkInfrastructureScanner {
 		
 		result.getVpcs().forEach(it -> {
 			try {					
-				ObjectNode n = convertAwsObject(it, getRegion());
+				ObjectNode n = getShadowAttributeRemover().foldTagRemovals("AwsVpc", convertAwsObject(it, getRegion()));
 									
-				String cypher = "merge (x:AwsVpc {aws_arn:{aws_arn}}) set x+={props} set x.updateTs=timestamp() return x";
+				String cypher = "merge (x:AwsVpc {aws_arn:{aws_arn}}) set x+={props} set x.updateTs=timestamp() "
+						+ getShadowAttributeRemover().getReturnClause("x");
 				
 				String mapToSubnetCypher = "match (y:AwsSubnet {aws_vpcId:{aws_vpcId}}), "
 						+ "(x:AwsVpc {aws_arn:{aws_arn}}) "
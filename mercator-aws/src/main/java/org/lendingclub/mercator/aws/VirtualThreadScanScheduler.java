@@ -0,0 +1,57 @@
+/**
+ * Copyright 2017 Lending Club, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lendingclub.mercator.aws;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+
+import org.lendingclub.mercator.core.ScannerExecutors;
+
+/**
+ * Runs every scanner on its own virtual thread. There is no queueing, so
+ * fairness between accounts comes from their separate API budgets rather than
+ * from the scheduler.
+ */
+public class VirtualThreadScanScheduler implements ScanScheduler {
+
+	private static volatile VirtualThreadScanScheduler defaultInstance;
+
+	ExecutorService executor;
+
+	public VirtualThreadScanScheduler() {
+		this.executor = ScannerExecutors.newVirtualThreadPerTaskExecutor("aws-scanner-");
+	}
+
+	public static VirtualThreadScanScheduler getDefault() {
+		if (defaultInstance == null) {
+			synchronized (VirtualThreadScanScheduler.class) {
+				if (defaultInstance == null) {
+					defaultInstance = new VirtualThreadScanScheduler();
+				}
+			}
+		}
+		return defaultInstance;
+	}
+
+	@Override
+	public Executor getExecutor(String tenant) {
+		return executor;
+	}
+
+	public void shutdown() {
+		executor.shutdown();
+	}
+}
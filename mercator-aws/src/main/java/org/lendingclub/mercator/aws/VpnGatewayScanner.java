@@ -17,8 +17,6 @@ package org.lendingclub.mercator.aws;
 
 import java.util.Optional;
 
-import org.lendingclub.neorx.NeoRxClient;
-
 import com.amazonaws.services.ec2.AmazonEC2Client;
 import com.amazonaws.services.ec2.model.VpnGateway;
 import com.fasterxml.jackson.databind.JsonNode;
@@ -43,10 +41,8 @@ public class VpnGatewayScanner extends AbstractEC2NetworkInfrastructureScanner {
 	}
 
 	private void scanVpnGateway(GraphNodeGarbageCollector gc, VpnGateway c) {
-		NeoRxClient neo4j = getNeoRxClient();
 		ObjectNode n = convertAwsObject(c, getRegion());
-		neo4j.execCypher("merge (n:AwsVpnGateway { aws_arn: {a} }) set n += {p} return n", "a",
-				n.path("aws_arn"), "p", n).forEach(gc.MERGE_ACTION);
+		getGraphWriter().merge("AwsVpnGateway", AWS_ARN_ATTRIBUTE, n, gc.MERGE_ACTION);
 		incrementEntityCount();
 	}
 
@@ -0,0 +1,99 @@
+/**
+ * Copyright 2017 Lending Club, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lendingclub.mercator.aws;
+
+import java.util.concurrent.TimeUnit;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.DefaultRequest;
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.regions.Region;
+import com.amazonaws.regions.Regions;
+import com.amazonaws.services.ec2.AmazonEC2Client;
+import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
+import com.amazonaws.util.AWSRequestMetricsFullSupport;
+
+public class AWSClientRegistryTest extends AbstractUnitTest {
+
+	AWSCredentialsProvider credentials = new AWSStaticCredentialsProvider(new BasicAWSCredentials("a", "b"));
+
+	@Test
+	public void testClientsAreShared() {
+		AWSClientRegistry registry = new AWSClientRegistry();
+		Region region = Region.getRegion(Regions.US_WEST_2);
+		ClientConfiguration config = new ClientConfiguration();
+
+		AmazonEC2Client c1 = registry.getClient(AmazonEC2Client.class, "111222333444", region, credentials, config,
+				() -> Mockito.mock(AmazonEC2Client.class));
+		AmazonEC2Client c2 = registry.getClient(AmazonEC2Client.class, "111222333444", region, credentials, config,
+				() -> Mockito.mock(AmazonEC2Client.class));
+		Assertions.assertThat(c2).isSameAs(c1);
+
+		Assertions.assertThat(registry.getClient(AmazonEC2Client.class, "111222333444",
+				Region.getRegion(Regions.US_EAST_1), credentials, config, () -> Mockito.mock(AmazonEC2Client.class)))
+				.isNotSameAs(c1);
+		Assertions.assertThat(registry.getClient(AmazonEC2Client.class, "111222333444", region,
+				new AWSStaticCredentialsProvider(new BasicAWSCredentials("a", "b")), config,
+				() -> Mockito.mock(AmazonEC2Client.class))).isNotSameAs(c1);
+		Assertions.assertThat(registry.getClient(AmazonEC2Client.class, "111222333444", region, credentials,
+				new ClientConfiguration(), () -> Mockito.mock(AmazonEC2Client.class))).isNotSameAs(c1);
+
+		Assertions.assertThat(registry.size()).isEqualTo(4);
+		Assertions.assertThat(registry.getHitCount()).isEqualTo(1);
+		Assertions.assertThat(registry.getMissCount()).isEqualTo(4);
+	}
+
+	@Test
+	public void testIdleClientsAreShutDown() {
+		AWSClientRegistry registry = new AWSClientRegistry().withIdleTimeout(1, TimeUnit.MINUTES);
+		AmazonEC2Client client = registry.getClient(AmazonEC2Client.class, "111222333444",
+				Region.getRegion(Regions.US_WEST_2), credentials, null, () -> Mockito.mock(AmazonEC2Client.class));
+
+		Assertions.assertThat(registry.evictIdleClients()).isEqualTo(0);
+		Mockito.verify(client, Mockito.never()).shutdown();
+
+		Assertions.assertThat(registry.evictIdleClients(System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(2)))
+				.isEqualTo(1);
+		Mockito.verify(client).shutdown();
+		Assertions.assertThat(registry.size()).isEqualTo(0);
+		Assertions.assertThat(registry.getEvictionCount()).isEqualTo(1);
+		Assertions.assertThat(registry.toJson().path("evictions").asLong()).isEqualTo(1);
+	}
+
+	@Test
+	public void testMetricsAreRoutedToTheScanningScanner() {
+		EC2InstanceScanner scanner = getProjector().createBuilder(AWSScannerBuilder.class)
+				.withAccountId("111222333444").withRegion(Regions.US_WEST_2).build(EC2InstanceScanner.class);
+		EC2InstanceScanner other = getProjector().createBuilder(AWSScannerBuilder.class)
+				.withAccountId("111222333444").withRegion(Regions.US_WEST_2).build(EC2InstanceScanner.class);
+
+		DefaultRequest<?> request = new DefaultRequest<>(new DescribeInstancesRequest(), "AmazonEC2");
+		request.setAWSRequestMetrics(new AWSRequestMetricsFullSupport());
+
+		scanner.new AWSScannerContext().exec(ctx -> {
+			ScannerMetricCollector.ROUTER.collectMetrics(request, null);
+		});
+
+		Assertions.assertThat(scanner.getRequestMetricsSnapshot().getTotal().getRequestCount()).isEqualTo(1);
+		Assertions.assertThat(other.getRequestMetricsSnapshot().getTotal().getRequestCount()).isEqualTo(0);
+	}
+}
@@ -0,0 +1,134 @@
+/**
+ * Copyright 2017 Lending Club, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lendingclub.mercator.aws;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+import org.lendingclub.mercator.core.Projector;
+import org.lendingclub.mercator.core.RecordingNeoRxClient;
+import org.lendingclub.mercator.core.ScannerContext;
+import org.mockito.ArgumentMatchers;
+import org.mockito.Mockito;
+
+import com.amazonaws.services.identitymanagement.AmazonIdentityManagementClient;
+import com.amazonaws.services.identitymanagement.model.AttachedPolicy;
+import com.amazonaws.services.identitymanagement.model.GetAccountAuthorizationDetailsRequest;
+import com.amazonaws.services.identitymanagement.model.GetAccountAuthorizationDetailsResult;
+import com.amazonaws.services.identitymanagement.model.GroupDetail;
+import com.amazonaws.services.identitymanagement.model.InstanceProfile;
+import com.amazonaws.services.identitymanagement.model.ListInstanceProfilesRequest;
+import com.amazonaws.services.identitymanagement.model.ListInstanceProfilesResult;
+import com.amazonaws.services.identitymanagement.model.ManagedPolicyDetail;
+import com.amazonaws.services.identitymanagement.model.PolicyDetail;
+import com.amazonaws.services.identitymanagement.model.Role;
+import com.amazonaws.services.identitymanagement.model.RoleDetail;
+import com.amazonaws.services.identitymanagement.model.UserDetail;
+import com.fasterxml.jackson.databind.JsonNode;
+
+public class AccountAuthorizationDetailsScannerTest {
+
+	static final String ROLE_ARN = "arn:aws:iam::111222333444:role/app";
+	static final String USER_ARN = "arn:aws:iam::111222333444:user/bob";
+	static final String GROUP_ARN = "arn:aws:iam::111222333444:group/admins";
+	static final String POLICY_ARN = "arn:aws:iam::111222333444:policy/app-policy";
+
+	RecordingNeoRxClient neo4j = new RecordingNeoRxClient();
+
+	AmazonIdentityManagementClient client = Mockito.mock(AmazonIdentityManagementClient.class);
+
+	AccountAuthorizationDetailsScanner newScanner() {
+		Projector projector = new Projector.Builder().withNeoRxClient(neo4j.getNeoRxClient()).build();
+		AWSScannerBuilder builder = projector.createBuilder(AWSScannerBuilder.class).withAccountId("111222333444");
+		return new AccountAuthorizationDetailsScanner(builder) {
+
+			@Override
+			public synchronized AmazonIdentityManagementClient getClient() {
+				return client;
+			}
+
+			@Override
+			public void rateLimit() {
+				// no shared budget in unit tests
+			}
+		};
+	}
+
+	JsonNode rowsOf(String fragment) {
+		return neo4j.findStatement(fragment).getRows();
+	}
+
+	@Test
+	public void testScan() {
+		RoleDetail role = new RoleDetail().withArn(ROLE_ARN).withRoleName("app")
+				.withAssumeRolePolicyDocument("%7B%7D")
+				.withRolePolicyList(new PolicyDetail().withPolicyName("inline").withPolicyDocument("%7B%22a%22%7D"))
+				.withAttachedManagedPolicies(new AttachedPolicy().withPolicyArn(POLICY_ARN))
+				.withInstanceProfileList(new InstanceProfile().withArn("arn:aws:iam::111222333444:instance-profile/app")
+						.withRoles(new Role().withArn(ROLE_ARN)));
+		UserDetail user = new UserDetail().withArn(USER_ARN).withUserName("bob").withGroupList("admins");
+		GroupDetail group = new GroupDetail().withArn(GROUP_ARN).withGroupName("admins")
+				.withAttachedManagedPolicies(new AttachedPolicy().withPolicyArn(POLICY_ARN));
+		ManagedPolicyDetail policy = new ManagedPolicyDetail().withArn(POLICY_ARN).withPolicyName("app-policy")
+				.withAttachmentCount(2);
+		ManagedPolicyDetail unused = new ManagedPolicyDetail().withArn("arn:aws:iam::aws:policy/Unused")
+				.withAttachmentCount(0);
+
+		Mockito.when(client.getAccountAuthorizationDetails(ArgumentMatchers.any(GetAccountAuthorizationDetailsRequest.class)))
+				.thenReturn(new GetAccountAuthorizationDetailsResult().withRoleDetailList(role).withUserDetailList(user)
+						.withIsTruncated(true).withMarker("m1"))
+				.thenReturn(new GetAccountAuthorizationDetailsResult().withGroupDetailList(group)
+						.withPolicies(policy, unused).withIsTruncated(false));
+		// a profile without a role is only returned by ListInstanceProfiles
+		Mockito.when(client.listInstanceProfiles(ArgumentMatchers.any(ListInstanceProfilesRequest.class)))
+				.thenReturn(new ListInstanceProfilesResult().withInstanceProfiles(
+						new InstanceProfile().withArn("arn:aws:iam::111222333444:instance-profile/app")
+								.withRoles(new Role().withArn(ROLE_ARN)),
+						new InstanceProfile().withArn("arn:aws:iam::111222333444:instance-profile/empty"))
+						.withIsTruncated(false));
+
+		AccountAuthorizationDetailsScanner scanner = newScanner();
+		new ScannerContext().exec(ctx -> {
+			scanner.doGlobalScan();
+		});
+
+		Mockito.verify(client, Mockito.times(2)).getAccountAuthorizationDetails(ArgumentMatchers.any());
+
+		Assertions.assertThat(rowsOf("merge (n:AwsIamRole").get(0).path("aws_assumeRolePolicyDocument").asText())
+				.isEqualTo("{}");
+		Assertions.assertThat(rowsOf("merge (n:AwsIamUser").size()).isEqualTo(1);
+		Assertions.assertThat(rowsOf("merge (n:AwsIamGroup").size()).isEqualTo(1);
+		Assertions.assertThat(rowsOf("merge (n:AwsInstanceProfile").size()).isEqualTo(2);
+		Assertions.assertThat(rowsOf("merge (n:AwsIamManagedPolicy").size()).isEqualTo(1);
+
+		JsonNode inline = rowsOf("match (n:AwsIamRole { aws_arn: row.arn }) unwind row.policies");
+		Assertions.assertThat(inline.get(0).path("policies").get(0).path("document").asText()).isEqualTo("{\"a\"}");
+
+		Assertions.assertThat(rowsOf("(b:AwsIamGroup { aws_arn: targetValue })  merge (a)-[r:MEMBER_OF]->(b)")
+				.toString()).isEqualTo("[{\"fromArn\":\"" + USER_ARN + "\",\"targetValues\":[\"" + GROUP_ARN + "\"]}]");
+		Assertions.assertThat(rowsOf("(b:AwsIamRole { aws_arn: targetValue })  merge (a)-[r:ATTACHED_TO]->(b)")
+				.toString()).isEqualTo("[{\"fromArn\":\"" + POLICY_ARN + "\",\"targetValues\":[\"" + ROLE_ARN + "\"]}]");
+		Assertions.assertThat(rowsOf("(b:AwsIamUser { aws_arn: targetValue })  merge (a)-[r:ATTACHED_TO]->(b)")
+				.toString()).isEqualTo("[{\"fromArn\":\"" + POLICY_ARN + "\",\"targetValues\":[]}]");
+	}
+
+	@Test
+	public void testScannerGroup() {
+		Projector projector = new Projector.Builder().withNeoRxClient(neo4j.getNeoRxClient()).build();
+		IAMScannerGroup group = projector.createBuilder(AWSScannerBuilder.class).withAccountId("111222333444")
+				.withIamAuthorizationDetails(true).build(IAMScannerGroup.class);
+		Assertions.assertThat(group.getScannerTypes()).containsExactly(AccountAuthorizationDetailsScanner.class);
+	}
+}
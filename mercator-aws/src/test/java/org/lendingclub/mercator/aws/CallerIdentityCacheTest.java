@@ -0,0 +1,119 @@
+/**
+ * Copyright 2017 Lending Club, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lendingclub.mercator.aws;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.auth.BasicSessionCredentials;
+import com.amazonaws.regions.Regions;
+
+public class CallerIdentityCacheTest extends AbstractUnitTest {
+
+	AtomicLong lookups = new AtomicLong();
+
+	String lookup(AWSCredentialsProvider p) {
+		lookups.incrementAndGet();
+		return "111222333444";
+	}
+
+	@Test
+	public void testAccountIsLookedUpOnce() {
+		CallerIdentityCache cache = new CallerIdentityCache();
+		AWSCredentialsProvider p = new AWSStaticCredentialsProvider(new BasicAWSCredentials("AKIAEXAMPLE", "x"));
+
+		Assertions.assertThat(cache.getAccountIdIfPresent(p).isPresent()).isFalse();
+		Assertions.assertThat(cache.getAccountId(p, this::lookup)).isEqualTo("111222333444");
+		Assertions.assertThat(cache.getAccountId(p, this::lookup)).isEqualTo("111222333444");
+		Assertions.assertThat(cache.getAccountIdIfPresent(p).get()).isEqualTo("111222333444");
+		Assertions.assertThat(lookups.get()).isEqualTo(1);
+		Assertions.assertThat(cache.getLookupCount()).isEqualTo(1);
+		Assertions.assertThat(cache.getHitCount()).isEqualTo(1);
+	}
+
+	@Test
+	public void testPersistence() throws IOException {
+		File file = new File(Files.createTempDirectory("mercator").toFile(), "accounts.json");
+
+		CallerIdentityCache cache = new CallerIdentityCache().withFile(file);
+		cache.getAccountId(new AWSStaticCredentialsProvider(new BasicAWSCredentials("AKIAEXAMPLE", "x")),
+				this::lookup);
+		cache.getAccountId(
+				new AWSStaticCredentialsProvider(new BasicSessionCredentials("ASIAEXAMPLE", "x", "token")),
+				this::lookup);
+		Assertions.assertThat(lookups.get()).isEqualTo(2);
+		Assertions.assertThat(file.exists()).isTrue();
+		String json = new String(Files.readAllBytes(file.toPath()), "UTF-8");
+		Assertions.assertThat(json).doesNotContain("AKIAEXAMPLE").doesNotContain("ASIAEXAMPLE");
+
+		// a new process with the same long-lived key does not need to call STS
+		CallerIdentityCache restarted = new CallerIdentityCache().withFile(file);
+		Assertions.assertThat(restarted.getAccountId(
+				new AWSStaticCredentialsProvider(new BasicAWSCredentials("AKIAEXAMPLE", "x")), this::lookup))
+				.isEqualTo("111222333444");
+		Assertions.assertThat(lookups.get()).isEqualTo(2);
+
+		// session credentials are temporary and are not persisted
+		restarted.getAccountId(
+				new AWSStaticCredentialsProvider(new BasicSessionCredentials("ASIAEXAMPLE", "x", "token")),
+				this::lookup);
+		Assertions.assertThat(lookups.get()).isEqualTo(3);
+	}
+
+	@Test
+	public void testAssumeRole() {
+		CallerIdentityCache cache = new CallerIdentityCache();
+		AWSCredentialsProvider p = cache.getAssumeRoleCredentialsProvider("arn:aws:iam::555666777888:role/scanner",
+				"mercator");
+		Assertions.assertThat(cache.getAssumeRoleCredentialsProvider("arn:aws:iam::555666777888:role/scanner",
+				"mercator")).isSameAs(p);
+		Assertions.assertThat(cache.getAccountIdIfPresent(p).get()).isEqualTo("555666777888");
+		Assertions.assertThat(cache.getAccountId(p, this::lookup)).isEqualTo("555666777888");
+		Assertions.assertThat(lookups.get()).isEqualTo(0);
+	}
+
+	@Test
+	public void testToStringDoesNotCallSTS() {
+		EC2InstanceScanner scanner = getProjector().createBuilder(AWSScannerBuilder.class)
+				.withCredentials(new AWSStaticCredentialsProvider(new BasicAWSCredentials("AKIAUNKNOWN", "x")))
+				.build(EC2InstanceScanner.class);
+		Assertions.assertThat(scanner.toString()).contains("aws_account=unknown");
+
+		scanner = getProjector().createBuilder(AWSScannerBuilder.class).withAccountId("111222333444")
+				.build(EC2InstanceScanner.class);
+		Assertions.assertThat(scanner.toString()).contains("aws_account=111222333444");
+	}
+
+	@Test
+	public void testTenantUsesResolvedAccount() {
+		AWSCredentialsProvider p = new AWSStaticCredentialsProvider(new BasicAWSCredentials("AKIATENANT", "x"));
+		CallerIdentityCache.getInstance().getAccountId(p, it -> "999888777666");
+
+		AWSScannerBuilder builder = getProjector().createBuilder(AWSScannerBuilder.class).withCredentials(p)
+				.withRegion(Regions.US_WEST_2);
+		AllEntityScanner group = builder.build(AllEntityScanner.class);
+		Assertions.assertThat(group.getTenant(builder.build(EC2InstanceScanner.class)))
+				.isEqualTo("999888777666/us-west-2");
+	}
+}
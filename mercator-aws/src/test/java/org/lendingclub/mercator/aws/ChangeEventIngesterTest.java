@@ -0,0 +1,119 @@
+/**
+ * Copyright 2017 Lending Club, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lendingclub.mercator.aws;
+
+import java.io.StringReader;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+import org.lendingclub.mercator.core.Projector;
+import org.lendingclub.mercator.core.RecordingNeoRxClient;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.google.common.collect.Lists;
+
+public class ChangeEventIngesterTest {
+
+	List<String> rescans = Lists.newArrayList();
+	List<ChangeEvent> acknowledged = Lists.newArrayList();
+
+	String event(String instanceId) {
+		return event("111222333444", instanceId);
+	}
+
+	String event(String account, String instanceId) {
+		return "{\"detail-type\":\"EC2 Instance State-change Notification\",\"account\":\"" + account + "\","
+				+ "\"region\":\"us-west-2\",\"detail\":{\"instance-id\":\"" + instanceId + "\"}}\n";
+	}
+
+	ChangeEventIngester newIngester(String input, String missing) {
+		Projector projector = new Projector.Builder().withNeoRxClient(new RecordingNeoRxClient().getNeoRxClient())
+				.build();
+		ChangeEventSource source = new StreamChangeEventSource(new StringReader(input)) {
+
+			@Override
+			public void acknowledge(List<ChangeEvent> events) {
+				acknowledged.addAll(events);
+			}
+		};
+		return new ChangeEventIngester(projector.createBuilder(AWSScannerBuilder.class).withAccountId("111222333444"),
+				source) {
+
+			@Override
+			void rescan(ResourceChange change, String... ids) {
+				rescans.add(change.getType() + ":" + String.join(",", ids));
+				if (missing != null && Lists.newArrayList(ids).contains(missing)) {
+					AmazonServiceException e = new AmazonServiceException("not found");
+					e.setErrorCode("InvalidInstanceID.NotFound");
+					throw e;
+				}
+			}
+		}.withCoalesceWindow(1, TimeUnit.SECONDS);
+	}
+
+	@Test
+	public void testEventsAreCoalesced() {
+		ChangeEventIngester ingester = newIngester(event("i-1") + event("i-2") + "\n" + event("i-1"), null);
+		ingester.run();
+
+		Assertions.assertThat(rescans).containsExactly("EC2_INSTANCE:i-1,i-2");
+		Assertions.assertThat(acknowledged).hasSize(3);
+		Assertions.assertThat(ingester.getEventCount()).isEqualTo(3);
+		Assertions.assertThat(ingester.getChangeCount()).isEqualTo(2);
+	}
+
+	@Test
+	public void testMissingResourceIsRetriedAlone() {
+		ChangeEventIngester ingester = newIngester(event("i-1") + event("i-2"), "i-2");
+		ingester.run();
+
+		Assertions.assertThat(rescans).containsExactly("EC2_INSTANCE:i-1,i-2", "EC2_INSTANCE:i-1", "EC2_INSTANCE:i-2");
+		Assertions.assertThat(acknowledged).hasSize(2);
+	}
+
+	@Test
+	public void testUnregisteredAccountIsIgnored() {
+		ChangeEventIngester ingester = newIngester(event("i-1"), null).withAccount("999999999999",
+				new AWSStaticCredentialsProvider(new BasicAWSCredentials("key", "secret")));
+		ingester.run();
+
+		Assertions.assertThat(rescans).isEmpty();
+		Assertions.assertThat(acknowledged).hasSize(1);
+	}
+
+	@Test
+	public void testOtherAccountIsIgnoredWithoutRegisteredAccounts() {
+		ChangeEventIngester ingester = newIngester(event("999999999999", "i-1") + event("i-2"), null);
+		ingester.run();
+
+		Assertions.assertThat(rescans).containsExactly("EC2_INSTANCE:i-2");
+		Assertions.assertThat(acknowledged).hasSize(2);
+	}
+
+	@Test
+	public void testScannerBuilderKeepsTheBuilderAccount() {
+		ChangeEventIngester ingester = newIngester("", null);
+		ResourceChange change = new ResourceChange(ResourceChange.Type.ELB, "111222333444", "us-west-2", "elb-1");
+		AWSScannerBuilder builder = ingester.createScannerBuilder(change);
+
+		Assertions.assertThat(builder.getAccountIdSupplier().get()).isEqualTo("111222333444");
+		Assertions.assertThat(builder.getRegion().getName()).isEqualTo("us-west-2");
+	}
+}
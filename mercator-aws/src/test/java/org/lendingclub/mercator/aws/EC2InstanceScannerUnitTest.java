@@ -16,18 +16,33 @@
 package org.lendingclub.mercator.aws;
 
 import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
 
 import org.assertj.core.api.Assertions;
 import org.assertj.core.util.Lists;
 import org.junit.Test;
 import org.lendingclub.mercator.core.MercatorException;
+import org.lendingclub.mercator.core.Projector;
+import org.lendingclub.mercator.core.RecordingNeoRxClient;
+import org.mockito.Mockito;
 
 import com.amazonaws.regions.Region;
 import com.amazonaws.regions.Regions;
+import com.amazonaws.services.ec2.AmazonEC2Client;
+import com.amazonaws.services.ec2.model.AvailabilityZone;
+import com.amazonaws.services.ec2.model.DescribeAvailabilityZonesResult;
+import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
+import com.amazonaws.services.ec2.model.DescribeInstancesResult;
+import com.amazonaws.services.ec2.model.GroupIdentifier;
 import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.InstanceState;
+import com.amazonaws.services.ec2.model.Reservation;
 import com.amazonaws.services.ec2.model.Tag;
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 
 public class EC2InstanceScannerUnitTest extends AbstractUnitTest {
@@ -61,6 +76,37 @@ public class EC2InstanceScannerUnitTest extends AbstractUnitTest {
 
 	}
 
+	@Test
+	public void testScanGenerationName() {
+		EC2InstanceScanner scanner = getProjector().createBuilder(AWSScannerBuilder.class).withAccountId("111222333444")
+				.withRegion(Regions.US_WEST_2).build(EC2InstanceScanner.class);
+		Assertions.assertThat(scanner.getScanGenerationName()).isEqualTo("EC2InstanceScanner/111222333444/us-west-2");
+	}
+
+	@Test
+	public void testBuilderOptions() {
+		AWSScannerBuilder builder = getProjector().createBuilder(AWSScannerBuilder.class).withAccountId("111222333444")
+				.withRegion(Regions.US_WEST_2).withPageProjection(true).withEc2InstancePageSize(500)
+				.withEc2InstancePrefetch(true)
+				.withEc2InstanceSharding(EC2InstanceScanner.ShardFilter.AVAILABILITY_ZONE, 2);
+
+		// options survive the copies made for nested and multi-account scanners
+		EC2InstanceScanner scanner = new AWSScannerBuilder(builder).withRegion(Regions.US_WEST_2)
+				.build(EC2InstanceScanner.class);
+		Assertions.assertThat(scanner.pageProjectionEnabled).isTrue();
+		Assertions.assertThat(scanner.pageSize).isEqualTo(500);
+		Assertions.assertThat(scanner.prefetchEnabled).isTrue();
+		Assertions.assertThat(scanner.shardFilter).isEqualTo(EC2InstanceScanner.ShardFilter.AVAILABILITY_ZONE);
+		Assertions.assertThat(scanner.shardConcurrency).isEqualTo(2);
+
+		EC2InstanceScanner defaults = getProjector().createBuilder(AWSScannerBuilder.class)
+				.withAccountId("111222333444").build(EC2InstanceScanner.class);
+		Assertions.assertThat(defaults.pageProjectionEnabled).isFalse();
+		Assertions.assertThat(defaults.pageSize).isEqualTo(EC2InstanceScanner.DEFAULT_PAGE_SIZE);
+		Assertions.assertThat(defaults.prefetchEnabled).isFalse();
+		Assertions.assertThat(defaults.shardFilter).isEqualTo(EC2InstanceScanner.ShardFilter.NONE);
+	}
+
 	@Test
 	public void testFailOnErrorDisabled() {
 		EC2InstanceScanner scanner = getProjector().createBuilder(AWSScannerBuilder.class).withAccountId("111222333444")
@@ -90,4 +136,180 @@ public class EC2InstanceScannerUnitTest extends AbstractUnitTest {
 		}
 	}
 
+	@Test
+	public void testPendingWritesAreFlushedWhenScanFails() {
+		RecordingNeoRxClient neo4j = new RecordingNeoRxClient();
+		AWSScannerBuilder builder = new Projector.Builder().withNeoRxClient(neo4j.getNeoRxClient())
+				.withSchemaManagement(false).build().createBuilder(AWSScannerBuilder.class)
+				.withAccountId("111222333444").withRegion(Regions.US_WEST_2);
+		EC2InstanceScanner scanner = new EC2InstanceScanner(builder) {
+
+			@Override
+			protected void doScan() {
+				getGraphWriter().merge("AwsEc2Instance", "aws_arn",
+						mapper.createObjectNode().put("aws_arn", "arn:aws:ec2:us-west-2:111222333444:instance/i-1"));
+				throw new IllegalStateException("boom");
+			}
+		};
+		scanner.scan();
+
+		Assertions.assertThat(neo4j.findStatement("unwind {rows} as row merge (x:AwsEc2Instance")).isNotNull();
+		Assertions.assertThat(scanner.getGraphWriter().getPendingCount()).isEqualTo(0);
+	}
+
+	@Test
+	public void testSecurityGroupLinksAreFlushedWhenScanFails() {
+		RecordingNeoRxClient neo4j = new RecordingNeoRxClient();
+		EC2InstanceScanner scanner = newMockScanner(new Projector.Builder().withNeoRxClient(neo4j.getNeoRxClient())
+				.withSchemaManagement(false).build());
+		Mockito.when(client.describeInstances(Mockito.any(DescribeInstancesRequest.class))).thenAnswer(invocation -> {
+			DescribeInstancesRequest request = invocation.getArgument(0);
+			if (request.getNextToken() != null) {
+				throw new IllegalStateException("boom");
+			}
+			Instance instance = new Instance().withInstanceId("i-1")
+					.withState(new InstanceState().withName("running"))
+					.withSecurityGroups(new GroupIdentifier().withGroupId("sg-1"));
+			return new DescribeInstancesResult().withReservations(new Reservation().withInstances(instance))
+					.withNextToken("2");
+		});
+		scanner.scan();
+
+		Assertions.assertThat(neo4j.findStatement("merge (a)-[r:ATTACHED_TO]->(b)").getRows()).hasSize(1);
+	}
+
+	AmazonEC2Client client = Mockito.mock(AmazonEC2Client.class);
+
+	List<DescribeInstancesRequest> requests = Collections.synchronizedList(Lists.newArrayList());
+
+	EC2InstanceScanner newMockScanner() {
+		return newMockScanner(getProjector());
+	}
+
+	EC2InstanceScanner newMockScanner(Projector projector) {
+		AWSScannerBuilder builder = projector.createBuilder(AWSScannerBuilder.class).withAccountId("111222333444")
+				.withRegion(Regions.US_WEST_2);
+		return new EC2InstanceScanner(builder) {
+
+			@Override
+			public AmazonEC2Client getClient() {
+				return client;
+			}
+
+			@Override
+			public void rateLimit() {
+				// no shared budget in unit tests
+			}
+		};
+	}
+
+	/**
+	 * Answer DescribeInstances with two pages of instances named after the
+	 * request's filter value.
+	 */
+	void mockDescribeInstances() {
+		Mockito.when(client.describeInstances(Mockito.any(DescribeInstancesRequest.class))).thenAnswer(invocation -> {
+			DescribeInstancesRequest request = invocation.getArgument(0);
+			requests.add(request);
+			String shard = request.getFilters().isEmpty() ? "all" : request.getFilters().get(0).getValues().get(0);
+			String page = request.getNextToken() == null ? "1" : request.getNextToken();
+			Reservation reservation = new Reservation().withInstances(new Instance().withInstanceId(shard + "-" + page));
+			return new DescribeInstancesResult().withReservations(reservation)
+					.withNextToken(page.equals("1") ? "2" : null);
+		});
+	}
+
+	@Test
+	public void testPrefetchedPagesAreWrittenInOrder() {
+		mockDescribeInstances();
+		List<String> ids = Lists.newArrayList();
+		newMockScanner().withPageSize(500).withPrefetch(true).forEachInstance(it -> ids.add(it.getInstanceId()));
+
+		Assertions.assertThat(ids).containsExactly("all-1", "all-2");
+		Assertions.assertThat(requests).hasSize(2);
+		Assertions.assertThat(requests.get(0).getMaxResults()).isEqualTo(500);
+		Assertions.assertThat(requests.get(1).getNextToken()).isEqualTo("2");
+	}
+
+	void mockAvailabilityZones() {
+		Mockito.when(client.describeAvailabilityZones()).thenReturn(new DescribeAvailabilityZonesResult()
+				.withAvailabilityZones(new AvailabilityZone().withZoneName("us-west-2a"),
+						new AvailabilityZone().withZoneName("us-west-2b"),
+						new AvailabilityZone().withZoneName("us-west-2c")));
+	}
+
+	@Test
+	public void testShardByAvailabilityZone() {
+		mockDescribeInstances();
+		mockAvailabilityZones();
+		List<String> ids = Collections.synchronizedList(Lists.newArrayList());
+		newMockScanner().withSharding(EC2InstanceScanner.ShardFilter.AVAILABILITY_ZONE, 2)
+				.forEachInstance(it -> ids.add(it.getInstanceId()));
+
+		Assertions.assertThat(ids).containsOnly("us-west-2a-1", "us-west-2a-2", "us-west-2b-1", "us-west-2b-2",
+				"us-west-2c-1", "us-west-2c-2").hasSize(6);
+		Assertions.assertThat(requests).hasSize(6);
+		Assertions.assertThat(requests.get(0).getFilters().get(0).getName()).isEqualTo("availability-zone");
+	}
+
+	@Test
+	public void testShardFailure() {
+		mockAvailabilityZones();
+		Mockito.when(client.describeInstances(Mockito.any(DescribeInstancesRequest.class)))
+				.thenThrow(new IllegalStateException("boom"));
+		try {
+			newMockScanner().withSharding(EC2InstanceScanner.ShardFilter.AVAILABILITY_ZONE, 2).forEachInstance(it -> {
+			});
+			Assertions.failBecauseExceptionWasNotThrown(IllegalStateException.class);
+		} catch (IllegalStateException e) {
+			Assertions.assertThat(e).hasMessage("boom");
+		}
+		Mockito.verify(client, Mockito.times(3))
+				.describeInstances(Mockito.any(DescribeInstancesRequest.class));
+	}
+
+	@Test
+	public void testPageProjection() {
+		RecordingNeoRxClient neo4j = new RecordingNeoRxClient().withAnswer(statement -> {
+			List<JsonNode> result = Lists.newArrayList();
+			for (JsonNode row : statement.getRows()) {
+				result.add(mapper.createObjectNode().put("aws_arn", row.path("arn").asText()).put("updateTs",
+						1000L + result.size()));
+			}
+			return result;
+		});
+		List<String> statements = neo4j.getStatements();
+		EC2InstanceScanner scanner = newMockScanner(
+				new Projector.Builder().withNeoRxClient(neo4j.getNeoRxClient()).build())
+				.withPageProjection(true);
+
+		Instance running = new Instance().withInstanceId("i-1").withImageId("ami-1").withSubnetId("subnet-1")
+				.withState(new InstanceState().withName("running"))
+				.withSecurityGroups(new GroupIdentifier().withGroupId("sg-1"), new GroupIdentifier().withGroupId("sg-2"));
+		Instance stopped = new Instance().withInstanceId("i-2").withState(new InstanceState().withName("stopped"));
+		Instance terminated = new Instance().withInstanceId("i-3")
+				.withState(new InstanceState().withName("terminated"));
+
+		GraphNodeGarbageCollector gc = new GraphNodeGarbageCollector();
+		Assertions.assertThat(scanner.writeInstances(Lists.newArrayList(running, stopped, terminated), gc))
+				.isEqualTo(2);
+
+		Assertions.assertThat(statements).hasSize(1);
+		Assertions.assertThat(statements.get(0)).startsWith("unwind {rows} as row merge (x:AwsEc2Instance")
+				.contains("delete stale").contains(":USES]").contains(":RESIDES_IN]").contains(":ATTACHED_TO]");
+		ArrayNode rows = neo4j.getStatement(0).getRows();
+		Assertions.assertThat(rows.size()).isEqualTo(2);
+		Assertions.assertThat(rows.get(0).path("arn").asText())
+				.isEqualTo("arn:aws:ec2:us-west-2:111222333444:instance/i-1");
+		Assertions.assertThat(rows.get(0).path("amiArn").asText()).isEqualTo("arn:aws:ec2:us-west-2::image/ami-1");
+		Assertions.assertThat(rows.get(0).path("subnetArn").asText())
+				.isEqualTo("arn:aws:ec2:us-west-2:111222333444:subnet/subnet-1");
+		Assertions.assertThat(rows.get(0).path("securityGroups").size()).isEqualTo(2);
+		Assertions.assertThat(rows.get(0).path("securityGroups").get(0).asText())
+				.isEqualTo("arn:aws:ec2:us-west-2:111222333444:security-group/sg-1");
+		Assertions.assertThat(rows.get(1).path("amiArn").isNull()).isTrue();
+		Assertions.assertThat(rows.get(1).path("securityGroups").size()).isEqualTo(0);
+		Assertions.assertThat(gc.timestamp).isEqualTo(1000L);
+	}
+
 }
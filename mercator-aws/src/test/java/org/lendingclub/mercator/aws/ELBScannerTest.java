@@ -0,0 +1,120 @@
+/**
+ * Copyright 2017 Lending Club, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lendingclub.mercator.aws;
+
+import java.util.List;
+
+import org.assertj.core.api.Assertions;
+import org.assertj.core.util.Lists;
+import org.junit.Test;
+import org.lendingclub.mercator.core.Projector;
+import org.lendingclub.mercator.core.RecordingNeoRxClient;
+import org.mockito.Mockito;
+
+import com.amazonaws.regions.Regions;
+import com.amazonaws.services.elasticloadbalancing.AmazonElasticLoadBalancingClient;
+import com.amazonaws.services.elasticloadbalancing.model.DescribeTagsRequest;
+import com.amazonaws.services.elasticloadbalancing.model.DescribeTagsResult;
+import com.amazonaws.services.elasticloadbalancing.model.Instance;
+import com.amazonaws.services.elasticloadbalancing.model.LoadBalancerDescription;
+import com.amazonaws.services.elasticloadbalancing.model.Tag;
+import com.amazonaws.services.elasticloadbalancing.model.TagDescription;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+
+public class ELBScannerTest extends AbstractUnitTest {
+
+	RecordingNeoRxClient neo4j = new RecordingNeoRxClient().withAnswer(statement -> {
+		List<JsonNode> result = Lists.newArrayList();
+		if (statement.getCypher().contains(" return ")) {
+			for (JsonNode row : statement.getRows()) {
+				result.add(mapper.createObjectNode().put("aws_arn", row.path("arn").asText()).put("updateTs",
+						1000L + result.size()));
+			}
+		}
+		return result;
+	});
+
+	List<String> statements = neo4j.getStatements();
+
+	AmazonElasticLoadBalancingClient client = Mockito.mock(AmazonElasticLoadBalancingClient.class);
+
+	ELBScanner newScanner() {
+		Projector projector = new Projector.Builder().withNeoRxClient(neo4j.getNeoRxClient()).build();
+		AWSScannerBuilder builder = projector.createBuilder(AWSScannerBuilder.class).withAccountId("111222333444")
+				.withRegion(Regions.US_WEST_2).withPageProjection(true);
+		return new ELBScanner(builder) {
+
+			@Override
+			public AmazonElasticLoadBalancingClient getClient() {
+				return client;
+			}
+
+			@Override
+			public void rateLimit() {
+				// no shared budget in unit tests
+			}
+		};
+	}
+
+	LoadBalancerDescription newElb(String name) {
+		return new LoadBalancerDescription().withLoadBalancerName(name).withSubnets("subnet-1", "subnet-2")
+				.withInstances(new Instance("i-1")).withSecurityGroups("sg-1");
+	}
+
+	@Test
+	public void testPageProjection() {
+		Mockito.when(client.describeTags(Mockito.any(DescribeTagsRequest.class)))
+				.thenReturn(new DescribeTagsResult().withTagDescriptions(
+						new TagDescription().withLoadBalancerName("a").withTags(new Tag().withKey("env").withValue("prod"))));
+
+		GraphNodeGarbageCollector gc = new GraphNodeGarbageCollector();
+		Assertions.assertThat(newScanner().projectElbPage(Lists.newArrayList(newElb("a"), newElb("b")), gc))
+				.isEqualTo(2);
+
+		// one node merge and a pair of statements for each relationship type
+		Assertions.assertThat(statements).hasSize(7);
+		Assertions.assertThat(statements.get(0)).startsWith("unwind {rows} as row merge (x:AwsElb");
+		ArrayNode rows = neo4j.getStatement(0).getRows();
+		Assertions.assertThat(rows.size()).isEqualTo(2);
+		Assertions.assertThat(rows.get(0).path("arn").asText())
+				.isEqualTo("arn:aws:elasticloadbalancing:us-west-2:111222333444:loadbalancer/a");
+		Assertions.assertThat(rows.get(0).path("props").path("aws_tag_env").asText()).isEqualTo("prod");
+		Assertions.assertThat(rows.get(0).path("props").path("aws_securityGroups").get(0).asText()).isEqualTo("sg-1");
+		Assertions.assertThat(rows.get(1).path("props").has("aws_tag_env")).isFalse();
+
+		Assertions.assertThat(statements.get(1)).contains("AVAILABLE_IN").contains("AwsSubnet");
+		Assertions.assertThat(neo4j.getStatement(1).getRows().get(0).path("targetValues").get(1).asText())
+				.isEqualTo("arn:aws:ec2:us-west-2:111222333444:subnet/subnet-2");
+		Assertions.assertThat(statements.get(2)).contains("delete r");
+		Assertions.assertThat(statements.get(3)).contains("DISTRIBUTES_TRAFFIC_TO");
+		Assertions.assertThat(neo4j.getStatement(3).getRows().get(0).path("targetValues").get(0).asText())
+				.isEqualTo("arn:aws:ec2:us-west-2:111222333444:instance/i-1");
+		Assertions.assertThat(statements.get(5)).contains("ATTACHED_TO").contains("AwsSecurityGroup");
+
+		Assertions.assertThat(gc.timestamp).isEqualTo(1000L);
+		Mockito.verify(client).describeTags(Mockito.any(DescribeTagsRequest.class));
+	}
+
+	@Test
+	public void testTagFailure() {
+		Mockito.when(client.describeTags(Mockito.any(DescribeTagsRequest.class)))
+				.thenThrow(new IllegalStateException("boom"));
+
+		Assertions.assertThat(newScanner().projectElbPage(Lists.newArrayList(newElb("a")), null)).isEqualTo(1);
+		Assertions.assertThat(statements).hasSize(7);
+	}
+}
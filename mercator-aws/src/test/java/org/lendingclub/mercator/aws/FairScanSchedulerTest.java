@@ -0,0 +1,141 @@
+/**
+ * Copyright 2017 Lending Club, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lendingclub.mercator.aws;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.assertj.core.api.Assertions;
+import org.junit.After;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+
+public class FairScanSchedulerTest {
+
+	FairScanScheduler scheduler;
+
+	List<String> completed = Collections.synchronizedList(Lists.newArrayList());
+
+	@After
+	public void shutdown() {
+		if (scheduler != null) {
+			scheduler.shutdown();
+		}
+	}
+
+	Runnable record(String name, CountDownLatch done) {
+		return () -> {
+			completed.add(name);
+			done.countDown();
+		};
+	}
+
+	Runnable block(CountDownLatch started, CountDownLatch release) {
+		return () -> {
+			started.countDown();
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				throw new RuntimeException(e);
+			}
+		};
+	}
+
+	@Test
+	public void testRoundRobin() throws InterruptedException {
+		scheduler = new FairScanScheduler(1);
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		CountDownLatch done = new CountDownLatch(5);
+
+		scheduler.submit("a", block(started, release));
+		Assertions.assertThat(started.await(5, TimeUnit.SECONDS)).isTrue();
+		scheduler.submit("a", record("a1", done));
+		scheduler.submit("a", record("a2", done));
+		scheduler.submit("a", record("a3", done));
+		scheduler.submit("b", record("b1", done));
+		scheduler.submit("b", record("b2", done));
+		release.countDown();
+
+		Assertions.assertThat(done.await(5, TimeUnit.SECONDS)).isTrue();
+		Assertions.assertThat(completed).containsExactly("a1", "b1", "a2", "b2", "a3");
+		Assertions.assertThat(scheduler.getQueueWait("a").get().getCount()).isEqualTo(4);
+		Assertions.assertThat(scheduler.toJson().path("tenants").path("b").path("completed").asLong()).isEqualTo(2);
+	}
+
+	@Test
+	public void testWorkerSurvivesError() throws InterruptedException {
+		scheduler = new FairScanScheduler(1);
+		CountDownLatch done = new CountDownLatch(1);
+
+		scheduler.submit("a", () -> {
+			throw new AssertionError("boom");
+		});
+		scheduler.submit("a", done::countDown);
+		Assertions.assertThat(done.await(5, TimeUnit.SECONDS)).isTrue();
+	}
+
+	@Test
+	public void testTenantConcurrencyLimit() throws InterruptedException {
+		scheduler = new FairScanScheduler(4).withMaxConcurrency("a", 1);
+		AtomicInteger running = new AtomicInteger();
+		AtomicInteger maxRunning = new AtomicInteger();
+		CountDownLatch done = new CountDownLatch(4);
+		for (int i = 0; i < 4; i++) {
+			scheduler.getExecutor("a").execute(() -> {
+				maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+				try {
+					Thread.sleep(20);
+				} catch (InterruptedException e) {
+					throw new RuntimeException(e);
+				}
+				running.decrementAndGet();
+				done.countDown();
+			});
+		}
+		Assertions.assertThat(done.await(5, TimeUnit.SECONDS)).isTrue();
+		Assertions.assertThat(maxRunning.get()).isEqualTo(1);
+	}
+
+	@Test
+	public void testBoundedQueue() throws InterruptedException {
+		scheduler = new FairScanScheduler(1).withMaxQueuedPerTenant(1);
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		scheduler.submit("a", block(started, release));
+		Assertions.assertThat(started.await(5, TimeUnit.SECONDS)).isTrue();
+
+		scheduler.submit("a", () -> {
+		});
+		try {
+			scheduler.submit("a", () -> {
+			});
+			Assertions.failBecauseExceptionWasNotThrown(RejectedExecutionException.class);
+		} catch (RejectedExecutionException e) {
+			Assertions.assertThat(e).hasMessageContaining("tenant: a");
+		}
+		// other tenants are unaffected
+		scheduler.submit("b", () -> {
+		});
+		release.countDown();
+		Assertions.assertThat(scheduler.toJson().path("tenants").path("a").path("rejected").asLong()).isEqualTo(1);
+	}
+}
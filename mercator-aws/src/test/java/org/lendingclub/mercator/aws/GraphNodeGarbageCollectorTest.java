@@ -0,0 +1,95 @@
+/**
+ * Copyright 2017 Lending Club, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lendingclub.mercator.aws;
+
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+import org.lendingclub.mercator.core.RecordingNeoRxClient;
+import org.lendingclub.neorx.NeoRxClient;
+
+import com.fasterxml.jackson.databind.node.IntNode;
+import com.google.common.collect.Lists;
+
+public class GraphNodeGarbageCollectorTest {
+
+	RecordingNeoRxClient neo4j = new RecordingNeoRxClient();
+
+	List<String> statements = neo4j.getStatements();
+
+	/**
+	 * A NeoRxClient that records each statement and returns the next of the
+	 * given counts, or 0 once they run out.
+	 */
+	NeoRxClient newCountingClient(Integer... counts) {
+		Deque<Integer> remaining = Lists.newLinkedList(Lists.newArrayList(counts));
+		return neo4j.withAnswer(
+				statement -> Collections.singletonList(new IntNode(remaining.isEmpty() ? 0 : remaining.pop())))
+				.getNeoRxClient();
+	}
+
+	GraphNodeGarbageCollector newGarbageCollector(NeoRxClient client) {
+		return new GraphNodeGarbageCollector().neo4j(client).label("AwsTest").account("123456").region("us-west-2")
+				.generation(5).batchSize(10).executor(Runnable::run);
+	}
+
+	@Test
+	public void testBatchedSweep() throws Exception {
+		GraphNodeGarbageCollector gc = newGarbageCollector(newCountingClient(10, 10, 3));
+		gc.updateEarliestTimestamp(1000L);
+		gc.invoke();
+
+		Assertions.assertThat(gc.getSweepResult().get().get()).isEqualTo(23L);
+		Assertions.assertThat(statements).hasSize(3);
+		Assertions.assertThat(statements.get(0)).isEqualTo(
+				"match (x:AwsTest {aws_account: {account}, aws_region: {region}}) where x.scanGen<{gen} with x limit {limit} detach delete x return count(x)");
+	}
+
+	@Test
+	public void testTombstones() throws Exception {
+		GraphNodeGarbageCollector gc = newGarbageCollector(newCountingClient(2, 4)).tombstoneGenerations(2);
+		gc.updateEarliestTimestamp(1000L);
+		gc.invoke();
+
+		Assertions.assertThat(gc.getSweepResult().get().get()).isEqualTo(2L);
+		Assertions.assertThat(statements).hasSize(2);
+		Assertions.assertThat(statements.get(0)).contains("x.mercatorTombstones>={tombstones}").contains("detach delete");
+		Assertions.assertThat(statements.get(1))
+				.contains("set x.mercatorTombstones=coalesce(x.mercatorTombstones,0)+1, x.scanGen={gen}");
+	}
+
+	@Test
+	public void testNothingMerged() {
+		GraphNodeGarbageCollector gc = newGarbageCollector(newCountingClient());
+		gc.invoke();
+
+		Assertions.assertThat(gc.getSweepResult().isPresent()).isFalse();
+		Assertions.assertThat(statements).isEmpty();
+	}
+
+	@Test
+	public void testPriorException() {
+		GraphNodeGarbageCollector gc = newGarbageCollector(newCountingClient());
+		gc.updateEarliestTimestamp(1000L);
+		gc.markException(new RuntimeException("foo"));
+		gc.invoke();
+
+		Assertions.assertThat(gc.getSweepResult().isPresent()).isFalse();
+	}
+}
@@ -0,0 +1,85 @@
+/**
+ * Copyright 2017 Lending Club, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lendingclub.mercator.aws;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+import org.lendingclub.mercator.core.RecordingNeoRxClient;
+
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.google.common.collect.Lists;
+
+public class LinkageHelperTest {
+
+	RecordingNeoRxClient neo4j = new RecordingNeoRxClient();
+
+	List<String> statements = neo4j.getStatements();
+
+	LinkageHelper newLinkageHelper() {
+		return new LinkageHelper().withNeo4j(neo4j.getNeoRxClient()).withFromLabel("AwsEc2Instance")
+				.withTargetLabel("AwsSecurityGroup").withLinkLabel("ATTACHED_TO");
+	}
+
+	@Test
+	public void testBatch() {
+		LinkageHelper linkage = newLinkageHelper().withBatchSize(3);
+
+		linkage.addLinks("i-1", Lists.newArrayList("sg-1", "sg-2"));
+		linkage.addLinks("i-2", Collections.emptyList());
+		Assertions.assertThat(statements).isEmpty();
+		Assertions.assertThat(linkage.getPendingCount()).isEqualTo(2);
+
+		linkage.flush();
+		Assertions.assertThat(statements).containsExactly(
+				"unwind {rows} as row match (a:AwsEc2Instance { aws_arn: row.fromArn }) unwind row.targetValues as targetValue match (b:AwsSecurityGroup { aws_arn: targetValue })  merge (a)-[r:ATTACHED_TO]->(b) set r.updateTs=timestamp()",
+				"unwind {rows} as row match (a:AwsEc2Instance { aws_arn: row.fromArn })-[r:ATTACHED_TO]-(b:AwsSecurityGroup) where not b.aws_arn in row.targetValues delete r");
+
+		ArrayNode rows = neo4j.getStatement(0).getRows();
+		Assertions.assertThat(rows.toString()).isEqualTo(
+				"[{\"fromArn\":\"i-1\",\"targetValues\":[\"sg-1\",\"sg-2\"]},{\"fromArn\":\"i-2\",\"targetValues\":[]}]");
+		Assertions.assertThat(linkage.getPendingCount()).isEqualTo(0);
+
+		linkage.flush();
+		Assertions.assertThat(statements).hasSize(2);
+	}
+
+	@Test
+	public void testBatchSize() {
+		LinkageHelper linkage = newLinkageHelper().withBatchSize(2);
+
+		linkage.addLinks("i-1", Lists.newArrayList("sg-1"));
+		linkage.addLinks("i-2", Lists.newArrayList("sg-2"));
+		linkage.addLinks("i-3", Lists.newArrayList("sg-3"));
+
+		Assertions.assertThat(statements).hasSize(2);
+		Assertions.assertThat(linkage.getPendingCount()).isEqualTo(1);
+	}
+
+	@Test
+	public void testMoreWhere() {
+		LinkageHelper linkage = newLinkageHelper().withMoreWhere("b.aws_region = {R}", "R", "us-west-2");
+
+		linkage.addLinks("i-1", Lists.newArrayList("sg-1"));
+		linkage.flush();
+
+		Assertions.assertThat(statements.get(0)).contains("match (b:AwsSecurityGroup { aws_arn: targetValue }) where b.aws_region = {R} merge");
+		Assertions.assertThat(neo4j.getStatement(0).getArguments()).contains("R", "us-west-2");
+		Assertions.assertThat(statements.get(1)).doesNotContain("aws_region");
+	}
+}
@@ -0,0 +1,72 @@
+/**
+ * Copyright 2017 Lending Club, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lendingclub.mercator.aws;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class ResourceChangeTest {
+
+	ObjectMapper mapper = new ObjectMapper();
+
+	List<String> keys(String json) throws IOException {
+		return ResourceChange.fromEvent(mapper.readTree(json.replace('\'', '"'))).stream()
+				.map(ResourceChange::getKey).collect(Collectors.toList());
+	}
+
+	@Test
+	public void testStateChangeNotification() throws IOException {
+		Assertions.assertThat(keys("{'detail-type':'EC2 Instance State-change Notification','source':'aws.ec2',"
+				+ "'account':'111222333444','region':'us-west-2',"
+				+ "'resources':['arn:aws:ec2:us-west-2:111222333444:instance/i-123'],"
+				+ "'detail':{'instance-id':'i-123','state':'stopped'}}"))
+						.containsExactly("EC2_INSTANCE/111222333444/us-west-2/i-123",
+								"EC2_INSTANCE/111222333444/us-west-2/i-123");
+	}
+
+	@Test
+	public void testCloudTrailViaEventBridge() throws IOException {
+		Assertions.assertThat(keys("{'detail-type':'AWS API Call via CloudTrail','source':'aws.ec2',"
+				+ "'account':'111222333444','region':'us-east-1','detail':{'eventSource':'ec2.amazonaws.com',"
+				+ "'eventName':'CreateTags','requestParameters':{'resourcesSet':{'items':[{'resourceId':'i-1'},"
+				+ "{'resourceId':'sg-1'}]}}}}")).containsExactly("EC2_INSTANCE/111222333444/us-east-1/i-1");
+	}
+
+	@Test
+	public void testCloudTrailLogFile() throws IOException {
+		Assertions.assertThat(keys("{'Records':[{'eventSource':'elasticloadbalancing.amazonaws.com',"
+				+ "'recipientAccountId':'111222333444','awsRegion':'us-west-2',"
+				+ "'requestParameters':{'loadBalancerName':'web'}},{'eventSource':'autoscaling.amazonaws.com',"
+				+ "'recipientAccountId':'111222333444','awsRegion':'us-west-2',"
+				+ "'requestParameters':{'autoScalingGroupName':'web-asg'}}]}")).containsExactly(
+						"ELB/111222333444/us-west-2/web", "ASG/111222333444/us-west-2/web-asg");
+	}
+
+	@Test
+	public void testArns() throws IOException {
+		Assertions.assertThat(keys("{'resources':['arn:aws:elasticloadbalancing:us-west-2:111222333444:loadbalancer/web',"
+				+ "'arn:aws:elasticloadbalancing:us-west-2:111222333444:loadbalancer/app/web/123',"
+				+ "'arn:aws:autoscaling:us-west-2:111222333444:autoScalingGroup:uuid:autoScalingGroupName/web-asg',"
+				+ "'arn:aws:s3:::bucket']}")).containsExactly("ELB/111222333444/us-west-2/web",
+						"ASG/111222333444/us-west-2/web-asg");
+	}
+}
@@ -0,0 +1,201 @@
+/**
+ * Copyright 2017 Lending Club, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lendingclub.mercator.aws;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+import org.lendingclub.mercator.core.Projector;
+import org.lendingclub.mercator.core.RecordingNeoRxClient;
+import org.mockito.ArgumentMatchers;
+import org.mockito.Mockito;
+
+import com.amazonaws.services.route53.AmazonRoute53Client;
+import com.amazonaws.services.route53.model.GetHostedZoneRequest;
+import com.amazonaws.services.route53.model.GetHostedZoneResult;
+import com.amazonaws.services.route53.model.HostedZone;
+import com.amazonaws.services.route53.model.HostedZoneConfig;
+import com.amazonaws.services.route53.model.ListHostedZonesRequest;
+import com.amazonaws.services.route53.model.ListHostedZonesResult;
+import com.amazonaws.services.route53.model.ListResourceRecordSetsRequest;
+import com.amazonaws.services.route53.model.ListResourceRecordSetsResult;
+import com.amazonaws.services.route53.model.ResourceRecord;
+import com.amazonaws.services.route53.model.ResourceRecordSet;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.collect.Lists;
+
+public class Route53ScannerTest {
+
+	ObjectMapper mapper = new ObjectMapper();
+
+	ObjectNode previous;
+
+	RecordingNeoRxClient neo4j = new RecordingNeoRxClient().withAnswer(statement -> {
+		String cypher = statement.getCypher();
+		if (cypher.endsWith("return a") && cypher.startsWith("match") && previous != null) {
+			return Collections.singletonList(previous);
+		}
+		return null;
+	});
+
+	List<String> statements = neo4j.getStatements();
+
+	AmazonRoute53Client client = Mockito.mock(AmazonRoute53Client.class);
+
+	Route53Scanner newScanner() {
+		Projector projector = new Projector.Builder().withNeoRxClient(neo4j.getNeoRxClient()).build();
+		AWSScannerBuilder builder = projector.createBuilder(AWSScannerBuilder.class).withAccountId("111222333444");
+		return new Route53Scanner(builder) {
+
+			@Override
+			public synchronized AmazonRoute53Client getClient() {
+				return client;
+			}
+
+			@Override
+			public void rateLimit() {
+				// no shared budget in unit tests
+			}
+		}.withRecordSetBatchSize(2);
+	}
+
+	HostedZone newHostedZone(String id, long count) {
+		return new HostedZone().withId(id).withName(id + ".example.com.").withResourceRecordSetCount(count)
+				.withConfig(new HostedZoneConfig());
+	}
+
+	GetHostedZoneResult newHostedZoneResult(long count) {
+		return new GetHostedZoneResult().withHostedZone(newHostedZone("/hostedzone/Z1", count));
+	}
+
+	void givenRecordSets(String... names) {
+		List<ResourceRecordSet> list = Lists.newArrayList();
+		for (String name : names) {
+			list.add(new ResourceRecordSet(name, "A").withTTL(60L).withResourceRecords(new ResourceRecord("10.0.0.1")));
+		}
+		Mockito.when(client.listResourceRecordSets(ArgumentMatchers.any(ListResourceRecordSetsRequest.class)))
+				.thenReturn(new ListResourceRecordSetsResult().withResourceRecordSets(list).withIsTruncated(false));
+	}
+
+	long count(String fragment) {
+		return statements.stream().filter(it -> it.contains(fragment)).count();
+	}
+
+	long digestOf(Route53Scanner scanner, String... names) {
+		List<ObjectNode> list = Lists.newArrayList();
+		for (String name : names) {
+			list.add(scanner.toJson(
+					new ResourceRecordSet(name, "A").withTTL(60L).withResourceRecords(new ResourceRecord("10.0.0.1"))));
+		}
+		return Route53Scanner.digest(list);
+	}
+
+	@Test
+	public void testNewZoneIsListed() {
+		givenRecordSets("a.example.com.", "b.example.com.", "c.example.com.");
+		newScanner().projectHostedZoneResult(newHostedZoneResult(3));
+
+		Assertions.assertThat(count("unwind {rows}")).isEqualTo(2);
+		Assertions.assertThat(count("[x:CONTAINS]->(r:AwsRoute53RecordSet) where coalesce(x.updateTs, 0)<{ts} delete x")).isEqualTo(1);
+		Assertions.assertThat(statements.get(statements.size() - 1)).contains("z.mercatorRecordSetDigest={digest}");
+	}
+
+	@Test
+	public void testUnchangedZoneIsSkipped() {
+		Route53Scanner scanner = newScanner();
+		previous = mapper.createObjectNode().put("aws_resourceRecordSetCount", 3)
+				.put(Route53Scanner.RECORD_SET_DIGEST_ATTRIBUTE, 42L)
+				.put(Route53Scanner.RECORD_SET_LIST_TS_ATTRIBUTE, System.currentTimeMillis());
+
+		scanner.projectHostedZoneResult(newHostedZoneResult(3));
+
+		Mockito.verify(client, Mockito.never()).listResourceRecordSets(ArgumentMatchers.any());
+		Assertions.assertThat(statements).hasSize(2);
+	}
+
+	@Test
+	public void testChangedCountIsListed() {
+		Route53Scanner scanner = newScanner();
+		givenRecordSets("a.example.com.", "b.example.com.");
+		previous = mapper.createObjectNode().put("aws_resourceRecordSetCount", 3)
+				.put(Route53Scanner.RECORD_SET_DIGEST_ATTRIBUTE, 42L)
+				.put(Route53Scanner.RECORD_SET_LIST_TS_ATTRIBUTE, System.currentTimeMillis());
+
+		scanner.projectHostedZoneResult(newHostedZoneResult(2));
+
+		Assertions.assertThat(count("unwind {rows}")).isEqualTo(1);
+	}
+
+	@Test
+	public void testExpiredZoneWithSameDigestIsNotRewritten() {
+		Route53Scanner scanner = newScanner().withZoneRefreshInterval(1, TimeUnit.MINUTES);
+		givenRecordSets("a.example.com.", "b.example.com.");
+		previous = mapper.createObjectNode().put("aws_resourceRecordSetCount", 2)
+				.put(Route53Scanner.RECORD_SET_DIGEST_ATTRIBUTE, digestOf(scanner, "a.example.com.", "b.example.com."))
+				.put(Route53Scanner.RECORD_SET_LIST_TS_ATTRIBUTE, System.currentTimeMillis() - 120000);
+
+		scanner.projectHostedZoneResult(newHostedZoneResult(2));
+
+		Mockito.verify(client).listResourceRecordSets(ArgumentMatchers.any());
+		Assertions.assertThat(count("unwind {rows}")).isEqualTo(0);
+		Assertions.assertThat(count("delete")).isEqualTo(0);
+		Assertions.assertThat(statements.get(statements.size() - 1)).contains("z.mercatorRecordSetListTs={ts}");
+	}
+
+	@Test
+	public void testOrphanSweepIsBoundedByAccount() {
+		newScanner().deleteOrphanedRecordSets();
+		Assertions.assertThat(statements).containsExactly(
+				"match (a:AwsRoute53RecordSet {aws_account:{aws_account}}) where not (a)-[:CONTAINS]-(:AwsRoute53HostedZone) detach delete a");
+	}
+
+	@Test
+	public void testLargestZonesAreScannedFirst() {
+		List<String> scanned = Lists.newArrayList();
+		Mockito.when(client.listHostedZones(ArgumentMatchers.any(ListHostedZonesRequest.class)))
+				.thenReturn(new ListHostedZonesResult().withIsTruncated(false).withHostedZones(newHostedZone("Z1", 10),
+						newHostedZone("Z2", 5000), newHostedZone("Z3", 200)));
+		Mockito.when(client.getHostedZone(ArgumentMatchers.any(GetHostedZoneRequest.class))).thenAnswer(invocation -> {
+			String id = invocation.<GetHostedZoneRequest>getArgument(0).getId();
+			synchronized (scanned) {
+				scanned.add(id);
+			}
+			return new GetHostedZoneResult().withHostedZone(newHostedZone(id, 0));
+		});
+		givenRecordSets();
+
+		Route53Scanner scanner = newScanner().withZoneConcurrency(1);
+		scanner.doGlobalScan();
+
+		Assertions.assertThat(scanned).containsExactly("Z2", "Z3", "Z1");
+		Assertions.assertThat(scanner.getZoneScanLatency().getCount()).isEqualTo(3);
+		Assertions.assertThat(scanner.getZoneScanMillis()).containsOnlyKeys("Z1", "Z2", "Z3");
+		Assertions.assertThat(count("match (a:AwsRoute53RecordSet {aws_account:{aws_account}})")).isEqualTo(1);
+	}
+
+	@Test
+	public void testSharedRoute53Budget() {
+		Mockito.when(client.getEndpointPrefix()).thenReturn("route53");
+		Route53Scanner scanner = newScanner();
+
+		Assertions.assertThat(scanner.getTokenBucket().getName()).isEqualTo("111222333444/global/route53");
+		Assertions.assertThat(scanner.getTokenBucket().getRate()).isEqualTo(TokenBucketRegistry.DEFAULT_ROUTE53_RATE);
+	}
+}
@@ -0,0 +1,152 @@
+/**
+ * Copyright 2017 Lending Club, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lendingclub.mercator.aws;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+import org.lendingclub.mercator.core.MercatorException;
+import org.lendingclub.mercator.core.ScannerContext;
+
+import com.amazonaws.AmazonWebServiceClient;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+public class ScannerDependenciesTest extends AbstractUnitTest {
+
+	static List<String> events = Collections.synchronizedList(Lists.newArrayList());
+
+	public static class FakeScanner extends AWSScanner<AmazonWebServiceClient> {
+
+		public FakeScanner(AWSScannerBuilder builder) {
+			super(builder, null, null);
+		}
+
+		@Override
+		protected void doScan() {
+			events.add("start " + getClass().getSimpleName());
+			try {
+				Thread.sleep(100);
+			} catch (InterruptedException e) {
+				throw new RuntimeException(e);
+			}
+			events.add("end " + getClass().getSimpleName());
+		}
+	}
+
+	public static class A extends FakeScanner {
+		public A(AWSScannerBuilder builder) {
+			super(builder);
+		}
+	}
+
+	public static class B extends FakeScanner {
+		public B(AWSScannerBuilder builder) {
+			super(builder);
+		}
+	}
+
+	public static class C extends FakeScanner {
+		public C(AWSScannerBuilder builder) {
+			super(builder);
+		}
+	}
+
+	public static class NestedGroup extends AWSScannerGroup {
+		public NestedGroup(AWSScannerBuilder builder) {
+			super(builder);
+			addScannerType(C.class);
+			addScannerType(B.class);
+		}
+	}
+
+	AWSScannerBuilder newBuilder() {
+		events.clear();
+		return getProjector().createBuilder(AWSScannerBuilder.class).withAccountId("123456789012");
+	}
+
+	@Test
+	public void testSort() {
+		ScannerDependencies d = new ScannerDependencies().addDependency(C.class, B.class).addDependency(B.class,
+				A.class);
+		Assertions.assertThat(d.sort(ImmutableList.of(C.class, B.class, A.class))).containsExactly(A.class, B.class,
+				C.class);
+
+		// prerequisites that are not scanned are skipped over
+		Assertions.assertThat(d.resolve(ImmutableList.of(C.class, A.class)).get(C.class)).containsExactly(A.class);
+		Assertions.assertThat(d.sort(ImmutableList.of(C.class, A.class))).containsExactly(A.class, C.class);
+	}
+
+	@Test
+	public void testCycle() {
+		ScannerDependencies d = new ScannerDependencies().addDependency(A.class, B.class).addDependency(B.class,
+				A.class);
+		try {
+			d.sort(ImmutableList.of(A.class, B.class));
+			Assertions.failBecauseExceptionWasNotThrown(MercatorException.class);
+		} catch (MercatorException e) {
+			Assertions.assertThat(e).hasMessageContaining("cycle");
+		}
+	}
+
+	@Test
+	public void testDefaultsAreAcyclic() {
+		AWSScannerGroup group = newBuilder().build(AllEntityScanner.class);
+		List<Class<? extends AWSScanner>> types = Lists.newArrayList();
+		group.dependencies.prerequisites.entries().forEach(it -> {
+			types.add(it.getKey());
+			types.add(it.getValue());
+		});
+		List<Class<? extends AWSScanner>> sorted = group.getDependencies().sort(types);
+		Assertions.assertThat(sorted.indexOf(VPCScanner.class)).isLessThan(sorted.indexOf(SecurityGroupScanner.class));
+		Assertions.assertThat(sorted.indexOf(SecurityGroupScanner.class))
+				.isLessThan(sorted.indexOf(EC2InstanceScanner.class));
+		Assertions.assertThat(sorted.indexOf(EC2InstanceScanner.class)).isLessThan(sorted.indexOf(ELBScanner.class));
+		Assertions.assertThat(sorted.indexOf(ELBScanner.class)).isLessThan(sorted.indexOf(ASGScanner.class));
+	}
+
+	@Test
+	public void testSequentialGroupFlattensAndSorts() {
+		AWSScannerGroup group = newBuilder().build(AWSScannerGroup.class);
+		group.addScannerType(NestedGroup.class).addScannerType(A.class);
+		group.addDependency(C.class, B.class).addDependency(B.class, A.class);
+
+		group.scan();
+
+		Assertions.assertThat(events).containsExactly("start A", "end A", "start B", "end B", "start C", "end C");
+	}
+
+	@Test
+	public void testParallelGroupReleasesDependents() {
+		AWSParallelScannerGroup group = newBuilder().build(AWSParallelScannerGroup.class);
+		group.addScannerType(A.class).addScannerType(B.class).addScannerType(C.class);
+		group.addDependency(B.class, A.class);
+
+		group.scan();
+
+		Assertions.assertThat(events).hasSize(6);
+		Assertions.assertThat(events.indexOf("end A")).isLessThan(events.indexOf("start B"));
+		// C has no prerequisites and runs alongside A
+		Assertions.assertThat(events.indexOf("start C")).isLessThan(events.indexOf("end A"));
+
+		// the scanners' contexts are children of the group's context
+		ScannerContext context = group.getLastScannerContext().get();
+		Assertions.assertThat(context.getChildren()).extracting(ScannerContext::getName).containsOnly("A", "B", "C");
+		Assertions.assertThat(context.get(ScannerContext.Metric.WALL_MILLIS)).isGreaterThanOrEqualTo(300);
+	}
+}
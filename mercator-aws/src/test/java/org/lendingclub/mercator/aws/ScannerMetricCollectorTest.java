@@ -0,0 +1,170 @@
+/**
+ * Copyright 2017 Lending Club, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lendingclub.mercator.aws;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Before;
+import org.junit.Test;
+import org.lendingclub.mercator.core.AdaptiveRateLimiter;
+import org.lendingclub.mercator.core.Scanner;
+
+import com.amazonaws.DefaultRequest;
+import com.amazonaws.Response;
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.http.HttpResponse;
+import com.amazonaws.regions.Regions;
+import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
+import com.amazonaws.util.AWSRequestMetrics;
+import com.amazonaws.util.AWSRequestMetrics.Field;
+import com.amazonaws.util.AWSRequestMetricsFullSupport;
+import com.google.common.collect.ImmutableList;
+
+public class ScannerMetricCollectorTest extends AbstractUnitTest {
+
+	@Before
+	public void clearRateLimiters() {
+		AdaptiveRateLimiterRegistry.clear();
+	}
+
+	DefaultRequest<?> newRequest(AWSRequestMetrics metrics) {
+		DefaultRequest<?> request = new DefaultRequest<>("AmazonEC2");
+		request.setAWSRequestMetrics(metrics);
+		return request;
+	}
+
+	EC2InstanceScanner newScanner(boolean adaptive) {
+		return getProjector().createBuilder(AWSScannerBuilder.class).withAccountId("111222333444")
+				.withRegion(Regions.US_WEST_2).withRateLimitPerSecond(8).withAdaptiveRateLimit(adaptive)
+				.build(EC2InstanceScanner.class);
+	}
+
+	@Test
+	public void testThrottle() {
+		EC2InstanceScanner scanner = newScanner(true);
+		AdaptiveRateLimiter limiter = scanner.getAdaptiveRateLimiter().get();
+		Assertions.assertThat(limiter.getName()).isEqualTo("111222333444/us-west-2/ec2");
+		Assertions.assertThat(AdaptiveRateLimiterRegistry.getRates()).containsEntry("111222333444/us-west-2/ec2", 8d);
+
+		AWSRequestMetrics metrics = new AWSRequestMetricsFullSupport();
+		metrics.incrementCounter(Field.ThrottleException);
+		scanner.getMetricCollector().collectMetrics(newRequest(metrics), null);
+
+		Assertions.assertThat(limiter.getRate()).isEqualTo(4);
+		Assertions.assertThat(limiter.getThrottleCount()).isEqualTo(1);
+
+		// scanners for the same account, region and service share the limiter
+		Assertions.assertThat(newScanner(true).getAdaptiveRateLimiter().get()).isSameAs(limiter);
+	}
+
+	@Test
+	public void testErrorCodesAndStatusCodes() {
+		AWSRequestMetrics metrics = new AWSRequestMetricsFullSupport();
+		Assertions.assertThat(ScannerMetricCollector.isThrottled(metrics)).isFalse();
+		Assertions.assertThat(ScannerMetricCollector.isServerError(metrics)).isFalse();
+
+		metrics.addProperty(Field.StatusCode, 200);
+		Assertions.assertThat(ScannerMetricCollector.isServerError(metrics)).isFalse();
+		metrics.addProperty(Field.StatusCode, 503);
+		Assertions.assertThat(ScannerMetricCollector.isServerError(metrics)).isTrue();
+
+		metrics.addProperty(Field.AWSErrorCode, "RequestLimitExceeded");
+		Assertions.assertThat(ScannerMetricCollector.isThrottled(metrics)).isTrue();
+	}
+
+	@Test
+	public void testSuccess() {
+		EC2InstanceScanner scanner = newScanner(true);
+		AdaptiveRateLimiter limiter = scanner.getAdaptiveRateLimiter().get();
+
+		scanner.getMetricCollector().collectMetrics(newRequest(new AWSRequestMetricsFullSupport()),
+				new Response<>(null, null));
+		Assertions.assertThat(limiter.getSuccessCount()).isEqualTo(1);
+		Assertions.assertThat(limiter.getThrottleCount()).isEqualTo(0);
+	}
+
+	@Test
+	public void testDisabled() {
+		EC2InstanceScanner scanner = newScanner(false);
+		Assertions.assertThat(scanner.getAdaptiveRateLimiter().isPresent()).isFalse();
+
+		AWSRequestMetrics metrics = new AWSRequestMetricsFullSupport();
+		metrics.incrementCounter(Field.ThrottleException);
+		scanner.getMetricCollector().collectMetrics(newRequest(metrics), null);
+		Assertions.assertThat(AdaptiveRateLimiterRegistry.getRates()).isEmpty();
+	}
+
+	@Test
+	public void testOperationMetrics() {
+		EC2InstanceScanner scanner = newScanner(false);
+
+		AWSRequestMetrics metrics = new AWSRequestMetricsFullSupport();
+		metrics.startEvent(Field.ClientExecuteTime);
+		metrics.incrementCounter(Field.HttpClientRetryCount);
+		metrics.incrementCounter(Field.ThrottleException);
+		metrics.addProperty(Field.StatusCode, 503);
+		metrics.addProperty(Field.StatusCode, 200);
+		metrics.endEvent(Field.ClientExecuteTime);
+		DefaultRequest<?> request = new DefaultRequest<>(new DescribeInstancesRequest(), "AmazonEC2");
+		request.setAWSRequestMetrics(metrics);
+		HttpResponse httpResponse = new HttpResponse(request, null);
+		httpResponse.addHeader("Content-Length", "1234");
+		scanner.getMetricCollector().collectMetrics(request, new Response<>(null, httpResponse));
+
+		DefaultRequest<?> failed = new DefaultRequest<>(new DescribeInstancesRequest(), "AmazonEC2");
+		failed.setAWSRequestMetrics(new AWSRequestMetricsFullSupport());
+		scanner.getMetricCollector().collectMetrics(failed, null);
+
+		RequestMetricsSnapshot snapshot = scanner.getRequestMetricsSnapshot();
+		OperationMetrics m = snapshot.getMetrics()
+				.get("111222333444/us-west-2/EC2InstanceScanner/DescribeInstances");
+		Assertions.assertThat(m).isNotNull();
+		Assertions.assertThat(m.getRequestCount()).isEqualTo(2);
+		Assertions.assertThat(m.getErrorCount()).isEqualTo(1);
+		Assertions.assertThat(m.getRetryCount()).isEqualTo(1);
+		Assertions.assertThat(m.getThrottleCount()).isEqualTo(1);
+		Assertions.assertThat(m.getBytesReceived()).isEqualTo(1234);
+		Assertions.assertThat(m.getStatusCodes()).containsEntry(503, 1L).containsEntry(200, 1L);
+		Assertions.assertThat(m.getLatency().getCount()).isEqualTo(2);
+
+		Assertions.assertThat(snapshot.getTotal().getRequestCount()).isEqualTo(2);
+		Assertions.assertThat(snapshot.toJson().path("operations").size()).isEqualTo(1);
+
+		// snapshots are copies
+		scanner.getMetricCollector().collectMetrics(failed, null);
+		Assertions.assertThat(m.getRequestCount()).isEqualTo(2);
+		Assertions.assertThat(snapshot.merge(scanner.getRequestMetricsSnapshot()).getTotal().getRequestCount())
+				.isEqualTo(5);
+	}
+
+	@Test
+	public void testMultiAccountMetrics() {
+		MultiAccountRegionEntityScanner scanner = getProjector()
+				.createBuilder(MultiAccountRegionEntityScanner.Builder.class)
+				.withAccountAndRegions("111222333444",
+						new AWSStaticCredentialsProvider(new BasicAWSCredentials("key", "secret")),
+						ImmutableList.of(Regions.US_WEST_2, Regions.US_EAST_1))
+				.build();
+		Assertions.assertThat(scanner.getScanners()).hasSize(2);
+
+		AllEntityScanner regionScanner = (AllEntityScanner) scanner.lastScanners.get(0);
+		Scanner child = regionScanner.getScanners().get(0);
+		DefaultRequest<?> request = newRequest(new AWSRequestMetricsFullSupport());
+		((AWSScanner<?>) child).getMetricCollector().collectMetrics(request, new Response<>(null, null));
+
+		Assertions.assertThat(scanner.getRequestMetricsSnapshot().getTotal().getRequestCount()).isEqualTo(1);
+	}
+}
@@ -0,0 +1,132 @@
+/**
+ * Copyright 2017 Lending Club, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lendingclub.mercator.aws;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+import org.lendingclub.mercator.core.RecordingNeoRxClient;
+import org.lendingclub.neorx.NeoRxClient;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+public class ShadowAttributeRemoverTest {
+
+	ObjectMapper mapper = new ObjectMapper();
+
+	RecordingNeoRxClient neo4j = new RecordingNeoRxClient();
+
+	List<String> statements = neo4j.getStatements();
+
+	/**
+	 * A NeoRxClient that answers the tag key load with a single node that has
+	 * aws_tag_foo and aws_tag_bar.
+	 */
+	NeoRxClient newClient() {
+		return neo4j.withAnswer(statement -> {
+			ObjectNode row = mapper.createObjectNode().put("arn", "arn:a");
+			row.putArray("tags").add("aws_tag_foo").add("aws_tag_bar");
+			return Collections.singletonList(row);
+		}).getNeoRxClient();
+	}
+
+	@Test
+	public void testFoldTagRemovals() {
+		TagKeyCache cache = new TagKeyCache();
+		ShadowAttributeRemover remover = new ShadowAttributeRemover(newClient()).withTagKeyCache(cache);
+
+		ObjectNode n = mapper.createObjectNode().put("aws_arn", "arn:a").put("aws_tag_foo", "1");
+		remover.foldTagRemovals("AwsTest", n);
+		Assertions.assertThat(n.has("aws_tag_bar")).isTrue();
+		Assertions.assertThat(n.get("aws_tag_bar").isNull()).isTrue();
+		Assertions.assertThat(n.path("aws_tag_foo").asText()).isEqualTo("1");
+		Assertions.assertThat(statements).hasSize(1);
+
+		// nothing is remembered until the write returns the node
+		Assertions.assertThat(cache.getTagKeys("AwsTest", "arn:a")).containsExactlyInAnyOrder("aws_tag_foo",
+				"aws_tag_bar");
+		remover.removeTagAttributes("AwsTest", n, mapper.createObjectNode().put("aws_arn", "arn:a"));
+		Assertions.assertThat(cache.getTagKeys("AwsTest", "arn:a")).containsExactly("aws_tag_foo");
+
+		// the removal is remembered, and the label is only loaded once
+		n = mapper.createObjectNode().put("aws_arn", "arn:a").put("aws_tag_baz", "2");
+		remover.foldTagRemovals("AwsTest", n);
+		Assertions.assertThat(n.get("aws_tag_foo").isNull()).isTrue();
+		Assertions.assertThat(n.has("aws_tag_bar")).isFalse();
+		Assertions.assertThat(statements).hasSize(1);
+
+		// a write that fails leaves the cache as it was, so the removal is
+		// folded again
+		Assertions.assertThat(cache.getTagKeys("AwsTest", "arn:a")).containsExactly("aws_tag_foo");
+		n = mapper.createObjectNode().put("aws_arn", "arn:a").put("aws_tag_baz", "2");
+		remover.foldTagRemovals("AwsTest", n);
+		Assertions.assertThat(n.get("aws_tag_foo").isNull()).isTrue();
+		remover.removeTagAttributes("AwsTest", n, mapper.createObjectNode().put("aws_arn", "arn:a"));
+		Assertions.assertThat(cache.getTagKeys("AwsTest", "arn:a")).containsExactly("aws_tag_baz");
+
+		// nothing is folded for a node that is not in the cache, but the tag
+		// keys returned by the write show what has to be removed
+		n = mapper.createObjectNode().put("aws_arn", "arn:b").put("aws_tag_foo", "1");
+		remover.foldTagRemovals("AwsTest", n);
+		Assertions.assertThat(n.size()).isEqualTo(2);
+
+		ObjectNode result = mapper.createObjectNode().put("aws_arn", "arn:b");
+		result.putArray("tagKeys").add("aws_tag_foo").add("aws_tag_x");
+		remover.removeTagAttributes("AwsTest", n, result);
+		Assertions.assertThat(statements).hasSize(2);
+		Assertions.assertThat(statements.get(1))
+				.isEqualTo("match (x:AwsTest {aws_arn:{aws_arn}}) remove x.`aws_tag_x` return x");
+		Assertions.assertThat(cache.getTagKeys("AwsTest", "arn:b")).containsExactly("aws_tag_foo");
+		Assertions.assertThat(remover.getReturnClause("x")).isEqualTo(
+				"return x.aws_arn as aws_arn, x.updateTs as updateTs, [k in keys(x) where k starts with 'aws_tag_'] as tagKeys");
+	}
+
+	@Test
+	public void testLabelIsLoadedOnlyAfterSuccess() {
+		TagKeyCache cache = new TagKeyCache();
+		neo4j.withAnswer(statement -> {
+			throw new IllegalStateException("unavailable");
+		});
+		ShadowAttributeRemover remover = new ShadowAttributeRemover(neo4j.getNeoRxClient()).withTagKeyCache(cache);
+
+		ObjectNode n = mapper.createObjectNode().put("aws_arn", "arn:a").put("aws_tag_foo", "1");
+		Assertions.assertThatThrownBy(() -> remover.foldTagRemovals("AwsTest", n))
+				.isInstanceOf(RuntimeException.class);
+
+		newClient();
+		remover.foldTagRemovals("AwsTest", n);
+		Assertions.assertThat(n.get("aws_tag_bar").isNull()).isTrue();
+		Assertions.assertThat(statements).hasSize(2);
+	}
+
+	@Test
+	public void testWithoutCache() {
+		ShadowAttributeRemover remover = new ShadowAttributeRemover(newClient());
+
+		ObjectNode n = mapper.createObjectNode().put("aws_arn", "arn:a").put("aws_tag_foo", "1");
+		remover.foldTagRemovals("AwsTest", n);
+		Assertions.assertThat(n.size()).isEqualTo(2);
+		Assertions.assertThat(remover.getReturnClause("x")).isEqualTo("return x");
+
+		remover.removeTagAttributes("AwsTest", n,
+				mapper.createObjectNode().put("aws_tag_foo", "1").put("aws_tag_bar", "2"));
+		Assertions.assertThat(statements)
+				.containsExactly("match (x:AwsTest {aws_arn:{aws_arn}}) remove x.`aws_tag_bar` return x");
+	}
+}
@@ -0,0 +1,74 @@
+/**
+ * Copyright 2017 Lending Club, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lendingclub.mercator.aws;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+import org.lendingclub.mercator.core.TokenBucket;
+
+import com.amazonaws.regions.Regions;
+
+public class TokenBucketRegistryTest extends AbstractUnitTest {
+
+	@Test
+	public void testHierarchy() {
+		TokenBucketRegistry registry = new TokenBucketRegistry().withAccountRate(50).withServiceRate("ec2", 10)
+				.withServiceReservation("ec2", 2);
+
+		TokenBucket ec2 = registry.getBucket("111222333444", "us-west-2", "ec2");
+		Assertions.assertThat(ec2.getName()).isEqualTo("111222333444/us-west-2/ec2");
+		Assertions.assertThat(ec2.getRate()).isEqualTo(10);
+		Assertions.assertThat(ec2.getReservedRate()).isEqualTo(2);
+		Assertions.assertThat(ec2.getParent().getName()).isEqualTo("111222333444/us-west-2");
+		Assertions.assertThat(ec2.getParent().isUnlimited()).isTrue();
+		Assertions.assertThat(ec2.getParent().getParent().getRate()).isEqualTo(50);
+
+		TokenBucket elb = registry.getBucket("111222333444", "us-west-2", "elasticloadbalancing");
+		Assertions.assertThat(elb.getRate()).isEqualTo(TokenBucketRegistry.DEFAULT_SERVICE_RATE);
+		Assertions.assertThat(elb.getParent()).isSameAs(ec2.getParent());
+
+		Assertions.assertThat(registry.getBucket("111222333444", "us-west-2", "ec2")).isSameAs(ec2);
+		Assertions.assertThat(registry.getAvailableTokens()).containsKeys("111222333444",
+				"111222333444/us-west-2", "111222333444/us-west-2/ec2");
+	}
+
+	@Test
+	public void testScannersShareBucket() {
+		AWSScannerBuilder builder = getProjector().createBuilder(AWSScannerBuilder.class)
+				.withAccountId("111222333444").withRegion(Regions.US_WEST_2);
+		EC2InstanceScanner instanceScanner = builder.build(EC2InstanceScanner.class);
+		SubnetScanner subnetScanner = builder.build(SubnetScanner.class);
+
+		Assertions.assertThat(instanceScanner.getTokenBucket()).isSameAs(subnetScanner.getTokenBucket());
+		Assertions.assertThat(instanceScanner.getTokenBucket().getName()).isEqualTo("111222333444/us-west-2/ec2");
+		Assertions.assertThat(builder.getApiPriority()).isEqualTo(TokenBucket.Priority.BACKGROUND);
+	}
+
+	@Test
+	public void testSharedBudgetIsOptIn() {
+		AWSScannerBuilder builder = getProjector().createBuilder(AWSScannerBuilder.class)
+				.withAccountId("222333444555").withRegion(Regions.US_WEST_2);
+		Assertions.assertThat(builder.isSharedApiBudgetEnabled()).isFalse();
+
+		builder.build(SubnetScanner.class).rateLimit();
+		Assertions.assertThat(TokenBucketRegistry.getInstance().getAvailableTokens())
+				.doesNotContainKey("222333444555/us-west-2/ec2");
+
+		builder.withSharedApiBudget(true).build(SubnetScanner.class).rateLimit();
+		Assertions.assertThat(TokenBucketRegistry.getInstance().getAvailableTokens())
+				.containsKey("222333444555/us-west-2/ec2");
+	}
+}
@@ -0,0 +1,119 @@
+/**
+ * Copyright 2017 Lending Club, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lendingclub.mercator.aws;
+
+import java.util.concurrent.TimeUnit;
+
+import org.lendingclub.mercator.benchmark.SyntheticModels;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.amazonaws.services.autoscaling.model.AutoScalingGroup;
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.elasticloadbalancing.model.LoadBalancerDescription;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Throughput of converting SDK model objects to the flattened properties that
+ * are written to Neo4j, and of the pieces that are computed per entity
+ * alongside it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConversionBenchmark {
+
+	static final int ENTITY_COUNT = 1024;
+
+	@Param({ "5", "25" })
+	int tagCount;
+
+	Instance[] instances = new Instance[ENTITY_COUNT];
+	LoadBalancerDescription[] loadBalancers = new LoadBalancerDescription[ENTITY_COUNT];
+	AutoScalingGroup[] autoScalingGroups = new AutoScalingGroup[ENTITY_COUNT];
+	ObjectNode[] desired = new ObjectNode[ENTITY_COUNT];
+	ObjectNode[] actual = new ObjectNode[ENTITY_COUNT];
+
+	JsonConverter converter = new JsonConverter();
+	JsonConverter flatteningConverter = new JsonConverter().withFlattenNestedObjects(true);
+	ShadowAttributeRemover shadowAttributeRemover = new ShadowAttributeRemover(null);
+	ArnGenerator arnGenerator = ArnGenerator.newInstance(SyntheticModels.ACCOUNT, SyntheticModels.REGION);
+
+	int i = 0;
+
+	@Setup
+	public void setup() {
+		for (int n = 0; n < ENTITY_COUNT; n++) {
+			instances[n] = SyntheticModels.newInstance(n, tagCount);
+			loadBalancers[n] = SyntheticModels.newLoadBalancer(n, 4);
+			autoScalingGroups[n] = SyntheticModels.newAutoScalingGroup(n, 4);
+			desired[n] = flatteningConverter.toJson(instances[n]);
+			// what Neo4j returns after the merge: the desired props plus one
+			// tag that has since been removed from the instance
+			actual[n] = desired[n].deepCopy().put("updateTs", 0L).put("aws_tag_removed", "x");
+		}
+	}
+
+	int next() {
+		i = (i + 1) & (ENTITY_COUNT - 1);
+		return i;
+	}
+
+	@Benchmark
+	public ObjectNode instanceToJson() {
+		return flatteningConverter.toJson(instances[next()]);
+	}
+
+	@Benchmark
+	public ObjectNode loadBalancerToJson() {
+		return converter.toJson(loadBalancers[next()]);
+	}
+
+	@Benchmark
+	public ObjectNode autoScalingGroupToJson() {
+		return converter.toJson(autoScalingGroups[next()]);
+	}
+
+	@Benchmark
+	public String ec2InstanceArn() {
+		return arnGenerator.createEc2InstanceArn(instances[next()].getInstanceId());
+	}
+
+	@Benchmark
+	public String elbArn() {
+		return arnGenerator.createElbArn(loadBalancers[next()].getLoadBalancerName());
+	}
+
+	@Benchmark
+	public Object tagAttributesToRemove() {
+		int n = next();
+		JsonNode x = desired[n];
+		return shadowAttributeRemover.getAttributesToRemove(x, actual[n], t -> t.startsWith("aws_tag_"));
+	}
+}
@@ -0,0 +1,265 @@
+/**
+ * Copyright 2017 Lending Club, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lendingclub.mercator.aws;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.lendingclub.mercator.benchmark.SyntheticModels;
+import org.lendingclub.mercator.core.Projector;
+import org.lendingclub.mercator.core.RecordingNeoRxClient;
+import org.lendingclub.mercator.core.RecordingNeoRxClient.Statement;
+import org.mockito.Mockito;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.amazonaws.regions.Regions;
+import com.amazonaws.services.autoscaling.model.AutoScalingGroup;
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.elasticloadbalancing.AmazonElasticLoadBalancingClient;
+import com.amazonaws.services.elasticloadbalancing.model.DescribeTagsRequest;
+import com.amazonaws.services.elasticloadbalancing.model.DescribeTagsResult;
+import com.amazonaws.services.elasticloadbalancing.model.LoadBalancerDescription;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.collect.Lists;
+
+/**
+ * Runs the scanners' per-entity projection code against a RecordingNeoRxClient,
+ * so that the cost of conversion, Cypher construction, shadow attribute removal
+ * and LinkageHelper is measured without Neo4j.
+ *
+ * Each invocation projects one entity, or one page of entities for the page
+ * projection benchmarks. The statements, rows and entities counters are
+ * reported alongside the throughput; BenchmarkMain logs the statements and
+ * rows per entity.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProjectionBenchmark {
+
+	static final int ENTITY_COUNT = 1024;
+	static final int PAGE_SIZE = 128;
+
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	public static class Counters {
+		public long statements;
+		public long rows;
+		public long entities;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			statements = 0;
+			rows = 0;
+			entities = 0;
+		}
+	}
+
+	RecordingNeoRxClient neo4j = new RecordingNeoRxClient().withHistory(false)
+			.withAnswer(ProjectionBenchmark::answer);
+
+	EC2InstanceScanner instanceScanner;
+	ELBScanner elbScanner;
+	ASGScanner asgScanner;
+	EC2InstanceScanner instancePageScanner;
+	ELBScanner elbPageScanner;
+
+	GraphNodeGarbageCollector instanceGc;
+	GraphNodeGarbageCollector asgGc;
+
+	Instance[] instances = new Instance[ENTITY_COUNT];
+	LoadBalancerDescription[] loadBalancers = new LoadBalancerDescription[ENTITY_COUNT];
+	AutoScalingGroup[] autoScalingGroups = new AutoScalingGroup[ENTITY_COUNT];
+	List<List<Instance>> instancePages;
+	List<List<LoadBalancerDescription>> loadBalancerPages;
+
+	int i = 0;
+	int page = 0;
+
+	@Setup
+	public void setup() {
+		Projector projector = new Projector.Builder().withNeoRxClient(neo4j.getNeoRxClient()).build();
+
+		instanceScanner = newBuilder(projector).build(EC2InstanceScanner.class);
+		elbScanner = newBuilder(projector).build(ELBScanner.class);
+		asgScanner = newBuilder(projector).build(ASGScanner.class);
+		instancePageScanner = newBuilder(projector).withPageProjection(true).build(EC2InstanceScanner.class);
+		elbPageScanner = new ELBScanner(newBuilder(projector).withPageProjection(true)) {
+
+			AmazonElasticLoadBalancingClient client = newElbClient();
+
+			@Override
+			public AmazonElasticLoadBalancingClient getClient() {
+				return client;
+			}
+
+			@Override
+			public void rateLimit() {
+				// DescribeTags is answered in-process
+			}
+		};
+
+		instanceGc = instanceScanner.newGarbageCollector();
+		asgGc = asgScanner.newGarbageCollector();
+
+		for (int n = 0; n < ENTITY_COUNT; n++) {
+			instances[n] = SyntheticModels.newInstance(n, 10);
+			loadBalancers[n] = SyntheticModels.newLoadBalancer(n, 4);
+			autoScalingGroups[n] = SyntheticModels.newAutoScalingGroup(n, 4);
+		}
+		instancePages = Lists.partition(Arrays.asList(instances), PAGE_SIZE);
+		loadBalancerPages = Lists.partition(Arrays.asList(loadBalancers), PAGE_SIZE);
+	}
+
+	/**
+	 * Each statement returns a single node built from its "props" parameter,
+	 * if it has one, so that actions chained on merge statements still run.
+	 * UNWIND statements that return nodes return one per row, built from the
+	 * row's props.
+	 */
+	static Iterable<? extends JsonNode> answer(Statement statement) {
+		Object props = statement.getParameter("props");
+		if (props instanceof ObjectNode) {
+			return Collections.singletonList(merged((ObjectNode) props));
+		}
+		if (statement.getRows() != null && statement.getCypher().contains(" return ")) {
+			List<JsonNode> result = Lists.newArrayList();
+			for (JsonNode row : statement.getRows()) {
+				if (row.path("props").isObject()) {
+					result.add(merged((ObjectNode) row.get("props")));
+				}
+			}
+			return result;
+		}
+		return null;
+	}
+
+	static ObjectNode merged(ObjectNode props) {
+		ObjectNode n = props.deepCopy();
+		n.put("updateTs", System.currentTimeMillis());
+		// a stale tag that the shadow attribute remover has to clear
+		n.put("aws_tag_removed", "x");
+		return n;
+	}
+
+	/**
+	 * Answers DescribeTags with four tags for each load balancer.
+	 */
+	static AmazonElasticLoadBalancingClient newElbClient() {
+		AmazonElasticLoadBalancingClient client = Mockito.mock(AmazonElasticLoadBalancingClient.class,
+				Mockito.withSettings().stubOnly());
+		Mockito.when(client.describeTags(Mockito.any(DescribeTagsRequest.class))).thenAnswer(invocation -> {
+			DescribeTagsRequest request = invocation.getArgument(0);
+			return new DescribeTagsResult().withTagDescriptions(request.getLoadBalancerNames().stream()
+					.map(name -> SyntheticModels.newLoadBalancerTags(name, 4)).collect(Collectors.toList()));
+		});
+		return client;
+	}
+
+	AWSScannerBuilder newBuilder(Projector projector) {
+		return projector.createBuilder(AWSScannerBuilder.class).withRegion(Regions.US_WEST_2)
+				.withAccountId(SyntheticModels.ACCOUNT);
+	}
+
+	int next() {
+		i = (i + 1) & (ENTITY_COUNT - 1);
+		return i;
+	}
+
+	int nextPage() {
+		page = (page + 1) % (ENTITY_COUNT / PAGE_SIZE);
+		return page;
+	}
+
+	void count(Counters counters, long statements, long rows, int entities) {
+		counters.statements += neo4j.getStatementCount() - statements;
+		counters.rows += neo4j.getRowCount() - rows;
+		counters.entities += entities;
+	}
+
+	@Benchmark
+	public void projectInstance(Counters counters) {
+		long statements = neo4j.getStatementCount();
+		long rows = neo4j.getRowCount();
+		instanceScanner.writeInstance(instances[next()], instanceGc);
+		count(counters, statements, rows, 1);
+	}
+
+	@Benchmark
+	public void projectLoadBalancer(Counters counters) {
+		long statements = neo4j.getStatementCount();
+		long rows = neo4j.getRowCount();
+		elbScanner.projectElb(loadBalancers[next()], null);
+		count(counters, statements, rows, 1);
+	}
+
+	@Benchmark
+	public void projectAutoScalingGroup(Counters counters) {
+		long statements = neo4j.getStatementCount();
+		long rows = neo4j.getRowCount();
+		asgScanner.projectAsg(autoScalingGroups[next()], asgGc);
+		count(counters, statements, rows, 1);
+	}
+
+	@Benchmark
+	public void linkSecurityGroups(Counters counters) {
+		Instance instance = instances[next()];
+		long statements = neo4j.getStatementCount();
+		long rows = neo4j.getRowCount();
+		instanceScanner.newLinkageHelper()
+				.withFromArn(instanceScanner.createEc2Arn("instance", instance.getInstanceId()))
+				.withLinkLabel("ATTACHED_TO").withTargetLabel("AwsSecurityGroup")
+				.withTargetValues(instance.getSecurityGroups().stream()
+						.map(sg -> instanceScanner.createEc2Arn("security-group", sg.getGroupId()))
+						.collect(Collectors.toList()))
+				.execute();
+		count(counters, statements, rows, 1);
+	}
+
+	@Benchmark
+	public void projectInstancePage(Counters counters) {
+		long statements = neo4j.getStatementCount();
+		long rows = neo4j.getRowCount();
+		int count = instancePageScanner.writeInstances(instancePages.get(nextPage()), instanceGc);
+		count(counters, statements, rows, count);
+	}
+
+	@Benchmark
+	public void projectLoadBalancerPage(Counters counters) {
+		long statements = neo4j.getStatementCount();
+		long rows = neo4j.getRowCount();
+		int count = elbPageScanner.projectElbPage(loadBalancerPages.get(nextPage()), null);
+		count(counters, statements, rows, count);
+	}
+}
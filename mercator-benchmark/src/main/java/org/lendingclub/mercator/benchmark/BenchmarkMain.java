@@ -0,0 +1,59 @@
+/**
+ * Copyright 2017 Lending Club, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lendingclub.mercator.benchmark;
+
+import java.util.Collection;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs the benchmarks with the GC profiler enabled, so that the allocation
+ * rate is reported with every result, and logs the number of Cypher
+ * statements and UNWIND rows issued per projected entity. Command line
+ * arguments are the usual JMH options.
+ */
+public class BenchmarkMain {
+
+	static Logger logger = LoggerFactory.getLogger(BenchmarkMain.class);
+
+	public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+		Options options = new OptionsBuilder().parent(new CommandLineOptions(args)).addProfiler(GCProfiler.class)
+				.build();
+
+		Collection<RunResult> results = new Runner(options).run();
+
+		for (RunResult result : results) {
+			Result<?> statements = result.getSecondaryResults().get("statements");
+			Result<?> rows = result.getSecondaryResults().get("rows");
+			Result<?> entities = result.getSecondaryResults().get("entities");
+			if (statements != null && rows != null && entities != null && entities.getScore() > 0) {
+				logger.info("{}: {} statements and {} rows per entity", result.getParams().getBenchmark(),
+						String.format("%.2f", statements.getScore() / entities.getScore()),
+						String.format("%.2f", rows.getScore() / entities.getScore()));
+			}
+		}
+	}
+}
@@ -0,0 +1,108 @@
+/**
+ * Copyright 2017 Lending Club, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lendingclub.mercator.benchmark;
+
+import java.util.Date;
+import java.util.List;
+
+import com.amazonaws.services.autoscaling.model.AutoScalingGroup;
+import com.amazonaws.services.autoscaling.model.TagDescription;
+import com.amazonaws.services.ec2.model.GroupIdentifier;
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.InstanceState;
+import com.amazonaws.services.ec2.model.Placement;
+import com.amazonaws.services.ec2.model.Tag;
+import com.amazonaws.services.elasticloadbalancing.model.HealthCheck;
+import com.amazonaws.services.elasticloadbalancing.model.Listener;
+import com.amazonaws.services.elasticloadbalancing.model.ListenerDescription;
+import com.amazonaws.services.elasticloadbalancing.model.LoadBalancerDescription;
+import com.google.common.collect.Lists;
+
+/**
+ * Synthetic AWS SDK model objects, shaped like what the scanners see from the
+ * describe* calls.
+ */
+public class SyntheticModels {
+
+	public static final String ACCOUNT = "123456789012";
+	public static final String REGION = "us-west-2";
+
+	public static Instance newInstance(int i, int tagCount) {
+		List<Tag> tags = Lists.newArrayList();
+		for (int t = 0; t < tagCount; t++) {
+			tags.add(new Tag("tag" + t, "value-" + i + "-" + t));
+		}
+		return new Instance().withInstanceId(String.format("i-%017x", i)).withImageId("ami-0123abcd")
+				.withInstanceType("m4.large").withSubnetId("subnet-" + (i % 8)).withVpcId("vpc-1234")
+				.withPrivateIpAddress("10.0." + (i / 250 % 250) + "." + (i % 250))
+				.withPrivateDnsName("ip-10-0-0-" + (i % 250) + ".us-west-2.compute.internal")
+				.withLaunchTime(new Date(1500000000000L + i)).withKeyName("default").withEbsOptimized(false)
+				.withState(new InstanceState().withCode(16).withName("running"))
+				.withPlacement(new Placement().withAvailabilityZone("us-west-2a").withTenancy("default"))
+				.withSecurityGroups(new GroupIdentifier().withGroupId("sg-" + (i % 16)).withGroupName("web"),
+						new GroupIdentifier().withGroupId("sg-common").withGroupName("common"))
+				.withTags(tags);
+	}
+
+	public static LoadBalancerDescription newLoadBalancer(int i, int instanceCount) {
+		List<com.amazonaws.services.elasticloadbalancing.model.Instance> instances = Lists.newArrayList();
+		for (int n = 0; n < instanceCount; n++) {
+			instances.add(new com.amazonaws.services.elasticloadbalancing.model.Instance()
+					.withInstanceId(String.format("i-%017x", i * instanceCount + n)));
+		}
+		return new LoadBalancerDescription().withLoadBalancerName("elb-" + i)
+				.withDNSName("elb-" + i + "-123456.us-west-2.elb.amazonaws.com").withScheme("internal")
+				.withVPCId("vpc-1234").withCreatedTime(new Date(1500000000000L + i))
+				.withAvailabilityZones("us-west-2a", "us-west-2b").withSubnets("subnet-1", "subnet-2")
+				.withSecurityGroups("sg-" + (i % 16))
+				.withHealthCheck(new HealthCheck().withTarget("HTTP:8080/health").withInterval(30)
+						.withTimeout(5).withHealthyThreshold(2).withUnhealthyThreshold(3))
+				.withListenerDescriptions(new ListenerDescription().withListener(new Listener()
+						.withProtocol("HTTP").withLoadBalancerPort(80).withInstancePort(8080)))
+				.withInstances(instances);
+	}
+
+	public static com.amazonaws.services.elasticloadbalancing.model.TagDescription newLoadBalancerTags(String name,
+			int tagCount) {
+		List<com.amazonaws.services.elasticloadbalancing.model.Tag> tags = Lists.newArrayList();
+		for (int t = 0; t < tagCount; t++) {
+			tags.add(new com.amazonaws.services.elasticloadbalancing.model.Tag().withKey("tag" + t)
+					.withValue(name + "-" + t));
+		}
+		return new com.amazonaws.services.elasticloadbalancing.model.TagDescription().withLoadBalancerName(name)
+				.withTags(tags);
+	}
+
+	public static AutoScalingGroup newAutoScalingGroup(int i, int instanceCount) {
+		List<com.amazonaws.services.autoscaling.model.Instance> instances = Lists.newArrayList();
+		for (int n = 0; n < instanceCount; n++) {
+			instances.add(new com.amazonaws.services.autoscaling.model.Instance()
+					.withInstanceId(String.format("i-%017x", i * instanceCount + n)).withLifecycleState("InService")
+					.withHealthStatus("Healthy").withAvailabilityZone("us-west-2a"));
+		}
+		String name = "asg-" + i;
+		return new AutoScalingGroup().withAutoScalingGroupName(name)
+				.withAutoScalingGroupARN("arn:aws:autoscaling:" + REGION + ":" + ACCOUNT
+						+ ":autoScalingGroup:00000000-0000-0000-0000-000000000000:autoScalingGroupName/" + name)
+				.withLaunchConfigurationName("lc-" + i).withMinSize(1).withMaxSize(10)
+				.withDesiredCapacity(instanceCount).withDefaultCooldown(300).withHealthCheckType("ELB")
+				.withHealthCheckGracePeriod(300).withCreatedTime(new Date(1500000000000L + i))
+				.withAvailabilityZones("us-west-2a", "us-west-2b").withLoadBalancerNames("elb-" + i)
+				.withVPCZoneIdentifier("subnet-1,subnet-2")
+				.withTags(new TagDescription().withKey("Name").withValue(name).withPropagateAtLaunch(true))
+				.withInstances(instances);
+	}
+}
@@ -28,12 +28,20 @@ import com.google.common.util.concurrent.RateLimiter;
 
 public abstract class AbstractScanner implements Scanner {
 
+	public static final int DEFAULT_MAX_TASKS_IN_FLIGHT = 256;
+
 	Logger logger = LoggerFactory.getLogger(getClass());
 
 	ScannerBuilder<? extends Scanner> builder;
 
 	protected RateLimiter rateLimiter = null;
 
+	private double initialRateLimit = -1;
+
+	private AdaptiveRateLimiter adaptiveRateLimiter = null;
+
+	private GraphWriter graphWriter = null;
+
 	public AbstractScanner(ScannerBuilder<? extends Scanner> builder) {
 		this.builder = builder;
 
@@ -51,7 +59,11 @@ public abstract class AbstractScanner implements Scanner {
 			rateLimit = builder.getRateLimitPerSecond().orElse(-1d);
 		}
 
-		if (rateLimit > 0) {
+		if (builder.isAdaptiveRateLimitEnabled()) {
+			this.initialRateLimit = rateLimit > 0 ? rateLimit : AdaptiveRateLimiter.DEFAULT_INITIAL_RATE;
+			logger.info("adaptive rate limit starting at {} calls/second", initialRateLimit);
+			this.rateLimiter = null;
+		} else if (rateLimit > 0) {
 			logger.info("rate limit {} calls/second", rateLimit);
 			this.rateLimiter = RateLimiter.create(rateLimit);
 		} else {
@@ -74,6 +86,50 @@ public abstract class AbstractScanner implements Scanner {
 		return getProjector().getNeoRxClient();
 	}
 
+	/**
+	 * Returns the GraphWriter used to batch node merges for this scanner. Merges
+	 * that are still pending when the scan completes should be flushed by the
+	 * scanner.
+	 */
+	public synchronized GraphWriter getGraphWriter() {
+		if (graphWriter == null) {
+			graphWriter = createGraphWriter();
+		}
+		return graphWriter;
+	}
+
+	protected GraphWriter createGraphWriter() {
+		return new GraphWriter(getNeoRxClient()).withFingerprintCache(getProjector().getFingerprintCache());
+	}
+
+	public ExecutionMode getExecutionMode() {
+		return builder.getExecutionMode();
+	}
+
+	/**
+	 * Opens a scope for forking per-entity calls. In VIRTUAL mode each task runs
+	 * on its own virtual thread, with at most DEFAULT_MAX_TASKS_IN_FLIGHT
+	 * running at once. In PLATFORM mode tasks run one at a time on the calling
+	 * thread.
+	 */
+	protected TaskScope newTaskScope() {
+		return TaskScope.open(getExecutionMode(), getClass().getSimpleName() + "-")
+				.withMaxConcurrency(DEFAULT_MAX_TASKS_IN_FLIGHT);
+	}
+
+	/**
+	 * Apply the action to each item, concurrently in VIRTUAL mode. Returns once
+	 * every action has completed.
+	 */
+	protected <E> void forEachEntity(Iterable<E> items, java.util.function.Consumer<E> action) {
+		try (TaskScope scope = newTaskScope()) {
+			for (E item : items) {
+				scope.fork(() -> action.accept(item));
+			}
+			scope.join();
+		}
+	}
+
 	public boolean isFailOnError() {
 		return builder.isFailOnError();
 	}
@@ -110,10 +166,45 @@ public abstract class AbstractScanner implements Scanner {
 		return new SchemaManager(getProjector().getNeoRxClient());
 	}
 
+	/**
+	 * Create any constraints and indexes that this scanner's schema manager
+	 * declares and the database lacks. This is only done once per schema
+	 * manager type.
+	 */
+	protected void ensureSchema() {
+		getProjector().ensureSchema(getSchemaManager());
+	}
+
+	/**
+	 * Returns the adaptive rate limiter, if adaptive rate limiting was enabled on
+	 * the builder.
+	 */
+	public synchronized Optional<AdaptiveRateLimiter> getAdaptiveRateLimiter() {
+		if (!builder.isAdaptiveRateLimitEnabled()) {
+			return Optional.empty();
+		}
+		if (adaptiveRateLimiter == null) {
+			adaptiveRateLimiter = createAdaptiveRateLimiter(initialRateLimit);
+		}
+		return Optional.of(adaptiveRateLimiter);
+	}
+
+	protected AdaptiveRateLimiter createAdaptiveRateLimiter(double initialRate) {
+		return new AdaptiveRateLimiter(getClass().getSimpleName(), initialRate);
+	}
+
 	@Override
 	public void rateLimit() {
-
-		if (rateLimiter != null) {
+		Optional<AdaptiveRateLimiter> adaptive = getAdaptiveRateLimiter();
+		if (adaptive.isPresent()) {
+			Stopwatch sw = Stopwatch.createStarted();
+			adaptive.get().acquire();
+			long ms = sw.elapsed(TimeUnit.MILLISECONDS);
+			if (ms > 50) {
+				logger.info("adaptive rate limiting ({} calls/second) paused execution for {} ms",
+						adaptive.get().getRate(), ms);
+			}
+		} else if (rateLimiter != null) {
 			Stopwatch sw = Stopwatch.createStarted();
 			rateLimiter.acquire();
 			sw.stop();
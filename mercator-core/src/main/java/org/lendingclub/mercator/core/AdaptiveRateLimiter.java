@@ -0,0 +1,159 @@
+/**
+ * Copyright 2017 Lending Club, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lendingclub.mercator.core;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Ticker;
+import com.google.common.util.concurrent.RateLimiter;
+
+/**
+ * AdaptiveRateLimiter is a RateLimiter whose rate is adjusted with additive
+ * increase / multiplicative decrease (AIMD). While calls succeed, the rate is
+ * raised by a fixed increment at most once per adjustment interval. When the
+ * remote service throttles or fails, the rate is cut by the decrease factor,
+ * again at most once per interval, so that a burst of throttled calls that were
+ * already in flight only counts once.
+ */
+public class AdaptiveRateLimiter {
+
+	public static final double DEFAULT_INITIAL_RATE = 10;
+	public static final double DEFAULT_MIN_RATE = 0.5;
+	public static final double DEFAULT_MAX_RATE = 100;
+	public static final double DEFAULT_ADDITIVE_INCREASE = 1;
+	public static final double DEFAULT_MULTIPLICATIVE_DECREASE = 0.5;
+	public static final long DEFAULT_ADJUSTMENT_INTERVAL_MILLIS = 1000;
+
+	static Logger logger = LoggerFactory.getLogger(AdaptiveRateLimiter.class);
+
+	String name;
+	RateLimiter rateLimiter;
+	double minRate = DEFAULT_MIN_RATE;
+	double maxRate = DEFAULT_MAX_RATE;
+	double additiveIncrease = DEFAULT_ADDITIVE_INCREASE;
+	double multiplicativeDecrease = DEFAULT_MULTIPLICATIVE_DECREASE;
+	long adjustmentIntervalNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_ADJUSTMENT_INTERVAL_MILLIS);
+	Ticker ticker = Ticker.systemTicker();
+
+	long lastIncreaseNanos;
+	long lastDecreaseNanos;
+
+	AtomicLong successCount = new AtomicLong();
+	AtomicLong throttleCount = new AtomicLong();
+
+	public AdaptiveRateLimiter(String name, double initialRate) {
+		Preconditions.checkArgument(initialRate > 0, "initialRate must be > 0");
+		this.name = name;
+		this.rateLimiter = RateLimiter.create(initialRate);
+		this.lastIncreaseNanos = ticker.read();
+		this.lastDecreaseNanos = lastIncreaseNanos - adjustmentIntervalNanos;
+	}
+
+	public AdaptiveRateLimiter withMinRate(double rate) {
+		Preconditions.checkArgument(rate > 0, "minRate must be > 0");
+		this.minRate = rate;
+		return this;
+	}
+
+	public AdaptiveRateLimiter withMaxRate(double rate) {
+		Preconditions.checkArgument(rate > 0, "maxRate must be > 0");
+		this.maxRate = rate;
+		return this;
+	}
+
+	public AdaptiveRateLimiter withAdditiveIncrease(double increase) {
+		Preconditions.checkArgument(increase >= 0, "additiveIncrease must be >= 0");
+		this.additiveIncrease = increase;
+		return this;
+	}
+
+	public AdaptiveRateLimiter withMultiplicativeDecrease(double factor) {
+		Preconditions.checkArgument(factor > 0 && factor < 1, "multiplicativeDecrease must be between 0 and 1");
+		this.multiplicativeDecrease = factor;
+		return this;
+	}
+
+	public AdaptiveRateLimiter withAdjustmentInterval(long duration, TimeUnit unit) {
+		this.adjustmentIntervalNanos = unit.toNanos(duration);
+		return this;
+	}
+
+	AdaptiveRateLimiter withTicker(Ticker ticker) {
+		this.ticker = ticker;
+		this.lastIncreaseNanos = ticker.read();
+		this.lastDecreaseNanos = lastIncreaseNanos - adjustmentIntervalNanos;
+		return this;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Blocks until a permit is available and returns the time spent waiting,
+	 * in seconds.
+	 */
+	public double acquire() {
+		return rateLimiter.acquire();
+	}
+
+	public double getRate() {
+		return rateLimiter.getRate();
+	}
+
+	public long getSuccessCount() {
+		return successCount.get();
+	}
+
+	public long getThrottleCount() {
+		return throttleCount.get();
+	}
+
+	public synchronized void onSuccess() {
+		successCount.incrementAndGet();
+		long now = ticker.read();
+		if (now - lastIncreaseNanos >= adjustmentIntervalNanos) {
+			lastIncreaseNanos = now;
+			double rate = Math.min(maxRate, getRate() + additiveIncrease);
+			if (rate != getRate()) {
+				rateLimiter.setRate(rate);
+			}
+		}
+	}
+
+	public synchronized void onThrottle() {
+		throttleCount.incrementAndGet();
+		long now = ticker.read();
+		if (now - lastDecreaseNanos >= adjustmentIntervalNanos) {
+			lastDecreaseNanos = now;
+			lastIncreaseNanos = now;
+			double rate = Math.max(minRate, getRate() * multiplicativeDecrease);
+			logger.info("{} throttled - reducing rate from {} to {} calls/second", name, getRate(), rate);
+			rateLimiter.setRate(rate);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return MoreObjects.toStringHelper(this).add("name", name).add("rate", getRate()).toString();
+	}
+}
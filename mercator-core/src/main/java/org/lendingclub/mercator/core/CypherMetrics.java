@@ -0,0 +1,352 @@
+/**
+ * Copyright 2017 Lending Club, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lendingclub.mercator.core;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.EvictingQueue;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+
+/**
+ * CypherMetrics records the latency, row count and error count of every Cypher
+ * statement executed through an InstrumentedDriver, aggregated by statement
+ * template. Since statements are parameterized, the template is simply the
+ * statement text with whitespace collapsed.
+ *
+ * Statements slower than the slow threshold are also kept, with their
+ * parameters, in a bounded buffer of samples. If profiling is enabled, the
+ * query plan of the first slow execution of each template is attached to the
+ * sample.
+ */
+public class CypherMetrics {
+
+	public static final long DEFAULT_SLOW_THRESHOLD_MILLIS = 1000;
+	public static final int DEFAULT_MAX_SLOW_STATEMENTS = 100;
+	public static final int DEFAULT_MAX_TEMPLATE_LENGTH = 1000;
+
+	/**
+	 * Array parameters (typically UNWIND rows) are truncated to this many
+	 * elements in samples.
+	 */
+	public static final int MAX_SAMPLED_ARRAY_ELEMENTS = 10;
+
+	static ObjectMapper mapper = new ObjectMapper();
+
+	Logger logger = LoggerFactory.getLogger(CypherMetrics.class);
+
+	long slowThresholdMillis = DEFAULT_SLOW_THRESHOLD_MILLIS;
+	boolean profileEnabled = false;
+
+	ConcurrentMap<String, StatementStats> stats = Maps.newConcurrentMap();
+	EvictingQueue<SlowStatement> slowStatements = EvictingQueue.create(DEFAULT_MAX_SLOW_STATEMENTS);
+
+	public static class StatementStats {
+		String template;
+		LatencyHistogram latency = new LatencyHistogram();
+		AtomicLong rowCount = new AtomicLong();
+		AtomicLong errorCount = new AtomicLong();
+		AtomicLong slowCount = new AtomicLong();
+		volatile boolean profiled = false;
+
+		StatementStats(String template) {
+			this.template = template;
+		}
+
+		public String getTemplate() {
+			return template;
+		}
+
+		public LatencyHistogram getLatency() {
+			return latency;
+		}
+
+		public long getCount() {
+			return latency.getCount();
+		}
+
+		public long getRowCount() {
+			return rowCount.get();
+		}
+
+		public long getErrorCount() {
+			return errorCount.get();
+		}
+
+		public long getSlowCount() {
+			return slowCount.get();
+		}
+
+		public double getErrorRate() {
+			long count = getCount();
+			return count == 0 ? 0 : (double) getErrorCount() / count;
+		}
+
+		public ObjectNode toJson() {
+			ObjectNode n = mapper.createObjectNode();
+			n.put("template", template);
+			n.put("count", getCount());
+			n.put("rows", getRowCount());
+			n.put("errors", getErrorCount());
+			n.put("errorRate", getErrorRate());
+			n.put("slow", getSlowCount());
+			n.set("latency", latency.toJson());
+			return n;
+		}
+
+		@Override
+		public String toString() {
+			return toJson().toString();
+		}
+	}
+
+	public static class SlowStatement {
+		String template;
+		ObjectNode parameters;
+		long timestamp;
+		long millis;
+		long rowCount;
+		String error;
+		volatile JsonNode plan;
+
+		public String getTemplate() {
+			return template;
+		}
+
+		public ObjectNode getParameters() {
+			return parameters;
+		}
+
+		public long getTimestamp() {
+			return timestamp;
+		}
+
+		public long getMillis() {
+			return millis;
+		}
+
+		public long getRowCount() {
+			return rowCount;
+		}
+
+		public Optional<String> getError() {
+			return Optional.ofNullable(error);
+		}
+
+		/**
+		 * The PROFILE (or, for statements that write, EXPLAIN) plan if one was
+		 * captured.
+		 */
+		public Optional<JsonNode> getPlan() {
+			return Optional.ofNullable(plan);
+		}
+
+		public ObjectNode toJson() {
+			ObjectNode n = mapper.createObjectNode();
+			n.put("template", template);
+			n.put("timestamp", timestamp);
+			n.put("millis", millis);
+			n.put("rows", rowCount);
+			n.set("parameters", parameters);
+			if (error != null) {
+				n.put("error", error);
+			}
+			if (plan != null) {
+				n.set("plan", plan);
+			}
+			return n;
+		}
+
+		@Override
+		public String toString() {
+			return toJson().toString();
+		}
+	}
+
+	public CypherMetrics withSlowThreshold(long duration, TimeUnit unit) {
+		this.slowThresholdMillis = unit.toMillis(duration);
+		return this;
+	}
+
+	public CypherMetrics withMaxSlowStatements(int max) {
+		Preconditions.checkArgument(max > 0, "max must be > 0");
+		synchronized (this) {
+			EvictingQueue<SlowStatement> q = EvictingQueue.create(max);
+			q.addAll(slowStatements);
+			slowStatements = q;
+		}
+		return this;
+	}
+
+	/**
+	 * Capture the query plan of the first slow execution of each template.
+	 * Read-only statements are re-run with PROFILE. Statements that write are
+	 * only planned with EXPLAIN, so that they are never executed twice.
+	 */
+	public CypherMetrics withProfileEnabled(boolean b) {
+		this.profileEnabled = b;
+		return this;
+	}
+
+	public long getSlowThresholdMillis() {
+		return slowThresholdMillis;
+	}
+
+	public boolean isProfileEnabled() {
+		return profileEnabled;
+	}
+
+	public static String createTemplate(String cypher) {
+		String template = cypher == null ? "" : cypher.trim().replaceAll("\\s+", " ");
+		if (template.length() > DEFAULT_MAX_TEMPLATE_LENGTH) {
+			template = template.substring(0, DEFAULT_MAX_TEMPLATE_LENGTH);
+		}
+		return template;
+	}
+
+	/**
+	 * Record the execution of a statement. Returns the sample if the statement
+	 * was slow.
+	 */
+	public Optional<SlowStatement> record(String cypher, Map<String, Object> parameters, long millis, long rows,
+			Throwable error) {
+		String template = createTemplate(cypher);
+		StatementStats s = stats.computeIfAbsent(template, StatementStats::new);
+		s.latency.record(millis);
+		s.rowCount.addAndGet(rows);
+		if (error != null) {
+			s.errorCount.incrementAndGet();
+		}
+		if (millis < slowThresholdMillis) {
+			return Optional.empty();
+		}
+		s.slowCount.incrementAndGet();
+
+		SlowStatement sample = new SlowStatement();
+		sample.template = template;
+		sample.parameters = toSampledJson(parameters);
+		sample.timestamp = System.currentTimeMillis();
+		sample.millis = millis;
+		sample.rowCount = rows;
+		sample.error = error == null ? null : error.toString();
+		synchronized (this) {
+			slowStatements.add(sample);
+		}
+		logger.debug("slow cypher ({} ms): {}", millis, template);
+		return Optional.of(sample);
+	}
+
+	/**
+	 * Returns true exactly once per template, when the plan of a slow execution
+	 * should be captured.
+	 */
+	boolean shouldProfile(SlowStatement sample) {
+		if (!profileEnabled) {
+			return false;
+		}
+		StatementStats s = stats.get(sample.template);
+		if (s == null) {
+			return false;
+		}
+		synchronized (s) {
+			if (s.profiled) {
+				return false;
+			}
+			s.profiled = true;
+			return true;
+		}
+	}
+
+	ObjectNode toSampledJson(Map<String, Object> parameters) {
+		ObjectNode n = mapper.createObjectNode();
+		if (parameters == null) {
+			return n;
+		}
+		parameters.forEach((k, v) -> {
+			JsonNode val;
+			try {
+				val = v instanceof JsonNode ? (JsonNode) v : mapper.valueToTree(v);
+			} catch (RuntimeException e) {
+				val = mapper.getNodeFactory().textNode(String.valueOf(v));
+			}
+			if (val != null && val.isArray() && val.size() > MAX_SAMPLED_ARRAY_ELEMENTS) {
+				ArrayNode truncated = mapper.createArrayNode();
+				for (int i = 0; i < MAX_SAMPLED_ARRAY_ELEMENTS; i++) {
+					truncated.add(val.get(i));
+				}
+				n.put(k + "Size", val.size());
+				val = truncated;
+			}
+			n.set(k, val);
+		});
+		return n;
+	}
+
+	public Optional<StatementStats> getStatementStats(String cypher) {
+		return Optional.ofNullable(stats.get(createTemplate(cypher)));
+	}
+
+	/**
+	 * Returns the statistics of every template, most expensive first.
+	 */
+	public List<StatementStats> getStatementStats() {
+		return stats.values().stream()
+				.sorted(Comparator.comparingLong((StatementStats s) -> s.getLatency().getTotalMillis()).reversed())
+				.collect(Collectors.toList());
+	}
+
+	/**
+	 * Returns the sampled slow statements, oldest first.
+	 */
+	public synchronized List<SlowStatement> getSlowStatements() {
+		return ImmutableList.copyOf(slowStatements);
+	}
+
+	public synchronized void reset() {
+		stats.clear();
+		slowStatements.clear();
+	}
+
+	public ObjectNode toJson() {
+		ObjectNode n = mapper.createObjectNode();
+		n.put("slowThresholdMillis", slowThresholdMillis);
+		ArrayNode statements = n.putArray("statements");
+		getStatementStats().forEach(it -> statements.add(it.toJson()));
+		ArrayNode slow = n.putArray("slowStatements");
+		getSlowStatements().forEach(it -> slow.add(it.toJson()));
+		return n;
+	}
+
+	@Override
+	public String toString() {
+		return toJson().toString();
+	}
+}
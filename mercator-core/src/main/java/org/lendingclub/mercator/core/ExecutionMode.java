@@ -0,0 +1,37 @@
+/**
+ * Copyright 2017 Lending Club, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lendingclub.mercator.core;
+
+/**
+ * Selects the kind of threads that scanners and their per-entity calls run on.
+ */
+public enum ExecutionMode {
+
+	/**
+	 * Scanners run on a fixed pool of platform threads, and each scanner
+	 * processes its entities one at a time.
+	 */
+	PLATFORM,
+
+	/**
+	 * Scanners run on virtual threads, and per-entity calls are forked onto
+	 * their own virtual threads, so that the number of calls in flight is
+	 * bounded by rate limits rather than by threads. Requires Java 21 or later;
+	 * on older runtimes a bounded pool of platform threads is used instead.
+	 */
+	VIRTUAL
+
+}
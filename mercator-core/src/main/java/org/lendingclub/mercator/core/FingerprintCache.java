@@ -0,0 +1,167 @@
+/**
+ * Copyright 2017 Lending Club, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lendingclub.mercator.core;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.lendingclub.neorx.NeoRxClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+/**
+ * FingerprintCache remembers a 64-bit hash of the properties last written for
+ * each node, keyed by label and merge key value. GraphWriter uses it to skip
+ * rewriting nodes whose properties have not changed since the previous scan.
+ *
+ * The fingerprint is also stored on the node itself so that the cache can be
+ * warmed from Neo4j when the process starts.
+ */
+public class FingerprintCache {
+
+	public static final String FINGERPRINT_ATTRIBUTE = "mercatorFingerprint";
+
+	public static final long DEFAULT_MAXIMUM_SIZE = 100000;
+	public static final long DEFAULT_EXPIRE_AFTER_WRITE_MINUTES = 60;
+
+	static HashFunction hashFunction = Hashing.farmHashFingerprint64();
+
+	Logger logger = LoggerFactory.getLogger(FingerprintCache.class);
+
+	Cache<String, Long> cache;
+
+	Set<String> ignoredProperties = ImmutableSet.of("updateTs", FINGERPRINT_ATTRIBUTE,
+			ScanGeneration.SCAN_GENERATION_ATTRIBUTE, ScanGeneration.TOMBSTONE_ATTRIBUTE);
+
+	AtomicLong hitCount = new AtomicLong();
+	AtomicLong missCount = new AtomicLong();
+
+	public FingerprintCache() {
+		this(DEFAULT_MAXIMUM_SIZE, DEFAULT_EXPIRE_AFTER_WRITE_MINUTES, TimeUnit.MINUTES);
+	}
+
+	/**
+	 * Entries are evicted once the cache holds more than maximumSize entries,
+	 * and expire after the given duration so that every node is periodically
+	 * rewritten even if nothing appears to have changed.
+	 */
+	public FingerprintCache(long maximumSize, long expireAfterWrite, TimeUnit unit) {
+		Preconditions.checkArgument(maximumSize > 0, "maximumSize must be > 0");
+		cache = CacheBuilder.newBuilder().maximumSize(maximumSize).expireAfterWrite(expireAfterWrite, unit).build();
+	}
+
+	/**
+	 * Properties that change on every scan without the entity itself changing
+	 * should be excluded from the fingerprint.
+	 */
+	public FingerprintCache withIgnoredProperties(String... names) {
+		this.ignoredProperties = ImmutableSet.<String>builder().addAll(ignoredProperties).add(names).build();
+		return this;
+	}
+
+	public Set<String> getIgnoredProperties() {
+		return ignoredProperties;
+	}
+
+	public long fingerprint(ObjectNode props) {
+		Hasher hasher = hashFunction.newHasher();
+		Set<String> names = new TreeSet<>(Sets.newHashSet(props.fieldNames()));
+		for (String name : names) {
+			if (ignoredProperties.contains(name)) {
+				continue;
+			}
+			hasher.putString(name, StandardCharsets.UTF_8);
+			hasher.putByte((byte) 0);
+			hasher.putString(props.get(name).toString(), StandardCharsets.UTF_8);
+			hasher.putByte((byte) 0);
+		}
+		return hasher.hash().asLong();
+	}
+
+	String createKey(String label, String mergeKey, JsonNode key) {
+		return label + ":" + mergeKey + ":" + key.asText();
+	}
+
+	/**
+	 * Returns true if the given fingerprint matches the one last written for
+	 * the node.
+	 */
+	public boolean isUnchanged(String label, String mergeKey, JsonNode key, long fingerprint) {
+		Long val = cache.getIfPresent(createKey(label, mergeKey, key));
+		if (val != null && val.longValue() == fingerprint) {
+			hitCount.incrementAndGet();
+			return true;
+		}
+		missCount.incrementAndGet();
+		return false;
+	}
+
+	public void put(String label, String mergeKey, JsonNode key, long fingerprint) {
+		cache.put(createKey(label, mergeKey, key), fingerprint);
+	}
+
+	public void invalidate(String label, String mergeKey, JsonNode key) {
+		cache.invalidate(createKey(label, mergeKey, key));
+	}
+
+	public void invalidateAll() {
+		cache.invalidateAll();
+	}
+
+	public long size() {
+		return cache.size();
+	}
+
+	public long getHitCount() {
+		return hitCount.get();
+	}
+
+	public long getMissCount() {
+		return missCount.get();
+	}
+
+	/**
+	 * Load the fingerprints stored on nodes with the given label.
+	 */
+	public FingerprintCache warm(NeoRxClient neo4j, String label, String mergeKey) {
+		AtomicLong count = new AtomicLong();
+		String cypher = "match (x:" + label + ") where exists(x." + FINGERPRINT_ATTRIBUTE + ") return x." + mergeKey
+				+ " as key, x." + FINGERPRINT_ATTRIBUTE + " as fingerprint";
+		neo4j.execCypher(cypher).blockingForEach(it -> {
+			JsonNode key = it.path("key");
+			if (!key.isMissingNode() && !key.isNull()) {
+				put(label, mergeKey, key, it.path("fingerprint").asLong());
+				count.incrementAndGet();
+			}
+		});
+		logger.info("loaded {} {} fingerprints", count.get(), label);
+		return this;
+	}
+}
@@ -0,0 +1,441 @@
+/**
+ * Copyright 2017 Lending Club, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lendingclub.mercator.core;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.lendingclub.neorx.NeoRxClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Stopwatch;
+import com.google.common.base.Strings;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Maps;
+
+import io.reactivex.functions.Consumer;
+
+/**
+ * GraphWriter buffers node merges and writes them to Neo4j in batches. Merges
+ * are grouped by label and merge key and each group is flushed as a single
+ * parameterized UNWIND statement, either when the group reaches the batch size
+ * or when the oldest pending merge is older than the flush interval.
+ *
+ * The flush interval is only checked when a merge is queued to the same group;
+ * there is no background timer. A group that stops receiving merges stays
+ * pending until flush() is called, which AWSScanner.scan() does at the end of
+ * every scan.
+ *
+ * The merged node is handed to an optional action once the batch has been
+ * written, so that GraphNodeGarbageCollector.MERGE_ACTION and similar consumers
+ * continue to see the updateTs of every node.
+ *
+ * If a FingerprintCache is set, merges whose properties are unchanged since
+ * they were last written are reduced to a batched update of updateTs. If the
+ * properties carry a scanGen, the update also stamps the new generation and
+ * clears any tombstone.
+ *
+ * Nodes are not visible in the graph until they have been flushed. Callers
+ * that need to match against a node they just merged must call flush() first.
+ *
+ * Merges are queued under the writer's monitor but written outside it, so
+ * threads sharing a writer keep queueing while a batch is in flight. Writes to
+ * the same group are serialized and applied in the order they were queued.
+ * If a write fails, its rows are put back at the head of the group, to be
+ * retried by the next flush, and the failure is rethrown as a
+ * MercatorException.
+ */
+public class GraphWriter {
+
+	public static final int DEFAULT_BATCH_SIZE = 250;
+	public static final long DEFAULT_FLUSH_INTERVAL_MILLIS = TimeUnit.SECONDS.toMillis(5);
+
+	static ObjectMapper mapper = new ObjectMapper();
+
+	Logger logger = LoggerFactory.getLogger(GraphWriter.class);
+
+	NeoRxClient neo4j;
+	int batchSize = DEFAULT_BATCH_SIZE;
+	long flushIntervalMillis = DEFAULT_FLUSH_INTERVAL_MILLIS;
+	FingerprintCache fingerprintCache;
+	boolean compactResults;
+
+	Map<String, Batch> batches = Maps.newLinkedHashMap();
+
+	static class Row {
+		JsonNode key;
+		ObjectNode props;
+		long fingerprint;
+		Consumer<JsonNode> action;
+	}
+
+	static class Batch {
+		String label;
+		String mergeKey;
+		long firstWriteNanos;
+		List<Row> rows = new ArrayList<>();
+		List<Row> touches = new ArrayList<>();
+		Deque<Pending> pending = new ArrayDeque<>();
+		ReentrantLock writeLock = new ReentrantLock();
+
+		Batch(String label, String mergeKey) {
+			this.label = label;
+			this.mergeKey = mergeKey;
+		}
+
+		int size() {
+			return rows.size() + touches.size();
+		}
+	}
+
+	/**
+	 * Rows that have been taken from a batch to be written.
+	 */
+	static class Pending {
+		List<Row> rows;
+		List<Row> touches;
+
+		Pending(List<Row> rows, List<Row> touches) {
+			this.rows = rows;
+			this.touches = touches;
+		}
+
+		int size() {
+			return rows.size() + touches.size();
+		}
+	}
+
+	public GraphWriter(NeoRxClient neo4j) {
+		this.neo4j = neo4j;
+	}
+
+	public NeoRxClient getNeoRxClient() {
+		return neo4j;
+	}
+
+	public GraphWriter withBatchSize(int batchSize) {
+		Preconditions.checkArgument(batchSize > 0, "batchSize must be > 0");
+		this.batchSize = batchSize;
+		return this;
+	}
+
+	/**
+	 * Set the age after which a group is written by the next merge queued to
+	 * it. Pending merges are not written in the background.
+	 */
+	public GraphWriter withFlushInterval(long duration, TimeUnit unit) {
+		this.flushIntervalMillis = unit.toMillis(duration);
+		return this;
+	}
+
+	public GraphWriter withFingerprintCache(FingerprintCache cache) {
+		this.fingerprintCache = cache;
+		return this;
+	}
+
+	/**
+	 * Return only the merge key and updateTs of each merged node to the merge
+	 * action, as is already the case for unchanged nodes, rather than the
+	 * whole node.
+	 */
+	public GraphWriter withCompactResults(boolean b) {
+		this.compactResults = b;
+		return this;
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	public FingerprintCache getFingerprintCache() {
+		return fingerprintCache;
+	}
+
+	/**
+	 * Queue a merge of a node with the given label. The value of the merge key
+	 * is taken from the properties.
+	 */
+	public GraphWriter merge(String label, String mergeKey, ObjectNode props) {
+		return merge(label, mergeKey, props, null);
+	}
+
+	/**
+	 * Queue a merge of a node with the given label. The action, if not null, is
+	 * invoked with the merged node after the batch has been written.
+	 */
+	public GraphWriter merge(String label, String mergeKey, ObjectNode props, Consumer<JsonNode> action) {
+		Preconditions.checkArgument(!Strings.isNullOrEmpty(label), "label not set");
+		Preconditions.checkArgument(!Strings.isNullOrEmpty(mergeKey), "mergeKey not set");
+		Preconditions.checkNotNull(props, "props cannot be null");
+		JsonNode key = props.path(mergeKey);
+		Preconditions.checkArgument(!key.isMissingNode() && !key.isNull(), "props do not contain merge key: %s",
+				mergeKey);
+
+		Batch batch = queue(label, mergeKey, key, props, action);
+		if (batch != null) {
+			write(batch);
+		}
+		return this;
+	}
+
+	/**
+	 * Add a row to its batch and return the batch if it was taken to be
+	 * written, otherwise null.
+	 */
+	synchronized Batch queue(String label, String mergeKey, JsonNode key, ObjectNode props,
+			Consumer<JsonNode> action) {
+		Batch batch = batches.computeIfAbsent(label + ":" + mergeKey, k -> new Batch(label, mergeKey));
+		if (batch.size() == 0) {
+			batch.firstWriteNanos = System.nanoTime();
+		}
+		Row row = new Row();
+		row.key = key;
+		row.props = props;
+		row.action = action;
+		if (fingerprintCache != null) {
+			row.fingerprint = fingerprintCache.fingerprint(props);
+			if (fingerprintCache.isUnchanged(label, mergeKey, key, row.fingerprint)) {
+				batch.touches.add(row);
+			} else {
+				batch.rows.add(row);
+			}
+		} else {
+			batch.rows.add(row);
+		}
+
+		if (batch.size() >= batchSize || isExpired(batch)) {
+			take(batch);
+			return batch;
+		}
+		return null;
+	}
+
+	/**
+	 * Write all pending merges. Every group is attempted; the first failure is
+	 * rethrown once the others have been written.
+	 */
+	public void flush() {
+		List<Batch> list;
+		synchronized (this) {
+			list = new ArrayList<>(batches.values());
+			for (Batch batch : list) {
+				take(batch);
+			}
+		}
+		MercatorException failure = null;
+		for (Batch batch : list) {
+			try {
+				write(batch);
+			} catch (MercatorException e) {
+				if (failure == null) {
+					failure = e;
+				}
+			}
+		}
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	public synchronized int getPendingCount() {
+		int count = 0;
+		for (Batch batch : batches.values()) {
+			count += batch.size();
+			for (Pending p : batch.pending) {
+				count += p.size();
+			}
+		}
+		return count;
+	}
+
+	boolean isExpired(Batch batch) {
+		return System.nanoTime() - batch.firstWriteNanos > TimeUnit.MILLISECONDS.toNanos(flushIntervalMillis);
+	}
+
+	String createMergeCypher(String label, String mergeKey) {
+		String ret = compactResults ? " return x." + mergeKey + " as " + mergeKey + ", x.updateTs as updateTs"
+				: " return x";
+		if (fingerprintCache != null) {
+			return "unwind {rows} as row merge (x:" + label + " {" + mergeKey + ": row.key})"
+					+ " set x+=row.props, x." + FingerprintCache.FINGERPRINT_ATTRIBUTE
+					+ "=row.fingerprint, x.updateTs=timestamp()" + ret;
+		}
+		return "unwind {rows} as row merge (x:" + label + " {" + mergeKey + ": row.key})"
+				+ " set x+=row.props, x.updateTs=timestamp()" + ret;
+	}
+
+	String createTouchCypher(String label, String mergeKey, boolean scanGeneration) {
+		String set = " set x.updateTs=timestamp()";
+		if (scanGeneration) {
+			String attr = ScanGeneration.SCAN_GENERATION_ATTRIBUTE;
+			set += ", x." + attr + "=coalesce(row." + attr + ", x." + attr + "), x." + ScanGeneration.TOMBSTONE_ATTRIBUTE
+					+ "=null";
+		}
+		return "unwind {rows} as row match (x:" + label + " {" + mergeKey + ": row.key})" + set + " return x."
+				+ mergeKey + " as " + mergeKey + ", x.updateTs as updateTs";
+	}
+
+	ArrayNode createRows(List<Row> rows) {
+		ArrayNode arr = mapper.createArrayNode();
+		for (Row row : rows) {
+			ObjectNode n = arr.addObject();
+			n.set("key", row.key);
+			n.set("props", row.props);
+			if (fingerprintCache != null) {
+				n.put("fingerprint", row.fingerprint);
+			}
+		}
+		return arr;
+	}
+
+	ArrayNode createTouchRows(List<Row> rows) {
+		ArrayNode arr = mapper.createArrayNode();
+		for (Row row : rows) {
+			ObjectNode n = arr.addObject();
+			n.set("key", row.key);
+			JsonNode gen = row.props.path(ScanGeneration.SCAN_GENERATION_ATTRIBUTE);
+			if (gen.isNumber()) {
+				n.set(ScanGeneration.SCAN_GENERATION_ATTRIBUTE, gen);
+			}
+		}
+		return arr;
+	}
+
+	ListMultimap<String, Row> indexByKey(List<Row> rows) {
+		ListMultimap<String, Row> index = ArrayListMultimap.create();
+		for (Row row : rows) {
+			index.put(row.key.asText(), row);
+		}
+		return index;
+	}
+
+	/**
+	 * Move the queued rows of the batch to its pending writes.
+	 */
+	synchronized void take(Batch batch) {
+		if (batch.size() == 0) {
+			return;
+		}
+		batch.pending.addLast(new Pending(batch.rows, batch.touches));
+		batch.rows = new ArrayList<>();
+		batch.touches = new ArrayList<>();
+	}
+
+	synchronized Pending poll(Batch batch) {
+		return batch.pending.pollFirst();
+	}
+
+	synchronized void requeue(Batch batch, Pending p) {
+		batch.pending.addFirst(p);
+	}
+
+	/**
+	 * Write the pending rows of the batch, including any taken by other
+	 * threads that are waiting on the write lock. Only one thread writes a
+	 * given batch at a time, and never while holding the writer's monitor.
+	 */
+	void write(Batch batch) {
+		batch.writeLock.lock();
+		try {
+			Pending p;
+			while ((p = poll(batch)) != null) {
+				try {
+					write(batch, p);
+				} catch (RuntimeException e) {
+					requeue(batch, p);
+					throw new MercatorException(
+							"failed to write " + p.size() + " " + batch.label + " nodes; they will be retried", e);
+				}
+			}
+		} finally {
+			batch.writeLock.unlock();
+		}
+	}
+
+	void write(Batch batch, Pending p) {
+		if (!p.touches.isEmpty()) {
+			// nodes that no longer exist are re-merged in full
+			List<Row> rows = new ArrayList<>(p.rows);
+			rows.addAll(touch(batch, p.touches));
+			p.rows = rows;
+			p.touches = Collections.emptyList();
+		}
+		List<Row> rows = p.rows;
+		if (rows.isEmpty()) {
+			return;
+		}
+
+		ListMultimap<String, Row> index = indexByKey(rows);
+		Stopwatch sw = Stopwatch.createStarted();
+		String cypher = createMergeCypher(batch.label, batch.mergeKey);
+		neo4j.execCypher(cypher, "rows", createRows(rows)).blockingForEach(it -> {
+			for (Row row : index.get(it.path(batch.mergeKey).asText())) {
+				if (row.action != null) {
+					row.action.accept(it);
+				}
+			}
+		});
+		if (fingerprintCache != null) {
+			for (Row row : rows) {
+				fingerprintCache.put(batch.label, batch.mergeKey, row.key, row.fingerprint);
+			}
+		}
+		logger.debug("merged {} {} nodes in {} ms", rows.size(), batch.label, sw.elapsed(TimeUnit.MILLISECONDS));
+	}
+
+	/**
+	 * Update updateTs on unchanged nodes and return the rows whose node was not
+	 * found.
+	 */
+	List<Row> touch(Batch batch, List<Row> touches) {
+		ListMultimap<String, Row> index = indexByKey(touches);
+		Stopwatch sw = Stopwatch.createStarted();
+		ArrayNode touchRows = createTouchRows(touches);
+		boolean scanGeneration = false;
+		for (JsonNode n : touchRows) {
+			scanGeneration |= n.has(ScanGeneration.SCAN_GENERATION_ATTRIBUTE);
+		}
+		String cypher = createTouchCypher(batch.label, batch.mergeKey, scanGeneration);
+		neo4j.execCypher(cypher, "rows", touchRows).blockingForEach(it -> {
+			for (Row row : index.removeAll(it.path(batch.mergeKey).asText())) {
+				if (row.action != null) {
+					row.action.accept(it);
+				}
+			}
+		});
+		List<Row> missing = new ArrayList<>(index.values());
+		for (Row row : missing) {
+			fingerprintCache.invalidate(batch.label, batch.mergeKey, row.key);
+		}
+		logger.debug("touched {} unchanged {} nodes in {} ms", touches.size() - missing.size(), batch.label,
+				sw.elapsed(TimeUnit.MILLISECONDS));
+		return missing;
+	}
+
+}
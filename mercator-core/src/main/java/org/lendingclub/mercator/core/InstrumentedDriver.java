@@ -0,0 +1,379 @@
+/**
+ * Copyright 2017 Lending Club, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lendingclub.mercator.core;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+
+import org.neo4j.driver.v1.Driver;
+import org.neo4j.driver.v1.Record;
+import org.neo4j.driver.v1.Session;
+import org.neo4j.driver.v1.Statement;
+import org.neo4j.driver.v1.StatementResult;
+import org.neo4j.driver.v1.Transaction;
+import org.neo4j.driver.v1.TransactionWork;
+import org.neo4j.driver.v1.Value;
+import org.neo4j.driver.v1.summary.Plan;
+import org.neo4j.driver.v1.summary.ProfiledPlan;
+import org.neo4j.driver.v1.summary.ResultSummary;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.Lists;
+
+/**
+ * InstrumentedDriver wraps a Neo4j Driver so that every statement run through
+ * its sessions and transactions is recorded in a CypherMetrics instance.
+ * NeoRxClient executes everything through the Driver it is built with, so this
+ * covers all Cypher issued by the projector and its scanners.
+ *
+ * A statement is timed from run() until its result has been exhausted,
+ * consumed or closed along with its session.
+ */
+public class InstrumentedDriver {
+
+	static Logger logger = LoggerFactory.getLogger(InstrumentedDriver.class);
+
+	static ObjectMapper mapper = new ObjectMapper();
+
+	static final Pattern WRITE_CLAUSE = Pattern.compile("\\b(create|merge|set|delete|remove|drop|foreach|load|call)\\b",
+			Pattern.CASE_INSENSITIVE);
+
+	// procedures that only read, and so may be profiled; any other call may write
+	static final Pattern READ_ONLY_CALL = Pattern.compile(
+			"\\bcall\\s+db\\.(indexes|constraints|labels|relationshipTypes|propertyKeys)\\s*\\(",
+			Pattern.CASE_INSENSITIVE);
+
+	private InstrumentedDriver() {
+
+	}
+
+	public static Driver wrap(Driver driver, CypherMetrics metrics) {
+		Preconditions.checkNotNull(driver, "driver cannot be null");
+		return lazy(() -> driver, metrics);
+	}
+
+	/**
+	 * Returns a Driver that obtains the underlying driver from the supplier the
+	 * first time a session is opened. Creating a driver connects to Neo4j, so
+	 * this keeps Projector.Builder.build() from failing when the database is not
+	 * yet reachable.
+	 */
+	public static Driver lazy(Supplier<Driver> supplier, CypherMetrics metrics) {
+		Preconditions.checkNotNull(supplier, "supplier cannot be null");
+		Preconditions.checkNotNull(metrics, "metrics cannot be null");
+		return proxy(Driver.class, new DriverHandler(supplier, metrics));
+	}
+
+	@SuppressWarnings("unchecked")
+	static <T> T proxy(Class<T> type, InvocationHandler handler) {
+		return (T) Proxy.newProxyInstance(InstrumentedDriver.class.getClassLoader(), new Class<?>[] { type }, handler);
+	}
+
+	static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+		try {
+			return method.invoke(target, args);
+		} catch (InvocationTargetException e) {
+			throw e.getCause();
+		}
+	}
+
+	static Object invokeObjectMethod(Object proxy, Object target, Method method, Object[] args) throws Throwable {
+		switch (method.getName()) {
+		case "equals":
+			return proxy == args[0];
+		case "hashCode":
+			return System.identityHashCode(proxy);
+		default:
+			return "Instrumented" + (target == null ? method.getDeclaringClass().getSimpleName() : target.toString());
+		}
+	}
+
+	static class DriverHandler implements InvocationHandler {
+		Supplier<Driver> supplier;
+		CypherMetrics metrics;
+		volatile Driver driver;
+
+		DriverHandler(Supplier<Driver> supplier, CypherMetrics metrics) {
+			this.supplier = supplier;
+			this.metrics = metrics;
+		}
+
+		Driver getDriver() {
+			if (driver == null) {
+				synchronized (this) {
+					if (driver == null) {
+						driver = Preconditions.checkNotNull(supplier.get(), "supplier returned null");
+					}
+				}
+			}
+			return driver;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			if (method.getDeclaringClass() == Object.class) {
+				return invokeObjectMethod(proxy, driver, method, args);
+			}
+			if (method.getName().equals("close")) {
+				if (driver != null) {
+					driver.close();
+				}
+				return null;
+			}
+			Object result = InstrumentedDriver.invoke(getDriver(), method, args);
+			if (result instanceof Session) {
+				return proxy(Session.class, new StatementRunnerHandler(this, result));
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * Instruments run() on a Session or Transaction.
+	 */
+	static class StatementRunnerHandler implements InvocationHandler {
+		DriverHandler driverHandler;
+		Object target;
+		List<ResultHandler> openResults = Lists.newArrayList();
+
+		StatementRunnerHandler(DriverHandler driverHandler, Object target) {
+			this.driverHandler = driverHandler;
+			this.target = target;
+		}
+
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			if (method.getDeclaringClass() == Object.class) {
+				return invokeObjectMethod(proxy, target, method, args);
+			}
+			switch (method.getName()) {
+			case "run":
+				return run(method, args);
+			case "beginTransaction":
+				return proxy(Transaction.class,
+						new StatementRunnerHandler(driverHandler, InstrumentedDriver.invoke(target, method, args)));
+			case "readTransaction":
+			case "writeTransaction":
+				TransactionWork work = (TransactionWork) args[0];
+				TransactionWork instrumented = tx -> work.execute(
+						proxy(Transaction.class, new StatementRunnerHandler(driverHandler, tx)));
+				return InstrumentedDriver.invoke(target, method, new Object[] { instrumented });
+			case "close":
+				try {
+					return InstrumentedDriver.invoke(target, method, args);
+				} finally {
+					finishOpenResults();
+				}
+			default:
+				return InstrumentedDriver.invoke(target, method, args);
+			}
+		}
+
+		Object run(Method method, Object[] args) throws Throwable {
+			ResultHandler handler = new ResultHandler(driverHandler, args);
+			try {
+				StatementResult result = (StatementResult) InstrumentedDriver.invoke(target, method, args);
+				handler.target = result;
+				synchronized (this) {
+					openResults.removeIf(it -> it.finished.get());
+					openResults.add(handler);
+				}
+				return proxy(StatementResult.class, handler);
+			} catch (Throwable e) {
+				handler.finish(e);
+				throw e;
+			}
+		}
+
+		synchronized void finishOpenResults() {
+			openResults.forEach(it -> it.finish(null));
+			openResults.clear();
+		}
+	}
+
+	/**
+	 * Counts the rows read from a StatementResult and records the statement once
+	 * the result has been fully read.
+	 */
+	static class ResultHandler implements InvocationHandler {
+		DriverHandler driverHandler;
+		Object[] runArgs;
+		StatementResult target;
+		Stopwatch stopwatch = Stopwatch.createStarted();
+		AtomicLong rows = new AtomicLong();
+		AtomicBoolean finished = new AtomicBoolean(false);
+
+		ResultHandler(DriverHandler driverHandler, Object[] runArgs) {
+			this.driverHandler = driverHandler;
+			this.runArgs = runArgs;
+		}
+
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			if (method.getDeclaringClass() == Object.class) {
+				return invokeObjectMethod(proxy, target, method, args);
+			}
+			try {
+				switch (method.getName()) {
+				case "hasNext":
+					Boolean hasNext = (Boolean) InstrumentedDriver.invoke(target, method, args);
+					if (!hasNext) {
+						finish(null);
+					}
+					return hasNext;
+				case "next":
+					Object next = InstrumentedDriver.invoke(target, method, args);
+					rows.incrementAndGet();
+					return next;
+				case "single":
+					Object single = InstrumentedDriver.invoke(target, method, args);
+					rows.incrementAndGet();
+					finish(null);
+					return single;
+				case "list":
+					List<?> list = (List<?>) InstrumentedDriver.invoke(target, method, args);
+					rows.addAndGet(list.size());
+					finish(null);
+					return list;
+				case "forEachRemaining":
+					java.util.function.Consumer consumer = (java.util.function.Consumer) args[0];
+					target.forEachRemaining(it -> {
+						rows.incrementAndGet();
+						consumer.accept(it);
+					});
+					finish(null);
+					return null;
+				case "consume":
+				case "summary":
+					Object summary = InstrumentedDriver.invoke(target, method, args);
+					finish(null);
+					return summary;
+				default:
+					return InstrumentedDriver.invoke(target, method, args);
+				}
+			} catch (Throwable e) {
+				finish(e);
+				throw e;
+			}
+		}
+
+		void finish(Throwable error) {
+			if (!finished.compareAndSet(false, true)) {
+				return;
+			}
+			ScannerContext.getScannerContext().ifPresent(it -> it.increment(ScannerContext.Metric.CYPHER_STATEMENTS, 1));
+			CypherMetrics metrics = driverHandler.metrics;
+			long millis = stopwatch.elapsed(TimeUnit.MILLISECONDS);
+			String cypher = getStatementText(runArgs);
+			Map<String, Object> parameters = millis >= metrics.getSlowThresholdMillis() ? getParameters(runArgs)
+					: Collections.emptyMap();
+			Optional<CypherMetrics.SlowStatement> sample = metrics.record(cypher, parameters, millis, rows.get(), error);
+			if (sample.isPresent() && metrics.shouldProfile(sample.get())) {
+				capturePlan(driverHandler.getDriver(), sample.get(), cypher, parameters);
+			}
+		}
+	}
+
+	static String getStatementText(Object[] args) {
+		if (args[0] instanceof Statement) {
+			return ((Statement) args[0]).text();
+		}
+		return String.valueOf(args[0]);
+	}
+
+	@SuppressWarnings("unchecked")
+	static Map<String, Object> getParameters(Object[] args) {
+		try {
+			if (args[0] instanceof Statement) {
+				return ((Statement) args[0]).parameters().asMap();
+			}
+			if (args.length < 2 || args[1] == null) {
+				return Collections.emptyMap();
+			}
+			if (args[1] instanceof Value) {
+				return ((Value) args[1]).asMap();
+			}
+			if (args[1] instanceof Record) {
+				return ((Record) args[1]).asMap();
+			}
+			if (args[1] instanceof Map) {
+				return (Map<String, Object>) args[1];
+			}
+		} catch (RuntimeException e) {
+			logger.debug("could not extract parameters", e);
+		}
+		return Collections.emptyMap();
+	}
+
+	static boolean isReadOnly(String cypher) {
+		return !WRITE_CLAUSE.matcher(READ_ONLY_CALL.matcher(cypher).replaceAll("(")).find();
+	}
+
+	static void capturePlan(Driver driver, CypherMetrics.SlowStatement sample, String cypher,
+			Map<String, Object> parameters) {
+		String trimmed = cypher.trim();
+		String upper = trimmed.toUpperCase();
+		if (upper.startsWith("PROFILE") || upper.startsWith("EXPLAIN")) {
+			return;
+		}
+		String statement = (isReadOnly(trimmed) ? "PROFILE " : "EXPLAIN ") + trimmed;
+		try (Session session = driver.session()) {
+			ResultSummary summary = session.run(statement, parameters).consume();
+			if (summary.hasProfile()) {
+				sample.plan = toJson(summary.profile());
+			} else if (summary.hasPlan()) {
+				sample.plan = toJson(summary.plan());
+			}
+		} catch (RuntimeException e) {
+			logger.warn("could not capture plan for: " + sample.getTemplate(), e);
+		}
+	}
+
+	static ObjectNode toJson(Plan plan) {
+		ObjectNode n = mapper.createObjectNode();
+		n.put("operatorType", plan.operatorType());
+		ObjectNode arguments = n.putObject("arguments");
+		plan.arguments().forEach((k, v) -> arguments.put(k, String.valueOf(v.asObject())));
+		ArrayNode identifiers = n.putArray("identifiers");
+		plan.identifiers().forEach(identifiers::add);
+		if (plan instanceof ProfiledPlan) {
+			n.put("dbHits", ((ProfiledPlan) plan).dbHits());
+			n.put("records", ((ProfiledPlan) plan).records());
+		}
+		ArrayNode children = n.putArray("children");
+		plan.children().forEach(it -> children.add(toJson(it)));
+		return n;
+	}
+}
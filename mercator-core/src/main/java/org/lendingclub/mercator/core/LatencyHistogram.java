@@ -0,0 +1,127 @@
+/**
+ * Copyright 2017 Lending Club, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lendingclub.mercator.core;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.base.Preconditions;
+
+/**
+ * A thread-safe histogram of latencies in milliseconds. Values are counted in
+ * power-of-two buckets (0-1ms, 1-2ms, 2-4ms, ... up to about 18 hours), so
+ * percentiles are approximate: the reported value is the upper bound of the
+ * bucket, capped at the maximum recorded value.
+ */
+public class LatencyHistogram {
+
+	static final int BUCKET_COUNT = 27;
+
+	static ObjectMapper mapper = new ObjectMapper();
+
+	AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+	AtomicLong count = new AtomicLong();
+	AtomicLong sum = new AtomicLong();
+	AtomicLong max = new AtomicLong();
+
+	static int bucketIndex(long millis) {
+		if (millis <= 1) {
+			return 0;
+		}
+		int index = 64 - Long.numberOfLeadingZeros(millis - 1);
+		return Math.min(index, BUCKET_COUNT - 1);
+	}
+
+	static long bucketUpperBound(int index) {
+		return 1L << index;
+	}
+
+	public void record(long millis) {
+		long value = Math.max(0, millis);
+		buckets.incrementAndGet(bucketIndex(value));
+		count.incrementAndGet();
+		sum.addAndGet(value);
+		max.accumulateAndGet(value, Math::max);
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	public long getTotalMillis() {
+		return sum.get();
+	}
+
+	public long getMaxMillis() {
+		return max.get();
+	}
+
+	public double getMeanMillis() {
+		long n = count.get();
+		return n == 0 ? 0 : ((double) sum.get()) / n;
+	}
+
+	/**
+	 * Returns the approximate latency at the given percentile (0-100).
+	 */
+	public long getPercentileMillis(double percentile) {
+		Preconditions.checkArgument(percentile >= 0 && percentile <= 100, "percentile must be between 0 and 100");
+		long n = count.get();
+		if (n == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100d * n));
+		long seen = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			seen += buckets.get(i);
+			if (seen >= rank) {
+				return Math.min(bucketUpperBound(i), max.get());
+			}
+		}
+		return max.get();
+	}
+
+	/**
+	 * Adds the values recorded by another histogram to this one.
+	 */
+	public LatencyHistogram merge(LatencyHistogram other) {
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			buckets.addAndGet(i, other.buckets.get(i));
+		}
+		count.addAndGet(other.count.get());
+		sum.addAndGet(other.sum.get());
+		max.accumulateAndGet(other.max.get(), Math::max);
+		return this;
+	}
+
+	public LatencyHistogram copy() {
+		return new LatencyHistogram().merge(this);
+	}
+
+	public ObjectNode toJson() {
+		return mapper.createObjectNode().put("count", getCount()).put("totalMillis", getTotalMillis())
+				.put("meanMillis", getMeanMillis()).put("p50Millis", getPercentileMillis(50))
+				.put("p90Millis", getPercentileMillis(90)).put("p99Millis", getPercentileMillis(99))
+				.put("maxMillis", getMaxMillis());
+	}
+
+	@Override
+	public String toString() {
+		return toJson().toString();
+	}
+}
@@ -0,0 +1,157 @@
+/**
+ * Copyright 2017 Lending Club, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lendingclub.mercator.core;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.lendingclub.mercator.core.ScannerContext.CleanupTask;
+import org.lendingclub.neorx.NeoRxClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Stopwatch;
+import com.google.common.base.Strings;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+
+import io.reactivex.functions.Consumer;
+
+/**
+ * OwnerLink links a single owner node, such as an account, to the nodes it
+ * owns. Rather than matching every owned node after each write, a scanner adds
+ * the key of each node it writes and the links are merged with one UNWIND
+ * statement per batch of keys: as soon as a full batch is pending, and for the
+ * remainder when the scan completes.
+ *
+ * Scanners that write through a GraphWriter pass ADD_ACTION as (or chain it
+ * to) the merge action, so that each node is linked only after the batch that
+ * created it has been flushed.
+ */
+public class OwnerLink implements CleanupTask {
+
+	public static final int DEFAULT_BATCH_SIZE = 500;
+
+	Logger logger = LoggerFactory.getLogger(OwnerLink.class);
+
+	NeoRxClient neo4j;
+	String ownerLabel;
+	String ownerProperty;
+	String ownerValue;
+	String ownedLabel;
+	String ownedProperty;
+	String relationship = "OWNS";
+	int batchSize = DEFAULT_BATCH_SIZE;
+
+	Set<String> keys = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * Adds the owned key of each merged node it is given.
+	 */
+	public final Consumer<JsonNode> ADD_ACTION = new Consumer<JsonNode>() {
+
+		@Override
+		public void accept(JsonNode t) {
+			add(t.path(ownedProperty).asText(null));
+		}
+	};
+
+	public OwnerLink(NeoRxClient neo4j) {
+		this.neo4j = neo4j;
+	}
+
+	public OwnerLink withOwner(String label, String property, String value) {
+		this.ownerLabel = label;
+		this.ownerProperty = property;
+		this.ownerValue = value;
+		return this;
+	}
+
+	public OwnerLink withOwned(String label, String property) {
+		this.ownedLabel = label;
+		this.ownedProperty = property;
+		return this;
+	}
+
+	public OwnerLink withRelationship(String relationship) {
+		this.relationship = relationship;
+		return this;
+	}
+
+	public OwnerLink withBatchSize(int batchSize) {
+		Preconditions.checkArgument(batchSize > 0, "batchSize must be > 0");
+		this.batchSize = batchSize;
+		return this;
+	}
+
+	/**
+	 * Add the key of an owned node that has been written. Once a full batch is
+	 * pending it is linked immediately.
+	 */
+	public OwnerLink add(String key) {
+		if (!Strings.isNullOrEmpty(key)) {
+			keys.add(key);
+			if (keys.size() >= batchSize) {
+				execute();
+			}
+		}
+		return this;
+	}
+
+	public int getPendingCount() {
+		return keys.size();
+	}
+
+	String createCypher() {
+		return "unwind {keys} as key match (a:" + ownerLabel + " {" + ownerProperty + ":{owner}}), (b:" + ownedLabel
+				+ " {" + ownedProperty + ":key}) merge (a)-[r:" + relationship + "]->(b) set r.updateTs=timestamp()";
+	}
+
+	/**
+	 * Merge the links to every node added so far.
+	 */
+	public void execute() {
+		Preconditions.checkState(!Strings.isNullOrEmpty(ownerLabel), "owner not set");
+		Preconditions.checkState(!Strings.isNullOrEmpty(ownedLabel), "owned label not set");
+		if (Strings.isNullOrEmpty(ownerValue) || keys.isEmpty()) {
+			return;
+		}
+		List<String> pending = Lists.newArrayList(keys);
+		keys.removeAll(pending);
+
+		Stopwatch sw = Stopwatch.createStarted();
+		String cypher = createCypher();
+		for (List<String> batch : Iterables.partition(pending, batchSize)) {
+			neo4j.execCypher(cypher, "owner", ownerValue, "keys", batch);
+		}
+		logger.info("linked {} {} nodes to {} {}={} in {} ms", pending.size(), ownedLabel, ownerLabel, ownerProperty,
+				ownerValue, sw.elapsed(TimeUnit.MILLISECONDS));
+	}
+
+	@Override
+	public void cleanup(ScannerContext context) {
+		execute();
+	}
+
+	public OwnerLink bindScannerContext() {
+		ScannerContext.getScannerContext().get().addCleanupTask(this);
+		return this;
+	}
+}
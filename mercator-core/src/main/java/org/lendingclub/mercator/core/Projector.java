@@ -15,15 +15,82 @@
  */
 package org.lendingclub.mercator.core;
 
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
 import org.lendingclub.neorx.NeoRxClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.google.common.base.Strings;
 
 public abstract class Projector {
 
+	public static final String DEFAULT_URL = "bolt://localhost:7687";
+
+	static Logger logger = LoggerFactory.getLogger(Projector.class);
+
+	private FingerprintCache fingerprintCache;
+
+	private CypherMetrics cypherMetrics;
+
+	private boolean schemaManagementEnabled = true;
+
+	private final Set<Class<?>> appliedSchemas = ConcurrentHashMap.newKeySet();
 
 	public abstract NeoRxClient getNeoRxClient();
 
+	/**
+	 * Returns the cache of node fingerprints shared by all scanners created by
+	 * this projector, or null if fingerprinting is disabled.
+	 */
+	public FingerprintCache getFingerprintCache() {
+		return fingerprintCache;
+	}
+
+	protected void setFingerprintCache(FingerprintCache cache) {
+		this.fingerprintCache = cache;
+	}
+
+	/**
+	 * Returns the latency, row count and slow statement samples of the Cypher
+	 * executed through this projector, or null if statements are not being
+	 * instrumented.
+	 */
+	public CypherMetrics getCypherMetrics() {
+		return cypherMetrics;
+	}
+
+	protected void setCypherMetrics(CypherMetrics metrics) {
+		this.cypherMetrics = metrics;
+	}
+
+	protected void setSchemaManagementEnabled(boolean b) {
+		this.schemaManagementEnabled = b;
+	}
+
+	/**
+	 * Create the constraints and indexes declared by the given schema manager,
+	 * until it has been applied once for a manager of its type. A failure is
+	 * logged and the schema is applied again on the next call.
+	 */
+	public void ensureSchema(SchemaManager manager) {
+		if (!schemaManagementEnabled || appliedSchemas.contains(manager.getClass())) {
+			return;
+		}
+		synchronized (appliedSchemas) {
+			if (appliedSchemas.contains(manager.getClass())) {
+				return;
+			}
+			try {
+				manager.applyConstraints();
+				appliedSchemas.add(manager.getClass());
+			} catch (RuntimeException e) {
+				logger.warn("could not apply schema of {}; will retry", manager.getClass().getName(), e);
+			}
+		}
+	}
+
 	public abstract <T extends ScannerBuilder> T createBuilder(Class<T> clazz);
 
 	public static class Builder {
@@ -32,6 +99,9 @@ public abstract class Projector {
 		String username;
 		String password;
 		java.util.function.Consumer<NeoRxClient.Builder> config;
+		FingerprintCache fingerprintCache;
+		CypherMetrics cypherMetrics = new CypherMetrics();
+		boolean schemaManagementEnabled = true;
 	
 		public Builder withNeoRxClient(NeoRxClient c) {
 			this.neorx = c;
@@ -56,11 +126,44 @@ public abstract class Projector {
 			this.password = password;
 			return this;
 		}
+
+		/**
+		 * Set the cache used to skip unchanged node writes. Fingerprinting is
+		 * disabled by default, so every node is written.
+		 */
+		public Builder withFingerprintCache(FingerprintCache cache) {
+			this.fingerprintCache = cache;
+			return this;
+		}
+
+		/**
+		 * Set the metrics that record the Cypher executed through the client
+		 * created by this builder. Pass null to disable instrumentation.
+		 * 
+		 * Statements are only instrumented automatically when the builder
+		 * creates the NeoRxClient itself; otherwise getCypherMetrics() on the
+		 * projector returns null. A caller that supplies its own NeoRxClient,
+		 * or configures it through withNeoRxConfig(), can wrap the driver with
+		 * InstrumentedDriver.wrap() using the same metrics.
+		 */
+		public Builder withCypherMetrics(CypherMetrics metrics) {
+			this.cypherMetrics = metrics;
+			return this;
+		}
 	
 
+		/**
+		 * Disable the creation of missing constraints and indexes when each
+		 * type of scanner first runs.
+		 */
+		public Builder withSchemaManagement(boolean b) {
+			this.schemaManagementEnabled = b;
+			return this;
+		}
+
 		public Projector build() {
 			if (neorx != null) {
-				return new BasicProjector(neorx);
+				return configure(new BasicProjector(neorx));
 			}
 			
 			
@@ -80,7 +183,27 @@ public abstract class Projector {
 				config.accept(neorxBuilder);
 				
 			}
-			return new BasicProjector(neorxBuilder.build());
+			else if (cypherMetrics != null) {
+				// NeoRx still creates the driver, with its own config (timeouts,
+				// encryption), the first time a session is opened
+				NeoRxClient.Builder driverBuilder = neorxBuilder;
+				NeoRxClient client = new NeoRxClient.Builder()
+						.withDriver(InstrumentedDriver.lazy(() -> driverBuilder.build().getDriver(), cypherMetrics))
+						.build();
+				return configure(new BasicProjector(client), cypherMetrics);
+			}
+			return configure(new BasicProjector(neorxBuilder.build()));
+		}
+
+		Projector configure(Projector projector) {
+			return configure(projector, null);
+		}
+
+		Projector configure(Projector projector, CypherMetrics instrumentedBy) {
+			projector.setFingerprintCache(fingerprintCache);
+			projector.setCypherMetrics(instrumentedBy);
+			projector.setSchemaManagementEnabled(schemaManagementEnabled);
+			return projector;
 		}
 	}
 }
@@ -0,0 +1,66 @@
+/**
+ * Copyright 2017 Lending Club, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lendingclub.mercator.core;
+
+import org.lendingclub.neorx.NeoRxClient;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Strings;
+
+/**
+ * A monotonically increasing scan generation, stored in Neo4j so that it
+ * survives restarts and is shared by every process writing to the same graph.
+ * 
+ * When a scan runs with a generation, every node it writes is stamped with it
+ * in the scanGen property. Nodes in the scan's scope whose scanGen is older
+ * are the ones that were not seen, which lets the garbage collector sweep
+ * without comparing wall-clock timestamps.
+ */
+public class ScanGeneration {
+
+	public static final String SCAN_GENERATION_ATTRIBUTE = "scanGen";
+
+	/**
+	 * The number of sweeps that have missed a node. The property is removed
+	 * whenever the node is written again.
+	 */
+	public static final String TOMBSTONE_ATTRIBUTE = "mercatorTombstones";
+
+	public static final String DEFAULT_NAME = "default";
+
+	private ScanGeneration() {
+
+	}
+
+	/**
+	 * Increment the default generation. Scanners whose scopes may be written
+	 * concurrently should use separate names instead.
+	 */
+	public static long next(NeoRxClient neo4j) {
+		return next(neo4j, DEFAULT_NAME);
+	}
+
+	/**
+	 * Increment the named generation and return the new value. The first call
+	 * returns 1.
+	 */
+	public static long next(NeoRxClient neo4j, String name) {
+		Preconditions.checkArgument(!Strings.isNullOrEmpty(name), "name not set");
+		String cypher = "merge (g:MercatorScanGeneration {name:{name}}) set g.value=coalesce(g.value,0)+1 return g.value as value";
+		return neo4j.execCypher(cypher, "name", name).blockingFirst().asLong();
+	}
+
+}
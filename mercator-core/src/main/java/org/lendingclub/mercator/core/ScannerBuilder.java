@@ -22,6 +22,8 @@ public abstract class ScannerBuilder<T> {
 	Projector projector;
 	boolean failOnError = false;
 	Double rateLimitPerSec=null;
+	boolean adaptiveRateLimit = false;
+	ExecutionMode executionMode = ExecutionMode.PLATFORM;
 	public void setProjector(Projector p) {
 		this.projector = p;
 	}
@@ -37,6 +39,29 @@ public abstract class ScannerBuilder<T> {
 		return failOnError;
 	}
 	
+	/**
+	 * If enabled, the rate limit adapts to throttling by the remote service.
+	 * The configured rate limit is used as the starting rate.
+	 */
+	@SuppressWarnings("unchecked")
+	public <X extends ScannerBuilder<T>> X withAdaptiveRateLimit(boolean b) {
+		this.adaptiveRateLimit = b;
+		return (X) this;
+	}
+	public boolean isAdaptiveRateLimitEnabled() {
+		return adaptiveRateLimit;
+	}
+	/**
+	 * Select the threads that scanners and their per-entity calls run on.
+	 */
+	@SuppressWarnings("unchecked")
+	public <X extends ScannerBuilder<T>> X withExecutionMode(ExecutionMode mode) {
+		this.executionMode = java.util.Objects.requireNonNull(mode);
+		return (X) this;
+	}
+	public ExecutionMode getExecutionMode() {
+		return executionMode;
+	}
 	public Optional<Double> getRateLimitPerSecond() {
 		return java.util.Optional.ofNullable(rateLimitPerSec);
 	}
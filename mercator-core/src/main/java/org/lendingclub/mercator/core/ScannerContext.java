@@ -15,31 +15,69 @@
  */
 package org.lendingclub.mercator.core;
 
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.EnumMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.google.common.base.MoreObjects;
 import com.google.common.base.MoreObjects.ToStringHelper;
-import com.google.common.collect.Lists;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Maps;
 
+/**
+ * ScannerContext holds the state of a single scan while it executes, and is
+ * available to the scanning thread through getScannerContext().
+ * 
+ * A context started while another context is active on the same thread (or on
+ * the thread that forked the task, see propagate()) becomes a child of that
+ * context. When a child's exec() completes, its metrics are added to its parent,
+ * so the outermost context reports totals for the whole scan and
+ * getChildren() gives the breakdown.
+ */
 public class ScannerContext {
 
 	static Logger logger = LoggerFactory.getLogger(ScannerContext.class);
 
+	static ObjectMapper mapper = new ObjectMapper();
+
+	static ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+
+	/**
+	 * Counters kept by every context. Totals include the children that have
+	 * completed. WALL_MILLIS is the time spent in contexts without children,
+	 * so for a group it is the sum of the time spent by its scanners.
+	 */
+	public static enum Metric {
+		ENTITIES, API_CALLS, CYPHER_STATEMENTS, BYTES, WALL_MILLIS, CPU_MILLIS
+	}
+
 	Map<String, Object> map = Maps.newConcurrentMap();
 
-	AtomicLong entityScanCount = new AtomicLong();
+	AtomicLongArray metrics = new AtomicLongArray(Metric.values().length);
+	// the part of the metrics that has not been added to the parent yet
+	AtomicLongArray unrolled = new AtomicLongArray(Metric.values().length);
 	long t0 = System.currentTimeMillis();
 	private static ThreadLocal<ScannerContext> threadLocalContext = new ThreadLocal<>();
-	private List<CleanupTask> cleanupQueue = Lists.newArrayList();
+	private Queue<CleanupTask> cleanupQueue = new ConcurrentLinkedQueue<>();
+
+	Queue<Exception> exceptions = new ConcurrentLinkedQueue<>();
 
-	List<Exception> exceptions = Lists.newArrayList();
+	volatile ScannerContext parent;
+	Queue<ScannerContext> children = new ConcurrentLinkedQueue<>();
+	volatile boolean exited = false;
 
 	public static interface CleanupTask {
 		public void cleanup(ScannerContext context);
@@ -76,22 +114,117 @@ public class ScannerContext {
 		return addCleanupTask(task);
 	}
 
+	/**
+	 * Set the parent explicitly. By default the parent is the context that is
+	 * active when exec() is called.
+	 */
+	public ScannerContext withParent(ScannerContext parent) {
+		this.parent = parent;
+		return this;
+	}
+
+	public Optional<ScannerContext> getParent() {
+		return Optional.ofNullable(parent);
+	}
+
+	public List<ScannerContext> getChildren() {
+		return ImmutableList.copyOf(children);
+	}
+
 	public static Optional<ScannerContext> getScannerContext() {
 		return Optional.ofNullable(threadLocalContext.get());
 
 	}
 
+	/**
+	 * Returns a runnable that runs in the calling thread's context, so that work
+	 * forked onto other threads is counted against the same scan, and contexts
+	 * it starts become children of the calling thread's context.
+	 */
+	public static Runnable propagate(Runnable task) {
+		ScannerContext context = threadLocalContext.get();
+		return () -> {
+			ScannerContext oldContext = threadLocalContext.get();
+			threadLocalContext.set(context);
+			try {
+				task.run();
+			} finally {
+				threadLocalContext.set(oldContext);
+			}
+		};
+	}
+
+	public static <T> Callable<T> propagate(Callable<T> task) {
+		ScannerContext context = threadLocalContext.get();
+		return () -> {
+			ScannerContext oldContext = threadLocalContext.get();
+			threadLocalContext.set(context);
+			try {
+				return task.call();
+			} finally {
+				threadLocalContext.set(oldContext);
+			}
+		};
+	}
+
+	/**
+	 * Add the CPU time used by the current thread since cpu0 to the given
+	 * context. Used for tasks forked onto other threads, whose time is not
+	 * measured by exec().
+	 */
+	static void addForkedCpuTime(ScannerContext context, long cpu0) {
+		long cpu1 = getCurrentThreadCpuNanos();
+		if (context != null && cpu0 >= 0 && cpu1 >= cpu0) {
+			context.increment(Metric.CPU_MILLIS, TimeUnit.NANOSECONDS.toMillis(cpu1 - cpu0));
+		}
+	}
+
+	/**
+	 * Returns the CPU time of the current thread, or -1 if it is not available
+	 * (for instance, on a virtual thread).
+	 */
+	static long getCurrentThreadCpuNanos() {
+		try {
+			return threadMXBean.isCurrentThreadCpuTimeSupported() ? threadMXBean.getCurrentThreadCpuTime() : -1;
+		} catch (UnsupportedOperationException e) {
+			return -1;
+		}
+	}
+
 	public long getEntityCount() {
-		return entityScanCount.get();
+		return get(Metric.ENTITIES);
 	}
 
 	public long incrementEntityCount() {
 
-		return this.entityScanCount.incrementAndGet();
+		return increment(Metric.ENTITIES, 1);
+	}
+
+	public long get(Metric metric) {
+		return metrics.get(metric.ordinal());
+	}
+
+	public Map<Metric, Long> getMetrics() {
+		Map<Metric, Long> result = new EnumMap<>(Metric.class);
+		for (Metric metric : Metric.values()) {
+			result.put(metric, get(metric));
+		}
+		return result;
+	}
+
+	public long increment(Metric metric, long delta) {
+		long val = metrics.addAndGet(metric.ordinal(), delta);
+		unrolled.addAndGet(metric.ordinal(), delta);
+		if (exited) {
+			// late work, such as a task forked by a parallel group whose own
+			// scan has returned, is passed straight through
+			forward();
+		}
+		return val;
 	}
 
 	public List<Exception> getExceptions() {
-		return exceptions;
+		return ImmutableList.copyOf(exceptions);
 	}
 
 	public ScannerContext markException(Exception e) {
@@ -107,6 +240,13 @@ public class ScannerContext {
 	public void exec(Invokable x) {
 		ScannerContext oldContext = threadLocalContext.get();
 		ScannerContext newContext = this;
+		if (parent == null && oldContext != this) {
+			parent = oldContext;
+		}
+		if (parent != null) {
+			parent.children.add(this);
+		}
+		long cpu0 = getCurrentThreadCpuNanos();
 		try {
 
 			threadLocalContext.set(newContext);
@@ -116,8 +256,57 @@ public class ScannerContext {
 		} finally {
 			newContext.cleanup();
 			threadLocalContext.set(oldContext);
+			long cpu1 = getCurrentThreadCpuNanos();
+			if (cpu0 >= 0 && cpu1 >= cpu0) {
+				increment(Metric.CPU_MILLIS, TimeUnit.NANOSECONDS.toMillis(cpu1 - cpu0));
+			}
+			if (children.isEmpty()) {
+				increment(Metric.WALL_MILLIS, System.currentTimeMillis() - t0);
+			}
 			newContext.logMetrics("stop");
-		
+			rollup();
+		}
+	}
+
+	/**
+	 * Add this context's totals to its parent. Work counted after this point,
+	 * including children that complete later, is added to the parent as it
+	 * is counted.
+	 */
+	void rollup() {
+		exited = true;
+		forward();
+	}
+
+	/**
+	 * Move the deltas that have not been added to the parent yet. Each delta
+	 * is taken with getAndSet(), so concurrent callers never pass on the same
+	 * delta twice, and a delta counted before exited was set is taken by
+	 * rollup() at the latest.
+	 */
+	void forward() {
+		ScannerContext p = parent;
+		if (p == null) {
+			return;
+		}
+		long[] delta = new long[unrolled.length()];
+		boolean any = false;
+		for (int i = 0; i < delta.length; i++) {
+			delta[i] = unrolled.getAndSet(i, 0);
+			any |= delta[i] != 0;
+		}
+		if (any) {
+			p.add(delta);
+		}
+	}
+
+	void add(long[] delta) {
+		for (int i = 0; i < delta.length; i++) {
+			metrics.addAndGet(i, delta[i]);
+			unrolled.addAndGet(i, delta[i]);
+		}
+		if (exited) {
+			forward();
 		}
 	}
 
@@ -149,12 +338,29 @@ public class ScannerContext {
 		h.add("count", getEntityCount()+" objs");
 		h.add("duration", (System.currentTimeMillis() - t0)+" ms");
 		h.add("rate", Math.round(scansPerSecond)+ " objs/sec");
+		h.add("apiCalls", get(Metric.API_CALLS));
+		h.add("cypher", get(Metric.CYPHER_STATEMENTS));
 		
 		logger.info("{} {}",msg,h.toString());
 		
 
 	}
 
+	/**
+	 * Returns the name, metrics and children of this context.
+	 */
+	public ObjectNode toJson() {
+		ObjectNode n = mapper.createObjectNode();
+		n.put("context", toString());
+		ObjectNode m = n.putObject("metrics");
+		getMetrics().forEach((k, v) -> m.put(k.name().toLowerCase(), v));
+		n.put("exceptions", exceptions.size());
+		if (!children.isEmpty()) {
+			children.forEach(it -> n.withArray("children").add(it.toJson()));
+		}
+		return n;
+	}
+
 	protected ToStringHelper toStringHelper() {
 		return MoreObjects.toStringHelper(this).add("name", map.get("name"));
 
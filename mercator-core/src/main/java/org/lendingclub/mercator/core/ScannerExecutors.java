@@ -0,0 +1,92 @@
+/**
+ * Copyright 2017 Lending Club, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lendingclub.mercator.core;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Creates executors for ExecutionMode.VIRTUAL. Virtual threads are created
+ * reflectively so that mercator still runs on Java 8. When they are not
+ * available, a bounded pool of daemon platform threads is used instead.
+ */
+public class ScannerExecutors {
+
+	public static final int DEFAULT_FALLBACK_THREADS = 64;
+
+	static Logger logger = LoggerFactory.getLogger(ScannerExecutors.class);
+
+	private static final Method OF_VIRTUAL = findMethod(Thread.class, "ofVirtual");
+	private static final Method NEW_THREAD_PER_TASK_EXECUTOR = findMethod(Executors.class,
+			"newThreadPerTaskExecutor", ThreadFactory.class);
+
+	private ScannerExecutors() {
+
+	}
+
+	static Method findMethod(Class<?> clazz, String name, Class<?>... parameterTypes) {
+		try {
+			return clazz.getMethod(name, parameterTypes);
+		} catch (NoSuchMethodException | SecurityException e) {
+			return null;
+		}
+	}
+
+	public static boolean isVirtualThreadSupported() {
+		return OF_VIRTUAL != null && NEW_THREAD_PER_TASK_EXECUTOR != null;
+	}
+
+	/**
+	 * Returns a factory for virtual threads named prefix0, prefix1, ...
+	 * Methods are looked up on the public Thread.Builder interfaces, since the
+	 * builder implementation class is not accessible.
+	 */
+	static ThreadFactory newVirtualThreadFactory(String prefix) throws ReflectiveOperationException {
+		Object builder = OF_VIRTUAL.invoke(null);
+		builder = Class.forName("java.lang.Thread$Builder$OfVirtual").getMethod("name", String.class, long.class)
+				.invoke(builder, prefix, 0L);
+		return (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+	}
+
+	/**
+	 * Returns an executor that starts a new virtual thread for each task. The
+	 * executor must be shut down by the caller.
+	 */
+	public static ExecutorService newVirtualThreadPerTaskExecutor(String prefix) {
+		if (isVirtualThreadSupported()) {
+			try {
+				return (ExecutorService) NEW_THREAD_PER_TASK_EXECUTOR.invoke(null, newVirtualThreadFactory(prefix));
+			} catch (ReflectiveOperationException | RuntimeException e) {
+				logger.warn("could not create virtual thread executor, using platform threads", e);
+			}
+		}
+		ThreadFactory threadFactory = new ThreadFactoryBuilder().setDaemon(true).setNameFormat(prefix + "%d").build();
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(DEFAULT_FALLBACK_THREADS, DEFAULT_FALLBACK_THREADS, 30L,
+				TimeUnit.SECONDS, new SynchronousQueue<>(), threadFactory, new ThreadPoolExecutor.CallerRunsPolicy());
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+}
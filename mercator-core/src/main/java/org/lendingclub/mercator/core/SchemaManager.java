@@ -15,15 +15,30 @@
  */
 package org.lendingclub.mercator.core;
 
+import java.util.List;
+import java.util.Optional;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.lendingclub.mercator.core.SchemaRegistry.Definition;
 import org.lendingclub.neorx.NeoRxClient;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.base.Splitter;
+import com.google.common.collect.Lists;
+
 public class SchemaManager {
 
+	static final Pattern INDEX_PATTERN = Pattern.compile("INDEX ON :(\\w+)\\(([^)]+)\\)");
+	static final Pattern CONSTRAINT_PATTERN = Pattern
+			.compile("CONSTRAINT ON \\(\\s*\\w+:(\\w+)\\s*\\) ASSERT \\w+\\.(\\w+) IS UNIQUE");
+
 	Logger logger = LoggerFactory.getLogger(getClass());
 	
 	NeoRxClient client;
+
+	SchemaRegistry registry = new SchemaRegistry();
 	
 	public SchemaManager(NeoRxClient client) {
 		this.client = client;
@@ -31,8 +46,102 @@ public class SchemaManager {
 	public NeoRxClient getNeoRxClient() {
 		return client;
 	}
+
+	public SchemaRegistry getSchemaRegistry() {
+		return registry;
+	}
+
+	/**
+	 * Declare the key that nodes with the given label are merged on.
+	 */
+	public SchemaManager declareMergeKey(String label, String... properties) {
+		registry.addMergeKey(label, properties);
+		return this;
+	}
+
+	/**
+	 * Declare properties that nodes with the given label are matched on.
+	 * Several properties that are always matched together should be declared
+	 * together, so that they are covered by a composite index.
+	 */
+	public SchemaManager declareLookupKey(String label, String... properties) {
+		registry.addLookupKey(label, properties);
+		return this;
+	}
+
 	public void applyConstraints() {
-		
+		applySchema();
+	}
+
+	/**
+	 * Compare the declared keys with the constraints and indexes in the
+	 * database and create those that are missing. An existing index that should
+	 * be a uniqueness constraint is replaced by the constraint, and is kept if
+	 * the constraint cannot be created. Fails if the existing schema cannot be
+	 * read, so that the caller can try again.
+	 */
+	public void applySchema() {
+		List<Definition> live = getLiveSchema();
+		List<Definition> missing = registry.getMissing(live);
+		logger.info("{} of {} declared constraints and indexes are missing", missing.size(),
+				registry.getDefinitions().size());
+		for (Definition d : missing) {
+			if (d.isUnique() && live.stream().anyMatch(it -> it.getKey().equals(d.getKey()))) {
+				replaceIndex(d);
+			} else {
+				applyConstraint(d.toCypher());
+			}
+		}
+	}
+
+	void replaceIndex(Definition d) {
+		String index = String.format("INDEX ON :%s(%s)", d.getLabel(), d.getProperties().get(0));
+		try {
+			logger.info("applying constraint: {}", d.toCypher());
+			client.execCypher(d.toCypher());
+			// the index is now redundant
+			applyConstraint("DROP " + index);
+			return;
+		} catch (RuntimeException e) {
+			// Neo4j 3.x refuses to create a constraint while an index exists
+			logger.info("could not create constraint alongside {}: {}", index, e.toString());
+		}
+		applyConstraint("DROP " + index);
+		try {
+			applyConstraint(d.toCypher(), true);
+		} catch (RuntimeException e) {
+			// e.g. there are duplicates; keep the lookup index
+			logger.warn("problem applying constraints: " + d.toCypher() + "; restoring index", e);
+			applyConstraint("CREATE " + index);
+		}
+	}
+
+	public List<Definition> getLiveSchema() {
+		List<Definition> live = Lists.newArrayList();
+		client.execCypher("call db.constraints() yield description return description").blockingForEach(it -> {
+			parseConstraint(it.asText()).ifPresent(live::add);
+		});
+		client.execCypher("call db.indexes() yield description return description").blockingForEach(it -> {
+			parseIndex(it.asText()).ifPresent(live::add);
+		});
+		return live;
+	}
+
+	static Optional<Definition> parseIndex(String description) {
+		Matcher m = INDEX_PATTERN.matcher(description);
+		if (!m.find()) {
+			return Optional.empty();
+		}
+		List<String> properties = Splitter.on(",").trimResults().omitEmptyStrings().splitToList(m.group(2));
+		return Optional.of(new Definition(m.group(1), false, properties.toArray(new String[0])));
+	}
+
+	static Optional<Definition> parseConstraint(String description) {
+		Matcher m = CONSTRAINT_PATTERN.matcher(description);
+		if (!m.find()) {
+			return Optional.empty();
+		}
+		return Optional.of(new Definition(m.group(1), true, m.group(2)));
 	}
 	public void applyConstraint(String constraint) {
 		applyConstraint(constraint,false);
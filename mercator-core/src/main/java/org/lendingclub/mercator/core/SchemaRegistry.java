@@ -0,0 +1,150 @@
+/**
+ * Copyright 2017 Lending Club, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lendingclub.mercator.core;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * SchemaRegistry collects the keys that scanners merge and match on, so that
+ * SchemaManager can create the constraints and indexes that back them.
+ * 
+ * A merge key on a single property becomes a uniqueness constraint. A merge
+ * key on several properties, and any lookup key, becomes an index, composite
+ * if it names more than one property.
+ */
+public class SchemaRegistry {
+
+	public static class Definition {
+		final String label;
+		final List<String> properties;
+		final boolean unique;
+
+		public Definition(String label, boolean unique, String... properties) {
+			Preconditions.checkArgument(!Strings.isNullOrEmpty(label), "label not set");
+			Preconditions.checkArgument(properties.length > 0, "at least one property required");
+			Preconditions.checkArgument(!unique || properties.length == 1,
+					"uniqueness constraints are limited to a single property");
+			this.label = label;
+			this.properties = ImmutableList.copyOf(properties);
+			this.unique = unique;
+		}
+
+		public String getLabel() {
+			return label;
+		}
+
+		public List<String> getProperties() {
+			return properties;
+		}
+
+		public boolean isUnique() {
+			return unique;
+		}
+
+		/**
+		 * Returns the label and properties, which identify the index whether or
+		 * not it is backed by a constraint.
+		 */
+		public String getKey() {
+			return label + "(" + Joiner.on(",").join(properties) + ")";
+		}
+
+		public String toCypher() {
+			if (unique) {
+				return String.format("CREATE CONSTRAINT ON (x:%s) ASSERT x.%s IS UNIQUE", label, properties.get(0));
+			}
+			return String.format("CREATE INDEX ON :%s(%s)", label, Joiner.on(", ").join(properties));
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Definition)) {
+				return false;
+			}
+			Definition d = (Definition) o;
+			return unique == d.unique && label.equals(d.label) && properties.equals(d.properties);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(label, properties, unique);
+		}
+
+		@Override
+		public String toString() {
+			return MoreObjects.toStringHelper(this).add("label", label).add("properties", properties)
+					.add("unique", unique).toString();
+		}
+	}
+
+	Map<String, Definition> definitions = Maps.newLinkedHashMap();
+
+	public SchemaRegistry addMergeKey(String label, String... properties) {
+		return add(new Definition(label, properties.length == 1, properties));
+	}
+
+	public SchemaRegistry addLookupKey(String label, String... properties) {
+		return add(new Definition(label, false, properties));
+	}
+
+	/**
+	 * Add a definition. A uniqueness constraint replaces an index on the same
+	 * key, since the constraint is backed by an index of its own.
+	 */
+	public synchronized SchemaRegistry add(Definition d) {
+		Definition existing = definitions.get(d.getKey());
+		if (existing == null || (d.isUnique() && !existing.isUnique())) {
+			definitions.put(d.getKey(), d);
+		}
+		return this;
+	}
+
+	public synchronized List<Definition> getDefinitions() {
+		return ImmutableList.copyOf(definitions.values());
+	}
+
+	/**
+	 * Returns the definitions that are not satisfied by the given live schema.
+	 */
+	public synchronized List<Definition> getMissing(Collection<Definition> live) {
+		Map<String, Definition> liveByKey = Maps.newHashMap();
+		for (Definition d : live) {
+			Definition existing = liveByKey.get(d.getKey());
+			if (existing == null || d.isUnique()) {
+				liveByKey.put(d.getKey(), d);
+			}
+		}
+		List<Definition> missing = Lists.newArrayList();
+		for (Definition d : definitions.values()) {
+			Definition existing = liveByKey.get(d.getKey());
+			if (existing == null || (d.isUnique() && !existing.isUnique())) {
+				missing.add(d);
+			}
+		}
+		return missing;
+	}
+}
@@ -0,0 +1,214 @@
+/**
+ * Copyright 2017 Lending Club, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lendingclub.mercator.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.MoreExecutors;
+
+/**
+ * TaskScope forks tasks and waits for all of them before the scope is closed,
+ * in the manner of structured concurrency: no task outlives the scope that
+ * forked it. If any task fails, the remaining tasks are cancelled, tasks
+ * forked afterwards are not run, and join() throws the first failure.
+ * 
+ * Tasks run in the ScannerContext of the thread that forked them.
+ * 
+ * <pre>
+ * try (TaskScope scope = TaskScope.open(ExecutionMode.VIRTUAL, "enrich-")) {
+ * 	items.forEach(it -&gt; scope.fork(() -&gt; enrich(it)));
+ * 	scope.join();
+ * }
+ * </pre>
+ */
+public class TaskScope implements AutoCloseable {
+
+	ExecutorService executor;
+	boolean ownsExecutor;
+	Semaphore permits;
+	List<Future<?>> futures = new ArrayList<>();
+	AtomicReference<Throwable> failure = new AtomicReference<>();
+
+	public TaskScope(ExecutorService executor) {
+		this(executor, false);
+	}
+
+	TaskScope(ExecutorService executor, boolean ownsExecutor) {
+		this.executor = Preconditions.checkNotNull(executor);
+		this.ownsExecutor = ownsExecutor;
+	}
+
+	/**
+	 * Opens a scope whose tasks run on virtual threads in VIRTUAL mode, or
+	 * synchronously on the forking thread in PLATFORM mode.
+	 */
+	public static TaskScope open(ExecutionMode mode, String threadNamePrefix) {
+		if (mode == ExecutionMode.VIRTUAL) {
+			return new TaskScope(ScannerExecutors.newVirtualThreadPerTaskExecutor(threadNamePrefix), true);
+		}
+		return new TaskScope(MoreExecutors.newDirectExecutorService(), true);
+	}
+
+	/**
+	 * Limit the number of tasks running at once. fork() blocks while the limit
+	 * is reached.
+	 */
+	public TaskScope withMaxConcurrency(int max) {
+		Preconditions.checkArgument(max > 0, "max must be > 0");
+		Preconditions.checkState(futures.isEmpty(), "tasks have already been forked");
+		this.permits = new Semaphore(max);
+		return this;
+	}
+
+	public <T> Future<T> fork(Callable<T> task) {
+		Preconditions.checkNotNull(task);
+		if (failure.get() != null) {
+			return cancelled();
+		}
+		if (permits != null) {
+			try {
+				permits.acquire();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new MercatorException("interrupted", e);
+			}
+			if (failure.get() != null) {
+				// a task failed while we were waiting for the permit
+				permits.release();
+				return cancelled();
+			}
+		}
+		Callable<T> contextTask = ScannerContext.propagate(task);
+		ScannerContext context = ScannerContext.getScannerContext().orElse(null);
+		Thread forkingThread = Thread.currentThread();
+		// the permit is released by the task, or on cancellation if the task
+		// never started, whichever claims it first
+		AtomicBoolean claimed = new AtomicBoolean();
+		Callable<T> scopedTask = () -> {
+			if (!claimed.compareAndSet(false, true)) {
+				throw new CancellationException();
+			}
+			long cpu0 = Thread.currentThread() != forkingThread ? ScannerContext.getCurrentThreadCpuNanos() : -1;
+			try {
+				return contextTask.call();
+			} catch (Throwable t) {
+				if (failure.compareAndSet(null, t)) {
+					cancelAll();
+				}
+				throw t;
+			} finally {
+				ScannerContext.addForkedCpuTime(context, cpu0);
+				releasePermit();
+			}
+		};
+		FutureTask<T> future = new FutureTask<T>(scopedTask) {
+			@Override
+			protected void done() {
+				if (isCancelled() && claimed.compareAndSet(false, true)) {
+					releasePermit();
+				}
+			}
+		};
+		synchronized (this) {
+			futures.add(future);
+		}
+		try {
+			executor.execute(future);
+		} catch (RejectedExecutionException e) {
+			future.cancel(false);
+			throw e;
+		}
+		return future;
+	}
+
+	static <T> Future<T> cancelled() {
+		// the scope is shutting down; join() reports the failure
+		CompletableFuture<T> cancelled = new CompletableFuture<>();
+		cancelled.cancel(false);
+		return cancelled;
+	}
+
+	void releasePermit() {
+		if (permits != null) {
+			permits.release();
+		}
+	}
+
+	public Future<Void> fork(Runnable task) {
+		return fork(() -> {
+			task.run();
+			return null;
+		});
+	}
+
+	synchronized void cancelAll() {
+		futures.forEach(it -> it.cancel(true));
+	}
+
+	/**
+	 * Waits for every forked task and throws the first failure, if any.
+	 */
+	public TaskScope join() {
+		List<Future<?>> snapshot;
+		synchronized (this) {
+			snapshot = new ArrayList<>(futures);
+		}
+		for (Future<?> future : snapshot) {
+			try {
+				future.get();
+			} catch (CancellationException | ExecutionException e) {
+				// the failure that caused cancellation is reported below
+			} catch (InterruptedException e) {
+				cancelAll();
+				Thread.currentThread().interrupt();
+				throw new MercatorException("interrupted", e);
+			}
+		}
+		Throwable t = failure.get();
+		if (t instanceof RuntimeException) {
+			throw (RuntimeException) t;
+		} else if (t instanceof Error) {
+			throw (Error) t;
+		} else if (t != null) {
+			throw new MercatorException(t);
+		}
+		return this;
+	}
+
+	/**
+	 * Cancels any tasks that are still running.
+	 */
+	@Override
+	public void close() {
+		cancelAll();
+		if (ownsExecutor) {
+			executor.shutdown();
+		}
+	}
+}
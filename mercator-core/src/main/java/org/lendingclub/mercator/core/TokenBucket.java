@@ -0,0 +1,223 @@
+/**
+ * Copyright 2017 Lending Club, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lendingclub.mercator.core;
+
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Ticker;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+/**
+ * A token bucket that can be nested inside a parent bucket. A permit is only
+ * granted when this bucket and all of its ancestors have a token available,
+ * so children share the budget of their parent.
+ *
+ * Part of the rate can be reserved for INTERACTIVE callers. BACKGROUND
+ * callers (such as scanners) additionally draw from a bucket that refills at
+ * the rate minus the reservation, and so can never use the reserved capacity.
+ *
+ * A bucket with a rate <= 0 is unlimited, but still passes requests through to
+ * its parent.
+ */
+public class TokenBucket {
+
+	public enum Priority {
+		BACKGROUND, INTERACTIVE
+	}
+
+	String name;
+	TokenBucket parent;
+	Object lock;
+	Ticker ticker;
+
+	double ratePerSecond;
+	double capacity;
+	double tokens;
+
+	double reservedRatePerSecond;
+	double backgroundCapacity;
+	double backgroundTokens;
+
+	long lastRefillNanos;
+
+	public TokenBucket(String name, double ratePerSecond, double capacity) {
+		this(name, ratePerSecond, capacity, null);
+	}
+
+	public TokenBucket(String name, double ratePerSecond, double capacity, TokenBucket parent) {
+		this(name, ratePerSecond, capacity, parent, parent != null ? parent.ticker : Ticker.systemTicker());
+	}
+
+	TokenBucket(String name, double ratePerSecond, double capacity, TokenBucket parent, Ticker ticker) {
+		this.name = name;
+		this.parent = parent;
+		this.lock = parent != null ? parent.lock : new Object();
+		this.ticker = ticker;
+		this.lastRefillNanos = ticker.read();
+		setRate(ratePerSecond, capacity);
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public TokenBucket getParent() {
+		return parent;
+	}
+
+	public boolean isUnlimited() {
+		return ratePerSecond <= 0;
+	}
+
+	public double getRate() {
+		return ratePerSecond;
+	}
+
+	public double getReservedRate() {
+		return reservedRatePerSecond;
+	}
+
+	public double getAvailableTokens() {
+		synchronized (lock) {
+			refill(ticker.read());
+			return tokens;
+		}
+	}
+
+	/**
+	 * Change the refill rate and capacity. The bucket starts full.
+	 */
+	public void setRate(double ratePerSecond, double capacity) {
+		synchronized (lock) {
+			Preconditions.checkArgument(ratePerSecond <= 0 || capacity >= 1, "capacity must be >= 1");
+			this.ratePerSecond = ratePerSecond;
+			this.capacity = capacity;
+			this.tokens = capacity;
+			setReservedRate(reservedRatePerSecond);
+		}
+	}
+
+	/**
+	 * Reserve part of the rate for INTERACTIVE callers.
+	 */
+	public TokenBucket withReservedRate(double reservedRatePerSecond) {
+		setReservedRate(reservedRatePerSecond);
+		return this;
+	}
+
+	void setReservedRate(double reserved) {
+		synchronized (lock) {
+			Preconditions.checkArgument(reserved >= 0, "reserved rate must be >= 0");
+			Preconditions.checkArgument(isUnlimited() || reserved < ratePerSecond,
+					"reserved rate must be less than the rate");
+			this.reservedRatePerSecond = isUnlimited() ? 0 : reserved;
+			this.backgroundCapacity = reservedRatePerSecond > 0
+					? Math.max(1, capacity * (ratePerSecond - reservedRatePerSecond) / ratePerSecond) : 0;
+			this.backgroundTokens = backgroundCapacity;
+		}
+	}
+
+	boolean hasReservation() {
+		return reservedRatePerSecond > 0;
+	}
+
+	void refill(long now) {
+		if (isUnlimited()) {
+			lastRefillNanos = now;
+			return;
+		}
+		double seconds = (now - lastRefillNanos) / 1e9;
+		if (seconds > 0) {
+			tokens = Math.min(capacity, tokens + seconds * ratePerSecond);
+			if (hasReservation()) {
+				backgroundTokens = Math.min(backgroundCapacity,
+						backgroundTokens + seconds * (ratePerSecond - reservedRatePerSecond));
+			}
+			lastRefillNanos = now;
+		}
+	}
+
+	long nanosUntilAvailable(Priority priority) {
+		if (isUnlimited()) {
+			return 0;
+		}
+		double missing = Math.max(0, 1 - tokens);
+		long nanos = (long) Math.ceil(missing / ratePerSecond * 1e9);
+		if (priority == Priority.BACKGROUND && hasReservation()) {
+			double missingBackground = Math.max(0, 1 - backgroundTokens);
+			nanos = Math.max(nanos,
+					(long) Math.ceil(missingBackground / (ratePerSecond - reservedRatePerSecond) * 1e9));
+		}
+		return nanos;
+	}
+
+	/**
+	 * Takes a permit from this bucket and its ancestors if all of them have one
+	 * available. Otherwise returns the number of nanoseconds to wait before
+	 * trying again.
+	 */
+	long tryAcquireOrGetWait(Priority priority) {
+		synchronized (lock) {
+			long now = ticker.read();
+			long wait = 0;
+			for (TokenBucket b = this; b != null; b = b.parent) {
+				b.refill(now);
+				wait = Math.max(wait, b.nanosUntilAvailable(priority));
+			}
+			if (wait > 0) {
+				return wait;
+			}
+			for (TokenBucket b = this; b != null; b = b.parent) {
+				if (!b.isUnlimited()) {
+					b.tokens -= 1;
+					if (priority == Priority.BACKGROUND && b.hasReservation()) {
+						b.backgroundTokens -= 1;
+					}
+				}
+			}
+			return 0;
+		}
+	}
+
+	public boolean tryAcquire(Priority priority) {
+		return tryAcquireOrGetWait(priority) == 0;
+	}
+
+	/**
+	 * Blocks until a permit is available and returns the time spent waiting, in
+	 * milliseconds.
+	 */
+	public long acquire(Priority priority) {
+		long t0 = System.nanoTime();
+		long wait;
+		while ((wait = tryAcquireOrGetWait(priority)) > 0) {
+			Uninterruptibles.sleepUninterruptibly(wait, TimeUnit.NANOSECONDS);
+		}
+		return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - t0);
+	}
+
+	public long acquire() {
+		return acquire(Priority.BACKGROUND);
+	}
+
+	@Override
+	public String toString() {
+		return MoreObjects.toStringHelper(this).add("name", name).add("rate", ratePerSecond)
+				.add("reserved", reservedRatePerSecond).toString();
+	}
+}
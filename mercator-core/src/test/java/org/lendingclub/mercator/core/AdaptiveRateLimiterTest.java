@@ -0,0 +1,112 @@
+/**
+ * Copyright 2017 Lending Club, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lendingclub.mercator.core;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+import org.lendingclub.mercator.core.RateLimiterTest.FakeScannerBuilder;
+
+import com.google.common.base.Ticker;
+
+public class AdaptiveRateLimiterTest {
+
+	AtomicLong nanos = new AtomicLong();
+
+	Ticker ticker = new Ticker() {
+
+		@Override
+		public long read() {
+			return nanos.get();
+		}
+	};
+
+	void advance(long millis) {
+		nanos.addAndGet(TimeUnit.MILLISECONDS.toNanos(millis));
+	}
+
+	@Test
+	public void testAdditiveIncrease() {
+		AdaptiveRateLimiter limiter = new AdaptiveRateLimiter("test", 10).withTicker(ticker).withMaxRate(12);
+
+		limiter.onSuccess();
+		Assertions.assertThat(limiter.getRate()).isEqualTo(10);
+
+		advance(1000);
+		limiter.onSuccess();
+		limiter.onSuccess();
+		Assertions.assertThat(limiter.getRate()).isEqualTo(11);
+
+		advance(1000);
+		limiter.onSuccess();
+		advance(1000);
+		limiter.onSuccess();
+		Assertions.assertThat(limiter.getRate()).isEqualTo(12);
+		Assertions.assertThat(limiter.getSuccessCount()).isEqualTo(5);
+	}
+
+	@Test
+	public void testMultiplicativeDecrease() {
+		AdaptiveRateLimiter limiter = new AdaptiveRateLimiter("test", 10).withTicker(ticker).withMinRate(2);
+
+		limiter.onThrottle();
+		Assertions.assertThat(limiter.getRate()).isEqualTo(5);
+
+		// throttles from calls already in flight only count once
+		limiter.onThrottle();
+		limiter.onThrottle();
+		Assertions.assertThat(limiter.getRate()).isEqualTo(5);
+
+		advance(1000);
+		limiter.onThrottle();
+		Assertions.assertThat(limiter.getRate()).isEqualTo(2.5);
+
+		advance(1000);
+		limiter.onThrottle();
+		Assertions.assertThat(limiter.getRate()).isEqualTo(2);
+		Assertions.assertThat(limiter.getThrottleCount()).isEqualTo(5);
+	}
+
+	@Test
+	public void testNoIncreaseRightAfterThrottle() {
+		AdaptiveRateLimiter limiter = new AdaptiveRateLimiter("test", 10).withTicker(ticker);
+
+		advance(5000);
+		limiter.onThrottle();
+		limiter.onSuccess();
+		Assertions.assertThat(limiter.getRate()).isEqualTo(5);
+
+		advance(1000);
+		limiter.onSuccess();
+		Assertions.assertThat(limiter.getRate()).isEqualTo(6);
+	}
+
+	@Test
+	public void testScanner() {
+		Projector p = new Projector.Builder().withUrl("bolt://localhost:12345").build();
+
+		AbstractScanner scanner = p.createBuilder(FakeScannerBuilder.class).withRateLimitPerSecond(50)
+				.withAdaptiveRateLimit(true).build();
+		Assertions.assertThat(scanner.rateLimiter).isNull();
+		Assertions.assertThat(scanner.getAdaptiveRateLimiter().get().getRate()).isEqualTo(50);
+		scanner.scan();
+
+		scanner = p.createBuilder(FakeScannerBuilder.class).build();
+		Assertions.assertThat(scanner.getAdaptiveRateLimiter().isPresent()).isFalse();
+	}
+}
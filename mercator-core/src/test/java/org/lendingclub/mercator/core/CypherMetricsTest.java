@@ -0,0 +1,89 @@
+/**
+ * Copyright 2017 Lending Club, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lendingclub.mercator.core;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+
+public class CypherMetricsTest {
+
+	@Test
+	public void testTemplate() {
+		Assertions.assertThat(CypherMetrics.createTemplate("  match (x:Foo)\n\t  return x ")).isEqualTo("match (x:Foo) return x");
+	}
+
+	@Test
+	public void testRecord() {
+		CypherMetrics metrics = new CypherMetrics();
+		metrics.record("match (x) return x", ImmutableMap.of(), 10, 3, null);
+		metrics.record("match (x)\n return x", ImmutableMap.of(), 20, 2, new RuntimeException("foo"));
+		metrics.record("merge (x:Foo {id:{id}})", ImmutableMap.of(), 500, 1, null);
+
+		CypherMetrics.StatementStats stats = metrics.getStatementStats("match (x) return x").get();
+		Assertions.assertThat(stats.getCount()).isEqualTo(2);
+		Assertions.assertThat(stats.getRowCount()).isEqualTo(5);
+		Assertions.assertThat(stats.getErrorCount()).isEqualTo(1);
+		Assertions.assertThat(stats.getErrorRate()).isEqualTo(0.5);
+		Assertions.assertThat(stats.getLatency().getTotalMillis()).isEqualTo(30);
+
+		Assertions.assertThat(metrics.getStatementStats()).extracting(CypherMetrics.StatementStats::getTemplate)
+				.containsExactly("merge (x:Foo {id:{id}})", "match (x) return x");
+		Assertions.assertThat(metrics.getSlowStatements()).isEmpty();
+		Assertions.assertThat(metrics.toJson().path("statements").size()).isEqualTo(2);
+	}
+
+	@Test
+	public void testSlowStatementSamples() {
+		CypherMetrics metrics = new CypherMetrics().withSlowThreshold(100, TimeUnit.MILLISECONDS)
+				.withMaxSlowStatements(2);
+		Map<String, Object> params = ImmutableMap.of("id", "a", "rows", Lists.newArrayList(1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12));
+
+		Assertions.assertThat(metrics.record("match (x) return x", params, 99, 0, null)).isEmpty();
+		Assertions.assertThat(metrics.record("match (x) return x", params, 100, 0, null)).isPresent();
+		metrics.record("match (y) return y", params, 200, 0, null);
+		metrics.record("match (z) return z", params, 300, 0, null);
+
+		Assertions.assertThat(metrics.getSlowStatements()).extracting(CypherMetrics.SlowStatement::getMillis)
+				.containsExactly(200L, 300L);
+		CypherMetrics.SlowStatement sample = metrics.getSlowStatements().get(0);
+		Assertions.assertThat(sample.getParameters().path("id").asText()).isEqualTo("a");
+		Assertions.assertThat(sample.getParameters().path("rows").size())
+				.isEqualTo(CypherMetrics.MAX_SAMPLED_ARRAY_ELEMENTS);
+		Assertions.assertThat(sample.getParameters().path("rowsSize").asInt()).isEqualTo(12);
+		Assertions.assertThat(metrics.getStatementStats("match (x) return x").get().getSlowCount()).isEqualTo(1);
+
+		metrics.reset();
+		Assertions.assertThat(metrics.getSlowStatements()).isEmpty();
+		Assertions.assertThat(metrics.getStatementStats()).isEmpty();
+	}
+
+	@Test
+	public void testProfileOncePerTemplate() {
+		CypherMetrics metrics = new CypherMetrics().withSlowThreshold(0, TimeUnit.MILLISECONDS);
+		CypherMetrics.SlowStatement sample = metrics.record("match (x) return x", null, 5, 0, null).get();
+		Assertions.assertThat(metrics.shouldProfile(sample)).isFalse();
+
+		metrics.withProfileEnabled(true);
+		Assertions.assertThat(metrics.shouldProfile(sample)).isTrue();
+		Assertions.assertThat(metrics.shouldProfile(sample)).isFalse();
+	}
+}
@@ -0,0 +1,91 @@
+/**
+ * Copyright 2017 Lending Club, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lendingclub.mercator.core;
+
+import java.util.concurrent.TimeUnit;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.databind.node.TextNode;
+import com.google.common.collect.Lists;
+
+public class FingerprintCacheTest {
+
+	ObjectMapper mapper = new ObjectMapper();
+
+	@Test
+	public void testFingerprint() {
+		FingerprintCache cache = new FingerprintCache();
+
+		ObjectNode a = mapper.createObjectNode().put("aws_arn", "arn:a").put("aws_state", "running");
+		ObjectNode b = mapper.createObjectNode().put("aws_state", "running").put("aws_arn", "arn:a");
+		Assertions.assertThat(cache.fingerprint(a)).isEqualTo(cache.fingerprint(b));
+
+		b.put("aws_state", "stopped");
+		Assertions.assertThat(cache.fingerprint(a)).isNotEqualTo(cache.fingerprint(b));
+
+		// type changes are significant
+		ObjectNode c = mapper.createObjectNode().put("n", 1);
+		ObjectNode d = mapper.createObjectNode().put("n", "1");
+		Assertions.assertThat(cache.fingerprint(c)).isNotEqualTo(cache.fingerprint(d));
+	}
+
+	@Test
+	public void testIgnoredProperties() {
+		FingerprintCache cache = new FingerprintCache().withIgnoredProperties("scanTs");
+
+		ObjectNode a = mapper.createObjectNode().put("aws_arn", "arn:a").put("scanTs", 1).put("updateTs", 1);
+		ObjectNode b = mapper.createObjectNode().put("aws_arn", "arn:a").put("scanTs", 2).put("updateTs", 2);
+		Assertions.assertThat(cache.fingerprint(a)).isEqualTo(cache.fingerprint(b));
+	}
+
+	@Test
+	public void testScanGenerationIsIgnored() {
+		FingerprintCache cache = new FingerprintCache();
+
+		ObjectNode a = mapper.createObjectNode().put("aws_arn", "arn:a").put(ScanGeneration.SCAN_GENERATION_ATTRIBUTE, 1);
+		ObjectNode b = mapper.createObjectNode().put("aws_arn", "arn:a").put(ScanGeneration.SCAN_GENERATION_ATTRIBUTE, 2)
+				.putNull(ScanGeneration.TOMBSTONE_ATTRIBUTE);
+		Assertions.assertThat(cache.fingerprint(a)).isEqualTo(cache.fingerprint(b));
+	}
+
+	@Test
+	public void testEviction() {
+		FingerprintCache cache = new FingerprintCache(2, 1, TimeUnit.HOURS);
+		for (int i = 0; i < 10; i++) {
+			cache.put("AwsTest", "aws_arn", new TextNode("arn:" + i), i);
+		}
+		Assertions.assertThat(cache.size()).isLessThanOrEqualTo(2);
+		Assertions.assertThat(cache.isUnchanged("AwsTest", "aws_arn", new TextNode("arn:9"), 9)).isTrue();
+		Assertions.assertThat(cache.isUnchanged("AwsTest", "aws_arn", new TextNode("arn:9"), 8)).isFalse();
+		Assertions.assertThat(cache.isUnchanged("AwsOther", "aws_arn", new TextNode("arn:9"), 9)).isFalse();
+	}
+
+	@Test
+	public void testWarm() {
+		RecordingNeoRxClient neo4j = new RecordingNeoRxClient().withAnswer(statement -> Lists.newArrayList(
+				mapper.createObjectNode().put("key", "arn:a").put("fingerprint", 42L),
+				mapper.createObjectNode().put("key", "arn:b").put("fingerprint", 43L)));
+
+		FingerprintCache cache = new FingerprintCache().warm(neo4j.getNeoRxClient(), "AwsTest", "aws_arn");
+
+		Assertions.assertThat(cache.size()).isEqualTo(2);
+		Assertions.assertThat(cache.isUnchanged("AwsTest", "aws_arn", new TextNode("arn:b"), 43L)).isTrue();
+	}
+}
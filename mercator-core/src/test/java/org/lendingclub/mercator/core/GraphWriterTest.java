@@ -0,0 +1,289 @@
+/**
+ * Copyright 2017 Lending Club, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lendingclub.mercator.core;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+import org.lendingclub.neorx.NeoRxClient;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+public class GraphWriterTest {
+
+	ObjectMapper mapper = new ObjectMapper();
+
+	Set<String> deleted = Sets.newHashSet();
+
+	AtomicInteger failures = new AtomicInteger();
+
+	/**
+	 * Echoes back each UNWIND row as a merged node. The next statements fail
+	 * while failures is positive.
+	 */
+	RecordingNeoRxClient neo4j = new RecordingNeoRxClient().withAnswer(statement -> {
+		if (failures.getAndDecrement() > 0) {
+			throw new RuntimeException("stub no neo4j");
+		}
+		List<JsonNode> result = Lists.newArrayList();
+		ArrayNode rows = statement.getRows();
+		if (rows != null) {
+			for (JsonNode row : rows) {
+				if (!row.has("props") && deleted.contains(row.path("key").asText())) {
+					continue;
+				}
+				ObjectNode x = row.has("props") ? ((ObjectNode) row.path("props")).deepCopy()
+						: mapper.createObjectNode().put("aws_arn", row.path("key").asText());
+				x.put("updateTs", 1000L + result.size());
+				result.add(x);
+			}
+		}
+		return result;
+	});
+
+	List<String> statements = neo4j.getStatements();
+
+	NeoRxClient newRecordingClient() {
+		return neo4j.getNeoRxClient();
+	}
+
+	ObjectNode props(String arn) {
+		return mapper.createObjectNode().put("aws_arn", arn).put("aws_account", "123456");
+	}
+
+	@Test
+	public void testBatchSize() {
+		GraphWriter writer = new GraphWriter(newRecordingClient()).withBatchSize(2);
+
+		writer.merge("AwsTest", "aws_arn", props("a"));
+		Assertions.assertThat(statements).isEmpty();
+		Assertions.assertThat(writer.getPendingCount()).isEqualTo(1);
+
+		writer.merge("AwsTest", "aws_arn", props("b"));
+		Assertions.assertThat(statements).hasSize(1);
+		Assertions.assertThat(writer.getPendingCount()).isEqualTo(0);
+
+		writer.merge("AwsTest", "aws_arn", props("c"));
+		writer.flush();
+		Assertions.assertThat(statements).hasSize(2);
+		Assertions.assertThat(statements.get(0)).startsWith("unwind {rows} as row merge (x:AwsTest {aws_arn: row.key})");
+
+		writer.flush();
+		Assertions.assertThat(statements).hasSize(2);
+	}
+
+	@Test
+	public void testBatchPerLabel() {
+		GraphWriter writer = new GraphWriter(newRecordingClient());
+
+		writer.merge("AwsFoo", "aws_arn", props("a"));
+		writer.merge("AwsBar", "aws_arn", props("b"));
+		writer.merge("AwsFoo", "aws_arn", props("c"));
+		writer.flush();
+
+		Assertions.assertThat(statements).hasSize(2);
+		Assertions.assertThat(statements.get(0)).contains("AwsFoo");
+		Assertions.assertThat(statements.get(1)).contains("AwsBar");
+	}
+
+	@Test
+	public void testFlushInterval() throws InterruptedException {
+		GraphWriter writer = new GraphWriter(newRecordingClient()).withFlushInterval(10, TimeUnit.MILLISECONDS);
+
+		writer.merge("AwsTest", "aws_arn", props("a"));
+		Thread.sleep(50);
+		writer.merge("AwsTest", "aws_arn", props("b"));
+
+		Assertions.assertThat(statements).hasSize(1);
+		Assertions.assertThat(writer.getPendingCount()).isEqualTo(0);
+	}
+
+	@Test
+	public void testMergeAction() {
+		GraphWriter writer = new GraphWriter(newRecordingClient());
+		AtomicLong earliest = new AtomicLong(Long.MAX_VALUE);
+
+		writer.merge("AwsTest", "aws_arn", props("a"), it -> {
+			Assertions.assertThat(it.path("aws_arn").asText()).isEqualTo("a");
+			earliest.set(Math.min(earliest.get(), it.path("updateTs").asLong()));
+		});
+		writer.merge("AwsTest", "aws_arn", props("b"), it -> {
+			Assertions.assertThat(it.path("aws_arn").asText()).isEqualTo("b");
+			earliest.set(Math.min(earliest.get(), it.path("updateTs").asLong()));
+		});
+		Assertions.assertThat(earliest.get()).isEqualTo(Long.MAX_VALUE);
+
+		writer.flush();
+		Assertions.assertThat(earliest.get()).isEqualTo(1000L);
+	}
+
+	@Test
+	public void testCompactResults() {
+		GraphWriter writer = new GraphWriter(newRecordingClient()).withCompactResults(true);
+
+		writer.merge("AwsTest", "aws_arn", props("a"));
+		writer.flush();
+		Assertions.assertThat(statements.get(0)).endsWith("return x.aws_arn as aws_arn, x.updateTs as updateTs");
+	}
+
+	@Test
+	public void testMissingMergeKey() {
+		GraphWriter writer = new GraphWriter(newRecordingClient());
+		try {
+			writer.merge("AwsTest", "aws_arn", mapper.createObjectNode().put("foo", "bar"));
+			Assertions.failBecauseExceptionWasNotThrown(IllegalArgumentException.class);
+		} catch (IllegalArgumentException e) {
+			Assertions.assertThat(e).hasMessageContaining("aws_arn");
+		}
+	}
+
+	@Test
+	public void testUnchangedNodesAreTouched() {
+		GraphWriter writer = new GraphWriter(newRecordingClient()).withFingerprintCache(new FingerprintCache());
+		AtomicLong updateTs = new AtomicLong();
+
+		writer.merge("AwsTest", "aws_arn", props("a"));
+		writer.flush();
+		Assertions.assertThat(statements).hasSize(1);
+		Assertions.assertThat(statements.get(0)).contains("x.mercatorFingerprint=row.fingerprint");
+
+		writer.merge("AwsTest", "aws_arn", props("a"), it -> updateTs.set(it.path("updateTs").asLong()));
+		writer.flush();
+		Assertions.assertThat(statements).hasSize(2);
+		Assertions.assertThat(statements.get(1))
+				.startsWith("unwind {rows} as row match (x:AwsTest {aws_arn: row.key}) set x.updateTs=timestamp()");
+		Assertions.assertThat(updateTs.get()).isEqualTo(1000L);
+
+		writer.merge("AwsTest", "aws_arn", props("a").put("aws_state", "stopped"));
+		writer.flush();
+		Assertions.assertThat(statements).hasSize(3);
+		Assertions.assertThat(statements.get(2)).startsWith("unwind {rows} as row merge");
+	}
+
+	@Test
+	public void testUnchangedNodesAreStampedWithScanGeneration() {
+		GraphWriter writer = new GraphWriter(newRecordingClient()).withFingerprintCache(new FingerprintCache());
+
+		writer.merge("AwsTest", "aws_arn", props("a").put(ScanGeneration.SCAN_GENERATION_ATTRIBUTE, 1));
+		writer.flush();
+		writer.merge("AwsTest", "aws_arn", props("a").put(ScanGeneration.SCAN_GENERATION_ATTRIBUTE, 2));
+		writer.flush();
+
+		Assertions.assertThat(statements).hasSize(2);
+		Assertions.assertThat(statements.get(1)).contains(" match ")
+				.contains("x.scanGen=coalesce(row.scanGen, x.scanGen), x.mercatorTombstones=null");
+	}
+
+	@Test
+	public void testDeletedNodeIsMergedAgain() {
+		FingerprintCache cache = new FingerprintCache();
+		GraphWriter writer = new GraphWriter(newRecordingClient()).withFingerprintCache(cache);
+
+		writer.merge("AwsTest", "aws_arn", props("a"));
+		writer.flush();
+
+		deleted.add("a");
+		AtomicLong count = new AtomicLong();
+		writer.merge("AwsTest", "aws_arn", props("a"), it -> count.incrementAndGet());
+		writer.flush();
+
+		Assertions.assertThat(statements).hasSize(3);
+		Assertions.assertThat(statements.get(1)).contains(" match ");
+		Assertions.assertThat(statements.get(2)).contains(" merge ");
+		Assertions.assertThat(count.get()).isEqualTo(1);
+		Assertions.assertThat(cache.size()).isEqualTo(1);
+	}
+
+	@Test
+	public void testFailedBatchIsRetried() {
+		GraphWriter writer = new GraphWriter(newRecordingClient()).withBatchSize(2);
+		AtomicLong count = new AtomicLong();
+
+		failures.set(1);
+		writer.merge("AwsTest", "aws_arn", props("a"), it -> count.incrementAndGet());
+		try {
+			writer.merge("AwsTest", "aws_arn", props("b"), it -> count.incrementAndGet());
+			Assertions.failBecauseExceptionWasNotThrown(MercatorException.class);
+		} catch (MercatorException e) {
+			Assertions.assertThat(e).hasMessageContaining("2 AwsTest nodes");
+		}
+		Assertions.assertThat(writer.getPendingCount()).isEqualTo(2);
+		Assertions.assertThat(count.get()).isEqualTo(0);
+
+		writer.merge("AwsTest", "aws_arn", props("c"), it -> count.incrementAndGet());
+		writer.flush();
+		Assertions.assertThat(writer.getPendingCount()).isEqualTo(0);
+		Assertions.assertThat(count.get()).isEqualTo(3);
+		Assertions.assertThat(neo4j.getStatement(1).getRows()).hasSize(2);
+		Assertions.assertThat(neo4j.getStatement(2).getRows()).hasSize(1);
+	}
+
+	@Test
+	public void testFlushWritesOtherLabelsAfterFailure() {
+		GraphWriter writer = new GraphWriter(newRecordingClient());
+
+		writer.merge("AwsFoo", "aws_arn", props("a"));
+		writer.merge("AwsBar", "aws_arn", props("b"));
+		failures.set(1);
+		try {
+			writer.flush();
+			Assertions.failBecauseExceptionWasNotThrown(MercatorException.class);
+		} catch (MercatorException e) {
+			Assertions.assertThat(e).hasMessageContaining("AwsFoo");
+		}
+		Assertions.assertThat(writer.getPendingCount()).isEqualTo(1);
+		Assertions.assertThat(statements.get(1)).contains("AwsBar");
+
+		writer.flush();
+		Assertions.assertThat(writer.getPendingCount()).isEqualTo(0);
+	}
+
+	@Test
+	public void testMergesAreQueuedWhileBatchIsWritten() throws Exception {
+		CountDownLatch writing = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		GraphWriter writer = new GraphWriter(newRecordingClient()).withBatchSize(1);
+
+		CompletableFuture<Void> f = CompletableFuture.runAsync(() -> {
+			writer.merge("AwsTest", "aws_arn", props("a"), it -> {
+				writing.countDown();
+				release.await();
+			});
+		});
+		Assertions.assertThat(writing.await(10, TimeUnit.SECONDS)).isTrue();
+
+		// would block on the writer's monitor if it were held during the write
+		writer.withBatchSize(2).merge("AwsTest", "aws_arn", props("b"));
+		Assertions.assertThat(writer.getPendingCount()).isEqualTo(1);
+
+		release.countDown();
+		f.get(10, TimeUnit.SECONDS);
+		writer.flush();
+		Assertions.assertThat(statements).hasSize(2);
+	}
+}
@@ -0,0 +1,166 @@
+/**
+ * Copyright 2017 Lending Club, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lendingclub.mercator.core;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+import org.mockito.ArgumentMatchers;
+import org.mockito.Mockito;
+import org.neo4j.driver.v1.Driver;
+import org.neo4j.driver.v1.Record;
+import org.neo4j.driver.v1.Session;
+import org.neo4j.driver.v1.StatementResult;
+import org.neo4j.driver.v1.Values;
+import org.neo4j.driver.v1.summary.ResultSummary;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+
+public class InstrumentedDriverTest {
+
+	StatementResult newResult(int rows) {
+		StatementResult result = Mockito.mock(StatementResult.class);
+		AtomicInteger remaining = new AtomicInteger(rows);
+		Mockito.when(result.hasNext()).thenAnswer(it -> remaining.get() > 0);
+		Mockito.when(result.next()).thenAnswer(it -> {
+			remaining.decrementAndGet();
+			return Mockito.mock(Record.class);
+		});
+		return result;
+	}
+
+	@Test
+	public void testLazy() {
+		AtomicInteger created = new AtomicInteger();
+		Driver driver = InstrumentedDriver.lazy(() -> {
+			created.incrementAndGet();
+			return Mockito.mock(Driver.class);
+		}, new CypherMetrics());
+		driver.close();
+		Assertions.assertThat(created.get()).isEqualTo(0);
+	}
+
+	@Test
+	public void testRowsAndLatency() {
+		Session session = Mockito.mock(Session.class);
+		StatementResult result = newResult(3);
+		Mockito.when(session.run(ArgumentMatchers.anyString(), ArgumentMatchers.<Map<String, Object>>any()))
+				.thenReturn(result);
+		Driver delegate = Mockito.mock(Driver.class);
+		Mockito.when(delegate.session()).thenReturn(session);
+
+		CypherMetrics metrics = new CypherMetrics().withSlowThreshold(0, TimeUnit.MILLISECONDS);
+		Driver driver = InstrumentedDriver.wrap(delegate, metrics);
+
+		try (Session s = driver.session()) {
+			StatementResult r = s.run("match (x:Foo {id:{id}}) return x", ImmutableMap.of("id", "a"));
+			while (r.hasNext()) {
+				r.next();
+			}
+			Assertions.assertThat(r.hasNext()).isFalse();
+		}
+
+		CypherMetrics.StatementStats stats = metrics.getStatementStats("match (x:Foo {id:{id}}) return x").get();
+		Assertions.assertThat(stats.getCount()).isEqualTo(1);
+		Assertions.assertThat(stats.getRowCount()).isEqualTo(3);
+		Assertions.assertThat(stats.getErrorCount()).isEqualTo(0);
+		Assertions.assertThat(metrics.getSlowStatements()).hasSize(1);
+		Assertions.assertThat(metrics.getSlowStatements().get(0).getParameters().path("id").asText()).isEqualTo("a");
+		Assertions.assertThat(metrics.getSlowStatements().get(0).getPlan()).isEmpty();
+	}
+
+	@Test
+	public void testUnconsumedResultIsRecordedOnClose() {
+		Session session = Mockito.mock(Session.class);
+		StatementResult result = newResult(1);
+		Mockito.when(session.run(ArgumentMatchers.anyString(), ArgumentMatchers.any(org.neo4j.driver.v1.Value.class)))
+				.thenReturn(result);
+		Driver delegate = Mockito.mock(Driver.class);
+		Mockito.when(delegate.session()).thenReturn(session);
+
+		CypherMetrics metrics = new CypherMetrics();
+		Session s = InstrumentedDriver.wrap(delegate, metrics).session();
+		s.run("merge (x:Foo {id:{id}})", Values.parameters("id", "a"));
+		Assertions.assertThat(metrics.getStatementStats()).isEmpty();
+		s.close();
+		Assertions.assertThat(metrics.getStatementStats("merge (x:Foo {id:{id}})").get().getCount()).isEqualTo(1);
+		Mockito.verify(session).close();
+	}
+
+	@Test
+	public void testError() {
+		Session session = Mockito.mock(Session.class);
+		StatementResult result = Mockito.mock(StatementResult.class);
+		Mockito.when(result.list()).thenThrow(new IllegalStateException("syntax error"));
+		Mockito.when(session.run(ArgumentMatchers.anyString())).thenReturn(result);
+		Driver delegate = Mockito.mock(Driver.class);
+		Mockito.when(delegate.session()).thenReturn(session);
+
+		CypherMetrics metrics = new CypherMetrics();
+		try (Session s = InstrumentedDriver.wrap(delegate, metrics).session()) {
+			s.run("match (x return x").list();
+			Assertions.failBecauseExceptionWasNotThrown(IllegalStateException.class);
+		} catch (IllegalStateException e) {
+			Assertions.assertThat(e).hasMessage("syntax error");
+		}
+		Assertions.assertThat(metrics.getStatementStats("match (x return x").get().getErrorCount()).isEqualTo(1);
+	}
+
+	@Test
+	public void testReadOnly() {
+		Assertions.assertThat(InstrumentedDriver.isReadOnly("match (x:AwsVpc) return x")).isTrue();
+		Assertions.assertThat(
+				InstrumentedDriver.isReadOnly("call db.indexes() yield description return description")).isTrue();
+		Assertions.assertThat(InstrumentedDriver.isReadOnly("CALL db.constraints()")).isTrue();
+		Assertions.assertThat(InstrumentedDriver.isReadOnly("merge (x:AwsVpc {aws_arn:{a}}) return x")).isFalse();
+		Assertions.assertThat(InstrumentedDriver.isReadOnly("call apoc.periodic.iterate('a', 'b', {})")).isFalse();
+		Assertions.assertThat(InstrumentedDriver.isReadOnly("call db.indexes() yield description match (x) delete x"))
+				.isFalse();
+	}
+
+	@Test
+	public void testProfileCapture() {
+		Session session = Mockito.mock(Session.class);
+		List<String> statements = Lists.newArrayList();
+		ResultSummary summary = Mockito.mock(ResultSummary.class);
+		Mockito.when(session.run(ArgumentMatchers.anyString(), ArgumentMatchers.<Map<String, Object>>any()))
+				.thenAnswer(it -> {
+					statements.add(it.getArgument(0));
+					StatementResult result = newResult(0);
+					Mockito.when(result.consume()).thenReturn(summary);
+					return result;
+				});
+		Driver delegate = Mockito.mock(Driver.class);
+		Mockito.when(delegate.session()).thenReturn(session);
+
+		CypherMetrics metrics = new CypherMetrics().withSlowThreshold(0, TimeUnit.MILLISECONDS)
+				.withProfileEnabled(true);
+		Driver driver = InstrumentedDriver.wrap(delegate, metrics);
+		try (Session s = driver.session()) {
+			s.run("merge (x:Foo {id:{id}}) return x", ImmutableMap.of("id", "a")).consume();
+			s.run("merge (x:Foo {id:{id}}) return x", ImmutableMap.of("id", "b")).consume();
+			s.run("match (x:Foo) return x", ImmutableMap.of()).consume();
+		}
+		Assertions.assertThat(statements).containsExactly("merge (x:Foo {id:{id}}) return x",
+				"EXPLAIN merge (x:Foo {id:{id}}) return x", "merge (x:Foo {id:{id}}) return x",
+				"match (x:Foo) return x", "PROFILE match (x:Foo) return x");
+	}
+}
@@ -0,0 +1,72 @@
+/**
+ * Copyright 2017 Lending Club, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lendingclub.mercator.core;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+	@Test
+	public void testEmpty() {
+		LatencyHistogram h = new LatencyHistogram();
+		Assertions.assertThat(h.getCount()).isEqualTo(0);
+		Assertions.assertThat(h.getMeanMillis()).isEqualTo(0);
+		Assertions.assertThat(h.getPercentileMillis(99)).isEqualTo(0);
+	}
+
+	@Test
+	public void testPercentiles() {
+		LatencyHistogram h = new LatencyHistogram();
+		for (int i = 1; i <= 100; i++) {
+			h.record(i);
+		}
+		Assertions.assertThat(h.getCount()).isEqualTo(100);
+		Assertions.assertThat(h.getTotalMillis()).isEqualTo(5050);
+		Assertions.assertThat(h.getMaxMillis()).isEqualTo(100);
+		Assertions.assertThat(h.getPercentileMillis(50)).isEqualTo(64);
+		Assertions.assertThat(h.getPercentileMillis(10)).isEqualTo(16);
+		// capped at the largest recorded value
+		Assertions.assertThat(h.getPercentileMillis(99)).isEqualTo(100);
+	}
+
+	@Test
+	public void testBuckets() {
+		Assertions.assertThat(LatencyHistogram.bucketIndex(0)).isEqualTo(0);
+		Assertions.assertThat(LatencyHistogram.bucketIndex(1)).isEqualTo(0);
+		Assertions.assertThat(LatencyHistogram.bucketIndex(2)).isEqualTo(1);
+		Assertions.assertThat(LatencyHistogram.bucketIndex(3)).isEqualTo(2);
+		Assertions.assertThat(LatencyHistogram.bucketIndex(1024)).isEqualTo(10);
+		Assertions.assertThat(LatencyHistogram.bucketIndex(1025)).isEqualTo(11);
+		Assertions.assertThat(LatencyHistogram.bucketIndex(Long.MAX_VALUE))
+				.isEqualTo(LatencyHistogram.BUCKET_COUNT - 1);
+	}
+
+	@Test
+	public void testMerge() {
+		LatencyHistogram a = new LatencyHistogram();
+		a.record(5);
+		LatencyHistogram b = new LatencyHistogram();
+		b.record(500);
+		b.record(7);
+
+		LatencyHistogram c = a.copy().merge(b);
+		Assertions.assertThat(c.getCount()).isEqualTo(3);
+		Assertions.assertThat(c.getMaxMillis()).isEqualTo(500);
+		Assertions.assertThat(a.getCount()).isEqualTo(1);
+		Assertions.assertThat(c.toJson().path("p50Millis").asLong()).isEqualTo(8);
+	}
+}
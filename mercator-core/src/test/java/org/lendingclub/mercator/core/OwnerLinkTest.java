@@ -0,0 +1,104 @@
+/**
+ * Copyright 2017 Lending Club, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lendingclub.mercator.core;
+
+import java.util.List;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.collect.Lists;
+
+public class OwnerLinkTest {
+
+	ObjectMapper mapper = new ObjectMapper();
+
+	RecordingNeoRxClient neo4j = new RecordingNeoRxClient().withAnswer(statement -> {
+		List<JsonNode> result = Lists.newArrayList();
+		if (statement.getCypher().contains(" return ")) {
+			statement.getRows().forEach(row -> result.add(row.path("props")));
+		}
+		return result;
+	});
+
+	List<String> statements = neo4j.getStatements();
+
+	@SuppressWarnings("unchecked")
+	List<String> keys(int i) {
+		return (List<String>) neo4j.getStatement(i).getParameter("keys");
+	}
+
+	OwnerLink newOwnerLink() {
+		return new OwnerLink(neo4j.getNeoRxClient()).withOwner("AwsAccount", "aws_account", "123456")
+				.withOwned("AwsSqsQueue", "aws_arn");
+	}
+
+	@Test
+	public void testLinksOnceAtCleanup() {
+		OwnerLink link = newOwnerLink();
+
+		new ScannerContext().exec(ctx -> {
+			link.bindScannerContext();
+			link.add("arn:a").add("arn:b").add("arn:a").add(null);
+			Assertions.assertThat(statements).isEmpty();
+		});
+
+		Assertions.assertThat(statements).containsExactly(
+				"unwind {keys} as key match (a:AwsAccount {aws_account:{owner}}), (b:AwsSqsQueue {aws_arn:key}) merge (a)-[r:OWNS]->(b) set r.updateTs=timestamp()");
+		Assertions.assertThat(keys(0)).containsExactlyInAnyOrder("arn:a", "arn:b");
+		Assertions.assertThat(link.getPendingCount()).isEqualTo(0);
+	}
+
+	@Test
+	public void testBatches() {
+		OwnerLink link = newOwnerLink().withBatchSize(2);
+		link.add("arn:a").add("arn:b").add("arn:c");
+		link.execute();
+
+		Assertions.assertThat(statements).hasSize(2);
+		Assertions.assertThat(keys(0)).hasSize(2);
+		Assertions.assertThat(keys(1)).hasSize(1);
+
+		link.execute();
+		Assertions.assertThat(statements).hasSize(2);
+	}
+
+	@Test
+	public void testLinksNodesAsBatchesAreWritten() {
+		OwnerLink link = newOwnerLink().withBatchSize(2);
+		GraphWriter writer = new GraphWriter(neo4j.getNeoRxClient()).withBatchSize(2);
+
+		for (String arn : Lists.newArrayList("arn:a", "arn:b", "arn:c")) {
+			ObjectNode n = mapper.createObjectNode().put("aws_arn", arn);
+			writer.merge("AwsSqsQueue", "aws_arn", n, link.ADD_ACTION);
+		}
+
+		// the first batch is linked as soon as it has been written
+		Assertions.assertThat(statements).hasSize(2);
+		Assertions.assertThat(statements.get(1)).contains("merge (a)-[r:OWNS]->(b)");
+		Assertions.assertThat(keys(1)).containsExactlyInAnyOrder("arn:a", "arn:b");
+		Assertions.assertThat(link.getPendingCount()).isEqualTo(0);
+
+		writer.flush();
+		Assertions.assertThat(link.getPendingCount()).isEqualTo(1);
+		link.execute();
+		Assertions.assertThat(statements).hasSize(4);
+		Assertions.assertThat(keys(3)).containsExactly("arn:c");
+	}
+}
@@ -37,7 +37,15 @@ public class ProjectorTest {
 			//Assertions.assertThat(e).isInstanceOf(NeoRxException.class);
 		}
 	}
-	
-	
+
+	@Test
+	public void testCypherMetricsOnlyWhenInstrumented() {
+		Assertions.assertThat(new Projector.Builder().withUrl("bolt://localhost:12345").build().getCypherMetrics())
+				.isNotNull();
+		Assertions.assertThat(new Projector.Builder().withUrl("bolt://localhost:12345").withCypherMetrics(null)
+				.build().getCypherMetrics()).isNull();
+		Assertions.assertThat(new Projector.Builder().withNeoRxClient(new RecordingNeoRxClient().getNeoRxClient())
+				.build().getCypherMetrics()).isNull();
+	}
 
 }
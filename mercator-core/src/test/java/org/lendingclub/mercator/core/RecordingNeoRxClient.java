@@ -0,0 +1,221 @@
+/**
+ * Copyright 2017 Lending Club, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lendingclub.mercator.core;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.lendingclub.neorx.NeoRxClient;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.collect.Lists;
+
+import io.reactivex.Observable;
+
+/**
+ * A stand-in for NeoRxClient that records the statements it is asked to
+ * execute instead of sending them to Neo4j. Statements return no rows unless
+ * an answer is set with withAnswer().
+ */
+public class RecordingNeoRxClient implements Answer<Object> {
+
+	static final Pattern UNWIND_PATTERN = Pattern.compile("^\\s*unwind\\s+\\{(\\w+)\\}", Pattern.CASE_INSENSITIVE);
+
+	/**
+	 * A statement passed to execCypher(), with its parameters.
+	 */
+	public static class Statement {
+		final String cypher;
+		final Object[] arguments;
+
+		Statement(Object[] arguments) {
+			this.cypher = (String) arguments[0];
+			this.arguments = arguments;
+		}
+
+		public String getCypher() {
+			return cypher;
+		}
+
+		/**
+		 * Returns every argument of the call, the statement included, with
+		 * the varargs expanded.
+		 */
+		public Object[] getArguments() {
+			return arguments;
+		}
+
+		/**
+		 * Returns the value of the named parameter, whether the parameters
+		 * were passed as name/value pairs or as an ObjectNode, or null.
+		 */
+		public Object getParameter(String name) {
+			if (arguments.length == 2 && arguments[1] instanceof ObjectNode) {
+				return ((ObjectNode) arguments[1]).get(name);
+			}
+			for (int i = 1; i + 1 < arguments.length; i += 2) {
+				if (name.equals(arguments[i])) {
+					return arguments[i + 1];
+				}
+			}
+			return null;
+		}
+
+		/**
+		 * Returns the rows an UNWIND statement iterates over, or null if it is
+		 * not one.
+		 */
+		public ArrayNode getRows() {
+			Object rows = getUnwindParameter();
+			return rows instanceof ArrayNode ? (ArrayNode) rows : null;
+		}
+
+		/**
+		 * Returns the number of rows written: the size of an UNWIND, or 1 for
+		 * any other statement.
+		 */
+		public int getRowCount() {
+			Object rows = getUnwindParameter();
+			if (rows instanceof JsonNode) {
+				return ((JsonNode) rows).size();
+			} else if (rows instanceof Collection) {
+				return ((Collection<?>) rows).size();
+			}
+			return 1;
+		}
+
+		Object getUnwindParameter() {
+			Matcher m = UNWIND_PATTERN.matcher(cypher);
+			return m.find() ? getParameter(m.group(1)) : null;
+		}
+	}
+
+	NeoRxClient client;
+	Function<Statement, Iterable<? extends JsonNode>> answer = it -> Collections.emptyList();
+	boolean historyEnabled = true;
+
+	List<Statement> history = Collections.synchronizedList(Lists.newArrayList());
+	List<String> statements = Collections.synchronizedList(Lists.newArrayList());
+
+	AtomicLong statementCount = new AtomicLong();
+	AtomicLong rowCount = new AtomicLong();
+	AtomicLong cypherLength = new AtomicLong();
+
+	public RecordingNeoRxClient() {
+		client = Mockito.mock(NeoRxClient.class, Mockito.withSettings().stubOnly().defaultAnswer(this));
+	}
+
+	/**
+	 * Set the rows returned by each statement. The function may throw to make
+	 * the statement fail.
+	 */
+	public RecordingNeoRxClient withAnswer(Function<Statement, Iterable<? extends JsonNode>> answer) {
+		this.answer = answer;
+		return this;
+	}
+
+	/**
+	 * Only count statements, rows and Cypher length, without keeping the
+	 * statements, for long running benchmarks.
+	 */
+	public RecordingNeoRxClient withHistory(boolean b) {
+		this.historyEnabled = b;
+		return this;
+	}
+
+	public NeoRxClient getNeoRxClient() {
+		return client;
+	}
+
+	/**
+	 * Returns the Cypher of every statement executed so far. The list is live,
+	 * so it can be held by a test before the statements are executed.
+	 */
+	public List<String> getStatements() {
+		return statements;
+	}
+
+	public Statement getStatement(int i) {
+		return history.get(i);
+	}
+
+	/**
+	 * Returns the first statement that contains the given fragment.
+	 */
+	public Statement findStatement(String fragment) {
+		synchronized (history) {
+			for (Statement statement : history) {
+				if (statement.getCypher().contains(fragment)) {
+					return statement;
+				}
+			}
+		}
+		throw new AssertionError("no statement containing " + fragment);
+	}
+
+	public long getStatementCount() {
+		return statementCount.get();
+	}
+
+	/**
+	 * Returns the number of rows written by all statements.
+	 */
+	public long getRowCount() {
+		return rowCount.get();
+	}
+
+	public long getCypherLength() {
+		return cypherLength.get();
+	}
+
+	public void reset() {
+		history.clear();
+		statements.clear();
+		statementCount.set(0);
+		rowCount.set(0);
+		cypherLength.set(0);
+	}
+
+	@Override
+	public Object answer(InvocationOnMock invocation) throws Throwable {
+		if (!invocation.getMethod().getName().equals("execCypher")) {
+			return null;
+		}
+		Statement statement = new Statement(invocation.getArguments());
+		statementCount.incrementAndGet();
+		cypherLength.addAndGet(statement.getCypher().length());
+		rowCount.addAndGet(statement.getRowCount());
+		if (historyEnabled) {
+			history.add(statement);
+			statements.add(statement.getCypher());
+		}
+		Iterable<? extends JsonNode> result = answer.apply(statement);
+		if (result == null) {
+			return Observable.empty();
+		}
+		return Observable.fromIterable(result);
+	}
+}
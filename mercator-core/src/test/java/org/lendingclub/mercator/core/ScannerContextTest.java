@@ -16,11 +16,15 @@
 package org.lendingclub.mercator.core;
 
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
 import org.assertj.core.api.Assertions;
 import org.junit.Test;
 import org.lendingclub.mercator.core.ScannerContext.CleanupTask;
+import org.lendingclub.mercator.core.ScannerContext.Metric;
 
 public class ScannerContextTest {
 
@@ -102,4 +106,98 @@ public class ScannerContextTest {
 		Assertions.assertThat(latch.await(1, TimeUnit.SECONDS)).isTrue();
 
 	}
+
+	@Test
+	public void testRollup() {
+		ScannerContext outer = new ScannerContext().withName("outer");
+		outer.exec(ctx -> {
+			ctx.incrementEntityCount();
+			new ScannerContext().withName("a").exec(a -> {
+				a.incrementEntityCount();
+				a.increment(Metric.API_CALLS, 3);
+				a.markException(new RuntimeException("a"));
+			});
+			new ScannerContext().withName("b").exec(b -> {
+				b.increment(Metric.API_CALLS, 2);
+			});
+			Assertions.assertThat(ctx.get(Metric.API_CALLS)).isEqualTo(5);
+		});
+
+		Assertions.assertThat(outer.getEntityCount()).isEqualTo(2);
+		Assertions.assertThat(outer.get(Metric.API_CALLS)).isEqualTo(5);
+		Assertions.assertThat(outer.getChildren()).extracting(ScannerContext::getName).containsExactly("a", "b");
+		Assertions.assertThat(outer.getChildren().get(0).getParent().get()).isSameAs(outer);
+		Assertions.assertThat(outer.getChildren().get(0).getExceptions()).hasSize(1);
+		Assertions.assertThat(outer.toJson().path("children").size()).isEqualTo(2);
+	}
+
+	@Test
+	public void testRollupAcrossThreads() throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			ScannerContext outer = new ScannerContext().withName("outer");
+			outer.exec(ctx -> {
+				CountDownLatch release = new CountDownLatch(1);
+				Future<?> late;
+				ScannerContext middle = new ScannerContext().withName("middle");
+				Future<?>[] holder = new Future<?>[1];
+				middle.exec(m -> {
+					// a child that is still running when its parent's exec() returns
+					holder[0] = executor.submit(ScannerContext.propagate(() -> {
+						new ScannerContext().withName("child").exec(child -> {
+							try {
+								release.await();
+							} catch (InterruptedException e) {
+								throw new RuntimeException(e);
+							}
+							child.increment(Metric.CYPHER_STATEMENTS, 7);
+						});
+					}));
+				});
+				late = holder[0];
+				Assertions.assertThat(ctx.get(Metric.CYPHER_STATEMENTS)).isEqualTo(0);
+				release.countDown();
+				try {
+					late.get(5, TimeUnit.SECONDS);
+				} catch (Exception e) {
+					throw new RuntimeException(e);
+				}
+				Assertions.assertThat(middle.get(Metric.CYPHER_STATEMENTS)).isEqualTo(7);
+				Assertions.assertThat(middle.getChildren()).hasSize(1);
+			});
+			Assertions.assertThat(outer.get(Metric.CYPHER_STATEMENTS)).isEqualTo(7);
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testConcurrentIncrementsAreRolledUpOnce() throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			for (int round = 0; round < 200; round++) {
+				ScannerContext parent = new ScannerContext().withName("parent");
+				ScannerContext child = new ScannerContext().withName("child").withParent(parent);
+				CountDownLatch start = new CountDownLatch(1);
+				Future<?>[] workers = new Future<?>[4];
+				for (int i = 0; i < workers.length; i++) {
+					workers[i] = executor.submit(() -> {
+						start.await();
+						for (int n = 0; n < 10000; n++) {
+							child.increment(Metric.ENTITIES, 1);
+						}
+						return null;
+					});
+				}
+				child.exec(ctx -> start.countDown());
+				for (Future<?> worker : workers) {
+					worker.get(5, TimeUnit.SECONDS);
+				}
+				Assertions.assertThat(child.get(Metric.ENTITIES)).isEqualTo(40000);
+				Assertions.assertThat(parent.get(Metric.ENTITIES)).isEqualTo(40000);
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
 }
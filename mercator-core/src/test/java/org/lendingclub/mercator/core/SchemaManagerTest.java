@@ -0,0 +1,139 @@
+/**
+ * Copyright 2017 Lending Club, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lendingclub.mercator.core;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+import org.lendingclub.mercator.core.SchemaRegistry.Definition;
+import org.lendingclub.neorx.NeoRxClient;
+
+import com.fasterxml.jackson.databind.node.TextNode;
+import com.google.common.collect.Lists;
+
+public class SchemaManagerTest {
+
+	RecordingNeoRxClient neo4j = new RecordingNeoRxClient();
+
+	List<String> failing = Lists.newArrayList();
+
+	AtomicInteger schemaFailures = new AtomicInteger();
+
+	NeoRxClient newClient(List<String> constraints, List<String> indexes) {
+		return neo4j.withAnswer(statement -> {
+			String cypher = statement.getCypher();
+			if (cypher.startsWith("call db.") && schemaFailures.getAndDecrement() > 0) {
+				throw new IllegalStateException("cannot read schema");
+			} else if (cypher.startsWith("call db.constraints()")) {
+				return Lists.transform(constraints, TextNode::new);
+			} else if (cypher.startsWith("call db.indexes()")) {
+				return Lists.transform(indexes, TextNode::new);
+			} else if (failing.contains(cypher)) {
+				throw new IllegalStateException("cannot apply " + cypher);
+			}
+			return null;
+		}).getNeoRxClient();
+	}
+
+	/**
+	 * Returns the statements executed other than the schema queries.
+	 */
+	List<String> changes() {
+		return neo4j.getStatements().stream().filter(it -> !it.startsWith("call db."))
+				.collect(Collectors.toList());
+	}
+
+	@Test
+	public void testParse() {
+		Assertions.assertThat(SchemaManager.parseIndex("INDEX ON :AwsVpc(aws_account, aws_region)").get())
+				.isEqualTo(new Definition("AwsVpc", false, "aws_account", "aws_region"));
+		Assertions.assertThat(
+				SchemaManager.parseConstraint("CONSTRAINT ON ( awsvpc:AwsVpc ) ASSERT awsvpc.aws_arn IS UNIQUE").get())
+				.isEqualTo(new Definition("AwsVpc", true, "aws_arn"));
+		Assertions.assertThat(SchemaManager.parseIndex("something else").isPresent()).isFalse();
+	}
+
+	@Test
+	public void testRegistry() {
+		SchemaRegistry registry = new SchemaRegistry().addLookupKey("AwsVpc", "aws_arn").addMergeKey("AwsVpc", "aws_arn")
+				.addLookupKey("AwsVpc", "aws_arn").addMergeKey("KubeContainerSpec", "podUid", "name");
+
+		Assertions.assertThat(registry.getDefinitions()).containsExactly(new Definition("AwsVpc", true, "aws_arn"),
+				new Definition("KubeContainerSpec", false, "podUid", "name"));
+		Assertions.assertThat(registry.getDefinitions().get(1).toCypher())
+				.isEqualTo("CREATE INDEX ON :KubeContainerSpec(podUid, name)");
+	}
+
+	@Test
+	public void testApplySchema() {
+		NeoRxClient client = newClient(
+				Lists.newArrayList("CONSTRAINT ON ( awsvpc:AwsVpc ) ASSERT awsvpc.aws_arn IS UNIQUE"),
+				Lists.newArrayList("INDEX ON :AwsVpc(aws_arn)", "INDEX ON :AwsVpc(aws_account, aws_region)",
+						"INDEX ON :AwsRoute53RecordSet(aws_name)"));
+
+		SchemaManager manager = new SchemaManager(client).declareMergeKey("AwsVpc", "aws_arn")
+				.declareLookupKey("AwsVpc", "aws_account", "aws_region").declareLookupKey("AwsVpc", "aws_vpcId")
+				.declareMergeKey("AwsRoute53RecordSet", "aws_name");
+		manager.applySchema();
+
+		Assertions.assertThat(changes()).containsExactly("CREATE INDEX ON :AwsVpc(aws_vpcId)",
+				"CREATE CONSTRAINT ON (x:AwsRoute53RecordSet) ASSERT x.aws_name IS UNIQUE",
+				"DROP INDEX ON :AwsRoute53RecordSet(aws_name)");
+	}
+
+	@Test
+	public void testIndexIsKeptIfConstraintFails() {
+		NeoRxClient client = newClient(Lists.newArrayList(),
+				Lists.newArrayList("INDEX ON :AwsRoute53RecordSet(aws_name)"));
+		failing.add("CREATE CONSTRAINT ON (x:AwsRoute53RecordSet) ASSERT x.aws_name IS UNIQUE");
+
+		new SchemaManager(client).declareMergeKey("AwsRoute53RecordSet", "aws_name").applySchema();
+
+		Assertions.assertThat(changes()).containsExactly(
+				"CREATE CONSTRAINT ON (x:AwsRoute53RecordSet) ASSERT x.aws_name IS UNIQUE",
+				"DROP INDEX ON :AwsRoute53RecordSet(aws_name)",
+				"CREATE CONSTRAINT ON (x:AwsRoute53RecordSet) ASSERT x.aws_name IS UNIQUE",
+				"CREATE INDEX ON :AwsRoute53RecordSet(aws_name)");
+	}
+
+	@Test
+	public void testEnsureSchemaOnce() {
+		NeoRxClient client = newClient(Lists.newArrayList(), Lists.newArrayList());
+		Projector projector = new Projector.Builder().withNeoRxClient(client).build();
+
+		projector.ensureSchema(new SchemaManager(client).declareMergeKey("AwsVpc", "aws_arn"));
+		projector.ensureSchema(new SchemaManager(client).declareMergeKey("AwsVpc", "aws_arn"));
+
+		Assertions.assertThat(changes()).containsExactly("CREATE CONSTRAINT ON (x:AwsVpc) ASSERT x.aws_arn IS UNIQUE");
+	}
+
+	@Test
+	public void testEnsureSchemaRetriesAfterFailure() {
+		NeoRxClient client = newClient(Lists.newArrayList(), Lists.newArrayList());
+		Projector projector = new Projector.Builder().withNeoRxClient(client).build();
+
+		schemaFailures.set(1);
+		projector.ensureSchema(new SchemaManager(client).declareMergeKey("AwsVpc", "aws_arn"));
+		Assertions.assertThat(changes()).isEmpty();
+
+		projector.ensureSchema(new SchemaManager(client).declareMergeKey("AwsVpc", "aws_arn"));
+		projector.ensureSchema(new SchemaManager(client).declareMergeKey("AwsVpc", "aws_arn"));
+		Assertions.assertThat(changes()).containsExactly("CREATE CONSTRAINT ON (x:AwsVpc) ASSERT x.aws_arn IS UNIQUE");
+	}
+}
@@ -0,0 +1,160 @@
+/**
+ * Copyright 2017 Lending Club, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lendingclub.mercator.core;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+
+public class TaskScopeTest {
+
+	@Test
+	public void testPlatformModeRunsInline() {
+		Thread caller = Thread.currentThread();
+		Set<Thread> threads = ConcurrentHashMap.newKeySet();
+		try (TaskScope scope = TaskScope.open(ExecutionMode.PLATFORM, "test-")) {
+			for (int i = 0; i < 5; i++) {
+				scope.fork(() -> threads.add(Thread.currentThread()));
+			}
+			scope.join();
+		}
+		Assertions.assertThat(threads).containsExactly(caller);
+	}
+
+	@Test
+	public void testScannerContextPropagation() {
+		AtomicInteger matched = new AtomicInteger();
+		ScannerContext context = new ScannerContext().withName("test");
+		context.exec(ctx -> {
+			try (TaskScope scope = TaskScope.open(ExecutionMode.VIRTUAL, "test-")) {
+				for (int i = 0; i < 20; i++) {
+					scope.fork(() -> {
+						if (ScannerContext.getScannerContext().orElse(null) == ctx) {
+							matched.incrementAndGet();
+						}
+						ctx.incrementEntityCount();
+					});
+				}
+				scope.join();
+			}
+		});
+		Assertions.assertThat(matched.get()).isEqualTo(20);
+		Assertions.assertThat(context.getEntityCount()).isEqualTo(20);
+		Assertions.assertThat(ScannerContext.getScannerContext()).isEmpty();
+	}
+
+	@Test
+	public void testMaxConcurrency() {
+		AtomicInteger running = new AtomicInteger();
+		AtomicInteger maxRunning = new AtomicInteger();
+		try (TaskScope scope = TaskScope.open(ExecutionMode.VIRTUAL, "test-").withMaxConcurrency(2)) {
+			for (int i = 0; i < 10; i++) {
+				scope.fork(() -> {
+					maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+					Thread.sleep(10);
+					running.decrementAndGet();
+					return null;
+				});
+			}
+			scope.join();
+		}
+		Assertions.assertThat(maxRunning.get()).isBetween(1, 2);
+	}
+
+	@Test
+	public void testFailureIsThrownFromJoin() {
+		try (TaskScope scope = TaskScope.open(ExecutionMode.VIRTUAL, "test-")) {
+			scope.fork(() -> {
+				throw new IllegalStateException("foo");
+			});
+			scope.fork(() -> {
+				Thread.sleep(10000);
+				return null;
+			});
+			scope.join();
+			Assertions.failBecauseExceptionWasNotThrown(IllegalStateException.class);
+		} catch (IllegalStateException e) {
+			Assertions.assertThat(e).hasMessage("foo");
+		}
+	}
+
+	@Test
+	public void testCancelledQueuedTasksReleasePermits() throws InterruptedException {
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		CountDownLatch release = new CountDownLatch(1);
+		try (TaskScope scope = new TaskScope(executor).withMaxConcurrency(3)) {
+			scope.fork(() -> {
+				release.await();
+				throw new IllegalStateException("foo");
+			});
+			// queued behind the first task on the single thread
+			Future<?> queued = scope.fork(() -> null);
+			scope.fork(() -> null);
+			release.countDown();
+			try {
+				scope.join();
+				Assertions.failBecauseExceptionWasNotThrown(IllegalStateException.class);
+			} catch (IllegalStateException e) {
+				Assertions.assertThat(e).hasMessage("foo");
+			}
+			Assertions.assertThat(queued.isCancelled()).isTrue();
+			// join() can return before the failed task has released its permit
+			Assertions.assertThat(scope.permits.tryAcquire(3, 5, TimeUnit.SECONDS)).isTrue();
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testForkWaitingForPermitSeesFailure() {
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		AtomicBoolean ran = new AtomicBoolean();
+		try (TaskScope scope = new TaskScope(executor).withMaxConcurrency(1)) {
+			scope.fork(() -> {
+				Thread.sleep(20);
+				throw new IllegalStateException("foo");
+			});
+			// blocks until the first task has failed and released its permit
+			Future<?> future = scope.fork(() -> ran.set(true));
+			Assertions.assertThat(future.isCancelled()).isTrue();
+			Assertions.assertThat(ran.get()).isFalse();
+			Assertions.assertThat(scope.permits.availablePermits()).isEqualTo(1);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testVirtualThreadSupport() {
+		boolean java21 = false;
+		try {
+			Thread.class.getMethod("ofVirtual");
+			java21 = true;
+		} catch (NoSuchMethodException e) {
+			// expected before Java 21
+		}
+		Assertions.assertThat(ScannerExecutors.isVirtualThreadSupported()).isEqualTo(java21);
+	}
+}
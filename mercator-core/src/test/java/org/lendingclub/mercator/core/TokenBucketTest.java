@@ -0,0 +1,119 @@
+/**
+ * Copyright 2017 Lending Club, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lendingclub.mercator.core;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+import org.lendingclub.mercator.core.TokenBucket.Priority;
+
+import com.google.common.base.Ticker;
+
+public class TokenBucketTest {
+
+	AtomicLong nanos = new AtomicLong();
+
+	Ticker ticker = new Ticker() {
+
+		@Override
+		public long read() {
+			return nanos.get();
+		}
+	};
+
+	void advance(long millis) {
+		nanos.addAndGet(TimeUnit.MILLISECONDS.toNanos(millis));
+	}
+
+	int drain(TokenBucket bucket, Priority priority) {
+		int count = 0;
+		while (bucket.tryAcquire(priority)) {
+			count++;
+		}
+		return count;
+	}
+
+	@Test
+	public void testRefill() {
+		TokenBucket bucket = new TokenBucket("test", 10, 5, null, ticker);
+
+		Assertions.assertThat(drain(bucket, Priority.BACKGROUND)).isEqualTo(5);
+		Assertions.assertThat(bucket.tryAcquireOrGetWait(Priority.BACKGROUND))
+				.isEqualTo(TimeUnit.MILLISECONDS.toNanos(100));
+
+		advance(300);
+		Assertions.assertThat(drain(bucket, Priority.BACKGROUND)).isEqualTo(3);
+
+		// capacity caps the burst
+		advance(10000);
+		Assertions.assertThat(drain(bucket, Priority.BACKGROUND)).isEqualTo(5);
+	}
+
+	@Test
+	public void testChildrenShareParent() {
+		TokenBucket account = new TokenBucket("account", 10, 10, null, ticker);
+		TokenBucket ec2 = new TokenBucket("account/ec2", 8, 8, account);
+		TokenBucket elb = new TokenBucket("account/elb", 8, 8, account);
+
+		Assertions.assertThat(drain(ec2, Priority.BACKGROUND)).isEqualTo(8);
+		Assertions.assertThat(drain(elb, Priority.BACKGROUND)).isEqualTo(2);
+		Assertions.assertThat(elb.getAvailableTokens()).isEqualTo(6);
+	}
+
+	@Test
+	public void testUnlimitedLevel() {
+		TokenBucket account = new TokenBucket("account", -1, 0, null, ticker);
+		TokenBucket ec2 = new TokenBucket("account/ec2", 2, 2, account);
+
+		Assertions.assertThat(account.isUnlimited()).isTrue();
+		Assertions.assertThat(drain(ec2, Priority.BACKGROUND)).isEqualTo(2);
+		Assertions.assertThat(account.tryAcquire(Priority.BACKGROUND)).isTrue();
+	}
+
+	@Test
+	public void testReservation() {
+		TokenBucket bucket = new TokenBucket("test", 10, 10, null, ticker).withReservedRate(4);
+
+		// background callers only get the unreserved share of the burst...
+		Assertions.assertThat(drain(bucket, Priority.BACKGROUND)).isEqualTo(6);
+		// ...leaving headroom for interactive callers
+		Assertions.assertThat(drain(bucket, Priority.INTERACTIVE)).isEqualTo(4);
+
+		// and the unreserved share of the refill
+		advance(1000);
+		Assertions.assertThat(drain(bucket, Priority.BACKGROUND)).isEqualTo(6);
+		Assertions.assertThat(drain(bucket, Priority.INTERACTIVE)).isEqualTo(4);
+	}
+
+	@Test
+	public void testInvalidReservation() {
+		try {
+			new TokenBucket("test", 10, 10).withReservedRate(10);
+			Assertions.failBecauseExceptionWasNotThrown(IllegalArgumentException.class);
+		} catch (IllegalArgumentException e) {
+			Assertions.assertThat(e).hasMessageContaining("reserved");
+		}
+	}
+
+	@Test
+	public void testAcquire() {
+		TokenBucket bucket = new TokenBucket("test", 100, 1);
+		bucket.acquire();
+		Assertions.assertThat(bucket.acquire()).isLessThan(1000);
+	}
+}
@@ -20,6 +20,7 @@ import org.lendingclub.mercator.core.Scanner;
 import org.lendingclub.mercator.core.ScannerBuilder;
 import org.lendingclub.mercator.core.ScannerContext;
 import org.lendingclub.mercator.core.ScannerContext.Invokable;
+import org.lendingclub.mercator.core.SchemaManager;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
@@ -320,8 +321,14 @@ public class KubeScanner extends AbstractScanner {
 		}
 	}
 
+	@Override
+	public SchemaManager getSchemaManager() {
+		return new KubeSchemaManager(getNeoRxClient());
+	}
+
 	@Override
 	public void scan() {
+		ensureSchema();
 		scanCluster();
 		scanNamespaces();
 		scanNodes();
@@ -0,0 +1,41 @@
+/**
+ * Copyright 2017 Lending Club, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lendingclub.mercator.kubernetes;
+
+import org.lendingclub.mercator.core.SchemaManager;
+import org.lendingclub.neorx.NeoRxClient;
+
+public class KubeSchemaManager extends SchemaManager {
+
+	public KubeSchemaManager(NeoRxClient client) {
+		super(client);
+
+		declareMergeKey("KubeCluster", "clusterId");
+		declareMergeKey("KubeNamespace", "uid");
+		declareMergeKey("KubeNode", "nodeUid");
+		declareMergeKey("KubePod", "uid");
+		declareMergeKey("KubeContainer", "containerId");
+		declareMergeKey("KubeContainerSpec", "podUid", "name");
+
+		declareLookupKey("KubeNamespace", "clusterId");
+		declareLookupKey("KubeNode", "clusterId");
+		declareLookupKey("KubePod", "clusterId");
+		declareLookupKey("KubeContainer", "podUid", "name");
+		declareLookupKey("KubeContainer", "podUid");
+		declareLookupKey("KubeContainerSpec", "podUid");
+	}
+
+}